@@ -24,11 +24,13 @@ import android.util.Log;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import qti.video.depth.DepthExtractor;
 import qti.video.depth.DepthFormat;
 import qti.video.depthcapture.playback.DepthVideoSource;
 
@@ -71,7 +73,8 @@ public class DepthCaptureInstrumentedTest {
   public void testCannedDataSource() {
     final String inputClip = AppConfig.MOCK_CAMERA_INPUT_CLIP;
     final int kMetadataTrackIndex = 3;
-    final int kOutputCount = CannedDataSource.MAX_FRAME_COUNT;
+    // capped, so the EOS flag is checked on a known output
+    final int kOutputCount = 300;
 
     final boolean[] trackSelection = new boolean[] {true, false, true, true};
     final int[] outputCounts = new int[4];
@@ -126,6 +129,7 @@ public class DepthCaptureInstrumentedTest {
 
     assertNull(cannedDataSource);
     cannedDataSource = new CannedDataSource(inputClip, trackSelection, listener);
+    cannedDataSource.setMaxFrameCount(kOutputCount);
     cannedDataSource.init();
 
     {
@@ -187,14 +191,16 @@ public class DepthCaptureInstrumentedTest {
 
   private DepthVideoSource depthVideoSource;
   @Test
-  public void testDepthVideoSource() {
+  public void testDepthVideoSource() throws IOException {
     final String inputClip = AppConfig.DEPTH_CLIP_SAMPLE;
     assertTrue(new File(inputClip).exists());
     final int kMetadataTrackIndex = 2;
-    final int kOutputCount = DepthVideoSource.MAX_FRAME_COUNT;
+    // the whole clip is played
+    final int kOutputCount = getSampleCount(inputClip, 0);
 
     final int trackCount = 3;
     final int[] outputCounts = new int[3];
+    final boolean[] flaggedEos = new boolean[3];
     Runnable readInputs = () -> {
       for (int trackIndex = 0; trackIndex < trackCount; ++trackIndex) {
         while (true) {
@@ -202,11 +208,13 @@ public class DepthCaptureInstrumentedTest {
           if (output == null) {
             break;
           }
+          assertFalse(flaggedEos[trackIndex]);
           outputCounts[trackIndex]++;
           assertTrue(outputCounts[trackIndex] <= kOutputCount);
           if (outputCounts[trackIndex] == kOutputCount) {
             assertNotEquals(0,
                 output.bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            flaggedEos[trackIndex] = true;
             assertTrue(depthVideoSource.isEos(trackIndex));
           } else {
             assertEquals(0,
@@ -278,25 +286,45 @@ public class DepthCaptureInstrumentedTest {
     }
 
     depthVideoSource.start();
-    try {
-      Thread.sleep(5000);
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
-    }
+    waitForEos(depthVideoSource, trackCount, 60000);
 
     Log.w(TAG, "depth video output counts: " + Arrays.toString(outputCounts));
 
-    for (int trackIndex = 0; trackIndex < trackCount; ++trackIndex) {
-      assertTrue(depthVideoSource.isEos(trackIndex));
-    }
-
     depthVideoSource.stop();
     depthVideoSource.release();
     depthVideoSource = null;
 
     Log.w(TAG, "final output counts: " + Arrays.toString(outputCounts));
     for (int trackIndex = 0; trackIndex < trackCount; ++trackIndex) {
+      assertTrue(flaggedEos[trackIndex]);
       assertEquals(kOutputCount, outputCounts[trackIndex]);
     }
   }
+
+  static int getSampleCount(String clipPath, int trackIndex) throws IOException {
+    DepthExtractor extractor = new DepthExtractor();
+    extractor.setDataSource(new File(clipPath));
+    extractor.selectTrack(trackIndex);
+    int count = 0;
+    while (extractor.getSampleTrackIndex() == trackIndex) {
+      count++;
+      extractor.advance();
+    }
+    extractor.release();
+    return count;
+  }
+
+  static void waitForEos(DepthVideoSource source, int trackCount, long timeoutMs) {
+    final long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    for (int trackIndex = 0; trackIndex < trackCount; ++trackIndex) {
+      while (!source.isEos(trackIndex)) {
+        assertTrue("no EOS for track " + trackIndex, System.currentTimeMillis() < deadlineMs);
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,235 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import qti.video.depthcapture.playback.DepthVideoSource;
+
+/**
+ * Soak test of {@link DepthVideoSource} playing a one hour synthetic clip: every frame is
+ * output, every track ends with EOS, and the Java and native heaps stay flat.
+ * The clip repeats one encoded second of video with increasing timestamps. Every second starts
+ * with a sync frame, so the clip is decodable and cheap to generate.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DepthVideoSourceSoakTest {
+  static final String TAG = "DepthSoakTest";
+
+  private static final int WIDTH = 256;
+  private static final int HEIGHT = 144;
+  private static final int FRAME_RATE = 30;
+  private static final int DURATION_S = 3600;
+  private static final int FRAME_COUNT = FRAME_RATE * DURATION_S;
+  private static final int METADATA_SIZE = 256;
+  private static final int TRACK_COUNT = 2; // video and metadata
+  private static final long CODEC_TIMEOUT_US = 10000;
+  private static final long PLAYBACK_TIMEOUT_MS = 30 * 60 * 1000;
+  // heap usage is sampled every 10% of the clip, the first sample is the baseline
+  private static final int MEMORY_SAMPLE_COUNT = 10;
+  private static final long MAX_HEAP_GROWTH_BYTES = 8L << 20;
+
+  private static final class EncodedSecond {
+    MediaFormat format;
+    final List<ByteBuffer> samples = new ArrayList<>();
+    final List<Integer> flags = new ArrayList<>();
+  }
+
+  private DepthVideoSource source;
+
+  @Test
+  public void oneHourClip_allFramesWithFlatMemory() throws IOException, InterruptedException {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    File clip = new File(context.getCacheDir(), "depth_soak.mp4");
+    try {
+      writeClip(clip, encodeOneSecond());
+      play(clip);
+    } finally {
+      clip.delete();
+    }
+  }
+
+  private static ImageScaler.Plane[] toPlanes(Image image) {
+    Image.Plane[] planes = image.getPlanes();
+    ImageScaler.Plane[] framePlanes = new ImageScaler.Plane[planes.length];
+    for (int planeIndex = 0; planeIndex < planes.length; ++planeIndex) {
+      final int shift = planeIndex == 0 ? 0 : 1;
+      framePlanes[planeIndex] = new ImageScaler.Plane(planes[planeIndex].getBuffer(),
+          (image.getWidth() + shift) >> shift, (image.getHeight() + shift) >> shift,
+          planes[planeIndex].getRowStride(), planes[planeIndex].getPixelStride());
+    }
+    return framePlanes;
+  }
+
+  private static EncodedSecond encodeOneSecond() throws IOException {
+    MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+        WIDTH, HEIGHT);
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+        MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, 500000);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+    format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+    MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+    encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    encoder.start();
+
+    SyntheticFrameGenerator generator = new SyntheticFrameGenerator(FRAME_RATE);
+    EncodedSecond second = new EncodedSecond();
+    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    int queuedCount = 0;
+    boolean outputEos = false;
+    while (!outputEos) {
+      if (queuedCount <= FRAME_RATE) {
+        int inputIndex = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+        if (inputIndex >= 0) {
+          if (queuedCount == FRAME_RATE) {
+            encoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+          } else {
+            Image image = encoder.getInputImage(inputIndex);
+            assertTrue(image != null);
+            generator.fillVideo(queuedCount, toPlanes(image), 8);
+            encoder.queueInputBuffer(inputIndex, 0, WIDTH * HEIGHT * 3 / 2,
+                generator.getPresentationTimeUs(queuedCount), 0);
+          }
+          queuedCount++;
+        }
+      }
+      int outputIndex = encoder.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+      if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        second.format = encoder.getOutputFormat();
+      } else if (outputIndex >= 0) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+          ByteBuffer output = encoder.getOutputBuffer(outputIndex);
+          output.position(info.offset);
+          output.limit(info.offset + info.size);
+          ByteBuffer sample = ByteBuffer.allocateDirect(info.size);
+          sample.put(output);
+          sample.flip();
+          second.samples.add(sample);
+          second.flags.add(info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        }
+        outputEos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        encoder.releaseOutputBuffer(outputIndex, false);
+      }
+    }
+    encoder.stop();
+    encoder.release();
+
+    assertTrue(second.format != null);
+    assertEquals(FRAME_RATE, second.samples.size());
+    assertNotEquals(0, (int) second.flags.get(0));
+    return second;
+  }
+
+  private static void writeClip(File file, EncodedSecond second) throws IOException {
+    MediaMuxer muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    int videoTrack = muxer.addTrack(second.format);
+    MediaFormat metadataFormat = new MediaFormat();
+    metadataFormat.setString(MediaFormat.KEY_MIME, SyntheticCameraSource.MIMETYPE_METADATA);
+    int metadataTrack = muxer.addTrack(metadataFormat);
+    muxer.start();
+
+    SyntheticFrameGenerator generator = new SyntheticFrameGenerator(FRAME_RATE);
+    ByteBuffer metadata = ByteBuffer.allocateDirect(METADATA_SIZE);
+    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    for (long frame = 0; frame < FRAME_COUNT; ++frame) {
+      final long ptsUs = generator.getPresentationTimeUs(frame);
+      final int sampleIndex = (int) (frame % FRAME_RATE);
+      ByteBuffer sample = second.samples.get(sampleIndex);
+      info.set(0, sample.limit(), ptsUs, second.flags.get(sampleIndex));
+      muxer.writeSampleData(videoTrack, sample, info);
+      generator.fillMetadata(frame, metadata, METADATA_SIZE);
+      info.set(0, METADATA_SIZE, ptsUs, 0);
+      muxer.writeSampleData(metadataTrack, metadata, info);
+    }
+    muxer.stop();
+    muxer.release();
+    Log.v(TAG, "soak clip " + file + ", " + file.length() + " bytes");
+  }
+
+  private void play(File clip) throws InterruptedException {
+    HandlerThread handlerThread = new HandlerThread("DepthSoakConsumer");
+    handlerThread.start();
+    Handler handler = new Handler(handlerThread.getLooper());
+    final int[] outputCounts = new int[TRACK_COUNT];
+    final long[] javaHeapBytes = new long[MEMORY_SAMPLE_COUNT];
+    final long[] nativeHeapBytes = new long[MEMORY_SAMPLE_COUNT];
+    final int[] memorySampleCount = new int[1];
+    final Runtime runtime = Runtime.getRuntime();
+
+    Runnable readOutputs = () -> {
+      for (int trackIndex = 0; trackIndex < TRACK_COUNT; ++trackIndex) {
+        DepthVideoSource.Output output;
+        while ((output = source.dequeueOutput(trackIndex)) != null) {
+          outputCounts[trackIndex]++;
+          source.queueOutput(output);
+        }
+      }
+      while (memorySampleCount[0] < MEMORY_SAMPLE_COUNT
+          && outputCounts[0] >= (long) (memorySampleCount[0] + 1) * FRAME_COUNT
+          / MEMORY_SAMPLE_COUNT) {
+        runtime.gc();
+        javaHeapBytes[memorySampleCount[0]] = runtime.totalMemory() - runtime.freeMemory();
+        nativeHeapBytes[memorySampleCount[0]] = Debug.getNativeHeapAllocatedSize();
+        memorySampleCount[0]++;
+      }
+    };
+
+    source = new DepthVideoSource(clip.getPath(), trackIndex -> handler.post(readOutputs));
+    source.init();
+    assertEquals(TRACK_COUNT, source.getTrackCount());
+    assertTrue(source.getTrackFormat(0).getString(MediaFormat.KEY_MIME).startsWith("video/"));
+    final long startMs = System.currentTimeMillis();
+    source.start();
+    DepthCaptureInstrumentedTest.waitForEos(source, TRACK_COUNT, PLAYBACK_TIMEOUT_MS);
+    final long elapsedMs = System.currentTimeMillis() - startMs;
+    source.stop();
+    source.release();
+    source = null;
+
+    CountDownLatch drained = new CountDownLatch(1);
+    handler.post(drained::countDown);
+    drained.await();
+    handlerThread.quitSafely();
+
+    Log.w(TAG, "output counts " + Arrays.toString(outputCounts) + " in " + elapsedMs + " ms");
+    Log.w(TAG, "java heap " + Arrays.toString(javaHeapBytes));
+    Log.w(TAG, "native heap " + Arrays.toString(nativeHeapBytes));
+    for (int trackIndex = 0; trackIndex < TRACK_COUNT; ++trackIndex) {
+      assertEquals(FRAME_COUNT, outputCounts[trackIndex]);
+    }
+    assertEquals(MEMORY_SAMPLE_COUNT, memorySampleCount[0]);
+    final int last = MEMORY_SAMPLE_COUNT - 1;
+    assertTrue(javaHeapBytes[last] - javaHeapBytes[0] < MAX_HEAP_GROWTH_BYTES);
+    assertTrue(nativeHeapBytes[last] - nativeHeapBytes[0] < MAX_HEAP_GROWTH_BYTES);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import qti.video.depth.DepthFormat;
+
+/**
+ * Delivery CPU time of {@link MockCameraSource} per frame, copying decoded images to the output
+ * surfaces and attaching them, on the same frames of the canned clip in one run.
+ * The times are reported, not asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MockCameraSourceDeliveryBenchmark {
+  static final String TAG = "MockCameraBenchmark";
+
+  private static final int FRAME_COUNT = 300;
+  private static final int MAX_CONSUMER_IMAGES = 4;
+  private static final long REPLAY_TIMEOUT_S = 120;
+  private static final int[] IMAGE_TRACK_TYPES = {
+      DepthFormat.TRACK_TYPE_SHARP_VIDEO, DepthFormat.TRACK_TYPE_DEPTH_LINEAR};
+
+  private static final class Stats {
+    long deliveredFrames;
+    long copiedImages;
+    long attachedImages;
+    long cpuTimeNs;
+
+    long cpuTimeUsPerFrame() {
+      return deliveredFrames == 0 ? 0 : cpuTimeNs / deliveredFrames / 1000;
+    }
+
+    @Override
+    public String toString() {
+      return "frames " + deliveredFrames + ", copied " + copiedImages + ", attached "
+          + attachedImages + ", cpu time per frame us " + cpuTimeUsPerFrame();
+    }
+  }
+
+  @Test
+  public void copyAndZeroCopy_cpuTimePerFrame() throws InterruptedException {
+    assertTrue(new File(AppConfig.MOCK_CAMERA_INPUT_CLIP).exists());
+
+    Stats copy = replay(false);
+    Stats zeroCopy = replay(true);
+    Log.w(TAG, "copy: " + copy);
+    Log.w(TAG, "zero copy: " + zeroCopy);
+
+    assertTrue(copy.deliveredFrames > 0);
+    assertEquals(copy.deliveredFrames, zeroCopy.deliveredFrames);
+    assertEquals(copy.deliveredFrames, copy.copiedImages);
+    assertEquals(0, copy.attachedImages);
+    // images whose format or size differ from the surface's are still copied
+    assertTrue(zeroCopy.attachedImages > 0);
+    assertEquals(zeroCopy.deliveredFrames, zeroCopy.attachedImages + zeroCopy.copiedImages);
+  }
+
+  // replays FRAME_COUNT frames as fast as image readers consume them
+  private static Stats replay(boolean zeroCopy) throws InterruptedException {
+    HandlerThread consumerThread = new HandlerThread("MockCameraConsumer");
+    consumerThread.start();
+    Handler consumerHandler = new Handler(consumerThread.getLooper());
+    ImageReader[] readers = new ImageReader[IMAGE_TRACK_TYPES.length];
+    MockCameraSource source = new MockCameraSource(zeroCopy);
+    try {
+      source.setLooping(false, FRAME_COUNT);
+      source.setFastReplay(true);
+      source.init();
+      for (int i = 0; i < IMAGE_TRACK_TYPES.length; ++i) {
+        MediaFormat format = source.getTrackFormat(IMAGE_TRACK_TYPES[i]);
+        // the format the source writes, so decoded images can be attached
+        readers[i] = ImageReader.newInstance(format.getInteger(MediaFormat.KEY_WIDTH),
+            format.getInteger(MediaFormat.KEY_HEIGHT),
+            IMAGE_TRACK_TYPES[i] == DepthFormat.TRACK_TYPE_DEPTH_LINEAR
+                ? ImageFormat.YCBCR_P010 : ImageFormat.YUV_420_888,
+            MAX_CONSUMER_IMAGES);
+        readers[i].setOnImageAvailableListener(reader -> {
+          Image image = reader.acquireNextImage();
+          if (image != null) {
+            image.close();
+          }
+        }, consumerHandler);
+        source.setOutputSurface(IMAGE_TRACK_TYPES[i], readers[i].getSurface());
+      }
+      TrackDataSource metadata = source.getMetadataDataSource();
+      metadata.setOutputListener(new TrackDataSource.OutputListener() {
+        @Override
+        public void onOutputAvailable() {
+          TrackBuffer buffer;
+          while ((buffer = metadata.dequeueBuffer()) != null) {
+            metadata.queueBuffer(buffer);
+          }
+        }
+
+        @Override
+        public void onEos() {
+        }
+      });
+      CountDownLatch finished = new CountDownLatch(1);
+      source.setOnFinishedListener(finished::countDown);
+
+      source.start();
+      assertTrue(finished.await(REPLAY_TIMEOUT_S, TimeUnit.SECONDS));
+      source.stop();
+    } finally {
+      source.release();
+      for (ImageReader reader : readers) {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+      consumerThread.quitSafely();
+    }
+    // complete once release() joined the delivery thread
+    Stats stats = new Stats();
+    stats.deliveredFrames = source.getDeliveredFrameCount();
+    stats.copiedImages = source.getCopiedImageCount();
+    stats.attachedImages = source.getAttachedImageCount();
+    stats.cpuTimeNs = source.getDeliveryCpuTimeNs();
+    return stats;
+  }
+}
@@ -42,6 +42,23 @@ public interface CameraSource {
    */
   MediaFormat getTrackFormat(int trackType);
 
+  /**
+   * Set output size of a track, when it should be different from the size in
+   * {@link #getTrackFormat(int)}, e.g. to record depth at a reduced resolution. The source scales
+   * the frames before queueing them to the output surface.
+   *
+   * @param trackType the track type. Value is
+   *     {@link qti.video.depth.DepthFormat#TRACK_TYPE_SHARP_VIDEO},
+   *     {@link qti.video.depth.DepthFormat#TRACK_TYPE_DEPTH_LINEAR},
+   *     {@link qti.video.depth.DepthFormat#TRACK_TYPE_DEPTH_INVERSE} or
+   *     {@link qti.video.depth.DepthFormat#TRACK_TYPE_TRANSLUCENT_VIDEO}.
+   * @param width output width, not larger than the track format width.
+   * @param height output height, not larger than the track format height.
+   * @throws UnsupportedOperationException if the track or the scaling is unsupported.
+   * @apiNote it should be called before {@link #setOutputSurface(int, Surface)} is called.
+   */
+  void setTrackOutputSize(int trackType, int width, int height);
+
   /**
    * Set output surface of a track.
    *
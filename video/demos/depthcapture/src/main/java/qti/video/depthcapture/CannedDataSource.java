@@ -7,7 +7,10 @@
 
 package qti.video.depthcapture;
 
+import android.graphics.ImageFormat;
+import android.hardware.HardwareBuffer;
 import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
@@ -20,24 +23,34 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Parse local clip, output metadata and decoded video images.
+ * Video is decoded to codec buffers by default. In image reader mode it's decoded to an
+ * {@link ImageReader} instead, so that output images can be queued to an ImageWriter without
+ * copy, see {@link Output#attachable}.
+ * The clip is played to its end by default, and every track ends with an EOS. Metadata samples
+ * are not read ahead of the client by more than the output queue capacity.
  */
 class CannedDataSource {
 
   static final String TAG = "CannedDataSource";
   static final boolean DEBUG = true;
-  static final int MAX_FRAME_COUNT = 300;
+  private static final int OUTPUT_QUEUE_CAPACITY = 64;
+  // gap between the last sample of a loop and the first sample of the next loop
+  static final long LOOP_GAP_US = 1000000L / 30;
 
   static final int REATTACH_TIMESTAMP_FRAME_RATE = 30;
   static final boolean REATTACH_TIMESTAMP = true;
+  // decoder output images held by the client and in the outputs queue, per track
+  static final int IMAGE_READER_MAX_IMAGES = 8;
 
   public static class Output {
     public int trackIndex = -1;
@@ -45,6 +58,9 @@ class CannedDataSource {
     public int bufferIndex =  -1; // for media codec output
     public Image image; // for media codec output
     public ByteBuffer byteBuffer; // for metadata track
+    // image is from an ImageReader, it can be queued to an ImageWriter of the same format and
+    // size with ImageWriter.queueInputImage() without copy. The image is not accessible after.
+    public boolean attachable;
   }
 
   interface OutputsListener {
@@ -58,6 +74,13 @@ class CannedDataSource {
   private final int trackCount;
   private final boolean[] trackSelection;
   private final Track[] tracks;
+  private final boolean decodeToImageReader;
+  private boolean looping;
+  private int maxFrameCount;
+  // added to sample timestamps so that they keep increasing across loops
+  private long loopPtsOffsetUs;
+  private long maxInputPtsUs = -1;
+  private int loopCount;
 
   enum State {
     Initial,
@@ -82,6 +105,24 @@ class CannedDataSource {
   public CannedDataSource(String clipPath,
                           boolean[] trackSelection,
                           OutputsListener listener) {
+    this(clipPath, trackSelection, listener, false);
+  }
+
+  /**
+   * CannedDataSource constructor.
+   *
+   * @param clipPath clip path.
+   * @param trackSelection which tracks will be enabled.
+   * @param listener {@link OutputsListener#onOutputAvailable(int)} will be called
+   *     whenever an output is available.
+   * @param decodeToImageReader true to decode video to image readers, whose images are
+   *     {@link Output#attachable}.
+   */
+  public CannedDataSource(String clipPath,
+                          boolean[] trackSelection,
+                          OutputsListener listener,
+                          boolean decodeToImageReader) {
+    this.decodeToImageReader = decodeToImageReader;
     handlerThread.start();
     mainHandler = new MainHandler(handlerThread.getLooper());
     this.clipPath = clipPath;
@@ -91,6 +132,27 @@ class CannedDataSource {
     tracks = new Track[trackCount];
   }
 
+  /**
+   * Replay the clip in a loop instead of stopping at its end. Input timestamps keep increasing
+   * across loops. It should be called before init().
+   */
+  public void setLooping(boolean looping) {
+    assert (state == State.Initial);
+    this.looping = looping;
+  }
+
+  /**
+   * Set the max output count of each track, the last output is flagged EOS. It should be called
+   * before init().
+   *
+   * @param maxFrameCount max output count, or 0 for unbounded. Default is 0.
+   */
+  public void setMaxFrameCount(int maxFrameCount) {
+    assert (state == State.Initial);
+    assert (maxFrameCount >= 0);
+    this.maxFrameCount = maxFrameCount;
+  }
+
   /**
    * All track formats are available after init() returns.
    */
@@ -111,6 +173,10 @@ class CannedDataSource {
     assert (tracks[trackIndex] != null);
     MediaFormat format = tracks[trackIndex].inputFormat;
     assert (format != null);
+    return is10Bit(format);
+  }
+
+  private static boolean is10Bit(MediaFormat format) {
     String mime = format.getString(MediaFormat.KEY_MIME);
     int profile = format.getInteger(MediaFormat.KEY_PROFILE);
     return "video/hevc".equals(mime)
@@ -188,6 +254,8 @@ class CannedDataSource {
         codec = null;
         callback = null;
         inputs = null;
+        imageReader = null;
+        renderedInfos = null;
         outputFormat = format;
         // WHAT_OUTPUT_FORMAT_AVAILABLE is not sent for metadata track
       } else {
@@ -195,6 +263,13 @@ class CannedDataSource {
           codec = MediaCodec.createDecoderByType(mime);
           callback = new CodecCallback(trackIndex);
           inputs = new LinkedList<>();
+          if (decodeToImageReader) {
+            imageReader = createImageReader(format);
+            renderedInfos = new ArrayDeque<>();
+          } else {
+            imageReader = null;
+            renderedInfos = null;
+          }
           startDecoder();
         } catch (IOException e) {
           throw new RuntimeException(e);
@@ -211,6 +286,12 @@ class CannedDataSource {
 
       MediaFormat format = new MediaFormat(inputFormat);
       int profile = format.getInteger(MediaFormat.KEY_PROFILE);
+      if (imageReader != null) {
+        // the color format follows the image reader
+        codec.configure(format, imageReader.getSurface(), null, 0);
+        codec.start();
+        return;
+      }
       if (mime.equals("video/hevc")
           && (profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10
           || profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10
@@ -226,6 +307,18 @@ class CannedDataSource {
       codec.start();
     }
 
+    private ImageReader createImageReader(MediaFormat format) {
+      ImageReader reader = ImageReader.newInstance(
+          format.getInteger(MediaFormat.KEY_WIDTH),
+          format.getInteger(MediaFormat.KEY_HEIGHT),
+          is10Bit(format) ? ImageFormat.YCBCR_P010 : ImageFormat.YUV_420_888,
+          IMAGE_READER_MAX_IMAGES,
+          // read for the copy fallback, encode for images attached to an encoder surface
+          HardwareBuffer.USAGE_CPU_READ_OFTEN | HardwareBuffer.USAGE_VIDEO_ENCODE);
+      reader.setOnImageAvailableListener(r -> acquireImages(this), mainHandler);
+      return reader;
+    }
+
     public final int trackIndex;
     private final MediaFormat inputFormat;
     public final boolean isMetadataTrack;
@@ -233,17 +326,30 @@ class CannedDataSource {
     public final MediaCodec codec;
     private final MediaCodec.Callback callback;
     public final Queue<Integer> inputs;
+    // for decoding to image reader
+    public final ImageReader imageReader;
+    // infos of rendered outputs whose images are not acquired yet
+    public final Deque<MediaCodec.BufferInfo> renderedInfos;
+    public int acquiredImageCount;
     public int inputCount;
     public int outputCount;
-    private final BlockingQueue<Output> outputs = new ArrayBlockingQueue<>(64);
+    private final BlockingQueue<Output> outputs = new ArrayBlockingQueue<>(OUTPUT_QUEUE_CAPACITY);
+    // accessed on the handler thread only
+    // metadata outputs read and not returned yet
+    int pendingMetadataCount;
+    // EOS is queued to the decoder, or posted for the metadata track
+    boolean inputEos;
     private boolean eos = false;
 
     public synchronized void addOutput(Output output) {
-      if (outputCount >= MAX_FRAME_COUNT) {
+      if (maxFrameCount > 0 && outputCount >= maxFrameCount) {
         if (DEBUG) {
           Log.v(TAG, "ignore output after max, trackIndex " + trackIndex
               + ", outputCount " + outputCount);
         }
+        if (isMetadataTrack) {
+          pendingMetadataCount--;
+        }
         return;
       }
       if (REATTACH_TIMESTAMP) {
@@ -261,17 +367,15 @@ class CannedDataSource {
         Log.v(TAG, "trackIndex " + trackIndex + ", outputCount " + outputCount
             + ", ptsUs " + output.bufferInfo.presentationTimeUs);
       }
-      if (outputCount == MAX_FRAME_COUNT) {
+      if (outputCount == maxFrameCount) {
         Log.v(TAG, "set output eos at max count, trackIndex " + trackIndex);
         output.bufferInfo.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
       }
 
-      try {
-        // blocking to avoid too many metadata bufferd
-        outputs.offer(output, 1, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
-      }
+      // outputs in flight are limited by the decoder buffers, the image reader and
+      // pendingMetadataCount
+      boolean queued = outputs.offer(output);
+      assert (queued);
 
       if ((output.bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
         Log.v(TAG, "eos flag found for trackIndex " + trackIndex);
@@ -295,6 +399,12 @@ class CannedDataSource {
     public synchronized boolean isEos() {
       return eos && outputs.isEmpty();
     }
+
+    // for an empty EOS output, or a track which reaches EOS without a flagged output
+    public synchronized void setEos() {
+      Log.v(TAG, "set eos for trackIndex " + trackIndex);
+      eos = true;
+    }
   }
 
   private class CodecCallback extends MediaCodec.Callback {
@@ -319,6 +429,17 @@ class CannedDataSource {
       if (DEBUG) {
         Log.v(TAG, "onOutputBufferAvailable trackIndex " + trackIndex + ", outputIndex " + i);
       }
+      Track track = tracks[trackIndex];
+      if (track.imageReader != null) {
+        onOutputRendered(track, mediaCodec, i, bufferInfo);
+        return;
+      }
+      if (bufferInfo.size == 0
+          && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        mediaCodec.releaseOutputBuffer(i, false);
+        mainHandler.obtainMessage(WHAT_TRACK_EOS, trackIndex, -1).sendToTarget();
+        return;
+      }
       Output output = new Output();
       output.trackIndex = trackIndex;
       output.bufferIndex = i;
@@ -352,6 +473,7 @@ class CannedDataSource {
   static final int WHAT_OUTPUT_FORMAT_AVAILABLE = 2; // msg.obj = MediaFormat
   static final int WHAT_RELEASE_OUTPUT = 4; // msg.obj = Output
   static final int WHAT_TRY_FILL_INPUT = 6;
+  static final int WHAT_TRACK_EOS = 9;
   static final int WHAT_INIT = 10;
   static final int WHAT_START = 11;
   static final int WHAT_STOP = 12;
@@ -385,6 +507,12 @@ class CannedDataSource {
             listener.onOutputAvailable(msg.arg1);
           }
           break;
+        case WHAT_TRACK_EOS:
+          tracks[msg.arg1].setEos();
+          if (state == State.Started && listener != null) {
+            listener.onOutputAvailable(msg.arg1);
+          }
+          break;
         case WHAT_OUTPUT_FORMAT_AVAILABLE: {
           assert (state == State.Initial);
           Track track = tracks[msg.arg1];
@@ -407,13 +535,21 @@ class CannedDataSource {
           Output output = (Output) msg.obj;
           Track track = tracks[output.trackIndex];
           assert (track != null);
-          if (!track.isMetadataTrack) {
+          if (output.attachable) {
+            output.image.close();
+            track.acquiredImageCount--;
+            acquireImages(track);
+          } else if (!track.isMetadataTrack) {
             assert (track.codec != null);
             if (DEBUG) {
               Log.v(TAG, "release output trackIndex " + output.trackIndex
                   + ", outputIndex " + output.bufferIndex);
             }
             track.codec.releaseOutputBuffer(output.bufferIndex, true);
+          } else {
+            track.pendingMetadataCount--;
+            assert (track.pendingMetadataCount >= 0);
+            readInput();
           }
           break;
         case WHAT_INIT:
@@ -506,7 +642,8 @@ class CannedDataSource {
   private void onStop() {
     for (Track track : tracks) {
       if (track != null) {
-        Log.v(TAG, "trackIndex " + track.trackIndex + ", total output: " + track.outputCount);
+        Log.v(TAG, "trackIndex " + track.trackIndex + ", total output: " + track.outputCount
+            + ", loops: " + loopCount);
         if (!track.isMetadataTrack) {
           track.codec.stop();
         }
@@ -518,19 +655,114 @@ class CannedDataSource {
     for (Track track : tracks) {
       if (track != null && !track.isMetadataTrack) {
         track.codec.release();
+        if (track.imageReader != null) {
+          track.imageReader.close();
+        }
       }
     }
     extractor.release();
   }
 
+  // render a decoded buffer to the image reader, it's output when the image is acquired
+  private void onOutputRendered(Track track, MediaCodec codec, int index,
+                                MediaCodec.BufferInfo bufferInfo) {
+    boolean eos = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    if (bufferInfo.size > 0) {
+      track.renderedInfos.add(bufferInfo);
+      codec.releaseOutputBuffer(index, true);
+      return;
+    }
+    codec.releaseOutputBuffer(index, false);
+    if (eos) {
+      MediaCodec.BufferInfo last = track.renderedInfos.peekLast();
+      if (last != null) {
+        last.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+      } else {
+        track.setEos();
+        if (state == State.Started && listener != null) {
+          listener.onOutputAvailable(track.trackIndex);
+        }
+      }
+    }
+  }
+
+  private void acquireImages(Track track) {
+    while (track.acquiredImageCount < IMAGE_READER_MAX_IMAGES) {
+      Image image = track.imageReader.acquireNextImage();
+      if (image == null) {
+        return;
+      }
+      // image timestamp is the rendered pts, skip infos of frames dropped by the surface
+      final long timestampNs = image.getTimestamp();
+      MediaCodec.BufferInfo info;
+      while ((info = track.renderedInfos.peek()) != null
+          && info.presentationTimeUs * 1000 < timestampNs) {
+        Log.w(TAG, "frame not rendered, trackIndex " + track.trackIndex
+            + ", ptsUs " + info.presentationTimeUs);
+        track.renderedInfos.poll();
+      }
+      if (info == null || info.presentationTimeUs * 1000 != timestampNs) {
+        Log.w(TAG, "drop unexpected image, trackIndex " + track.trackIndex
+            + ", timestampNs " + timestampNs);
+        image.close();
+        continue;
+      }
+      track.renderedInfos.poll();
+      track.acquiredImageCount++;
+      Output output = new Output();
+      output.trackIndex = track.trackIndex;
+      output.bufferInfo = info;
+      output.image = image;
+      output.attachable = true;
+      mainHandler.obtainMessage(WHAT_OUTPUT_AVAILABLE, track.trackIndex, -1, output)
+          .sendToTarget();
+    }
+  }
+
+  private boolean allTracksReachedMax() {
+    if (maxFrameCount == 0) {
+      return false;
+    }
+    for (Track track : tracks) {
+      if (track != null && track.outputCount < maxFrameCount) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // MediaExtractor reports EOS of all tracks at once, only the track of the last sample gets a
+  // flagged sample. Other decoders get an empty EOS input as soon as they have an input buffer.
+  private void queueEosInputs() {
+    for (Track track : tracks) {
+      if (track == null || track.inputEos) {
+        continue;
+      }
+      if (track.isMetadataTrack) {
+        track.inputEos = true;
+        // ordered after the metadata outputs already posted
+        mainHandler.obtainMessage(WHAT_TRACK_EOS, track.trackIndex, -1).sendToTarget();
+      } else if (!track.inputs.isEmpty()) {
+        Integer inputIndex = track.inputs.poll();
+        track.inputEos = true;
+        track.codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+      }
+    }
+  }
+
   private void readInput() {
     if (extractorAllEos) {
+      queueEosInputs();
+      return;
+    }
+    if (allTracksReachedMax()) {
       return;
     }
     int trackIndex = extractor.getSampleTrackIndex();
     if (trackIndex == -1) {
       Log.v(TAG, "all EOS");
       extractorAllEos = true;
+      queueEosInputs();
       return;
     }
     Track track = tracks[trackIndex];
@@ -538,6 +770,11 @@ class CannedDataSource {
     ByteBuffer buf;
     int inputIndex = -1;
     if (track.isMetadataTrack) {
+      if (track.pendingMetadataCount >= OUTPUT_QUEUE_CAPACITY) {
+        // continue when the client returns a metadata output
+        return;
+      }
+      track.pendingMetadataCount++;
       buf = ByteBuffer.allocate((int) extractor.getSampleSize());
     } else if (!track.inputs.isEmpty()) {
       Integer v = track.inputs.poll();
@@ -557,7 +794,8 @@ class CannedDataSource {
     int sz = extractor.readSampleData(buf, 0);
     assert (sz == extractor.getSampleSize());
     buf.flip();
-    long pts = extractor.getSampleTime();
+    long pts = extractor.getSampleTime() + loopPtsOffsetUs;
+    maxInputPtsUs = Math.max(maxInputPtsUs, pts);
     int extractorFlags = extractor.getSampleFlags();
     int codecFlags = 0;
     if ((extractorFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
@@ -567,7 +805,15 @@ class CannedDataSource {
       codecFlags |= MediaCodec.BUFFER_FLAG_PARTIAL_FRAME;
     }
     if (!extractor.advance()) { // advance
-      codecFlags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+      if (looping) {
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        loopPtsOffsetUs = maxInputPtsUs + LOOP_GAP_US;
+        loopCount++;
+        Log.v(TAG, "loop " + loopCount + ", pts offset us " + loopPtsOffsetUs);
+      } else {
+        codecFlags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        track.inputEos = true;
+      }
     }
 
     tracks[trackIndex].inputCount++;
@@ -46,7 +46,7 @@ public class DepthCaptureActivity extends Activity {
   private final HandlerThread handlerThread = new HandlerThread("DepthCaptureActivity");
   private MainHandler mainHandler;
   private DepthRecorder depthRecorder;
-  private MockCameraSource mockCameraSource;
+  private CameraSource mockCameraSource;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -127,18 +127,36 @@ public class DepthCaptureActivity extends Activity {
     final boolean kPreviewTranslucentVideo = true;
     final boolean kPreviewDepth = true;
     final int kDepthType = DepthFormat.TRACK_TYPE_DEPTH_LINEAR;
-    final int[] kEnabledTrackTypes = new int[] {
-        DepthFormat.TRACK_TYPE_TRANSLUCENT_VIDEO,
-        // DepthFormat.TRACK_TYPE_SHARP_VIDEO,
-        kDepthType,
-    };
-    final int[] kEncoders = new int[] {
-        DepthRecorder.HEVC,
-        // DepthRecorder.HEVC,
-        DepthRecorder.DEPTH_ENCODER_HEVC_10BIT,
-    };
-
-    mockCameraSource = new MockCameraSource();
+    // record full resolution sharp video besides the translucent video
+    final boolean kRecordSharpVideo = false;
+    // depth width and height are divided by it, e.g. 2 for quarter resolution depth
+    final int kDepthScaleDivisor = 1;
+    // generate frames procedurally instead of replaying AppConfig.MOCK_CAMERA_INPUT_CLIP
+    final boolean kUseSyntheticCameraSource = false;
+    final int[] kEnabledTrackTypes = kRecordSharpVideo
+        ? new int[] {
+            DepthFormat.TRACK_TYPE_TRANSLUCENT_VIDEO,
+            DepthFormat.TRACK_TYPE_SHARP_VIDEO,
+            kDepthType,
+        }
+        : new int[] {
+            DepthFormat.TRACK_TYPE_TRANSLUCENT_VIDEO,
+            kDepthType,
+        };
+    final int[] kEncoders = kRecordSharpVideo
+        ? new int[] {
+            DepthRecorder.HEVC,
+            DepthRecorder.HEVC,
+            DepthRecorder.DEPTH_ENCODER_HEVC_10BIT,
+        }
+        : new int[] {
+            DepthRecorder.HEVC,
+            DepthRecorder.DEPTH_ENCODER_HEVC_10BIT,
+        };
+
+    mockCameraSource = kUseSyntheticCameraSource
+        ? new SyntheticCameraSource(new SyntheticCameraSource.Config())
+        : new MockCameraSource();
     if (autoTestMode) {
       mockCameraSource.setOnFinishedListener(() -> {
         Log.w(TAG, "AutoTestMode - MockCameraSource finished");
@@ -179,6 +197,12 @@ public class DepthCaptureActivity extends Activity {
       MediaFormat format = mockCameraSource.getTrackFormat(trackType);
       int width = format.getInteger(MediaFormat.KEY_WIDTH);
       int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+      if (trackType == kDepthType && kDepthScaleDivisor > 1) {
+        // keep the encoded size even for 4:2:0 chroma subsampling
+        width = (width / kDepthScaleDivisor) & ~1;
+        height = (height / kDepthScaleDivisor) & ~1;
+        mockCameraSource.setTrackOutputSize(trackType, width, height);
+      }
       depthRecorder.setTrackSize(trackType, width, height);
     }
 
@@ -8,6 +8,10 @@
 package qti.video.depthcapture;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
@@ -22,13 +26,14 @@ import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import qti.video.QMediaExtensions;
 import qti.video.depth.DepthFormat;
 import qti.video.depth.DepthMuxer;
+import qti.video.depth.DepthRvlCodec;
 
 /*
  * DepthRecorder has similar state machine and APIs as MediaRecorder.
@@ -66,6 +71,8 @@ public final class DepthRecorder {
   public static final int HEVC = 5;
   public static final int DEPTH_ENCODER_HEVC_8BIT = 0x10;
   public static final int DEPTH_ENCODER_HEVC_10BIT = 0x11;
+  // lossless 16-bit depth with DepthRvlCodec, muxed as a DepthFormat.MIMETYPE_DEPTH_RVL track
+  public static final int DEPTH_ENCODER_RVL_LOSSLESS = 0x12;
   public static final int TRACK_SOURCE_SURFACE = 2;
   public static final int OUTPUT_FORMAT_DEPTH_MPEG_4 = 2;
 
@@ -82,6 +89,18 @@ public final class DepthRecorder {
   private int outputContainerFormat = -1;
   private String outputPath;
   private DepthMuxer muxer;
+  private MuxWriter muxWriter;
+  private final MuxScheduler<Output> muxScheduler = new MuxScheduler<>(
+      DepthFormat.MAX_TRACK_TYPE_COUNT, output -> output.bufferInfo.presentationTimeUs);
+  private final RecorderMetrics metrics = new RecorderMetrics();
+  private long metricsDumpIntervalMs;
+  private final Runnable metricsDumper = new Runnable() {
+    @Override
+    public void run() {
+      Log.i(TAG, "metrics " + metrics.snapshot());
+      mainHandler.postDelayed(this, metricsDumpIntervalMs);
+    }
+  };
 
   public DepthRecorder(Context context) {
     this.context = context;
@@ -99,6 +118,7 @@ public final class DepthRecorder {
     assert (tracks[trackType] == null);
     Track track = new Track(trackType, source);
     tracks[trackType] = track;
+    muxScheduler.addTrack(trackType);
     if (trackType == DepthFormat.TRACK_TYPE_DEPTH_INVERSE
         || trackType == DepthFormat.TRACK_TYPE_DEPTH_LINEAR) {
       Log.v(TAG, "Create metadata track for depth");
@@ -115,6 +135,7 @@ public final class DepthRecorder {
     Track track = new Track(DepthFormat.TRACK_TYPE_METADATA, -1);
     track.isMetadataTrack = true;
     tracks[DepthFormat.TRACK_TYPE_METADATA] = track;
+    muxScheduler.addTrack(DepthFormat.TRACK_TYPE_METADATA);
   }
 
   public void setOutputFormat(int outputFormat) {
@@ -134,6 +155,17 @@ public final class DepthRecorder {
     previewSurfaces[trackType] = surface;
   }
 
+  /**
+   * Set encoded size of the given track type. Each track type has its own size, so depth tracks
+   * can be recorded at a reduced resolution, e.g. a quarter of the video size, while video tracks
+   * stay at full resolution. {@link qti.video.depth.DepthExtractor} reports the video size depth
+   * is aligned to with {@link DepthFormat#KEY_REFERENCE_WIDTH} and
+   * {@link DepthFormat#KEY_REFERENCE_HEIGHT}.
+   *
+   * @param trackType which track type to set the size
+   * @param width encoded width
+   * @param height encoded height
+   */
   public void setTrackSize(int trackType, int width, int height) {
     assert (state == State.DataSourceConfigured);
     tracks[trackType].size = new Size(width, height);
@@ -144,8 +176,10 @@ public final class DepthRecorder {
    *
    * @param trackType which track type to set the encoder type
    * @param encoder encoder type. For video tracks, it can only be {@link #HEVC}. For depth tracks
-   *     it can be one of {@link #DEPTH_ENCODER_HEVC_8BIT} and
-   *     {@link #DEPTH_ENCODER_HEVC_10BIT}
+   *     it can be one of {@link #DEPTH_ENCODER_HEVC_8BIT}, {@link #DEPTH_ENCODER_HEVC_10BIT} and
+   *     {@link #DEPTH_ENCODER_RVL_LOSSLESS}. The lossless encoder reads 16-bit depth from the
+   *     luma plane of {@link ImageFormat#YCBCR_P010} images queued to the track surface, and
+   *     does not support preview.
    */
   public void setTrackEncoder(int trackType, int encoder) {
     assert (state == State.DataSourceConfigured);
@@ -156,7 +190,7 @@ public final class DepthRecorder {
         break;
       case DepthFormat.TRACK_TYPE_DEPTH_LINEAR:
       case DepthFormat.TRACK_TYPE_DEPTH_INVERSE:
-        assert (encoder == DEPTH_ENCODER_HEVC_10BIT);
+        assert (encoder == DEPTH_ENCODER_HEVC_10BIT || encoder == DEPTH_ENCODER_RVL_LOSSLESS);
         break;
       default:
         assert (false);
@@ -170,6 +204,25 @@ public final class DepthRecorder {
     frameRate = rate;
   }
 
+  /**
+   * Get the recording pipeline metrics. The returned object is live, call
+   * {@link RecorderMetrics#snapshot()} to read it.
+   */
+  public RecorderMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Periodically dump metrics to logcat while recording.
+   *
+   * @param intervalMs dump interval in milliseconds, 0 to disable periodic dump.
+   */
+  public void setMetricsDumpInterval(long intervalMs) {
+    assert (intervalMs >= 0);
+    assert (state != State.Recording);
+    metricsDumpIntervalMs = intervalMs;
+  }
+
   public void prepare() {
     Log.v(TAG, "prepare");
     assert (state == State.DataSourceConfigured);
@@ -181,8 +234,12 @@ public final class DepthRecorder {
     assert (state == State.Prepared);
     Track track = tracks[trackType];
     assert (track != null);
-    assert (track.codec != null);
     assert (track.inputSurface == null);
+    if (track.losslessEncoder != null) {
+      track.inputSurface = track.losslessEncoder.getInputSurface();
+      return track.inputSurface;
+    }
+    assert (track.codec != null);
     track.inputSurface = track.codec.createInputSurface();
     return track.inputSurface;
   }
@@ -197,8 +254,11 @@ public final class DepthRecorder {
   public void stop() {
     Log.v(TAG, "stop");
     assert (state == State.Recording);
+    final long startNs = System.nanoTime();
     mainHandler.obtainMessage(WHAT_STOP).sendToTarget();
     waitForState(State.InitialAfterReset);
+    metrics.stopLatencyMs.set((System.nanoTime() - startNs) / 1000000);
+    Log.i(TAG, "metrics " + metrics.snapshot());
   }
 
   public void release() {
@@ -239,12 +299,15 @@ public final class DepthRecorder {
   private static class Output extends TrackBuffer {
     public final int trackType;
     public final int bufferIndex;
+    // reset when a reused output is available again
+    public long availableTimeNs;
 
     Output(int trackType, int bufferIndex,
         ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, Object obj) {
       super(byteBuf, bufferInfo, obj);
       this.trackType = trackType;
       this.bufferIndex = bufferIndex;
+      this.availableTimeNs = System.nanoTime();
     }
   }
 
@@ -266,10 +329,10 @@ public final class DepthRecorder {
     public Surface inputSurface;
     public int muxerTrackIndex;
     private MediaCodec.Callback callback;
-    private final Queue<Output> outputs = new LinkedList<>();
     public int muxCount;
-    private boolean eos = false;
+    private long lastOutputPtsUs = -1;
     private DecodeRender preview;
+    private LosslessDepthEncoder losslessEncoder;
   }
 
   private static final int WHAT_PREPARE = 0;
@@ -283,6 +346,11 @@ public final class DepthRecorder {
   private static final int WHAT_EOS = 12;
   private static final int WHAT_TRY_MUX_NEXT = 20;
 
+  private static final int PREVIEW_INFLIGHT_SLOTS = 32;
+  private static final int LOSSLESS_ENCODER_THREADS = 4;
+  private static final int LOSSLESS_OUTPUT_BUFFER_COUNT = 4;
+  private static final int LOSSLESS_MAX_IMAGES = 4;
+
   private class MainHandler extends Handler {
     public MainHandler(Looper looper) {
       super(looper);
@@ -313,23 +381,33 @@ public final class DepthRecorder {
           setState(State.Released);
           break;
         case WHAT_OUTPUT_AVAILABLE:
-          assert (state == State.Recording);
           Output output = (Output) msg.obj;
           assert (output != null);
+          if (state != State.Recording) {
+            // queued before the sources stopped, the mux writer is stopped
+            dropOutput(output);
+            break;
+          }
           handleOutput(output);
           break;
         case WHAT_OUTPUT_FORMAT_AVAILABLE:
-          assert (state == State.Recording);
+          if (state != State.Recording) {
+            break;
+          }
           MediaFormat format = (MediaFormat) msg.obj;
           assert (format != null);
           onOutputFormatAvailable(msg.arg1, format);
           break;
         case WHAT_EOS:
-          assert (state == State.Recording);
+          if (state != State.Recording) {
+            break;
+          }
           onEos(msg.arg1);
           break;
         case WHAT_TRY_MUX_NEXT:
-          assert (state == State.Recording);
+          if (state != State.Recording) {
+            break;
+          }
           onTryMuxNext();
           break;
         default:
@@ -381,6 +459,12 @@ public final class DepthRecorder {
                   WHAT_EOS, DepthFormat.TRACK_TYPE_METADATA, -1).sendToTarget();
             }
           });
+        } else if (track.encoder == DEPTH_ENCODER_RVL_LOSSLESS) {
+          if (track.preview != null) {
+            Log.w(TAG, "preview is unsupported for lossless depth, trackType " + track.trackType);
+            track.preview = null;
+          }
+          track.losslessEncoder = new LosslessDepthEncoder(track);
         } else {
           String mime = "video/hevc";
           MediaFormat format = new MediaFormat();
@@ -431,21 +515,30 @@ public final class DepthRecorder {
       }
       if (track.trackType == DepthFormat.TRACK_TYPE_METADATA) {
         track.outputFormat = metadataSource.getFormat();
+      } else if (track.losslessEncoder != null) {
+        track.losslessEncoder.start();
       } else {
         assert (track.codec != null);
         track.codec.start();
       }
     }
+    metrics.markStart(System.nanoTime());
+    if (metricsDumpIntervalMs > 0) {
+      mainHandler.postDelayed(metricsDumper, metricsDumpIntervalMs);
+    }
   }
 
   private void onStop() {
     Log.v(TAG, "onStop");
+    mainHandler.removeCallbacks(metricsDumper);
     for (Track track : tracks) {
       if (track == null) {
         continue;
       }
       Log.v(TAG, "trackType " + track.trackType + ", total mux output: " + track.muxCount);
-      if (track.trackType != DepthFormat.TRACK_TYPE_METADATA) {
+      if (track.losslessEncoder != null) {
+        track.losslessEncoder.stop();
+      } else if (track.trackType != DepthFormat.TRACK_TYPE_METADATA) {
         assert (track.codec != null);
         track.codec.stop();
         if (track.preview != null) {
@@ -454,7 +547,17 @@ public final class DepthRecorder {
       }
     }
     assert (muxer != null);
+    assert (muxWriter != null);
+    muxWriter.drainAndStop();
+    Log.v(TAG, "mux writes: " + muxWriter.getWriteCount()
+        + ", write time ms: " + muxWriter.getWriteTimeNs() / 1000000
+        + ", max write time ms: " + muxWriter.getMaxWriteTimeNs() / 1000000
+        + ", io stall time ms: " + muxWriter.getStallTimeNs() / 1000000);
+    metrics.muxWriterQueueDepth.set(0);
     muxer.stop();
+    metrics.editInnerClipMs.set(muxer.getEditInnerClipLatencyMs());
+    metrics.editOuterClipMs.set(muxer.getEditOuterClipLatencyMs());
+    metrics.mergeClipMs.set(muxer.getMergeClipLatencyMs());
   }
 
   private void onRelease() {
@@ -463,7 +566,9 @@ public final class DepthRecorder {
       if (track == null) {
         continue;
       }
-      if (track.trackType != DepthFormat.TRACK_TYPE_METADATA) {
+      if (track.losslessEncoder != null) {
+        track.losslessEncoder.release();
+      } else if (track.trackType != DepthFormat.TRACK_TYPE_METADATA) {
         assert (track.codec != null);
         track.codec.release();
         if (track.preview != null) {
@@ -478,10 +583,12 @@ public final class DepthRecorder {
 
   private void handleOutput(@NonNull Output output) {
     Track track = tracks[output.trackType];
+    updateFrameMetrics(track, output.bufferInfo);
     if (track.preview != null) {
       track.preview.queueInput(output);
     }
-    track.outputs.offer(output);
+    muxScheduler.queue(track.trackType, output);
+    metrics.queueDepth[track.trackType].set(muxScheduler.size(track.trackType));
     mainHandler.obtainMessage(WHAT_TRY_MUX_NEXT).sendToTarget();
   }
 
@@ -495,19 +602,28 @@ public final class DepthRecorder {
       return;
     }
     Track track = tracks[nextTrackType];
-    Output output = track.outputs.poll();
+    Output output = muxScheduler.poll(nextTrackType);
     assert (output != null);
+    metrics.queueDepth[nextTrackType].set(muxScheduler.size(nextTrackType));
     track.muxCount++;
     if (DEBUG) {
       Log.v(TAG, "mux for track type " + nextTrackType + ", size " + output.bufferInfo.size
           + ", timeUs " + output.bufferInfo.presentationTimeUs
           + ", muxCount " + track.muxCount);
     }
-    muxer.writeSampleData(track.muxerTrackIndex, output.byteBuf, output.bufferInfo);
+    // copy the sample to the write-behind queue, so the buffer can be released right away
+    muxWriter.submit(track.muxerTrackIndex, output.byteBuf, output.bufferInfo.offset,
+        output.bufferInfo.size, output.bufferInfo.presentationTimeUs, output.bufferInfo.flags);
+    metrics.muxLatency.recordNs(System.nanoTime() - output.availableTimeNs);
+    metrics.muxWriterQueueDepth.set(muxWriter.getPendingCount());
+    metrics.ioStallTimeUs.set(muxWriter.getStallTimeNs() / 1000);
 
     if (track.trackType == DepthFormat.TRACK_TYPE_METADATA) {
       assert (output.internalObj != null);
       metadataSource.queueBuffer((TrackBuffer) output.internalObj);
+    } else if (track.losslessEncoder != null) {
+      assert (output.internalObj != null);
+      track.losslessEncoder.releaseBuffer((EncodedBuffer) output.internalObj);
     } else {
       track.codec.releaseOutputBuffer(output.bufferIndex, false);
     }
@@ -515,47 +631,59 @@ public final class DepthRecorder {
     mainHandler.obtainMessage(WHAT_TRY_MUX_NEXT).sendToTarget();
   }
 
-  private int nextMuxTrackType() {
-    int nextTrackType = -1;
-    long ts = Long.MAX_VALUE;
+  // give back the buffer of an output that is not muxed
+  private void dropOutput(Output output) {
+    Track track = tracks[output.trackType];
+    if (track == null) {
+      // released
+      return;
+    }
+    Log.w(TAG, "drop output after stop, trackType " + track.trackType
+        + ", ptsUs " + output.bufferInfo.presentationTimeUs);
+    if (track.trackType == DepthFormat.TRACK_TYPE_METADATA) {
+      metadataSource.queueBuffer((TrackBuffer) output.internalObj);
+    } else if (track.losslessEncoder != null) {
+      track.losslessEncoder.releaseBuffer((EncodedBuffer) output.internalObj);
+    }
+    // buffers of a stopped codec are released by the codec
+  }
 
+  // count outputs, and estimate frames dropped by the source or encoder from pts gaps
+  private void updateFrameMetrics(Track track, MediaCodec.BufferInfo info) {
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+      return;
+    }
+    metrics.encodedFrames[track.trackType].inc();
+    if (track.isMetadataTrack || frameRate <= 0) {
+      return;
+    }
+    final long frameIntervalUs = 1000000L / frameRate;
+    if (track.lastOutputPtsUs >= 0) {
+      long deltaUs = info.presentationTimeUs - track.lastOutputPtsUs;
+      if (deltaUs > frameIntervalUs * 3 / 2) {
+        metrics.droppedFrames[track.trackType].add(
+            (deltaUs + frameIntervalUs / 2) / frameIntervalUs - 1);
+      }
+    }
+    track.lastOutputPtsUs = info.presentationTimeUs;
+  }
+
+  private int nextMuxTrackType() {
     if (DEBUG) {
       long[] tss = new long[DepthFormat.MAX_TRACK_TYPE_COUNT];
       int[] counts = new int[DepthFormat.MAX_TRACK_TYPE_COUNT];
       Arrays.fill(tss, -1);
       for (int tt = 0; tt < DepthFormat.MAX_TRACK_TYPE_COUNT; ++tt) {
-        Track t = tracks[tt];
-        if (t != null) {
-          counts[tt] = t.outputs.size();
-        }
-        if (t != null && !t.outputs.isEmpty()) {
-          tss[tt] = t.outputs.peek().bufferInfo.presentationTimeUs;
+        counts[tt] = muxScheduler.size(tt);
+        if (counts[tt] > 0) {
+          tss[tt] = muxScheduler.peek(tt).bufferInfo.presentationTimeUs;
         }
       }
       Log.v(TAG, "nextMuxTrackType tss " + Arrays.toString(tss)
           + ", counts " + Arrays.toString(counts));
     }
 
-    for (Track track : tracks) {
-      if (track == null) {
-        continue;
-      }
-      if (track.outputs.isEmpty()) {
-        if (track.eos) {
-          continue;
-        } else {
-          Log.v(TAG, "nextMuxTrackType returns -1");
-          // cannot decide which track to mux
-          return -1;
-        }
-      }
-      Output output = track.outputs.peek();
-      assert (output != null);
-      if (output.bufferInfo.presentationTimeUs < ts) {
-        ts = output.bufferInfo.presentationTimeUs;
-        nextTrackType = track.trackType;
-      }
-    }
+    int nextTrackType = muxScheduler.nextTrack();
     Log.v(TAG, "nextMuxTrackType returns " + nextTrackType);
     return nextTrackType;
   }
@@ -605,12 +733,20 @@ public final class DepthRecorder {
         throw new RuntimeException(e);
       }
       muxer.start();
+      final DepthMuxer sinkMuxer = muxer;
+      final MediaCodec.BufferInfo sinkBufferInfo = new MediaCodec.BufferInfo();
+      muxWriter = new MuxWriter((trackIndex, buf, presentationTimeUs, flags) -> {
+        sinkBufferInfo.set(buf.position(), buf.remaining(), presentationTimeUs, flags);
+        sinkMuxer.writeSampleData(trackIndex, buf, sinkBufferInfo);
+      });
+      muxWriter.setWriteLatencyHistogram(metrics.writeLatency);
+      muxWriter.start();
     }
     mainHandler.obtainMessage(WHAT_TRY_MUX_NEXT).sendToTarget();
   }
 
   private void onEos(int trackType) {
-    tracks[trackType].eos = true;
+    muxScheduler.setEos(trackType);
     mainHandler.obtainMessage(WHAT_TRY_MUX_NEXT).sendToTarget();
   }
 
@@ -656,10 +792,134 @@ public final class DepthRecorder {
     }
   }
 
+  private static final class EncodedBuffer {
+    final ByteBuffer buf;
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    // output of the buffer, sent again whenever the buffer is filled
+    final Output output;
+
+    EncodedBuffer(int trackType, ByteBuffer buf) {
+      this.buf = buf;
+      output = new Output(trackType, -1, buf, info, this);
+    }
+  }
+
+  // Encodes depth images queued to an ImageReader surface with DepthRvlCodec on its own thread,
+  // and outputs the encoded frames like a codec does.
+  private class LosslessDepthEncoder {
+    private final Track track;
+    private final int width;
+    private final int height;
+    private final HandlerThread thread = new HandlerThread("LosslessDepthEncoder");
+    private final Handler handler;
+    private final ImageReader reader;
+    private final DepthRvlCodec codec = new DepthRvlCodec(LOSSLESS_ENCODER_THREADS);
+    // output buffers with their buffer info, both reused once the output is muxed
+    private final BlockingQueue<EncodedBuffer> freeBuffers =
+        new ArrayBlockingQueue<>(LOSSLESS_OUTPUT_BUFFER_COUNT);
+    private final short[] depth;
+    private volatile boolean started;
+
+    LosslessDepthEncoder(Track track) {
+      this.track = track;
+      width = track.size.getWidth();
+      height = track.size.getHeight();
+      depth = new short[width * height];
+      for (int i = 0; i < LOSSLESS_OUTPUT_BUFFER_COUNT; ++i) {
+        freeBuffers.add(new EncodedBuffer(track.trackType,
+            ByteBuffer.allocateDirect(DepthRvlCodec.maxEncodedSize(width, height))));
+      }
+      thread.start();
+      handler = new Handler(thread.getLooper());
+      reader = ImageReader.newInstance(width, height, ImageFormat.YCBCR_P010,
+          LOSSLESS_MAX_IMAGES, HardwareBuffer.USAGE_CPU_READ_OFTEN);
+      reader.setOnImageAvailableListener(r -> onImageAvailable(), handler);
+    }
+
+    Surface getInputSurface() {
+      return reader.getSurface();
+    }
+
+    void start() {
+      started = true;
+      MediaFormat format = new MediaFormat();
+      format.setString(MediaFormat.KEY_MIME, DepthFormat.MIMETYPE_DEPTH_RVL);
+      format.setInteger(MediaFormat.KEY_WIDTH, width);
+      format.setInteger(MediaFormat.KEY_HEIGHT, height);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+      mainHandler.obtainMessage(WHAT_OUTPUT_FORMAT_AVAILABLE, track.trackType, -1, format)
+          .sendToTarget();
+    }
+
+    // returns once the encoder thread is done with the frame it's encoding, if any, so no
+    // output is sent after stop
+    void stop() {
+      final CountDownLatch stopped = new CountDownLatch(1);
+      handler.post(() -> {
+        started = false;
+        stopped.countDown();
+      });
+      try {
+        stopped.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    void release() {
+      reader.close();
+      thread.quitSafely();
+      codec.close();
+    }
+
+    void releaseBuffer(EncodedBuffer buf) {
+      freeBuffers.add(buf);
+    }
+
+    private void onImageAvailable() {
+      Image image = reader.acquireNextImage();
+      if (image == null) {
+        return;
+      }
+      try {
+        if (!started) {
+          return;
+        }
+        EncodedBuffer out = freeBuffers.poll();
+        if (out == null) {
+          Log.w(TAG, "drop lossless depth frame, no free output buffer");
+          metrics.droppedFrames[track.trackType].inc();
+          return;
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        DepthRvlCodec.readP010(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride(),
+            width, height, depth);
+        out.buf.clear();
+        int size = codec.encode(depth, width, height, out.buf);
+        out.buf.flip();
+        // every frame is independently decodable
+        out.info.set(0, size, image.getTimestamp() / 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        if (DEBUG) {
+          Log.v(TAG, "lossless depth frame ptsUs " + out.info.presentationTimeUs
+              + ", size " + size + ", ratio " + (width * height * 2.0 / size));
+        }
+        out.output.availableTimeNs = System.nanoTime();
+        mainHandler.obtainMessage(WHAT_OUTPUT_AVAILABLE, track.trackType, -1, out.output)
+            .sendToTarget();
+      } finally {
+        image.close();
+      }
+    }
+  }
+
   private class DecodeRender {
     private final Surface surface;
     private MediaCodec codec;
     private final BlockingQueue<Integer> inputs = new LinkedBlockingQueue<>();
+    // queue time of in-flight decoder inputs, matched by pts when the output is rendered
+    private final long[] inflightPtsUs = new long[PREVIEW_INFLIGHT_SLOTS];
+    private final long[] inflightQueueTimeNs = new long[PREVIEW_INFLIGHT_SLOTS];
+    private int inflightNext;
 
     public DecodeRender(Surface surface) {
       this.surface = surface;
@@ -711,10 +971,28 @@ public final class DepthRecorder {
         Log.v(TAG, "DRC queueInputBuffer index " + inputIndex
             + ", size " + buf.bufferInfo.size);
       }
+      synchronized (inflightPtsUs) {
+        inflightPtsUs[inflightNext] = buf.bufferInfo.presentationTimeUs;
+        inflightQueueTimeNs[inflightNext] = System.nanoTime();
+        inflightNext = (inflightNext + 1) % PREVIEW_INFLIGHT_SLOTS;
+      }
       codec.queueInputBuffer(inputIndex, 0, buf.bufferInfo.size,
           buf.bufferInfo.presentationTimeUs, buf.bufferInfo.flags);
     }
 
+    private void recordDecodeLatency(long ptsUs) {
+      final long nowNs = System.nanoTime();
+      synchronized (inflightPtsUs) {
+        for (int i = 0; i < PREVIEW_INFLIGHT_SLOTS; ++i) {
+          if (inflightQueueTimeNs[i] != 0 && inflightPtsUs[i] == ptsUs) {
+            metrics.previewDecodeLatency.recordNs(nowNs - inflightQueueTimeNs[i]);
+            inflightQueueTimeNs[i] = 0;
+            return;
+          }
+        }
+      }
+    }
+
     public void stop() {
       codec.stop();
     }
@@ -743,6 +1021,7 @@ public final class DepthRecorder {
         if (DEBUG) {
           Log.v(TAG, "DRC onOutputBufferAvailable");
         }
+        recordDecodeLatency(bufferInfo.presentationTimeUs);
         mediaCodec.releaseOutputBuffer(i, true);
       }
 
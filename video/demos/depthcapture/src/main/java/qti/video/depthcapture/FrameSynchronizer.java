@@ -0,0 +1,469 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.util.Arrays;
+
+/**
+ * Pairs frames of N tracks by timestamp, e.g. video and depth frames to render or record
+ * together.
+ * Track 0 is the primary track: every primary frame is output at most once, and each other
+ * track contributes the frame closest to it within a tolerance. A primary frame is dropped when
+ * another track has no frame within the tolerance. A frame of a track with frame reuse enabled
+ * can be paired with several primary frames, so e.g. 15 fps depth can be paired with 30 fps
+ * video.
+ *
+ * <p>Frames are owned by the synchronizer from {@link #queueFrame(int, long, Object)} until they
+ * are handed back to the {@link FrameReleaser}: dropped frames right away, paired frames once
+ * they are retired and every pair using them is released with {@link #releasePair(Object[])}.
+ * A frame of a head-limited source, like a decoder with a single output image, is retired as
+ * soon as it is out of the tolerance, so the source is never starved.
+ *
+ * <p>Not thread-safe, and it does not allocate in steady state.
+ *
+ * @param <T> frame type.
+ */
+public final class FrameSynchronizer<T> {
+  public static final int PRIMARY_TRACK = 0;
+  private static final int INITIAL_CAPACITY = 4;
+
+  /**
+   * Receives frames that are not used by the synchronizer anymore.
+   */
+  public interface FrameReleaser<T> {
+    void releaseFrame(int track, T frame);
+  }
+
+  private static final class Track<T> {
+    final int index;
+    final FrameReleaser<T> releaser;
+    boolean frameReuse;
+    boolean eos;
+    // queued frames, not paired yet
+    T[] frames = newArray(INITIAL_CAPACITY);
+    long[] ptsUs = new long[INITIAL_CAPACITY];
+    int head;
+    int size;
+    // last paired frame, it can be paired again with frame reuse
+    T held;
+    long heldPtsUs;
+    // interval of the last two queued frames, to predict the next one
+    long lastQueuedPtsUs;
+    long frameIntervalUs = -1;
+    // paired frames with their pair counts, released when retired and not in a pair anymore
+    T[] usedFrames = newArray(INITIAL_CAPACITY);
+    int[] useCounts = new int[INITIAL_CAPACITY];
+    boolean[] retired = new boolean[INITIAL_CAPACITY];
+    int usedFrameCount;
+    // stats
+    long queuedCount;
+    long pairedCount;
+    long reusedCount;
+    long droppedCount;
+    long lateCount;
+
+    Track(int index, FrameReleaser<T> releaser) {
+      this.index = index;
+      this.releaser = releaser;
+    }
+
+    void offer(long pts, T frame) {
+      if (queuedCount > 1) {
+        frameIntervalUs = pts - lastQueuedPtsUs;
+      }
+      lastQueuedPtsUs = pts;
+      if (size == frames.length) {
+        T[] grownFrames = newArray(size * 2);
+        long[] grownPts = new long[size * 2];
+        for (int i = 0; i < size; ++i) {
+          grownFrames[i] = frames[(head + i) % frames.length];
+          grownPts[i] = ptsUs[(head + i) % frames.length];
+        }
+        frames = grownFrames;
+        ptsUs = grownPts;
+        head = 0;
+      }
+      final int tail = (head + size) % frames.length;
+      frames[tail] = frame;
+      ptsUs[tail] = pts;
+      size++;
+    }
+
+    T poll() {
+      assert (size > 0);
+      T frame = frames[head];
+      frames[head] = null;
+      head = (head + 1) % frames.length;
+      size--;
+      return frame;
+    }
+
+    long peekPtsUs(int i) {
+      assert (i < size);
+      return ptsUs[(head + i) % frames.length];
+    }
+
+    void drop() {
+      droppedCount++;
+      releaser.releaseFrame(index, poll());
+    }
+
+    void use(T frame) {
+      for (int i = 0; i < usedFrameCount; ++i) {
+        if (usedFrames[i] == frame) {
+          useCounts[i]++;
+          return;
+        }
+      }
+      if (usedFrameCount == usedFrames.length) {
+        usedFrames = Arrays.copyOf(usedFrames, usedFrameCount * 2);
+        useCounts = Arrays.copyOf(useCounts, usedFrameCount * 2);
+        retired = Arrays.copyOf(retired, usedFrameCount * 2);
+      }
+      usedFrames[usedFrameCount] = frame;
+      useCounts[usedFrameCount] = 1;
+      retired[usedFrameCount] = false;
+      usedFrameCount++;
+    }
+
+    void retire(T frame) {
+      for (int i = 0; i < usedFrameCount; ++i) {
+        if (usedFrames[i] == frame) {
+          retired[i] = true;
+          if (useCounts[i] == 0) {
+            removeUsed(i);
+          }
+          return;
+        }
+      }
+      releaser.releaseFrame(index, frame);
+    }
+
+    void unuse(T frame) {
+      for (int i = 0; i < usedFrameCount; ++i) {
+        if (usedFrames[i] == frame) {
+          assert (useCounts[i] > 0);
+          if (--useCounts[i] == 0 && retired[i]) {
+            removeUsed(i);
+          }
+          return;
+        }
+      }
+      throw new IllegalArgumentException("frame is not paired, track " + index);
+    }
+
+    private void removeUsed(int i) {
+      T frame = usedFrames[i];
+      usedFrameCount--;
+      usedFrames[i] = usedFrames[usedFrameCount];
+      useCounts[i] = useCounts[usedFrameCount];
+      retired[i] = retired[usedFrameCount];
+      usedFrames[usedFrameCount] = null;
+      releaser.releaseFrame(index, frame);
+    }
+
+    void retireHeld() {
+      if (held != null) {
+        T frame = held;
+        held = null;
+        retire(frame);
+      }
+    }
+  }
+
+  private final Track<T>[] tracks;
+  private final long toleranceUs;
+  // candidate of each track for the primary frame being paired, -1 for the held frame
+  private final int[] candidates;
+  private long lastPairPtsUs = Long.MIN_VALUE;
+  private long pairCount;
+
+  /**
+   * FrameSynchronizer constructor.
+   *
+   * @param trackCount number of tracks, track {@link #PRIMARY_TRACK} is the primary track.
+   * @param toleranceUs max timestamp difference between the primary frame and another frame of
+   *     a pair. With frame reuse it should be at least half the frame interval of the reused
+   *     track.
+   * @param releaser receives frames which are not used anymore.
+   */
+  @SuppressWarnings("unchecked")
+  public FrameSynchronizer(int trackCount, long toleranceUs, FrameReleaser<T> releaser) {
+    assert (trackCount >= 1);
+    assert (toleranceUs >= 0);
+    tracks = (Track<T>[]) new Track<?>[trackCount];
+    for (int i = 0; i < trackCount; ++i) {
+      tracks[i] = new Track<>(i, releaser);
+    }
+    this.toleranceUs = toleranceUs;
+    candidates = new int[trackCount];
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T[] newArray(int length) {
+    return (T[]) new Object[length];
+  }
+
+  public int getTrackCount() {
+    return tracks.length;
+  }
+
+  /**
+   * Allow a frame of a non-primary track to be paired with several primary frames, for a track
+   * with a lower frame rate than the primary track.
+   */
+  public void setFrameReuse(int track, boolean frameReuse) {
+    assert (track != PRIMARY_TRACK);
+    tracks[track].frameReuse = frameReuse;
+  }
+
+  /**
+   * Queue a frame. Timestamps of a track should be increasing, frames older than the last pair
+   * are counted as late and dropped.
+   */
+  public void queueFrame(int track, long ptsUs, T frame) {
+    assert (frame != null);
+    Track<T> t = tracks[track];
+    assert (!t.eos);
+    t.queuedCount++;
+    if (track != PRIMARY_TRACK && pairCount > 0 && ptsUs < lastPairPtsUs - toleranceUs) {
+      // too old for the next primary frames
+      t.lateCount++;
+    }
+    t.offer(ptsUs, frame);
+  }
+
+  /**
+   * Signal that no more frames will be queued to a track.
+   */
+  public void setEos(int track) {
+    tracks[track].eos = true;
+  }
+
+  public boolean isTrackEos(int track) {
+    return tracks[track].eos;
+  }
+
+  /**
+   * Check if all primary frames are paired or dropped.
+   */
+  public boolean isEos() {
+    Track<T> primary = tracks[PRIMARY_TRACK];
+    return primary.eos && primary.size == 0;
+  }
+
+  /**
+   * Get the next pair. Frames which can't be paired anymore are dropped on the way.
+   *
+   * @param pair receives one frame per track, indexed by track.
+   * @return true if a pair is output, its timestamp is {@link #getPairPtsUs()}.
+   */
+  public boolean pollPair(T[] pair) {
+    assert (pair.length >= tracks.length);
+    final Track<T> primary = tracks[PRIMARY_TRACK];
+    while (primary.size > 0) {
+      final long primaryPtsUs = primary.peekPtsUs(0);
+      boolean dropPrimary = false;
+      for (int i = 0; i < tracks.length && !dropPrimary; ++i) {
+        if (i == PRIMARY_TRACK) {
+          continue;
+        }
+        final int candidate = selectCandidate(tracks[i], primaryPtsUs);
+        if (candidate == CANDIDATE_WAIT) {
+          return false;
+        }
+        if (candidate == CANDIDATE_NONE) {
+          dropPrimary = true;
+        }
+        candidates[i] = candidate;
+      }
+      if (dropPrimary) {
+        primary.drop();
+        continue;
+      }
+
+      T primaryFrame = primary.poll();
+      primary.use(primaryFrame);
+      primary.retire(primaryFrame);
+      primary.pairedCount++;
+      pair[PRIMARY_TRACK] = primaryFrame;
+      for (int i = 0; i < tracks.length; ++i) {
+        if (i == PRIMARY_TRACK) {
+          continue;
+        }
+        Track<T> track = tracks[i];
+        if (candidates[i] == CANDIDATE_HELD) {
+          track.reusedCount++;
+        } else {
+          track.retireHeld();
+          track.heldPtsUs = track.peekPtsUs(0);
+          track.held = track.poll();
+          track.pairedCount++;
+        }
+        T frame = track.held;
+        track.use(frame);
+        if (!track.frameReuse) {
+          track.held = null;
+          track.retire(frame);
+        }
+        pair[i] = frame;
+      }
+      lastPairPtsUs = primaryPtsUs;
+      pairCount++;
+      return true;
+    }
+    if (primary.eos) {
+      flush();
+    }
+    return false;
+  }
+
+  /**
+   * Get the timestamp of the last pair, which is the timestamp of its primary frame.
+   */
+  public long getPairPtsUs() {
+    return lastPairPtsUs;
+  }
+
+  private static final int CANDIDATE_HELD = -1;
+  private static final int CANDIDATE_HEAD = 0;
+  // no frame can be paired with the primary frame, drop it
+  private static final int CANDIDATE_NONE = -2;
+  // wait for more frames
+  private static final int CANDIDATE_WAIT = -3;
+
+  private static long distance(long a, long b) {
+    return Math.abs(a - b);
+  }
+
+  // check if the frame expected after the last queued one of a track is closer to the primary
+  // frame
+  private static boolean isNextCloser(Track<?> track, long ptsUs, long primaryPtsUs) {
+    return track.size <= 1 && !track.eos && track.frameIntervalUs > 0
+        && distance(ptsUs + track.frameIntervalUs, primaryPtsUs) < distance(ptsUs, primaryPtsUs);
+  }
+
+  // drop frames which are farther from the primary frame than a later frame, including the
+  // expected next frame, then check the tolerance of the closest one
+  private int selectCandidate(Track<T> track, long primaryPtsUs) {
+    if (track.held != null) {
+      if (track.size > 0 && distance(track.peekPtsUs(0), primaryPtsUs)
+          < distance(track.heldPtsUs, primaryPtsUs)) {
+        track.retireHeld();
+      } else if (track.heldPtsUs < primaryPtsUs - toleranceUs) {
+        track.retireHeld();
+      } else if (track.size == 0 && isNextCloser(track, track.heldPtsUs, primaryPtsUs)) {
+        // the next frame is expected to be closer, and a head-limited source may need the held
+        // frame back to output it
+        track.retireHeld();
+        return CANDIDATE_WAIT;
+      }
+    }
+    if (track.held != null) {
+      return distance(track.heldPtsUs, primaryPtsUs) <= toleranceUs
+          ? CANDIDATE_HELD : CANDIDATE_NONE;
+    }
+    while (true) {
+      while (track.size > 1 && distance(track.peekPtsUs(1), primaryPtsUs)
+          < distance(track.peekPtsUs(0), primaryPtsUs)) {
+        track.drop();
+      }
+      if (track.size == 0) {
+        return track.eos ? CANDIDATE_NONE : CANDIDATE_WAIT;
+      }
+      final long ptsUs = track.peekPtsUs(0);
+      if (ptsUs < primaryPtsUs - toleranceUs) {
+        track.drop();
+        continue;
+      }
+      if (ptsUs > primaryPtsUs + toleranceUs) {
+        return CANDIDATE_NONE;
+      }
+      if (isNextCloser(track, ptsUs, primaryPtsUs)) {
+        // drop it for the next frame, which may be output only after this one is released
+        track.drop();
+        return CANDIDATE_WAIT;
+      }
+      return CANDIDATE_HEAD;
+    }
+  }
+
+  /**
+   * Release the frames of a pair from {@link #pollPair(Object[])}. Pairs can be released in any
+   * order.
+   */
+  public void releasePair(T[] pair) {
+    for (int i = 0; i < tracks.length; ++i) {
+      assert (pair[i] != null);
+      tracks[i].unuse(pair[i]);
+      pair[i] = null;
+    }
+  }
+
+  /**
+   * Drop all queued frames and retire held frames, e.g. at EOS or stop. Frames in unreleased
+   * pairs are released by {@link #releasePair(Object[])}.
+   */
+  public void flush() {
+    for (Track<T> track : tracks) {
+      while (track.size > 0) {
+        track.drop();
+      }
+      track.retireHeld();
+    }
+  }
+
+  public long getPairCount() {
+    return pairCount;
+  }
+
+  /**
+   * Get frames of a track dropped without being paired.
+   */
+  public long getDroppedCount(int track) {
+    return tracks[track].droppedCount;
+  }
+
+  /**
+   * Get frames of a non-primary track queued after their pairing time had passed, which means
+   * the track is lagging behind the primary track.
+   */
+  public long getLateCount(int track) {
+    return tracks[track].lateCount;
+  }
+
+  /**
+   * Get the number of pairs that reused a frame of a track.
+   */
+  public long getReusedCount(int track) {
+    return tracks[track].reusedCount;
+  }
+
+  public long getQueuedCount(int track) {
+    return tracks[track].queuedCount;
+  }
+
+  /**
+   * Get queued frames of a track which are not paired or dropped yet.
+   */
+  public int getPendingCount(int track) {
+    return tracks[track].size;
+  }
+
+  public String getStats() {
+    StringBuilder sb = new StringBuilder("pairs ").append(pairCount);
+    for (Track<T> track : tracks) {
+      sb.append(", track ").append(track.index)
+          .append(" queued ").append(track.queuedCount)
+          .append(" dropped ").append(track.droppedCount)
+          .append(" late ").append(track.lateCount)
+          .append(" reused ").append(track.reusedCount);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CPU image plane scaler, used when a mock camera track is recorded at a lower resolution than
+ * its source, e.g. quarter resolution depth. Samples are 8-bit, or 16-bit little endian for
+ * 10-bit formats like P010. When the source size is an integer multiple of the destination size
+ * the plane is box filtered, otherwise it's nearest-neighbor sampled.
+ * Buffers are accessed with absolute get/put, their positions and limits are not changed.
+ */
+final class ImageScaler {
+
+  private ImageScaler() {
+  }
+
+  /**
+   * Plane layout.
+   */
+  static final class Plane {
+    final ByteBuffer buf;
+    final int width;
+    final int height;
+    final int rowStride;
+    final int pixelStride;
+
+    Plane(ByteBuffer buf, int width, int height, int rowStride, int pixelStride) {
+      this.buf = buf;
+      this.width = width;
+      this.height = height;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+    }
+  }
+
+  /**
+   * Check that a size can be scaled to another one.
+   *
+   * @throws UnsupportedOperationException if the destination is larger in either dimension.
+   */
+  static void checkDownscale(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+    if (dstWidth > srcWidth || dstHeight > srcHeight) {
+      throw new UnsupportedOperationException("upscaling is unsupported, " + srcWidth + "x"
+          + srcHeight + " to " + dstWidth + "x" + dstHeight);
+    }
+  }
+
+  /**
+   * Scale a plane.
+   *
+   * @param src source plane.
+   * @param dst destination plane.
+   * @param bytesPerSample 1 for 8-bit samples, 2 for 16-bit little endian samples.
+   * @throws UnsupportedOperationException if the destination is larger than the source.
+   */
+  static void scalePlane(Plane src, Plane dst, int bytesPerSample) {
+    assert (bytesPerSample == 1 || bytesPerSample == 2);
+    checkDownscale(src.width, src.height, dst.width, dst.height);
+    if (src.width % dst.width == 0 && src.height % dst.height == 0) {
+      boxFilter(src, dst, src.width / dst.width, src.height / dst.height, bytesPerSample);
+    } else {
+      nearest(src, dst, bytesPerSample);
+    }
+  }
+
+  private static void boxFilter(Plane src, Plane dst, int factorX, int factorY,
+                                int bytesPerSample) {
+    final int area = factorX * factorY;
+    final int half = area / 2;
+    for (int y = 0; y < dst.height; ++y) {
+      final int dstRow = y * dst.rowStride;
+      final int srcRow0 = y * factorY * src.rowStride;
+      for (int x = 0; x < dst.width; ++x) {
+        final int srcCol0 = x * factorX * src.pixelStride;
+        int sum = 0;
+        for (int dy = 0; dy < factorY; ++dy) {
+          int offset = srcRow0 + dy * src.rowStride + srcCol0;
+          for (int dx = 0; dx < factorX; ++dx) {
+            sum += getSample(src.buf, offset, bytesPerSample);
+            offset += src.pixelStride;
+          }
+        }
+        putSample(dst.buf, dstRow + x * dst.pixelStride, (sum + half) / area, bytesPerSample);
+      }
+    }
+  }
+
+  private static void nearest(Plane src, Plane dst, int bytesPerSample) {
+    for (int y = 0; y < dst.height; ++y) {
+      final int dstRow = y * dst.rowStride;
+      final int srcRow = (int) ((long) y * src.height / dst.height) * src.rowStride;
+      for (int x = 0; x < dst.width; ++x) {
+        final int srcX = (int) ((long) x * src.width / dst.width);
+        int v = getSample(src.buf, srcRow + srcX * src.pixelStride, bytesPerSample);
+        putSample(dst.buf, dstRow + x * dst.pixelStride, v, bytesPerSample);
+      }
+    }
+  }
+
+  private static int getSample(ByteBuffer buf, int offset, int bytesPerSample) {
+    if (bytesPerSample == 1) {
+      return buf.get(offset) & 0xff;
+    }
+    return (buf.get(offset) & 0xff) | ((buf.get(offset + 1) & 0xff) << 8);
+  }
+
+  private static void putSample(ByteBuffer buf, int offset, int v, int bytesPerSample) {
+    buf.put(offset, (byte) v);
+    if (bytesPerSample == 2) {
+      buf.put(offset + 1, (byte) (v >>> 8));
+    }
+  }
+}
@@ -13,11 +13,13 @@ import android.hardware.HardwareBuffer;
 import android.media.Image;
 import android.media.ImageWriter;
 import android.media.MediaFormat;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.util.Size;
 import android.view.Surface;
 import java.nio.ByteBuffer;
 import qti.video.depth.DepthFormat;
@@ -30,6 +32,10 @@ public final class MockCameraSource implements CameraSource {
   public static final int VIDEO_FRAME_RATE = 30;
   static final int AVSYNC_THRESHOLD_MS = 10;
   static final boolean DISABLE_AVSYNC = true;
+  // decode to image readers and attach decoded images to the image writers when the format and
+  // size match, instead of copying every plane. false to always copy, e.g. to compare the
+  // delivery CPU time per frame logged at stop. The default of MockCameraSource().
+  static final boolean ZERO_COPY = true;
 
   // push clips from \\hw-lubiny-lv\Public\depth
   /**
@@ -59,9 +65,12 @@ public final class MockCameraSource implements CameraSource {
   };
   private static final int METADATA_TRACK_INDEX = TRACK_TYPES_MAP[DepthFormat.TRACK_TYPE_METADATA];
   private static final int MAX_PENDING_IMAGE_COUNT = 2;
+  // video and depth of the clip are captured together, pair them within half a frame interval
+  private static final long PAIR_TOLERANCE_US = 1000000L / VIDEO_FRAME_RATE / 2;
   private final HandlerThread handlerThread = new HandlerThread("MockCameraSource");
   private final MainHandler mainHandler;
 
+  private final boolean zeroCopy;
   private final CannedDataSource cannedDataSource;
   private final CannedDataSource.OutputsListener
       outputsListener = new CannedDataSource.OutputsListener() {
@@ -74,16 +83,60 @@ public final class MockCameraSource implements CameraSource {
 
   private final ImageWriter[] imageWriters = new ImageWriter[MAX_TRACK_TYPES];
   private final int[] pendingBufferCountInSurfaces = new int[MAX_TRACK_TYPES];
+  private final Size[] outputSizes = new Size[MAX_TRACK_TYPES];
   private MetaDataSource metaDataSource;
   private OnFinishedListener onFinishedListener;
   private boolean allEos;
   private long firstFrameTimeMs = -1;
+  // required video and depth tracks are delivered in pairs, the first one is the primary track
+  private FrameSynchronizer<CannedDataSource.Output> synchronizer;
+  private final int[] syncTracks = new int[VIDEO_INPUT_TRACK_COUNT];
+  // pair waiting for the surfaces or its AVSYNC time, empty if the first output is null
+  private CannedDataSource.Output[] pendingPair;
+  private boolean fastReplay = DISABLE_AVSYNC;
+  // delivery stats, updated on the handler thread
+  private long deliveredFrameCount;
+  private long copiedImageCount;
+  private long attachedImageCount;
+  private long deliveryCpuTimeNs;
 
   public MockCameraSource() {
+    this(ZERO_COPY);
+  }
+
+  /**
+   * MockCameraSource constructor.
+   *
+   * @param zeroCopy true to attach decoded images to the output surfaces when possible, false to
+   *     copy them.
+   */
+  MockCameraSource(boolean zeroCopy) {
+    this.zeroCopy = zeroCopy;
     handlerThread.start();
     mainHandler = new MainHandler(handlerThread.getLooper());
     cannedDataSource = new CannedDataSource(VIDEO_INPUT_CLIP, VIDEO_TRACK_SELECTION,
-        outputsListener);
+        outputsListener, zeroCopy);
+  }
+
+  /**
+   * Deliver images as fast as the output surfaces consume them, instead of pacing them by their
+   * timestamps against the wall clock. Timestamps are virtual either way, so a replay produces
+   * the same recording at any speed. It should be called before start().
+   */
+  public void setFastReplay(boolean fastReplay) {
+    this.fastReplay = fastReplay;
+  }
+
+  /**
+   * Replay the input clip in a loop for soak tests, timestamps keep increasing across loops.
+   * It should be called before init().
+   *
+   * @param looping true to loop.
+   * @param maxFrameCount frames per track before EOS, or 0 to replay until stopped.
+   */
+  public void setLooping(boolean looping, int maxFrameCount) {
+    cannedDataSource.setLooping(looping);
+    cannedDataSource.setMaxFrameCount(maxFrameCount);
   }
 
   @Override
@@ -106,14 +159,27 @@ public final class MockCameraSource implements CameraSource {
     return cannedDataSource.getTrackFormat(track);
   }
 
+  @Override
+  public void setTrackOutputSize(int trackType, int width, int height) {
+    assert (supportTrack(trackType));
+    assert (imageWriters[trackType] == null);
+    MediaFormat format = getTrackFormat(trackType);
+    ImageScaler.checkDownscale(format.getInteger(MediaFormat.KEY_WIDTH),
+        format.getInteger(MediaFormat.KEY_HEIGHT), width, height);
+    outputSizes[trackType] = new Size(width, height);
+  }
+
   @Override
   public void setOutputSurface(int trackType, Surface surface) {
     assert (supportTrack(trackType));
     assert (imageWriters[trackType] == null);
 
     int track = TRACK_TYPES_MAP[trackType];
-    imageWriters[trackType] = createImageWriter(getTrackFormat(trackType), surface,
-        cannedDataSource.is10Bit(track));
+    MediaFormat format = getTrackFormat(trackType);
+    Size size = outputSizes[trackType] != null ? outputSizes[trackType]
+        : new Size(format.getInteger(MediaFormat.KEY_WIDTH),
+            format.getInteger(MediaFormat.KEY_HEIGHT));
+    imageWriters[trackType] = createImageWriter(size, surface, cannedDataSource.is10Bit(track));
     imageWriters[trackType].setOnImageReleasedListener(imageWriter -> {
       assert (pendingBufferCountInSurfaces[trackType] > 0);
       pendingBufferCountInSurfaces[trackType]--;
@@ -131,11 +197,9 @@ public final class MockCameraSource implements CameraSource {
   }
 
   @SuppressLint("WrongConstant")
-  private ImageWriter createImageWriter(MediaFormat format, Surface surface, boolean is10Bit) {
-    int width = format.getInteger(MediaFormat.KEY_WIDTH);
-    int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+  private ImageWriter createImageWriter(Size size, Surface surface, boolean is10Bit) {
     ImageWriter.Builder builder = new ImageWriter.Builder(surface);
-    builder.setWidthAndHeight(width, height)
+    builder.setWidthAndHeight(size.getWidth(), size.getHeight())
         .setImageFormat(is10Bit ? ImageFormat.YCBCR_P010 : ImageFormat.YUV_420_888)
         .setMaxImages(MAX_PENDING_IMAGE_COUNT)
         .setUsage(HardwareBuffer.USAGE_CPU_WRITE_OFTEN);
@@ -152,6 +216,21 @@ public final class MockCameraSource implements CameraSource {
   @Override
   public void start() {
     Log.v(TAG, "start");
+    int syncTrackCount = 0;
+    for (int trackIndex = 0; trackIndex < VIDEO_INPUT_TRACK_COUNT; ++trackIndex) {
+      syncTracks[trackIndex] = -1;
+      if (VIDEO_TRACK_SELECTION[trackIndex] && trackIndex != METADATA_TRACK_INDEX
+          && isTrackRequired(trackIndex)) {
+        syncTracks[trackIndex] = syncTrackCount++;
+      }
+    }
+    // attached images are consumed by the writers, so frames can't be reused
+    synchronizer = new FrameSynchronizer<>(Math.max(syncTrackCount, 1), PAIR_TOLERANCE_US,
+        (syncTrack, output) -> cannedDataSource.queueOutput(output));
+    pendingPair = new CannedDataSource.Output[Math.max(syncTrackCount, 1)];
+    if (syncTrackCount == 0) {
+      synchronizer.setEos(FrameSynchronizer.PRIMARY_TRACK);
+    }
     cannedDataSource.start();
   }
 
@@ -162,6 +241,13 @@ public final class MockCameraSource implements CameraSource {
       Log.v(TAG, "stop when metadata source is not EOS");
     }
     cannedDataSource.stop();
+    Log.i(TAG, "delivered frames " + deliveredFrameCount + ", copied images " + copiedImageCount
+        + ", attached images " + attachedImageCount + ", cpu time per frame us "
+        + (deliveredFrameCount == 0 ? 0 : deliveryCpuTimeNs / deliveredFrameCount / 1000)
+        + ", zero copy " + zeroCopy);
+    if (synchronizer != null) {
+      Log.i(TAG, "video/depth sync: " + synchronizer.getStats());
+    }
   }
 
   @Override
@@ -181,6 +267,25 @@ public final class MockCameraSource implements CameraSource {
     }
   }
 
+  // below delivery stats are complete after release()
+
+  long getDeliveredFrameCount() {
+    return deliveredFrameCount;
+  }
+
+  long getCopiedImageCount() {
+    return copiedImageCount;
+  }
+
+  long getAttachedImageCount() {
+    return attachedImageCount;
+  }
+
+  // thread CPU time of the copies and attaches
+  long getDeliveryCpuTimeNs() {
+    return deliveryCpuTimeNs;
+  }
+
   // arg1 = trackIndex
   private static final int WHAT_OUTPUT_AVAILABLE = 0; // arg1 = trackIndex
   // arg2 = trackType (for metadata only), obj = Output
@@ -230,87 +335,87 @@ public final class MockCameraSource implements CameraSource {
     }
   }
 
-  private void deliverImages() {
-    long minTooEarlyMs = Long.MAX_VALUE;
-    for (int trackIndex = 0; trackIndex < VIDEO_INPUT_TRACK_COUNT; ++trackIndex) {
-      if (!VIDEO_TRACK_SELECTION[trackIndex]) {
-        continue;
+  private boolean isTrackRequired(int trackIndex) {
+    for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
+      if (TRACK_TYPES_MAP[trackType] == trackIndex && imageWriters[trackType] != null) {
+        return true;
       }
+    }
+    return false;
+  }
 
-      if (trackIndex == METADATA_TRACK_INDEX) {
-        continue;
+  private boolean allSurfacesReady() {
+    for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
+      if (imageWriters[trackType] != null
+          && pendingBufferCountInSurfaces[trackType] >= MAX_PENDING_IMAGE_COUNT) {
+        return false;
       }
+    }
+    return true;
+  }
 
-      if (cannedDataSource.peekOutput(trackIndex) == null) {
+  private void deliverImages() {
+    for (int trackIndex = 0; trackIndex < VIDEO_INPUT_TRACK_COUNT; ++trackIndex) {
+      if (!VIDEO_TRACK_SELECTION[trackIndex] || trackIndex == METADATA_TRACK_INDEX) {
         continue;
       }
-
-      boolean trackRequired = false;
-      boolean allSurfaceReady = true;
-      for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
-        if (TRACK_TYPES_MAP[trackType] == trackIndex) {
-          if (imageWriters[trackType] != null) {
-            trackRequired = true;
-            if (pendingBufferCountInSurfaces[trackType] >= MAX_PENDING_IMAGE_COUNT) {
-              allSurfaceReady = false;
-              break;
-            }
-          }
+      final int syncTrack = syncTracks[trackIndex];
+      if (syncTrack == -1) {
+        if (DEBUG && cannedDataSource.peekOutput(trackIndex) != null) {
+          Log.v(TAG, "drop images for track " + trackIndex);
         }
+        dropImages(trackIndex);
+        continue;
+      }
+      CannedDataSource.Output output;
+      while ((output = cannedDataSource.dequeueOutput(trackIndex)) != null) {
+        synchronizer.queueFrame(syncTrack, output.bufferInfo.presentationTimeUs, output);
+      }
+      if (!synchronizer.isTrackEos(syncTrack) && cannedDataSource.isEos(trackIndex)) {
+        synchronizer.setEos(syncTrack);
       }
+    }
 
-      if (!trackRequired) {
+    while (pendingPair[0] != null || synchronizer.pollPair(pendingPair)) {
+      if (!allSurfacesReady()) {
         if (DEBUG) {
-          Log.v(TAG, "drop images for track " + trackIndex);
-        }
-        dropImages(trackIndex);
-      } else if (allSurfaceReady) {
-        CannedDataSource.Output output = cannedDataSource.peekOutput(trackIndex);
-        if (output == null) {
-          continue;
+          Log.v(TAG, "pending on images for pts " + synchronizer.getPairPtsUs());
         }
+        return;
+      }
 
-        if (firstFrameTimeMs == -1) {
-          firstFrameTimeMs = System.currentTimeMillis();
-          Log.v(TAG, "AVSYNC firstFrameTimeMs " + firstFrameTimeMs);
-        }
+      if (firstFrameTimeMs == -1) {
+        firstFrameTimeMs = System.currentTimeMillis();
+        Log.v(TAG, "AVSYNC firstFrameTimeMs " + firstFrameTimeMs);
+      }
 
-        if (DISABLE_AVSYNC) {
-          minTooEarlyMs = 0;
-        } else {
-          long nowMs = System.currentTimeMillis();
-          long earlyMs = output.bufferInfo.presentationTimeUs / 1000 + firstFrameTimeMs - nowMs;
+      if (!fastReplay) {
+        long nowMs = System.currentTimeMillis();
+        long earlyMs = synchronizer.getPairPtsUs() / 1000 + firstFrameTimeMs - nowMs;
+        if (DEBUG) {
+          Log.v(TAG, String.format("AVSYNC ts[%d] early[%d] timeMs[%d]",
+              synchronizer.getPairPtsUs() / 1000, earlyMs, nowMs));
+        }
+        if (earlyMs > AVSYNC_THRESHOLD_MS) {
           if (DEBUG) {
-            Log.v(TAG, String.format("AVSYNC trackIndex[%d] bufferIndex[%d] "
-                    + "ts[%d] early[%d] timeMs[%d]",
-                output.trackIndex, output.bufferIndex,
-                output.bufferInfo.presentationTimeUs / 1000, earlyMs, nowMs));
-          }
-          if (earlyMs > AVSYNC_THRESHOLD_MS) {
-            if (earlyMs < minTooEarlyMs) {
-              minTooEarlyMs = earlyMs;
-            }
-            if (DEBUG) {
-              Log.v(TAG, "AVSYNC pending at least " + minTooEarlyMs + " ms");
-            }
-            continue;
+            Log.v(TAG, "AVSYNC pending at least " + earlyMs + " ms");
           }
-          minTooEarlyMs = 0;
+          mainHandler.removeMessages(WHAT_TRY_DELIVER_IMAGES);
+          mainHandler.sendEmptyMessageDelayed(WHAT_TRY_DELIVER_IMAGES, earlyMs);
+          return;
         }
+      }
+      for (CannedDataSource.Output output : pendingPair) {
         if (DEBUG) {
-          Log.v(TAG, "copy images for track " + trackIndex);
-        }
-        copyAnImage(trackIndex);
-      } else {
-        if (DEBUG) {
-          Log.v(TAG, "pending on images for track " + trackIndex);
+          Log.v(TAG, "copy images for track " + output.trackIndex);
         }
+        copyAnImage(output);
       }
+      synchronizer.releasePair(pendingPair);
     }
 
-    if (minTooEarlyMs != Long.MAX_VALUE) {
-      mainHandler.obtainMessage(WHAT_TRY_DELIVER_IMAGES);
-      mainHandler.sendEmptyMessageDelayed(WHAT_TRY_DELIVER_IMAGES, minTooEarlyMs);
+    if (synchronizer.isEos()) {
+      checkAllEos();
     }
   }
 
@@ -325,22 +430,46 @@ public final class MockCameraSource implements CameraSource {
     }
   }
 
-  private void copyAnImage(int trackIndex) {
-    CannedDataSource.Output output = cannedDataSource.dequeueOutput(trackIndex);
-    if (output == null) {
-      return;
+  // the output is released by the synchronizer
+  private void copyAnImage(CannedDataSource.Output output) {
+    final int trackIndex = output.trackIndex;
+    final long startCpuTimeNs = Debug.threadCpuTimeNanos();
+    // an image can be attached to one writer only, copy to the others before attaching it
+    int attachTrackType = -1;
+    if (output.attachable) {
+      for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
+        if (TRACK_TYPES_MAP[trackType] == trackIndex && imageWriters[trackType] != null
+            && canAttach(output.image, imageWriters[trackType])) {
+          attachTrackType = trackType;
+        }
+      }
     }
     for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
       if (TRACK_TYPES_MAP[trackType] == trackIndex) {
-        if (imageWriters[trackType] != null) {
+        if (imageWriters[trackType] != null && trackType != attachTrackType) {
           Log.v(TAG, String.format("Copy image from track[%d] to track type [%d], ts[%d]",
               trackIndex, trackType, output.bufferInfo.presentationTimeUs));
           copyImage(output, imageWriters[trackType]);
           pendingBufferCountInSurfaces[trackType]++;
+          copiedImageCount++;
         }
       }
     }
-    cannedDataSource.queueOutput(output);
+    if (attachTrackType != -1) {
+      Log.v(TAG, String.format("Attach image from track[%d] to track type [%d], ts[%d]",
+          trackIndex, attachTrackType, output.bufferInfo.presentationTimeUs));
+      imageWriters[attachTrackType].queueInputImage(output.image);
+      pendingBufferCountInSurfaces[attachTrackType]++;
+      attachedImageCount++;
+    }
+    deliveryCpuTimeNs += Debug.threadCpuTimeNanos() - startCpuTimeNs;
+    deliveredFrameCount++;
+  }
+
+  private static boolean canAttach(Image image, ImageWriter writer) {
+    return image.getFormat() == writer.getFormat()
+        && image.getWidth() == writer.getWidth()
+        && image.getHeight() == writer.getHeight();
   }
 
   private static void copyImage(CannedDataSource.Output from, ImageWriter to) {
@@ -352,13 +481,24 @@ public final class MockCameraSource implements CameraSource {
     Image.Plane[] fromPlanes = fromImage.getPlanes();
     Image.Plane[] toPlanes = toImage.getPlanes();
     assert (fromPlanes.length == toPlanes.length);
+    if (fromImage.getWidth() != toImage.getWidth()
+        || fromImage.getHeight() != toImage.getHeight()) {
+      scaleImage(fromImage, toImage);
+      toImage.setTimestamp(fromImage.getTimestamp());
+      to.queueInputImage(toImage);
+      return;
+    }
     for (int planeIndex = 0; planeIndex < fromPlanes.length; ++planeIndex) {
       Image.Plane fromPlane = fromPlanes[planeIndex];
       Image.Plane toPlane = toPlanes[planeIndex];
       assert (fromPlane.getPixelStride() == toPlane.getPixelStride());
-      assert (fromPlane.getRowStride() == toPlane.getRowStride());
       ByteBuffer fromBuf = fromPlane.getBuffer();
       ByteBuffer toBuf = toPlane.getBuffer();
+      if (fromPlane.getRowStride() != toPlane.getRowStride()) {
+        // e.g. image reader and image writer buffers are allocated with different alignments
+        copyRows(fromImage, planeIndex, fromPlane, toPlane);
+        continue;
+      }
       // there may be slightly difference in from/to buffer sizes
       assert (fromBuf.capacity() * 1.0 / toBuf.capacity() > 0.99);
       assert (toBuf.capacity() * 1.0 / fromBuf.capacity() > 0.99);
@@ -371,6 +511,44 @@ public final class MockCameraSource implements CameraSource {
     to.queueInputImage(toImage);
   }
 
+  private static void copyRows(Image image, int planeIndex, Image.Plane fromPlane,
+                               Image.Plane toPlane) {
+    final int shift = planeIndex == 0 ? 0 : 1;
+    final int bytesPerSample = image.getFormat() == ImageFormat.YCBCR_P010 ? 2 : 1;
+    final int rows = (image.getHeight() + shift) >> shift;
+    final int rowBytes = (((image.getWidth() + shift) >> shift) - 1) * fromPlane.getPixelStride()
+        + bytesPerSample;
+    ByteBuffer fromBuf = fromPlane.getBuffer().duplicate();
+    ByteBuffer toBuf = toPlane.getBuffer().duplicate();
+    for (int row = 0; row < rows; ++row) {
+      int fromOffset = row * fromPlane.getRowStride();
+      fromBuf.limit(fromOffset + rowBytes).position(fromOffset);
+      toBuf.position(row * toPlane.getRowStride());
+      toBuf.put(fromBuf);
+    }
+  }
+
+  // CPU downscale for YUV_420_888 and P010 images, plane 0 is luma, the others are chroma planes
+  // subsampled by 2 in both directions
+  private static void scaleImage(Image fromImage, Image toImage) {
+    final int bytesPerSample = fromImage.getFormat() == ImageFormat.YCBCR_P010 ? 2 : 1;
+    Image.Plane[] fromPlanes = fromImage.getPlanes();
+    Image.Plane[] toPlanes = toImage.getPlanes();
+    for (int planeIndex = 0; planeIndex < fromPlanes.length; ++planeIndex) {
+      final int shift = planeIndex == 0 ? 0 : 1;
+      Image.Plane fromPlane = fromPlanes[planeIndex];
+      Image.Plane toPlane = toPlanes[planeIndex];
+      ImageScaler.scalePlane(
+          new ImageScaler.Plane(fromPlane.getBuffer(),
+              (fromImage.getWidth() + shift) >> shift, (fromImage.getHeight() + shift) >> shift,
+              fromPlane.getRowStride(), fromPlane.getPixelStride()),
+          new ImageScaler.Plane(toPlane.getBuffer(),
+              (toImage.getWidth() + shift) >> shift, (toImage.getHeight() + shift) >> shift,
+              toPlane.getRowStride(), toPlane.getPixelStride()),
+          bytesPerSample);
+    }
+  }
+
   private void checkAllEos() {
     if (allEos) {
       return;
@@ -380,6 +558,9 @@ public final class MockCameraSource implements CameraSource {
         return;
       }
     }
+    if (!synchronizer.isEos() || pendingPair[0] != null) {
+      return;
+    }
     allEos = true;
     if (onFinishedListener != null) {
       onFinishedListener.onFinished();
@@ -0,0 +1,115 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.util.ArrayDeque;
+import java.util.function.ToLongFunction;
+
+/**
+ * Interleaves samples of several tracks by presentation time before they are muxed.
+ * A sample can only be scheduled when every track which has not reached EOS has at least one
+ * pending sample, so the muxer always receives the earliest sample across all tracks.
+ * It is not thread-safe, {@link DepthRecorder} uses it from its handler thread only.
+ *
+ * @param <T> sample type.
+ */
+final class MuxScheduler<T> {
+  private static final int INITIAL_QUEUE_CAPACITY = 16;
+
+  private final ToLongFunction<T> ptsUsOf;
+  private final ArrayDeque<T>[] queues;
+  private final boolean[] eos;
+
+  /**
+   * MuxScheduler constructor.
+   *
+   * @param maxTrackCount max track count. Track ids are in [0, maxTrackCount).
+   * @param ptsUsOf returns presentation time in microseconds of a sample.
+   */
+  @SuppressWarnings("unchecked")
+  MuxScheduler(int maxTrackCount, ToLongFunction<T> ptsUsOf) {
+    this.ptsUsOf = ptsUsOf;
+    queues = (ArrayDeque<T>[]) new ArrayDeque<?>[maxTrackCount];
+    eos = new boolean[maxTrackCount];
+  }
+
+  void addTrack(int track) {
+    assert (queues[track] == null);
+    queues[track] = new ArrayDeque<>(INITIAL_QUEUE_CAPACITY);
+  }
+
+  boolean hasTrack(int track) {
+    return queues[track] != null;
+  }
+
+  void queue(int track, T sample) {
+    assert (queues[track] != null);
+    assert (!eos[track]);
+    queues[track].addLast(sample);
+  }
+
+  void setEos(int track) {
+    assert (queues[track] != null);
+    eos[track] = true;
+  }
+
+  /**
+   * Get the track to mux next.
+   *
+   * @return the track id whose head sample has the smallest timestamp, or -1 if it cannot be
+   *     decided yet because a track without EOS has no pending sample, or all tracks are drained.
+   */
+  int nextTrack() {
+    int nextTrack = -1;
+    long ts = Long.MAX_VALUE;
+    for (int track = 0; track < queues.length; ++track) {
+      ArrayDeque<T> queue = queues[track];
+      if (queue == null) {
+        continue;
+      }
+      T head = queue.peekFirst();
+      if (head == null) {
+        if (eos[track]) {
+          continue;
+        }
+        // cannot decide which track to mux
+        return -1;
+      }
+      long headTs = ptsUsOf.applyAsLong(head);
+      if (headTs < ts) {
+        ts = headTs;
+        nextTrack = track;
+      }
+    }
+    return nextTrack;
+  }
+
+  T peek(int track) {
+    return queues[track].peekFirst();
+  }
+
+  T poll(int track) {
+    return queues[track].pollFirst();
+  }
+
+  int size(int track) {
+    return queues[track] == null ? 0 : queues[track].size();
+  }
+
+  /**
+   * Check whether all the tracks reached EOS and have no pending samples.
+   */
+  boolean isAllDrained() {
+    for (int track = 0; track < queues.length; ++track) {
+      if (queues[track] != null && (!eos[track] || !queues[track].isEmpty())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Write-behind stage between {@link DepthRecorder} and its muxer.
+ * Samples are copied into a bounded pool of buffers by {@link #submit}, so the caller can release
+ * codec output buffers immediately, and are written to the {@link SampleSink} on a dedicated I/O
+ * thread in submission order. When the pool is exhausted, {@link #submit} blocks and the blocked
+ * time is accounted as I/O stall time.
+ */
+final class MuxWriter {
+
+  interface SampleSink {
+    /**
+     * Write one sample. Called on the I/O thread only.
+     *
+     * @param trackIndex muxer track index passed to {@link #submit}
+     * @param buf sample data between position and limit
+     * @param presentationTimeUs presentation time in microseconds
+     * @param flags MediaCodec buffer flags
+     */
+    void writeSample(int trackIndex, ByteBuffer buf, long presentationTimeUs, int flags);
+  }
+
+  static final int DEFAULT_CAPACITY = 16;
+
+  private static final class Slot {
+    ByteBuffer buf;
+    int trackIndex;
+    long presentationTimeUs;
+    int flags;
+  }
+
+  // sentinel queued by drainAndStop(), never recycled
+  private static final Slot STOP = new Slot();
+
+  private final SampleSink sink;
+  private final BlockingQueue<Slot> pending;
+  private final BlockingQueue<Slot> free;
+  private final Thread ioThread;
+  private volatile RuntimeException ioError;
+  private volatile boolean started;
+  private RecorderMetrics.LatencyHistogram writeLatency;
+
+  // producer side, only touched by the submitting thread
+  private long stallTimeNs;
+  private long submitCount;
+  // consumer side, only written by the I/O thread
+  private volatile long writeTimeNs;
+  private volatile long maxWriteTimeNs;
+  private volatile long writeCount;
+
+  MuxWriter(SampleSink sink) {
+    this(sink, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * MuxWriter constructor.
+   *
+   * @param sink where samples are written to.
+   * @param capacity max number of samples buffered before {@link #submit} blocks.
+   */
+  MuxWriter(SampleSink sink, int capacity) {
+    assert (sink != null);
+    assert (capacity > 0);
+    this.sink = sink;
+    // one extra entry in pending for the STOP sentinel
+    pending = new ArrayBlockingQueue<>(capacity + 1);
+    free = new ArrayBlockingQueue<>(capacity);
+    for (int i = 0; i < capacity; ++i) {
+      free.add(new Slot());
+    }
+    ioThread = new Thread(this::ioLoop, "DepthRecorderIO");
+  }
+
+  /**
+   * Record the latency of each sink write into the histogram. It should be called before
+   * {@link #start()}.
+   */
+  void setWriteLatencyHistogram(RecorderMetrics.LatencyHistogram histogram) {
+    assert (!started);
+    writeLatency = histogram;
+  }
+
+  void start() {
+    assert (!started);
+    started = true;
+    ioThread.start();
+  }
+
+  /**
+   * Copy a sample and queue it for writing. The source buffer can be reused or released as soon
+   * as this method returns, its position and limit are left unchanged.
+   *
+   * @param trackIndex muxer track index.
+   * @param src source buffer.
+   * @param offset sample offset in src.
+   * @param size sample size.
+   * @param presentationTimeUs presentation time in microseconds.
+   * @param flags MediaCodec buffer flags.
+   */
+  void submit(int trackIndex, ByteBuffer src, int offset, int size,
+              long presentationTimeUs, int flags) {
+    assert (started);
+    throwIfFailed();
+    Slot slot = free.poll();
+    if (slot == null) {
+      final long startNs = System.nanoTime();
+      try {
+        slot = free.take();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      stallTimeNs += System.nanoTime() - startNs;
+    }
+
+    if (slot.buf == null || slot.buf.capacity() < size) {
+      // grow in steps to settle quickly on the steady-state sample size
+      slot.buf = ByteBuffer.allocateDirect(size + (size >> 1));
+    }
+    slot.buf.clear();
+    final int srcPosition = src.position();
+    final int srcLimit = src.limit();
+    src.limit(offset + size);
+    src.position(offset);
+    slot.buf.put(src);
+    src.limit(srcLimit);
+    src.position(srcPosition);
+    slot.buf.flip();
+    slot.trackIndex = trackIndex;
+    slot.presentationTimeUs = presentationTimeUs;
+    slot.flags = flags;
+    submitCount++;
+    pending.add(slot);
+  }
+
+  /**
+   * Wait until all submitted samples are written, then stop the I/O thread.
+   *
+   * @throws RuntimeException if any sample failed to be written.
+   */
+  void drainAndStop() {
+    if (!started) {
+      return;
+    }
+    pending.add(STOP);
+    try {
+      ioThread.join();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    started = false;
+    throwIfFailed();
+  }
+
+  /**
+   * Total time the submitting thread was blocked waiting for the I/O thread.
+   */
+  long getStallTimeNs() {
+    return stallTimeNs;
+  }
+
+  long getSubmitCount() {
+    return submitCount;
+  }
+
+  long getWriteTimeNs() {
+    return writeTimeNs;
+  }
+
+  long getMaxWriteTimeNs() {
+    return maxWriteTimeNs;
+  }
+
+  long getWriteCount() {
+    return writeCount;
+  }
+
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  private void throwIfFailed() {
+    RuntimeException e = ioError;
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  private void ioLoop() {
+    while (true) {
+      Slot slot;
+      try {
+        slot = pending.take();
+      } catch (InterruptedException e) {
+        ioError = new RuntimeException(e);
+        return;
+      }
+      if (slot == STOP) {
+        return;
+      }
+      if (ioError == null) {
+        final long startNs = System.nanoTime();
+        try {
+          sink.writeSample(slot.trackIndex, slot.buf, slot.presentationTimeUs, slot.flags);
+        } catch (RuntimeException e) {
+          // keep draining so the producer never blocks forever, report on next submit
+          ioError = e;
+        }
+        final long latencyNs = System.nanoTime() - startNs;
+        writeTimeNs += latencyNs;
+        if (latencyNs > maxWriteTimeNs) {
+          maxWriteTimeNs = latencyNs;
+        }
+        writeCount++;
+        if (writeLatency != null) {
+          writeLatency.recordNs(latencyNs);
+        }
+      }
+      free.add(slot);
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import qti.video.depth.DepthFormat;
+
+/**
+ * Recording pipeline metrics of {@link DepthRecorder}.
+ * All the recording methods (counter increments, gauge updates and histogram records) are
+ * lock-free and allocation-free, so they can be called from codec callbacks and the mux path.
+ * Call {@link #snapshot()} to get a consistent-enough copy for reporting.
+ */
+public final class RecorderMetrics {
+
+  /**
+   * Monotonic counter.
+   */
+  public static final class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+      value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      value.addAndGet(delta);
+    }
+
+    public long get() {
+      return value.get();
+    }
+
+    void reset() {
+      value.set(0);
+    }
+  }
+
+  /**
+   * Last-value gauge which also keeps the max value since last reset.
+   */
+  public static final class Gauge {
+    private final AtomicLong value = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void set(long v) {
+      value.set(v);
+      long m = max.get();
+      while (v > m && !max.compareAndSet(m, v)) {
+        m = max.get();
+      }
+    }
+
+    public long get() {
+      return value.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    void reset() {
+      value.set(0);
+      max.set(0);
+    }
+  }
+
+  /**
+   * Latency histogram with log-linear buckets, similar to HdrHistogram. Each power of two range
+   * is split into {@code 2^SUB_BUCKET_BITS} linear sub-buckets, so recorded values keep about 3%
+   * relative precision from 1us up to hours, in a fixed array allocated once.
+   */
+  public static final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency value.
+     *
+     * @param valueUs latency in microseconds. Negative values are recorded as 0.
+     */
+    public void record(long valueUs) {
+      long v = Math.max(0, valueUs);
+      buckets.incrementAndGet(bucketIndex(v));
+      count.incrementAndGet();
+      sum.addAndGet(v);
+      long m = max.get();
+      while (v > m && !max.compareAndSet(m, v)) {
+        m = max.get();
+      }
+    }
+
+    public void recordNs(long valueNs) {
+      record(valueNs / 1000);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    static int bucketIndex(long v) {
+      if (v < SUB_BUCKET_COUNT) {
+        return (int) v;
+      }
+      int exp = (Long.SIZE - 1) - Long.numberOfLeadingZeros(v);
+      int group = exp - SUB_BUCKET_BITS + 1;
+      int sub = (int) (v >>> (exp - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+      return group * SUB_BUCKET_COUNT + sub;
+    }
+
+    static long bucketLowerBound(int index) {
+      if (index < SUB_BUCKET_COUNT) {
+        return index;
+      }
+      int group = index >>> SUB_BUCKET_BITS;
+      int sub = index & (SUB_BUCKET_COUNT - 1);
+      return ((long) (SUB_BUCKET_COUNT + sub)) << (group - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+      return index + 1 < BUCKET_COUNT ? bucketLowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Copy the histogram, and compute percentiles on the copy.
+     */
+    public HistogramSnapshot snapshot() {
+      long[] copy = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        copy[i] = buckets.get(i);
+        total += copy[i];
+      }
+      return new HistogramSnapshot(total, sum.get(), max.get(),
+          percentile(copy, total, 0.50),
+          percentile(copy, total, 0.90),
+          percentile(copy, total, 0.99),
+          percentile(copy, total, 0.999));
+    }
+
+    private static long percentile(long[] counts, long total, double p) {
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(p * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return bucketUpperBound(i);
+        }
+      }
+      return bucketUpperBound(counts.length - 1);
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+  }
+
+  /**
+   * Immutable percentiles of a {@link LatencyHistogram}. All values are in microseconds, and
+   * percentiles are reported as the upper bound of the matching bucket.
+   */
+  public static final class HistogramSnapshot {
+    public final long count;
+    public final long meanUs;
+    public final long maxUs;
+    public final long p50Us;
+    public final long p90Us;
+    public final long p99Us;
+    public final long p999Us;
+
+    HistogramSnapshot(long count, long sumUs, long maxUs,
+                      long p50Us, long p90Us, long p99Us, long p999Us) {
+      this.count = count;
+      this.meanUs = count == 0 ? 0 : sumUs / count;
+      this.maxUs = maxUs;
+      this.p50Us = Math.min(p50Us, maxUs);
+      this.p90Us = Math.min(p90Us, maxUs);
+      this.p99Us = Math.min(p99Us, maxUs);
+      this.p999Us = Math.min(p999Us, maxUs);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "n=%d mean=%dus p50=%dus p90=%dus p99=%dus p999=%dus max=%dus",
+          count, meanUs, p50Us, p90Us, p99Us, p999Us, maxUs);
+    }
+  }
+
+  /**
+   * Point-in-time copy of all the metrics.
+   */
+  public static final class Snapshot {
+    public final long elapsedMs;
+    // indexed by track type, entries of unused track types are zero
+    public final long[] encodedFrames = new long[DepthFormat.MAX_TRACK_TYPE_COUNT];
+    public final double[] encodedFps = new double[DepthFormat.MAX_TRACK_TYPE_COUNT];
+    public final long[] droppedFrames = new long[DepthFormat.MAX_TRACK_TYPE_COUNT];
+    public final long[] queueDepth = new long[DepthFormat.MAX_TRACK_TYPE_COUNT];
+    public final long[] maxQueueDepth = new long[DepthFormat.MAX_TRACK_TYPE_COUNT];
+    public final long muxWriterQueueDepth;
+    public final long maxMuxWriterQueueDepth;
+    public final long ioStallTimeUs;
+    public final HistogramSnapshot muxLatency;
+    public final HistogramSnapshot writeLatency;
+    public final HistogramSnapshot previewDecodeLatency;
+    public final long editInnerClipMs;
+    public final long editOuterClipMs;
+    public final long mergeClipMs;
+    public final long stopLatencyMs;
+
+    Snapshot(RecorderMetrics m, long nowNs) {
+      long startNs = m.startTimeNs.get();
+      elapsedMs = startNs == 0 ? 0 : (nowNs - startNs) / 1000000;
+      for (int i = 0; i < DepthFormat.MAX_TRACK_TYPE_COUNT; ++i) {
+        encodedFrames[i] = m.encodedFrames[i].get();
+        encodedFps[i] = elapsedMs == 0 ? 0 : encodedFrames[i] * 1000.0 / elapsedMs;
+        droppedFrames[i] = m.droppedFrames[i].get();
+        queueDepth[i] = m.queueDepth[i].get();
+        maxQueueDepth[i] = m.queueDepth[i].getMax();
+      }
+      muxWriterQueueDepth = m.muxWriterQueueDepth.get();
+      maxMuxWriterQueueDepth = m.muxWriterQueueDepth.getMax();
+      ioStallTimeUs = m.ioStallTimeUs.get();
+      muxLatency = m.muxLatency.snapshot();
+      writeLatency = m.writeLatency.snapshot();
+      previewDecodeLatency = m.previewDecodeLatency.snapshot();
+      editInnerClipMs = m.editInnerClipMs.get();
+      editOuterClipMs = m.editOuterClipMs.get();
+      mergeClipMs = m.mergeClipMs.get();
+      stopLatencyMs = m.stopLatencyMs.get();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(512);
+      sb.append("elapsedMs ").append(elapsedMs);
+      for (int i = 0; i < DepthFormat.MAX_TRACK_TYPE_COUNT; ++i) {
+        if (encodedFrames[i] == 0 && droppedFrames[i] == 0 && maxQueueDepth[i] == 0) {
+          continue;
+        }
+        sb.append(String.format(Locale.US,
+            "\n  trackType %d: frames %d (%.1f fps), dropped %d, queue %d (max %d)",
+            i, encodedFrames[i], encodedFps[i], droppedFrames[i], queueDepth[i],
+            maxQueueDepth[i]));
+      }
+      sb.append("\n  mux latency: ").append(muxLatency)
+          .append("\n  write latency: ").append(writeLatency)
+          .append("\n  mux writer queue ").append(muxWriterQueueDepth)
+          .append(" (max ").append(maxMuxWriterQueueDepth).append(")")
+          .append(", io stall us ").append(ioStallTimeUs)
+          .append("\n  preview decode latency: ").append(previewDecodeLatency)
+          .append("\n  edit inner ms ").append(editInnerClipMs)
+          .append(", edit outer ms ").append(editOuterClipMs)
+          .append(", merge ms ").append(mergeClipMs)
+          .append(", stop latency ms ").append(stopLatencyMs);
+      return sb.toString();
+    }
+  }
+
+  final Counter[] encodedFrames = new Counter[DepthFormat.MAX_TRACK_TYPE_COUNT];
+  final Counter[] droppedFrames = new Counter[DepthFormat.MAX_TRACK_TYPE_COUNT];
+  final Gauge[] queueDepth = new Gauge[DepthFormat.MAX_TRACK_TYPE_COUNT];
+  final Gauge muxWriterQueueDepth = new Gauge();
+  final Gauge ioStallTimeUs = new Gauge();
+  // latency from encoder output available to sample handed to the mux writer
+  final LatencyHistogram muxLatency = new LatencyHistogram();
+  // latency of the muxer write on the I/O thread
+  final LatencyHistogram writeLatency = new LatencyHistogram();
+  final LatencyHistogram previewDecodeLatency = new LatencyHistogram();
+  final Gauge editInnerClipMs = new Gauge();
+  final Gauge editOuterClipMs = new Gauge();
+  final Gauge mergeClipMs = new Gauge();
+  final Gauge stopLatencyMs = new Gauge();
+  private final AtomicLong startTimeNs = new AtomicLong();
+
+  RecorderMetrics() {
+    for (int i = 0; i < DepthFormat.MAX_TRACK_TYPE_COUNT; ++i) {
+      encodedFrames[i] = new Counter();
+      droppedFrames[i] = new Counter();
+      queueDepth[i] = new Gauge();
+    }
+  }
+
+  void markStart(long nowNs) {
+    startTimeNs.set(nowNs);
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(this, System.nanoTime());
+  }
+
+  /**
+   * Reset all metrics. The reset is not atomic with concurrent recording.
+   */
+  public void reset() {
+    for (int i = 0; i < DepthFormat.MAX_TRACK_TYPE_COUNT; ++i) {
+      encodedFrames[i].reset();
+      droppedFrames[i].reset();
+      queueDepth[i].reset();
+    }
+    muxWriterQueueDepth.reset();
+    ioStallTimeUs.reset();
+    muxLatency.reset();
+    writeLatency.reset();
+    previewDecodeLatency.reset();
+    editInnerClipMs.reset();
+    editOuterClipMs.reset();
+    mergeClipMs.reset();
+    stopLatencyMs.reset();
+    startTimeNs.set(System.nanoTime());
+  }
+}
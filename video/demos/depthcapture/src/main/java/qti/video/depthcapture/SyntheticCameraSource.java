@@ -0,0 +1,490 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import android.annotation.SuppressLint;
+import android.graphics.ImageFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import qti.video.depth.DepthFormat;
+
+/**
+ * CameraSource generating all depth track types procedurally with {@link SyntheticFrameGenerator},
+ * so recording can be benchmarked without a pushed clip. Frames are generated on a plain thread,
+ * paced at the frame rate or as fast as the outputs consume them, with timestamps derived from
+ * the frame index.
+ * Besides surfaces, tracks can output to a {@link FrameSink}, which lets headless JVM tests run
+ * the source without any Android graphics buffers.
+ */
+public final class SyntheticCameraSource implements CameraSource {
+
+  static final String TAG = "SyntheticCameraSource";
+  static final boolean DEBUG = false;
+
+  static final String MIMETYPE_METADATA = "application/x-depth-metadata";
+  private static final int MAX_PENDING_IMAGE_COUNT = 2;
+  private static final int METADATA_BUFFER_COUNT = 4;
+  private static final long WAIT_TIMEOUT_MS = 10;
+  private static final int MAX_TRACK_TYPES = DepthFormat.MAX_TRACK_TYPE_COUNT;
+
+  /**
+   * Source configuration.
+   */
+  public static final class Config {
+    public int videoWidth = AppConfig.VIDEO_WIDTH;
+    public int videoHeight = AppConfig.VIDEO_HEIGHT;
+    // 8 or 10
+    public int videoBitDepth = 8;
+    public int depthWidth = 512;
+    public int depthHeight = 288;
+    // 8, 10 or 16. 16-bit depth is stored in P010 images, for lossless depth encoding.
+    public int depthBitDepth = 10;
+    public int frameRate = 30;
+    // bytes per metadata sample, at least 16
+    public int metadataSize = 1024;
+    // frames per track before EOS, 0 to generate until stopped
+    public int frameCount = 300;
+    // true to generate frames as fast as they are consumed instead of at the frame rate
+    public boolean fastReplay;
+  }
+
+  /**
+   * Frame to be filled by the source.
+   */
+  static final class Frame {
+    final ImageScaler.Plane[] planes;
+    final Object internalObj;
+
+    Frame(ImageScaler.Plane[] planes, Object internalObj) {
+      this.planes = planes;
+      this.internalObj = internalObj;
+    }
+  }
+
+  /**
+   * Output of a video or depth track. Sinks should call {@link #onFrameReleased()} when a queued
+   * frame is released.
+   */
+  interface FrameSink {
+    // non-blocking, returns null if no frame is free
+    Frame dequeueFrame();
+
+    void queueFrame(Frame frame, long timestampNs);
+
+    void close();
+  }
+
+  private final Config config;
+  private final SyntheticFrameGenerator generator;
+  // sizes are kept as ints, android.util.Size is not functional in JVM tests
+  private final int[] outputWidths = new int[MAX_TRACK_TYPES];
+  private final int[] outputHeights = new int[MAX_TRACK_TYPES];
+  private final FrameSink[] sinks = new FrameSink[MAX_TRACK_TYPES];
+  private final long[] droppedFrameCounts = new long[MAX_TRACK_TYPES];
+  private final Object lock = new Object();
+  // counts released frames and buffers, so that a release between a failed dequeue and the
+  // wait is not missed
+  private long releaseCount; // guarded by lock
+  private HandlerThread releaseThread;
+  private Handler releaseHandler;
+  private MetadataSource metadataSource;
+  private OnFinishedListener onFinishedListener;
+  private Thread thread;
+  private volatile boolean running;
+  private volatile long generatedFrameCount;
+
+  public SyntheticCameraSource(Config config) {
+    assert (config.videoBitDepth == 8 || config.videoBitDepth == 10);
+    assert (config.depthBitDepth == 8 || config.depthBitDepth == 10
+        || config.depthBitDepth == 16);
+    assert (config.metadataSize >= 16);
+    this.config = config;
+    generator = new SyntheticFrameGenerator(config.frameRate);
+  }
+
+  @Override
+  public void init() {
+    Log.v(TAG, "init");
+  }
+
+  @Override
+  public boolean supportTrack(int trackType) {
+    return trackType >= 0 && trackType < MAX_TRACK_TYPES;
+  }
+
+  private static boolean isDepthTrack(int trackType) {
+    return trackType == DepthFormat.TRACK_TYPE_DEPTH_LINEAR
+        || trackType == DepthFormat.TRACK_TYPE_DEPTH_INVERSE;
+  }
+
+  private int getBitDepth(int trackType) {
+    return isDepthTrack(trackType) ? config.depthBitDepth : config.videoBitDepth;
+  }
+
+  int getTrackOutputWidth(int trackType) {
+    if (outputWidths[trackType] != 0) {
+      return outputWidths[trackType];
+    }
+    return isDepthTrack(trackType) ? config.depthWidth : config.videoWidth;
+  }
+
+  int getTrackOutputHeight(int trackType) {
+    if (outputHeights[trackType] != 0) {
+      return outputHeights[trackType];
+    }
+    return isDepthTrack(trackType) ? config.depthHeight : config.videoHeight;
+  }
+
+  @Override
+  public MediaFormat getTrackFormat(int trackType) {
+    if (!supportTrack(trackType)) {
+      throw new IllegalArgumentException("Unsupported track type: " + trackType);
+    }
+    if (trackType == DepthFormat.TRACK_TYPE_METADATA) {
+      MediaFormat format = new MediaFormat();
+      format.setString(MediaFormat.KEY_MIME, MIMETYPE_METADATA);
+      return format;
+    }
+    MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_RAW,
+        isDepthTrack(trackType) ? config.depthWidth : config.videoWidth,
+        isDepthTrack(trackType) ? config.depthHeight : config.videoHeight);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT, getBitDepth(trackType) == 8
+        ? MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible
+        : MediaCodecInfo.CodecCapabilities.COLOR_FormatYUVP010);
+    return format;
+  }
+
+  @Override
+  public void setTrackOutputSize(int trackType, int width, int height) {
+    assert (supportTrack(trackType) && trackType != DepthFormat.TRACK_TYPE_METADATA);
+    assert (sinks[trackType] == null);
+    // frames are generated at the output size, no scaling is involved
+    outputWidths[trackType] = width;
+    outputHeights[trackType] = height;
+  }
+
+  @Override
+  public void setOutputSurface(int trackType, Surface surface) {
+    assert (supportTrack(trackType) && trackType != DepthFormat.TRACK_TYPE_METADATA);
+    assert (sinks[trackType] == null);
+    if (releaseThread == null) {
+      releaseThread = new HandlerThread("SyntheticCameraSource");
+      releaseThread.start();
+      releaseHandler = new Handler(releaseThread.getLooper());
+    }
+    sinks[trackType] = new ImageWriterSink(new Size(getTrackOutputWidth(trackType),
+        getTrackOutputHeight(trackType)), surface, getBitDepth(trackType) != 8);
+  }
+
+  /**
+   * Set output of a track to a sink instead of a surface, e.g. a fake sink in JVM tests.
+   */
+  void setOutputSink(int trackType, FrameSink sink) {
+    assert (supportTrack(trackType) && trackType != DepthFormat.TRACK_TYPE_METADATA);
+    assert (sinks[trackType] == null);
+    sinks[trackType] = sink;
+  }
+
+  int getTrackBitDepth(int trackType) {
+    return getBitDepth(trackType);
+  }
+
+  void onFrameReleased() {
+    synchronized (lock) {
+      releaseCount++;
+      lock.notifyAll();
+    }
+  }
+
+  private long getReleaseCount() {
+    synchronized (lock) {
+      return releaseCount;
+    }
+  }
+
+  @Override
+  public TrackDataSource getMetadataDataSource() {
+    if (metadataSource == null) {
+      metadataSource = new MetadataSource();
+    }
+    return metadataSource;
+  }
+
+  @Override
+  public void setOnFinishedListener(OnFinishedListener listener) {
+    assert (onFinishedListener == null);
+    onFinishedListener = listener;
+  }
+
+  @Override
+  public void start() {
+    Log.v(TAG, "start");
+    assert (thread == null);
+    running = true;
+    thread = new Thread(this::generate, "SyntheticCameraSource");
+    thread.start();
+  }
+
+  @Override
+  public void stop() {
+    Log.v(TAG, "stop");
+    running = false;
+    onFrameReleased();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    StringBuilder dropped = new StringBuilder();
+    for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
+      dropped.append(' ').append(droppedFrameCounts[trackType]);
+    }
+    Log.i(TAG, "generated frames " + generatedFrameCount + ", dropped frames" + dropped);
+  }
+
+  @Override
+  public void release() {
+    Log.v(TAG, "release");
+    for (FrameSink sink : sinks) {
+      if (sink != null) {
+        sink.close();
+      }
+    }
+    if (releaseThread != null) {
+      releaseThread.quitSafely();
+    }
+  }
+
+  long getGeneratedFrameCount() {
+    return generatedFrameCount;
+  }
+
+  // valid after stop() returns
+  long getDroppedFrameCount(int trackType) {
+    return droppedFrameCounts[trackType];
+  }
+
+  private void generate() {
+    final long frameIntervalNs = 1000000000L / config.frameRate;
+    final long startNs = System.nanoTime();
+    long frame = 0;
+    for (; running && (config.frameCount == 0 || frame < config.frameCount); ++frame) {
+      if (!config.fastReplay) {
+        long waitNs = startNs + frame * frameIntervalNs - System.nanoTime();
+        if (waitNs > 0) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(waitNs);
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+      }
+      final boolean lastFrame = frame == config.frameCount - 1;
+      final long ptsUs = generator.getPresentationTimeUs(frame);
+      for (int trackType = 0; trackType < MAX_TRACK_TYPES; ++trackType) {
+        if (sinks[trackType] != null) {
+          deliverFrame(trackType, frame, ptsUs, lastFrame);
+        }
+      }
+      if (metadataSource != null && metadataSource.outputListener != null) {
+        metadataSource.deliver(frame, ptsUs, lastFrame);
+      }
+      generatedFrameCount = frame + 1;
+      if (DEBUG) {
+        Log.v(TAG, "generated frame " + frame + ", ptsUs " + ptsUs);
+      }
+    }
+    if (running && frame == config.frameCount) {
+      Log.v(TAG, "all frames generated");
+      if (metadataSource != null && metadataSource.outputListener != null) {
+        metadataSource.outputListener.onEos();
+      }
+      if (onFinishedListener != null) {
+        onFinishedListener.onFinished();
+      }
+    }
+  }
+
+  // in paced mode a frame is dropped when the output is busy, like a camera does. The last
+  // frame is never dropped.
+  private boolean waitForOutput(int trackType, boolean lastFrame, long seenReleaseCount) {
+    if (!config.fastReplay && !lastFrame) {
+      droppedFrameCounts[trackType]++;
+      if (DEBUG) {
+        Log.v(TAG, "drop a frame of track type " + trackType);
+      }
+      return false;
+    }
+    synchronized (lock) {
+      try {
+        if (releaseCount == seenReleaseCount) {
+          lock.wait(WAIT_TIMEOUT_MS);
+        }
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return running;
+  }
+
+  private void deliverFrame(int trackType, long frameIndex, long ptsUs, boolean lastFrame) {
+    final FrameSink sink = sinks[trackType];
+    Frame frame;
+    long seenReleaseCount = getReleaseCount();
+    while ((frame = sink.dequeueFrame()) == null) {
+      if (!waitForOutput(trackType, lastFrame, seenReleaseCount)) {
+        return;
+      }
+      seenReleaseCount = getReleaseCount();
+    }
+    if (isDepthTrack(trackType)) {
+      generator.fillDepth(frameIndex, trackType, frame.planes, config.depthBitDepth);
+    } else {
+      generator.fillVideo(frameIndex, frame.planes, config.videoBitDepth);
+    }
+    sink.queueFrame(frame, ptsUs * 1000);
+  }
+
+  private final class ImageWriterSink implements FrameSink {
+    private final ImageWriter writer;
+    private int pendingCount; // guarded by lock
+
+    ImageWriterSink(Size size, Surface surface, boolean is10Bit) {
+      writer = createImageWriter(size, surface, is10Bit);
+      writer.setOnImageReleasedListener(imageWriter -> {
+        synchronized (lock) {
+          assert (pendingCount > 0);
+          pendingCount--;
+        }
+        onFrameReleased();
+      }, releaseHandler);
+    }
+
+    @SuppressLint("WrongConstant")
+    private ImageWriter createImageWriter(Size size, Surface surface, boolean is10Bit) {
+      ImageWriter.Builder builder = new ImageWriter.Builder(surface);
+      builder.setWidthAndHeight(size.getWidth(), size.getHeight())
+          .setImageFormat(is10Bit ? ImageFormat.YCBCR_P010 : ImageFormat.YUV_420_888)
+          .setMaxImages(MAX_PENDING_IMAGE_COUNT)
+          .setUsage(HardwareBuffer.USAGE_CPU_WRITE_OFTEN);
+      return builder.build();
+    }
+
+    @Override
+    public Frame dequeueFrame() {
+      synchronized (lock) {
+        if (pendingCount >= MAX_PENDING_IMAGE_COUNT) {
+          return null;
+        }
+        pendingCount++;
+      }
+      Image image = writer.dequeueInputImage();
+      Image.Plane[] planes = image.getPlanes();
+      ImageScaler.Plane[] framePlanes = new ImageScaler.Plane[planes.length];
+      for (int planeIndex = 0; planeIndex < planes.length; ++planeIndex) {
+        final int shift = planeIndex == 0 ? 0 : 1;
+        framePlanes[planeIndex] = new ImageScaler.Plane(planes[planeIndex].getBuffer(),
+            (image.getWidth() + shift) >> shift, (image.getHeight() + shift) >> shift,
+            planes[planeIndex].getRowStride(), planes[planeIndex].getPixelStride());
+      }
+      return new Frame(framePlanes, image);
+    }
+
+    @Override
+    public void queueFrame(Frame frame, long timestampNs) {
+      Image image = (Image) frame.internalObj;
+      image.setTimestamp(timestampNs);
+      writer.queueInputImage(image);
+    }
+
+    @Override
+    public void close() {
+      writer.close();
+    }
+  }
+
+  private class MetadataSource implements TrackDataSource {
+    private final BlockingQueue<TrackBuffer> freeBuffers =
+        new ArrayBlockingQueue<>(METADATA_BUFFER_COUNT);
+    private final BlockingQueue<TrackBuffer> readyBuffers =
+        new ArrayBlockingQueue<>(METADATA_BUFFER_COUNT);
+    volatile OutputListener outputListener;
+    private volatile boolean eos;
+
+    MetadataSource() {
+      for (int i = 0; i < METADATA_BUFFER_COUNT; ++i) {
+        freeBuffers.add(new TrackBuffer(ByteBuffer.allocateDirect(config.metadataSize),
+            new MediaCodec.BufferInfo(), null));
+      }
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+      return getTrackFormat(DepthFormat.TRACK_TYPE_METADATA);
+    }
+
+    @Override
+    public void setOutputListener(OutputListener listener) {
+      assert (outputListener == null);
+      outputListener = listener;
+    }
+
+    @Override
+    public TrackBuffer dequeueBuffer() {
+      return readyBuffers.poll();
+    }
+
+    @Override
+    public void queueBuffer(TrackBuffer buffer) {
+      freeBuffers.add(buffer);
+      onFrameReleased();
+    }
+
+    @Override
+    public boolean isEos() {
+      return eos && readyBuffers.isEmpty();
+    }
+
+    void deliver(long frameIndex, long ptsUs, boolean lastFrame) {
+      TrackBuffer buffer;
+      long seenReleaseCount = getReleaseCount();
+      while ((buffer = freeBuffers.poll()) == null) {
+        if (!waitForOutput(DepthFormat.TRACK_TYPE_METADATA, lastFrame, seenReleaseCount)) {
+          return;
+        }
+        seenReleaseCount = getReleaseCount();
+      }
+      buffer.byteBuf.clear();
+      generator.fillMetadata(frameIndex, buffer.byteBuf, config.metadataSize);
+      buffer.byteBuf.limit(config.metadataSize);
+      buffer.bufferInfo.offset = 0;
+      buffer.bufferInfo.size = config.metadataSize;
+      buffer.bufferInfo.presentationTimeUs = ptsUs;
+      buffer.bufferInfo.flags = lastFrame ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+      if (lastFrame) {
+        eos = true;
+      }
+      readyBuffers.add(buffer);
+      outputListener.onOutputAvailable();
+    }
+  }
+}
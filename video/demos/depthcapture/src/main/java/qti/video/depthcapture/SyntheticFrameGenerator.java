@@ -0,0 +1,166 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.nio.ByteBuffer;
+import qti.video.depth.DepthFormat;
+
+/**
+ * Procedural content of {@link SyntheticCameraSource}. Every frame is a pure function of its
+ * frame index and layout, so a run is reproducible in any environment.
+ * Video is a moving YUV 4:2:0 gradient. Depth is a disc moving in front of a tilted background
+ * plane, with a band of invalid (zero) depth on the left like a sensor shadow, stored in the luma
+ * plane with neutral chroma. Samples are 8-bit, 10-bit in the upper bits of 16-bit little endian
+ * (P010), or full 16-bit little endian.
+ * Buffers are accessed with absolute puts, their positions and limits are not changed.
+ */
+final class SyntheticFrameGenerator {
+  static final int MIN_DEPTH_MM = 300;
+  static final int MAX_DEPTH_MM = 8000;
+  static final int DISC_DEPTH_MM = 800;
+  // frames for the disc to cross the frame
+  static final int DISC_PERIOD = 120;
+
+  private final int frameRate;
+
+  SyntheticFrameGenerator(int frameRate) {
+    assert (frameRate > 0);
+    this.frameRate = frameRate;
+  }
+
+  long getPresentationTimeUs(long frameIndex) {
+    return frameIndex * 1000000L / frameRate;
+  }
+
+  /**
+   * Fill a video frame.
+   *
+   * @param planes Y, U and V planes, chroma planes are subsampled by 2 in both directions.
+   * @param bitDepth 8 or 10.
+   */
+  void fillVideo(long frameIndex, ImageScaler.Plane[] planes, int bitDepth) {
+    assert (bitDepth == 8 || bitDepth == 10);
+    final int mask = (1 << bitDepth) - 1;
+    final int phase = (int) (frameIndex * 4 & mask);
+    final ImageScaler.Plane luma = planes[0];
+    for (int y = 0; y < luma.height; ++y) {
+      int offset = y * luma.rowStride;
+      for (int x = 0; x < luma.width; ++x) {
+        putSample(luma.buf, offset, (x + y + phase) & mask, bitDepth);
+        offset += luma.pixelStride;
+      }
+    }
+    for (int planeIndex = 1; planeIndex < planes.length; ++planeIndex) {
+      final ImageScaler.Plane chroma = planes[planeIndex];
+      for (int y = 0; y < chroma.height; ++y) {
+        int offset = y * chroma.rowStride;
+        for (int x = 0; x < chroma.width; ++x) {
+          int v = planeIndex == 1 ? x * 2 + phase : y * 2 - phase;
+          putSample(chroma.buf, offset, v & mask, bitDepth);
+          offset += chroma.pixelStride;
+        }
+      }
+    }
+  }
+
+  /**
+   * Fill a depth frame.
+   *
+   * @param trackType {@link DepthFormat#TRACK_TYPE_DEPTH_LINEAR} or
+   *     {@link DepthFormat#TRACK_TYPE_DEPTH_INVERSE}.
+   * @param planes Y, U and V planes, depth is in the Y plane.
+   * @param bitDepth 8, 10 or 16.
+   */
+  void fillDepth(long frameIndex, int trackType, ImageScaler.Plane[] planes, int bitDepth) {
+    assert (bitDepth == 8 || bitDepth == 10 || bitDepth == 16);
+    assert (trackType == DepthFormat.TRACK_TYPE_DEPTH_LINEAR
+        || trackType == DepthFormat.TRACK_TYPE_DEPTH_INVERSE);
+    final boolean inverse = trackType == DepthFormat.TRACK_TYPE_DEPTH_INVERSE;
+    final ImageScaler.Plane luma = planes[0];
+    for (int y = 0; y < luma.height; ++y) {
+      int offset = y * luma.rowStride;
+      for (int x = 0; x < luma.width; ++x) {
+        int mm = depthMmAt(frameIndex, x, y, luma.width, luma.height);
+        putSample(luma.buf, offset, toSample(mm, inverse, bitDepth), bitDepth);
+        offset += luma.pixelStride;
+      }
+    }
+    final int neutral = bitDepth == 8 ? 0x80 : 0x200;
+    for (int planeIndex = 1; planeIndex < planes.length; ++planeIndex) {
+      final ImageScaler.Plane chroma = planes[planeIndex];
+      for (int y = 0; y < chroma.height; ++y) {
+        int offset = y * chroma.rowStride;
+        for (int x = 0; x < chroma.width; ++x) {
+          putSample(chroma.buf, offset, neutral, bitDepth == 16 ? 10 : bitDepth);
+          offset += chroma.pixelStride;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get scene depth in millimeters, 0 for invalid depth.
+   */
+  static int depthMmAt(long frameIndex, int x, int y, int width, int height) {
+    if (x < width / 32) {
+      return 0;
+    }
+    final int radius = height / 4;
+    final int cx = (int) ((frameIndex % DISC_PERIOD) * width / DISC_PERIOD);
+    final int cy = height / 2;
+    final int dx = x - cx;
+    final int dy = y - cy;
+    if (dx * dx + dy * dy <= radius * radius) {
+      return DISC_DEPTH_MM;
+    }
+    return 1500 + (int) ((long) y * 4000 / height);
+  }
+
+  // linear depth maps [MIN_DEPTH_MM, MAX_DEPTH_MM] to [1, max], inverse depth maps it to
+  // [max, max * MIN_DEPTH_MM / MAX_DEPTH_MM]. 16-bit linear depth is in millimeters.
+  static int toSample(int mm, boolean inverse, int bitDepth) {
+    if (mm == 0) {
+      return 0;
+    }
+    final int max = (1 << bitDepth) - 1;
+    mm = Math.max(MIN_DEPTH_MM, Math.min(MAX_DEPTH_MM, mm));
+    if (inverse) {
+      return Math.max(1, (int) ((long) max * MIN_DEPTH_MM / mm));
+    }
+    if (bitDepth == 16) {
+      return mm;
+    }
+    return 1 + (int) ((long) (mm - MIN_DEPTH_MM) * (max - 1) / (MAX_DEPTH_MM - MIN_DEPTH_MM));
+  }
+
+  /**
+   * Fill a metadata sample of {@code size} bytes at the buffer position: frame index and
+   * presentation time as 64-bit integers, then a deterministic payload.
+   */
+  void fillMetadata(long frameIndex, ByteBuffer buf, int size) {
+    assert (size >= 16);
+    final int start = buf.position();
+    buf.putLong(start, frameIndex);
+    buf.putLong(start + 8, getPresentationTimeUs(frameIndex));
+    for (int i = 16; i < size; ++i) {
+      buf.put(start + i, (byte) (frameIndex * 31 + i));
+    }
+  }
+
+  private static void putSample(ByteBuffer buf, int offset, int v, int bitDepth) {
+    if (bitDepth == 8) {
+      buf.put(offset, (byte) v);
+      return;
+    }
+    if (bitDepth == 10) {
+      v <<= 6;
+    }
+    buf.put(offset, (byte) v);
+    buf.put(offset + 1, (byte) (v >>> 8));
+  }
+}
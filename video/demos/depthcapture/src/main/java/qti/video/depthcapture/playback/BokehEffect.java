@@ -19,10 +19,37 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import qti.video.depthcapture.R;
 
+/**
+ * Blur the video where the depth is at most the bokeh threshold, i.e. in the background.
+ * At {@link Quality#FULL}, one pass samples 9 video texels around every output pixel. At the
+ * other qualities, video and depth are downsampled into a framebuffer, blurred in a horizontal
+ * and a vertical pass that leave out foreground samples, and composited with the full
+ * resolution video in the foreground. GPU time of the passes is measured by a
+ * {@link FrameTimer}.
+ */
 class BokehEffect {
 
   static String TAG = "BokehEffect";
 
+  /**
+   * Resolution and taps of the blur, the quality vs GPU cost knob.
+   */
+  enum Quality {
+    FULL(1, 0),
+    HALF(2, 4),
+    QUARTER(4, 3);
+
+    // downsampling of the blurred image in each direction
+    final int downscale;
+    // taps on each side of the center in the separable passes
+    final int blurTaps;
+
+    Quality(int downscale, int blurTaps) {
+      this.downscale = downscale;
+      this.blurTaps = blurTaps;
+    }
+  }
+
   private static final int FLOAT_SIZE_BYTES = 4;
   private static final float[] mFullscreenVerticesData = {
       -1.0f, -1.0f,
@@ -39,9 +66,46 @@ class BokehEffect {
   private int uniformDepthTextureLoc;
   private int uniformDepthThresholdLoc;
   private float bokehThreshold = 0.3f;
+  private Quality quality = Quality.HALF;
+  private int surfaceWidth;
+  private int surfaceHeight;
+
+  // downsample, blur and composite passes
+  private int downsampleProgram;
+  private int downsamplePositionHandle;
+  private int uniformDownsampleTexelSizeLoc;
+  private int blurProgram;
+  private int blurPositionHandle;
+  private int uniformBlurDepthThresholdLoc;
+  private int uniformBlurDirectionLoc;
+  private int uniformBlurTapCountLoc;
+  private int compositeProgram;
+  private int compositePositionHandle;
+  private int uniformCompositeDepthThresholdLoc;
+  // the passes ping-pong between the framebuffers, the vertical pass ends in the first one
+  private final GlUtils.Framebuffer[] blurFramebuffers = {
+      new GlUtils.Framebuffer(), new GlUtils.Framebuffer(),
+  };
+  private final FrameTimer frameTimer = new FrameTimer();
+
+  // image readers recycle a few buffers, keep the textures of video and depth buffers for about
+  // one second after their last use
+  private static final int TEXTURE_CACHE_CAPACITY = 8;
+  private static final long TEXTURE_MAX_IDLE_FRAMES = 30;
 
-  private EGLImageKHR videoEglImage;
-  private EGLImageKHR depthEglImage;
+  // external texture bound to an EGL image of a hardware buffer
+  private static final class BufferTexture {
+    final EGLImageKHR eglImage;
+    final int texture;
+
+    BufferTexture(EGLImageKHR eglImage, int texture) {
+      this.eglImage = eglImage;
+      this.texture = texture;
+    }
+  }
+
+  private final int[] textureIds = new int[1];
+  private TextureCache<BufferTexture> textureCache;
 
   public BokehEffect(Context context) {
     this.context = context;
@@ -75,21 +139,165 @@ class BokehEffect {
 
     GLES30.glUseProgram(program);
     GlUtils.checkGlError("glUseProgram");
+    GLES30.glUniform1i(uniformVideoTextureLoc, 0);
+    GLES30.glUniform1i(uniformDepthTextureLoc, 1);
+
+    downsampleProgram = GlUtils.createProgramFromResRaw(context, R.raw.bokeh_vert,
+        R.raw.dof_downsample_frag);
+    assert (downsampleProgram > 0);
+    downsamplePositionHandle = getAttribLocation(downsampleProgram, "aPosition");
+    uniformDownsampleTexelSizeLoc = getUniformLocation(downsampleProgram, "uTexelSize");
+    GLES30.glUseProgram(downsampleProgram);
+    GLES30.glUniform1i(getUniformLocation(downsampleProgram, "sVideoTexture"), 0);
+    GLES30.glUniform1i(getUniformLocation(downsampleProgram, "sDepthTexture"), 1);
+
+    blurProgram = GlUtils.createProgramFromResRaw(context, R.raw.bokeh_vert,
+        R.raw.dof_blur_frag);
+    assert (blurProgram > 0);
+    blurPositionHandle = getAttribLocation(blurProgram, "aPosition");
+    uniformBlurDepthThresholdLoc = getUniformLocation(blurProgram, "uDepthThreshold");
+    uniformBlurDirectionLoc = getUniformLocation(blurProgram, "uDirection");
+    uniformBlurTapCountLoc = getUniformLocation(blurProgram, "uTapCount");
+    GLES30.glUseProgram(blurProgram);
+    GLES30.glUniform1i(getUniformLocation(blurProgram, "sTexture"), 0);
+
+    compositeProgram = GlUtils.createProgramFromResRaw(context, R.raw.bokeh_vert,
+        R.raw.dof_composite_frag);
+    assert (compositeProgram > 0);
+    compositePositionHandle = getAttribLocation(compositeProgram, "aPosition");
+    uniformCompositeDepthThresholdLoc = getUniformLocation(compositeProgram,
+        "uDepthThreshold");
+    GLES30.glUseProgram(compositeProgram);
+    GLES30.glUniform1i(getUniformLocation(compositeProgram, "sVideoTexture"), 0);
+    GLES30.glUniform1i(getUniformLocation(compositeProgram, "sDepthTexture"), 1);
+    GLES30.glUniform1i(getUniformLocation(compositeProgram, "sBlurTexture"), 2);
+    GlUtils.checkGlError("glUniform1i");
+
+    for (GlUtils.Framebuffer framebuffer : blurFramebuffers) {
+      framebuffer.release();
+    }
+    frameTimer.init();
+
+    if (textureCache != null) {
+      textureCache.clear();
+    }
+    textureCache = new TextureCache<>(TEXTURE_CACHE_CAPACITY, TEXTURE_MAX_IDLE_FRAMES,
+        new TextureCache.Factory<BufferTexture>() {
+          @Override
+          public BufferTexture create(HardwareBuffer buffer) {
+            return createBufferTexture(buffer);
+          }
+
+          @Override
+          public void destroy(BufferTexture entry) {
+            destroyBufferTexture(entry);
+          }
+        });
   }
 
   public void release() {
-    // TODO
+    if (textureCache != null) {
+      textureCache.clear();
+    }
+    for (GlUtils.Framebuffer framebuffer : blurFramebuffers) {
+      framebuffer.release();
+    }
+    frameTimer.release();
     GLES30.glUseProgram(0);
   }
 
+  public String getTextureCacheStats() {
+    return textureCache == null ? "none" : textureCache.getStats();
+  }
+
+  public String getFrameTimeStats() {
+    return quality + " " + frameTimer.getStats();
+  }
+
   public void setBokehThreshold(float threshold) {
     bokehThreshold = threshold;
   }
 
+  public void setQuality(Quality quality) {
+    this.quality = quality;
+  }
+
+  public void setSurfaceSize(int width, int height) {
+    surfaceWidth = width;
+    surfaceHeight = height;
+  }
+
   public void draw(HardwareBuffer videoFrame, HardwareBuffer depthFrame) {
-    int[] textures = createLoadTextures(videoFrame, depthFrame);
+    BufferTexture video = textureCache.get(videoFrame.getId(), videoFrame);
+    BufferTexture depth = textureCache.get(depthFrame.getId(), depthFrame);
+    // the quality can change between frames
+    final Quality drawQuality = quality;
+    frameTimer.begin();
+    if (drawQuality == Quality.FULL) {
+      drawSinglePass(video, depth);
+    } else {
+      drawMultiPass(video, depth, drawQuality);
+    }
+    frameTimer.end();
+
+    unbindTextures();
+    textureCache.endFrame(System.nanoTime());
+  }
+
+  private void drawSinglePass(BufferTexture video, BufferTexture depth) {
+    GLES30.glUseProgram(program);
+    bindExternalTextures(video, depth);
     GLES30.glUniform1f(uniformDepthThresholdLoc, bokehThreshold);
+    drawFullscreen(positionHandle);
+  }
+
+  private void drawMultiPass(BufferTexture video, BufferTexture depth, Quality drawQuality) {
+    assert (surfaceWidth > 0 && surfaceHeight > 0);
+    final int width = Math.max(1, surfaceWidth / drawQuality.downscale);
+    final int height = Math.max(1, surfaceHeight / drawQuality.downscale);
+    for (GlUtils.Framebuffer framebuffer : blurFramebuffers) {
+      framebuffer.setSize(width, height);
+    }
+
+    // video YUV and depth at the blur resolution
+    blurFramebuffers[0].bind();
+    GLES30.glUseProgram(downsampleProgram);
+    bindExternalTextures(video, depth);
+    GLES30.glUniform2f(uniformDownsampleTexelSizeLoc, 1.f / width, 1.f / height);
+    drawFullscreen(downsamplePositionHandle);
+
+    GLES30.glUseProgram(blurProgram);
+    GLES30.glUniform1f(uniformBlurDepthThresholdLoc, bokehThreshold);
+    GLES30.glUniform1i(uniformBlurTapCountLoc, drawQuality.blurTaps);
+    GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+    blurFramebuffers[1].bind();
+    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, blurFramebuffers[0].getTexture());
+    GLES30.glUniform2f(uniformBlurDirectionLoc, 1.f, 0.f);
+    drawFullscreen(blurPositionHandle);
+    blurFramebuffers[0].bind();
+    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, blurFramebuffers[1].getTexture());
+    GLES30.glUniform2f(uniformBlurDirectionLoc, 0.f, 1.f);
+    drawFullscreen(blurPositionHandle);
+    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+    GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+    GLES30.glViewport(0, 0, surfaceWidth, surfaceHeight);
+    GLES30.glUseProgram(compositeProgram);
+    bindExternalTextures(video, depth);
+    GLES30.glActiveTexture(GLES30.GL_TEXTURE2);
+    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, blurFramebuffers[0].getTexture());
+    GLES30.glUniform1f(uniformCompositeDepthThresholdLoc, bokehThreshold);
+    drawFullscreen(compositePositionHandle);
+  }
+
+  private void bindExternalTextures(BufferTexture video, BufferTexture depth) {
+    GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+    GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, video.texture);
+    GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
+    GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, depth.texture);
+  }
 
+  private void drawFullscreen(int positionHandle) {
     fullscreenVertices.position(0);
     GLES30.glVertexAttribPointer(positionHandle, 2, GLES30.GL_FLOAT, false,
         0, fullscreenVertices);
@@ -99,60 +307,57 @@ class BokehEffect {
 
     GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
     GlUtils.checkGlError("glDrawArrays");
-
-    deleteTextures(textures);
   }
 
-  // the returned textures ids must be deleted after drawing
-  private int[] createLoadTextures(HardwareBuffer videoFrame, HardwareBuffer depthFrame) {
-    // looks like we need to create/bind textures for every new frames
-
-    int[] textures = new int[2];
-    GLES30.glGenTextures(2, textures, 0);
-
-    // video frame
-    GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-    GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
-    GLES30.glTexParameterf(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
-    GLES30.glTexParameterf(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
-    GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_REPEAT);
-    GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_REPEAT);
-    GLES30.glUniform1i(uniformVideoTextureLoc, 0);
-
-    if (videoEglImage != null) {
-      EGLSpec.V14.eglDestroyImageKHR(videoEglImage);
-    }
-    videoEglImage = EGLSpec.V14.eglCreateImageFromHardwareBuffer(videoFrame);
-    assert (videoEglImage != null);
-    EGLExt.glEGLImageTargetTexture2DOES(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, videoEglImage);
-
+  private static int getAttribLocation(int program, String name) {
+    int location = GLES30.glGetAttribLocation(program, name);
+    GlUtils.checkGlError("glGetAttribLocation " + name);
+    GlUtils.checkLocation(location, name);
+    return location;
+  }
 
-    // depth frame
-    GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
-    GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[1]);
-    GLES30.glTexParameterf(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
-    GLES30.glTexParameterf(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
-    GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_REPEAT);
-    GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_REPEAT);
-    GLES30.glUniform1i(uniformDepthTextureLoc, 1);
+  private static int getUniformLocation(int program, String name) {
+    int location = GLES30.glGetUniformLocation(program, name);
+    GlUtils.checkGlError("glGetUniformLocation " + name);
+    GlUtils.checkLocation(location, name);
+    return location;
+  }
 
-    if (depthEglImage != null) {
-      EGLSpec.V14.eglDestroyImageKHR(depthEglImage);
-    }
-    depthEglImage = EGLSpec.V14.eglCreateImageFromHardwareBuffer(depthFrame);
-    assert (depthEglImage != null);
-    EGLExt.glEGLImageTargetTexture2DOES(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, depthEglImage);
+  // the EGL image keeps a reference to the buffer, so it stays valid after the image is closed
+  private BufferTexture createBufferTexture(HardwareBuffer buffer) {
+    GLES30.glGenTextures(1, textureIds, 0);
+    GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureIds[0]);
+    GLES30.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES30.GL_TEXTURE_MIN_FILTER,
+        GLES30.GL_NEAREST);
+    GLES30.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES30.GL_TEXTURE_MAG_FILTER,
+        GLES30.GL_NEAREST);
+    GLES30.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES30.GL_TEXTURE_WRAP_S,
+        GLES30.GL_CLAMP_TO_EDGE);
+    GLES30.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES30.GL_TEXTURE_WRAP_T,
+        GLES30.GL_CLAMP_TO_EDGE);
+    EGLImageKHR eglImage = EGLSpec.V14.eglCreateImageFromHardwareBuffer(buffer);
+    assert (eglImage != null);
+    EGLExt.glEGLImageTargetTexture2DOES(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, eglImage);
+    GlUtils.checkGlError("glEGLImageTargetTexture2DOES");
+    GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+    return new BufferTexture(eglImage, textureIds[0]);
+  }
 
-    return textures;
+  private void destroyBufferTexture(BufferTexture bufferTexture) {
+    textureIds[0] = bufferTexture.texture;
+    GLES30.glDeleteTextures(1, textureIds, 0);
+    EGLSpec.V14.eglDestroyImageKHR(bufferTexture.eglImage);
   }
 
-  private void deleteTextures(int[] textures) {
+  private void unbindTextures() {
     GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
     GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
 
     GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
     GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
 
-    GLES30.glDeleteTextures(textures.length, textures, 0);
+    GLES30.glActiveTexture(GLES30.GL_TEXTURE2);
+    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+    GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
   }
 }
@@ -8,6 +8,7 @@
 package qti.video.depthcapture.playback;
 
 import android.content.Context;
+import android.hardware.HardwareBuffer;
 import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.os.Handler;
@@ -15,17 +16,28 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
-import android.util.Pair;
+import android.view.Choreographer;
+import android.view.Display;
 import androidx.annotation.NonNull;
-import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
+import qti.video.depthcapture.FrameSynchronizer;
 
 class BokehRenderer implements GLSurfaceView.Renderer {
   static final String TAG = "BokehRenderer";
   static final boolean DEBUG = true;
 
+  // synchronizer tracks
+  private static final int SYNC_VIDEO = FrameSynchronizer.PRIMARY_TRACK;
+  private static final int SYNC_DEPTH = 1;
+  private static final int SYNC_TRACK_COUNT = 2;
+  // half the frame interval of 15 fps depth, so it can be paired with 30 fps video
+  private static final long PAIR_TOLERANCE_US = 34000;
+  // pairs waiting for their vsync, decoders with a single output image limit it further
+  private static final int MAX_SCHEDULED_PAIRS = 2;
+  private static final float DEFAULT_REFRESH_RATE = 60.f;
+
   private final BokehEffect bokehEffect;
 
   private final Context context;
@@ -34,9 +46,12 @@ class BokehRenderer implements GLSurfaceView.Renderer {
   private int trackCount = -1;
   private int videoTrackIndex = -1;
   private int depthTrackIndex = -1;
-  private final AtomicReference<Pair<DepthVideoSource.Output, DepthVideoSource.Output>>
-      videoDepthPair = new AtomicReference<>();
-  private long renderStartTimeMs = -1;
+  private FrameSynchronizer<DepthVideoSource.Output> synchronizer;
+  private PresentationScheduler<DepthVideoSource.Output[]> scheduler;
+  // video and depth outputs indexed by synchronizer track, presented at the next vsync
+  private final AtomicReference<DepthVideoSource.Output[]> videoDepthPair =
+      new AtomicReference<>();
+  private long overwrittenPairCount;
 
   enum State {
     Initial,
@@ -66,6 +81,13 @@ class BokehRenderer implements GLSurfaceView.Renderer {
     bokehEffect.setBokehThreshold(threshold);
   }
 
+  /**
+   * Set the blur quality, lower qualities blur a downsampled image at a lower GPU cost.
+   */
+  public void setBokehQuality(BokehEffect.Quality quality) {
+    bokehEffect.setQuality(quality);
+  }
+
   public void init() {
     Log.v(TAG, "init");
     assert (state == State.Initial);
@@ -85,6 +107,10 @@ class BokehRenderer implements GLSurfaceView.Renderer {
     assert (state == State.Started);
     mainHandler.obtainMessage(WHAT_STOP).sendToTarget();
     waitForState(State.Stopped);
+    view.queueEvent(() -> {
+      Log.i(TAG, "texture cache: " + bokehEffect.getTextureCacheStats());
+      Log.i(TAG, "bokeh frame time: " + bokehEffect.getFrameTimeStats());
+    });
   }
 
   public void release() {
@@ -93,6 +119,7 @@ class BokehRenderer implements GLSurfaceView.Renderer {
     mainHandler.obtainMessage(WHAT_RELEASE).sendToTarget();
     waitForState(State.Initial);
     handlerThread.quitSafely();
+    view.queueEvent(bokehEffect::release);
   }
 
   @Override
@@ -106,6 +133,7 @@ class BokehRenderer implements GLSurfaceView.Renderer {
   public void onSurfaceChanged(GL10 gl10, int width, int height) {
     Log.v(TAG, "onSurfaceChanged w/h: " + width + "/" + height);
     GLES30.glViewport(0, 0, width, height);
+    bokehEffect.setSurfaceSize(width, height);
   }
 
   @Override
@@ -114,8 +142,7 @@ class BokehRenderer implements GLSurfaceView.Renderer {
       Log.v(TAG, "onDrawFrame");
     }
 
-    Pair<DepthVideoSource.Output, DepthVideoSource.Output> vdPair
-        = videoDepthPair.getAndSet(null);
+    DepthVideoSource.Output[] vdPair = videoDepthPair.getAndSet(null);
     if (vdPair == null) {
       Log.e(TAG, "video/depth frames are null when rendering");
       return;
@@ -127,8 +154,11 @@ class BokehRenderer implements GLSurfaceView.Renderer {
       t0 = System.nanoTime();
     }
 
-    bokehEffect.draw(vdPair.first.image.getHardwareBuffer(),
-        vdPair.second.image.getHardwareBuffer());
+    // the wrappers are new for every call, the cached EGL images keep their own references
+    try (HardwareBuffer videoBuffer = vdPair[SYNC_VIDEO].image.getHardwareBuffer();
+         HardwareBuffer depthBuffer = vdPair[SYNC_DEPTH].image.getHardwareBuffer()) {
+      bokehEffect.draw(videoBuffer, depthBuffer);
+    }
 
     if (DEBUG) {
       long t1 = System.nanoTime();
@@ -144,7 +174,6 @@ class BokehRenderer implements GLSurfaceView.Renderer {
   static final int WHAT_RELEASE = 3;
 
   static final int WHAT_CHECK_OUTPUT = 10;
-  static final int WHAT_RENDER = 11;
   static final int WHAT_RELEASE_OUTPUT = 13;
 
   private class MainHandler extends Handler {
@@ -164,14 +193,28 @@ class BokehRenderer implements GLSurfaceView.Renderer {
           // TODO: check track format instead of hardcode
           videoTrackIndex = 0;
           depthTrackIndex = 1;
+          synchronizer = new FrameSynchronizer<>(SYNC_TRACK_COUNT, PAIR_TOLERANCE_US,
+              (track, output) -> tracksSource.queueOutput(output));
+          synchronizer.setFrameReuse(SYNC_DEPTH, true);
+          scheduler = createScheduler();
           // TODO: make complete state machine and state check
           setState(State.Initialized);
           break;
         case WHAT_START:
           tracksSource.start();
+          scheduler.start();
           setState(State.Started);
           break;
         case WHAT_STOP:
+          Log.i(TAG, "video/depth sync: " + synchronizer.getStats());
+          Log.i(TAG, "presentation: " + scheduler.getStats() + ", overwritten before draw "
+              + overwrittenPairCount);
+          scheduler.stop();
+          DepthVideoSource.Output[] undrawn = videoDepthPair.getAndSet(null);
+          if (undrawn != null) {
+            synchronizer.releasePair(undrawn);
+          }
+          synchronizer.flush();
           tracksSource.stop();
           setState(State.Stopped);
           break;
@@ -182,15 +225,10 @@ class BokehRenderer implements GLSurfaceView.Renderer {
         case WHAT_CHECK_OUTPUT:
           checkOutputs();
           break;
-        case WHAT_RENDER:
-          render();
-          break;
         case WHAT_RELEASE_OUTPUT:
-          Pair<DepthVideoSource.Output, DepthVideoSource.Output> vd =
-              (Pair<DepthVideoSource.Output, DepthVideoSource.Output>) msg.obj;
+          DepthVideoSource.Output[] vd = (DepthVideoSource.Output[]) msg.obj;
           assert (vd != null);
-          tracksSource.queueOutput(vd.first);
-          tracksSource.queueOutput(vd.second);
+          synchronizer.releasePair(vd);
           break;
         default:
           Log.e(TAG, "Unknown msg what = " + msg.what);
@@ -200,79 +238,94 @@ class BokehRenderer implements GLSurfaceView.Renderer {
   }
 
   private void checkOutputs() {
-    if (videoDepthPair.get() != null) {
-      return;
-    }
-    // consume all non video/depth outputs
     for (int track = 0; track < trackCount; ++track) {
-      if (track != videoTrackIndex && track != depthTrackIndex) {
-        while (true) {
-          DepthVideoSource.Output output = tracksSource.dequeueOutput(track);
-          if (output == null) {
-            break;
-          }
+      final int syncTrack = track == videoTrackIndex ? SYNC_VIDEO
+          : track == depthTrackIndex ? SYNC_DEPTH : -1;
+      while (true) {
+        DepthVideoSource.Output output = tracksSource.dequeueOutput(track);
+        if (output == null) {
+          break;
+        }
+        if (syncTrack == -1) {
+          // consume all non video/depth outputs
           tracksSource.queueOutput(output);
+        } else {
+          synchronizer.queueFrame(syncTrack, output.bufferInfo.presentationTimeUs, output);
         }
       }
-    }
-    DepthVideoSource.Output videoFrame = tracksSource.peekOutput(videoTrackIndex);
-    if (videoFrame == null) {
-      return;
-    }
-    long videoPtsMs = videoFrame.bufferInfo.presentationTimeUs / 1000;
-    DepthVideoSource.Output depthFrame = tracksSource.peekOutput(depthTrackIndex);
-    if (depthFrame == null) {
-      return;
-    }
-    long depthPtsMs = depthFrame.bufferInfo.presentationTimeUs / 1000;
-    long nowMs = System.currentTimeMillis();
-    if (renderStartTimeMs == -1) {
-      renderStartTimeMs = nowMs - Math.min(videoPtsMs, depthPtsMs);
-    }
-    Log.v(TAG, "video pts ms: " + videoPtsMs + ", depth pts ms: " + depthPtsMs);
-    if (videoPtsMs > depthPtsMs) {
-      depthFrame = tracksSource.dequeueOutput(depthTrackIndex);
-      tracksSource.queueOutput(depthFrame);
-      depthFrame = tracksSource.peekOutput(depthTrackIndex);
-      if (depthFrame == null) {
-        Log.v(TAG, "no more depth frame to catch video pts");
-        return;
+      if (syncTrack != -1 && !synchronizer.isTrackEos(syncTrack) && tracksSource.isEos(track)) {
+        synchronizer.setEos(syncTrack);
       }
-      depthPtsMs = depthFrame.bufferInfo.presentationTimeUs / 1000;
     }
-    if (videoPtsMs < depthPtsMs) {
-      videoFrame = tracksSource.dequeueOutput(videoTrackIndex);
-      tracksSource.queueOutput(videoFrame);
-      videoFrame = tracksSource.peekOutput(videoTrackIndex);
-      if (videoFrame == null) {
-        Log.v(TAG, "no more video frame to catch depth pts");
+    while (scheduler.getQueuedCount() < MAX_SCHEDULED_PAIRS) {
+      DepthVideoSource.Output[] pair = new DepthVideoSource.Output[SYNC_TRACK_COUNT];
+      if (!synchronizer.pollPair(pair)) {
         return;
       }
-      videoPtsMs = videoFrame.bufferInfo.presentationTimeUs / 1000;
-    }
-    if (videoPtsMs != depthPtsMs) {
-      Log.e(TAG, "different video/depth pts " + videoPtsMs + "/" + depthPtsMs);
-      assert (false);
-      return;
+      if (DEBUG) {
+        Log.v(TAG, "video pts us: " + pair[SYNC_VIDEO].bufferInfo.presentationTimeUs
+            + ", depth pts us: " + pair[SYNC_DEPTH].bufferInfo.presentationTimeUs);
+      }
+      scheduler.queueFrame(synchronizer.getPairPtsUs(), pair);
     }
+  }
 
-    videoFrame = tracksSource.dequeueOutput(videoTrackIndex);
-    depthFrame = tracksSource.dequeueOutput(depthTrackIndex);
-    videoDepthPair.set(new Pair<>(videoFrame, depthFrame));
-    nowMs = System.currentTimeMillis();
-    long renderDelayMs = videoPtsMs - (nowMs - renderStartTimeMs);
-    renderDelayMs = renderDelayMs < 0 ? 0 : renderDelayMs;
-    mainHandler.sendEmptyMessageDelayed(WHAT_RENDER, renderDelayMs);
-    Log.v(TAG, "pts " + videoPtsMs + " is scheduled to render after " + renderDelayMs + "ms");
+  // runs on the handler thread, which is the thread of the choreographer
+  private PresentationScheduler<DepthVideoSource.Output[]> createScheduler() {
+    Display display = view.getDisplay();
+    float refreshRate = display != null ? display.getRefreshRate() : DEFAULT_REFRESH_RATE;
+    return new PresentationScheduler<>(PresentationScheduler.SYSTEM_CLOCK,
+        new ChoreographerVsyncSource(), (long) (1e9 / refreshRate),
+        new PresentationScheduler.FrameListener<DepthVideoSource.Output[]>() {
+          @Override
+          public void onPresent(DepthVideoSource.Output[] pair, long ptsUs, long presentTimeNs) {
+            if (DEBUG) {
+              Log.v(TAG, "pts us " + ptsUs + " is presented at " + presentTimeNs);
+            }
+            DepthVideoSource.Output[] previous = videoDepthPair.getAndSet(pair);
+            if (previous != null) {
+              // the previous pair was not drawn in time
+              overwrittenPairCount++;
+              synchronizer.releasePair(previous);
+            }
+            view.requestRender();
+          }
+
+          @Override
+          public void onSkip(DepthVideoSource.Output[] pair, long ptsUs) {
+            if (DEBUG) {
+              Log.v(TAG, "pts us " + ptsUs + " is skipped");
+            }
+            synchronizer.releasePair(pair);
+          }
+        });
   }
 
-  private void render() {
-    if (videoDepthPair.get() == null) {
-      Log.e(TAG, "video and depth frames are null");
-      assert (false);
-      return;
+  private static final class ChoreographerVsyncSource
+      implements PresentationScheduler.VsyncSource, Choreographer.FrameCallback {
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private PresentationScheduler.VsyncCallback callback;
+
+    @Override
+    public void postVsyncCallback(PresentationScheduler.VsyncCallback callback) {
+      this.callback = callback;
+      choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void removeVsyncCallback(PresentationScheduler.VsyncCallback callback) {
+      choreographer.removeFrameCallback(this);
+      this.callback = null;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      PresentationScheduler.VsyncCallback pending = callback;
+      callback = null;
+      if (pending != null) {
+        pending.onVsync(frameTimeNanos);
+      }
     }
-    view.requestRender();
   }
 
   private synchronized void waitForState(State newState) {
@@ -0,0 +1,266 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU reference of the bokeh effect in res/raw/bokeh_frag.frag, for headless tests and
+ * benchmarks, or as a fallback without EGL images of hardware buffers.
+ * Every output pixel takes the video color at its texture coordinate when the depth there is
+ * above the bokeh threshold, and the average of 9 video samples around it otherwise, converted
+ * from BT.709 limited range YUV to RGB. Textures are sampled like the GL path: nearest texel,
+ * clamped to the edges, and chroma at its own resolution.
+ *
+ * <p>The output is rendered in tiles on a {@link ForkJoinPool}. Texel indices of the sample
+ * offsets and the tree of tile tasks are built once per output size, and the tasks are
+ * reinitialized for every frame, so a frame does not allocate in steady state.
+ * Samples are 8-bit, or 16-bit little endian like P010. Buffers are accessed with absolute
+ * gets, their positions and limits are not changed.
+ */
+final class CpuBokehRenderer {
+  // same as the shader
+  static final float BLUR_R = 0.02f;
+  // output tiles are split until they have at most this many pixels
+  private static final int TILE_PIXELS = 64 * 64;
+
+  // sample offsets of the blur, with the indices of their x and y offsets in TAP_OFFSETS
+  private static final float[] TAP_OFFSETS = {0.f, BLUR_R, -BLUR_R, BLUR_R / 2, -BLUR_R / 2};
+  private static final int[] TAP_X = {0, 1, 2, 0, 0, 3, 3, 4, 4};
+  private static final int[] TAP_Y = {0, 0, 0, 1, 2, 3, 4, 3, 4};
+
+  /**
+   * Plane layout.
+   */
+  static final class Plane {
+    final ByteBuffer buf;
+    final int width;
+    final int height;
+    final int rowStride;
+    final int pixelStride;
+
+    Plane(ByteBuffer buf, int width, int height, int rowStride, int pixelStride) {
+      this.buf = buf;
+      this.width = width;
+      this.height = height;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+    }
+  }
+
+  // texel indices of the sample offsets for every output column or row, offset index major
+  private static final class Lookup {
+    int outputSize = -1;
+    int textureSize = -1;
+    int[] indices;
+
+    void update(int outputSize, int textureSize, int offsetCount) {
+      if (this.outputSize == outputSize && this.textureSize == textureSize
+          && indices != null && indices.length == outputSize * offsetCount) {
+        return;
+      }
+      this.outputSize = outputSize;
+      this.textureSize = textureSize;
+      indices = new int[outputSize * offsetCount];
+      for (int k = 0; k < offsetCount; ++k) {
+        for (int i = 0; i < outputSize; ++i) {
+          indices[k * outputSize + i] = texelIndex(
+              (i + 0.5f) / outputSize + TAP_OFFSETS[k], textureSize);
+        }
+      }
+    }
+  }
+
+  private final ForkJoinPool pool;
+  private float bokehThreshold = 0.3f;
+  private final Lookup lumaX = new Lookup();
+  private final Lookup lumaY = new Lookup();
+  private final Lookup chromaX = new Lookup();
+  private final Lookup chromaY = new Lookup();
+  private final Lookup depthX = new Lookup();
+  private final Lookup depthY = new Lookup();
+  // tile tree of the output size
+  private Tile tiles;
+
+  // inputs and output of the frame being rendered
+  private Plane[] video;
+  private float videoScale;
+  private int videoBytesPerSample;
+  private Plane depth;
+  private float depthScale;
+  private int depthBytesPerSample;
+  private int[] argb;
+  private int width;
+  private int height;
+
+  CpuBokehRenderer(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  void setBokehThreshold(float threshold) {
+    bokehThreshold = threshold;
+  }
+
+  /**
+   * Render a frame.
+   *
+   * @param videoPlanes Y, U and V planes, chroma planes are subsampled by 2 in both directions.
+   * @param videoBytesPerSample 1 for 8-bit samples, 2 for 16-bit little endian samples.
+   * @param depthPlane depth, e.g. the Y plane of a depth frame.
+   * @param depthBytesPerSample 1 for 8-bit samples, 2 for 16-bit little endian samples.
+   * @param argb receives width * height opaque ARGB_8888 pixels, top row first.
+   */
+  void render(Plane[] videoPlanes, int videoBytesPerSample, Plane depthPlane,
+              int depthBytesPerSample, int[] argb, int width, int height) {
+    assert (videoPlanes.length == 3);
+    assert (videoBytesPerSample == 1 || videoBytesPerSample == 2);
+    assert (depthBytesPerSample == 1 || depthBytesPerSample == 2);
+    assert (argb.length >= width * height);
+    assert (videoPlanes[1].width == videoPlanes[2].width
+        && videoPlanes[1].height == videoPlanes[2].height);
+    lumaX.update(width, videoPlanes[0].width, TAP_OFFSETS.length);
+    lumaY.update(height, videoPlanes[0].height, TAP_OFFSETS.length);
+    chromaX.update(width, videoPlanes[1].width, TAP_OFFSETS.length);
+    chromaY.update(height, videoPlanes[1].height, TAP_OFFSETS.length);
+    depthX.update(width, depthPlane.width, 1);
+    depthY.update(height, depthPlane.height, 1);
+
+    this.video = videoPlanes;
+    this.videoBytesPerSample = videoBytesPerSample;
+    this.videoScale = 1.f / (videoBytesPerSample == 1 ? 0xff : 0xffff);
+    this.depth = depthPlane;
+    this.depthBytesPerSample = depthBytesPerSample;
+    this.depthScale = 1.f / (depthBytesPerSample == 1 ? 0xff : 0xffff);
+    this.argb = argb;
+    this.width = width;
+    this.height = height;
+    if (tiles == null || tiles.x1 != width || tiles.y1 != height) {
+      tiles = new Tile(0, 0, width, height);
+    }
+    tiles.reinitialize();
+    try {
+      pool.invoke(tiles);
+    } finally {
+      this.video = null;
+      this.depth = null;
+      this.argb = null;
+    }
+  }
+
+  private final class Tile extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final int x0;
+    final int y0;
+    final int x1;
+    final int y1;
+    // halves of the tile, null for a tile rendered at once
+    final Tile first;
+    final Tile second;
+
+    Tile(int x0, int y0, int x1, int y1) {
+      this.x0 = x0;
+      this.y0 = y0;
+      this.x1 = x1;
+      this.y1 = y1;
+      final int w = x1 - x0;
+      final int h = y1 - y0;
+      if (w * h <= TILE_PIXELS || (w == 1 && h == 1)) {
+        first = null;
+        second = null;
+      } else if (w >= h) {
+        final int xm = x0 + w / 2;
+        first = new Tile(x0, y0, xm, y1);
+        second = new Tile(xm, y0, x1, y1);
+      } else {
+        final int ym = y0 + h / 2;
+        first = new Tile(x0, y0, x1, ym);
+        second = new Tile(x0, ym, x1, y1);
+      }
+    }
+
+    @Override
+    protected void compute() {
+      if (first == null) {
+        renderTile(x0, y0, x1, y1);
+        return;
+      }
+      // completed in the previous frame
+      first.reinitialize();
+      second.reinitialize();
+      invokeAll(first, second);
+    }
+  }
+
+  private void renderTile(int x0, int y0, int x1, int y1) {
+    final Plane luma = video[0];
+    final Plane cb = video[1];
+    final Plane cr = video[2];
+    final int[] lx = lumaX.indices;
+    final int[] ly = lumaY.indices;
+    final int[] cx = chromaX.indices;
+    final int[] cy = chromaY.indices;
+    final int[] dx = depthX.indices;
+    final int[] dy = depthY.indices;
+    for (int y = y0; y < y1; ++y) {
+      final int depthRow = dy[y] * depth.rowStride;
+      for (int x = x0; x < x1; ++x) {
+        final float d = sample(depth.buf, depthRow + dx[x] * depth.pixelStride,
+            depthBytesPerSample) * depthScale;
+        float sumY = 0;
+        float sumU = 0;
+        float sumV = 0;
+        final int taps = d > bokehThreshold ? 1 : TAP_X.length;
+        for (int tap = 0; tap < taps; ++tap) {
+          final int lumaOffset = ly[TAP_Y[tap] * height + y] * luma.rowStride
+              + lx[TAP_X[tap] * width + x] * luma.pixelStride;
+          final int chromaRow = cy[TAP_Y[tap] * height + y];
+          final int chromaCol = cx[TAP_X[tap] * width + x];
+          sumY += sample(luma.buf, lumaOffset, videoBytesPerSample);
+          sumU += sample(cb.buf, chromaRow * cb.rowStride + chromaCol * cb.pixelStride,
+              videoBytesPerSample);
+          sumV += sample(cr.buf, chromaRow * cr.rowStride + chromaCol * cr.pixelStride,
+              videoBytesPerSample);
+        }
+        final float scale = videoScale / taps;
+        argb[y * width + x] = yuvToArgb(sumY * scale, sumU * scale, sumV * scale);
+      }
+    }
+  }
+
+  // nearest texel of a normalized coordinate, clamped to the edges
+  static int texelIndex(float coord, int size) {
+    int index = (int) Math.floor(coord * size);
+    return index < 0 ? 0 : index >= size ? size - 1 : index;
+  }
+
+  private static int sample(ByteBuffer buf, int offset, int bytesPerSample) {
+    if (bytesPerSample == 1) {
+      return buf.get(offset) & 0xff;
+    }
+    return (buf.get(offset) & 0xff) | ((buf.get(offset + 1) & 0xff) << 8);
+  }
+
+  /**
+   * Convert normalized BT.709 limited range YUV to an opaque ARGB_8888 pixel, like
+   * {@code yuv_2_rgb(color, itu_709)} of GL_EXT_YUV_target.
+   */
+  static int yuvToArgb(float y, float u, float v) {
+    final float luma = 1.164384f * (y - 0.0625f);
+    final float r = luma + 1.792741f * (v - 0.5f);
+    final float g = luma - 0.213249f * (u - 0.5f) - 0.532909f * (v - 0.5f);
+    final float b = luma + 2.112402f * (u - 0.5f);
+    return 0xff000000 | toUnorm8(r) << 16 | toUnorm8(g) << 8 | toUnorm8(b);
+  }
+
+  private static int toUnorm8(float c) {
+    return c <= 0.f ? 0 : c >= 1.f ? 0xff : Math.round(c * 0xff);
+  }
+}
@@ -25,23 +25,29 @@ import androidx.annotation.NonNull;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 import qti.video.depth.DepthExtractor;
 import qti.video.depth.DepthFormat;
 
 /**
  * Parse local clip, output metadata and decoded video images.
+ * Outputs are pooled per track, and codec buffer indices are kept in primitive queues, so that
+ * steady-state playback does not allocate. Outputs should not be accessed after they are
+ * returned with {@link #queueOutput(Output)}.
+ * The whole clip is streamed with bounded memory: decoded images are limited by the image
+ * readers, and metadata samples are not read ahead of the client by more than the output queue
+ * capacity. The last output of every track is flagged EOS, see {@link #isEos(int)}.
  */
 public class DepthVideoSource {
 
   static final String TAG = "DepthVideoSource";
   static final boolean DEBUG = true;
+  // per sample logs, which allocate in the playback hot path
+  static final boolean VERBOSE = false;
   private static final int MAX_PENDING_IMAGE_COUNT = 1;
-  public static final int MAX_FRAME_COUNT = 290;
+  private static final int INITIAL_QUEUE_CAPACITY = 16;
+  private static final int OUTPUT_QUEUE_CAPACITY = 64;
 
   static final int REATTACH_TIMESTAMP_FRAME_RATE = 30;
   static final boolean REATTACH_TIMESTAMP = true;
@@ -60,7 +66,7 @@ public class DepthVideoSource {
 
   private final OutputsListener listener;
   private final String clipPath;
-  private final DepthExtractor extractor = new DepthExtractor();
+  private final DepthExtractor extractor;
   private boolean extractorAllEos;
   private int trackCount;
   private Track[] tracks;
@@ -85,9 +91,15 @@ public class DepthVideoSource {
    *     whenever an output is available.
    */
   public DepthVideoSource(String clipPath, OutputsListener listener) {
+    this(clipPath, new DepthExtractor(), listener);
+  }
+
+  // host tests give an extractor of generated samples
+  DepthVideoSource(String clipPath, DepthExtractor extractor, OutputsListener listener) {
     handlerThread.start();
     mainHandler = new MainHandler(handlerThread.getLooper());
     this.clipPath = clipPath;
+    this.extractor = extractor;
     this.listener = listener;
   }
 
@@ -96,7 +108,7 @@ public class DepthVideoSource {
    */
   public synchronized void init() {
     assert (state == State.Initial);
-    mainHandler.obtainMessage(WHAT_INIT).sendToTarget();
+    sendMessage(WHAT_INIT, 0, 0, null);
     waitForState(State.Initialized);
   }
 
@@ -134,7 +146,7 @@ public class DepthVideoSource {
 
   public void start() {
     assert (state == State.Initialized);
-    mainHandler.obtainMessage(WHAT_START).sendToTarget();
+    sendMessage(WHAT_START, 0, 0, null);
     waitForState(State.Started);
   }
 
@@ -152,7 +164,7 @@ public class DepthVideoSource {
   public Output dequeueOutput(int trackIndex) {
     assert (tracks[trackIndex] != null);
     Output output = tracks[trackIndex].dequeueOutput();
-    if (DEBUG && output != null) {
+    if (VERBOSE && output != null) {
       Log.v(TAG, "dequeueOutput trackIndex " + trackIndex
           + ", outputIndex " + output.bufferIndex);
     }
@@ -161,14 +173,18 @@ public class DepthVideoSource {
 
   public void queueOutput(Output output) {
     assert (output != null);
-    if (DEBUG) {
+    if (VERBOSE) {
       Log.v(TAG, "queueOutput trackIndex " + output.trackIndex
           + ", outputIndex " + output.bufferIndex);
     }
-    mainHandler.obtainMessage(WHAT_RELEASE_OUTPUT, output.trackIndex, output.bufferIndex, output)
-        .sendToTarget();
+    sendMessage(WHAT_RELEASE_OUTPUT, output.trackIndex, output.bufferIndex, output);
   }
 
+  /**
+   * Check if all outputs of a track are dequeued. The last output of a track is flagged
+   * {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM}, a track only reaches EOS without a flagged
+   * output when it has no output at all.
+   */
   public boolean isEos(int trackIndex) {
     Track track = tracks[trackIndex];
     assert (track != null);
@@ -177,40 +193,56 @@ public class DepthVideoSource {
 
   public void stop() {
     assert (state == State.Started);
-    mainHandler.obtainMessage(WHAT_STOP).sendToTarget();
+    sendMessage(WHAT_STOP, 0, 0, null);
     waitForState(State.Stopped);
   }
 
   public void release() {
     assert (state == State.Stopped);
-    mainHandler.obtainMessage(WHAT_RELEASE).sendToTarget();
+    sendMessage(WHAT_RELEASE, 0, 0, null);
     waitForState(State.Released);
     handlerThread.quitSafely();
   }
 
-  private class Track {
+  /**
+   * Decoder of a video or depth track, and the reader of its rendered images. Its callback posts
+   * to the handler thread, and its other methods are called on the handler thread.
+   */
+  interface TrackDecoder {
+    void start(MediaCodec.Callback callback);
 
-    public Track(int trackIndex, MediaFormat inputFormat) {
-      this(trackIndex, inputFormat, null, null, null);
-      assert (isMetadataTrack);
-      setOutputFormat(inputFormat);
-    }
+    ByteBuffer getInputBuffer(int inputIndex);
+
+    void queueInputBuffer(int inputIndex, int size, long presentationTimeUs, int flags);
+
+    void releaseOutputBuffer(int outputIndex, boolean render);
 
-    public Track(
-        int trackIndex,
-        MediaFormat inputFormat,
-        MediaCodec codec,
-        MediaCodec.Callback callback,
-        ImageReader imageReader
-    ) {
+    /**
+     * Set the next rendered image and its timestamp to an output.
+     *
+     * @return false if there is no rendered image
+     */
+    boolean acquireImage(Output output);
+
+    void releaseImage(Output output);
+
+    void stop();
+
+    void release();
+  }
+
+  private class Track {
+
+    // decoder is null for the metadata track
+    public Track(int trackIndex, MediaFormat inputFormat, TrackDecoder decoder) {
       this.trackIndex = trackIndex;
       this.inputFormat = inputFormat;
-      String mime = inputFormat.getString(MediaFormat.KEY_MIME);
-      assert (mime != null);
-      isMetadataTrack = mime.startsWith("application/");
-      this.codec = codec;
-      this.callback = callback;
-      this.imageReader = imageReader;
+      this.decoder = decoder;
+      isMetadataTrack = decoder == null;
+      outputPool = new OutputPool(trackIndex, INITIAL_QUEUE_CAPACITY);
+      if (isMetadataTrack) {
+        setOutputFormat(inputFormat);
+      }
     }
 
     public void setOutputFormat(MediaFormat format) {
@@ -225,52 +257,54 @@ public class DepthVideoSource {
     final MediaFormat inputFormat;
     final boolean isMetadataTrack;
     public MediaFormat outputFormat;
-    final MediaCodec codec;
-    final ImageReader imageReader;
+    final TrackDecoder decoder;
     int pendingImageCount;
-    final MediaCodec.Callback callback;
-    public final Queue<Integer> inputs = new LinkedList<>();
+    final IntRingQueue inputs = new IntRingQueue(INITIAL_QUEUE_CAPACITY);
     public int inputCount;
     public int outputCount;
-    private final BlockingQueue<Output> outputs = new ArrayBlockingQueue<>(64);
-    public final Queue<Integer> unrenderedOutputs = new LinkedList<>();
+    private final BlockingQueue<Output> outputs = new ArrayBlockingQueue<>(OUTPUT_QUEUE_CAPACITY);
+    final IntRingQueue unrenderedOutputs = new IntRingQueue(INITIAL_QUEUE_CAPACITY);
+    // accessed on the handler thread only
+    final OutputPool outputPool;
     public int renderedCount;
+    // accessed on the handler thread only
+    // metadata outputs read and not returned yet
+    int pendingMetadataCount;
+    // last metadata sample read, output once the next one is read or at EOS
+    Output heldMetadata;
+    // EOS is queued to the decoder, or posted for the metadata track
+    boolean inputEos;
+    // decoder output buffer flagged EOS, -1 until it's received
+    int eosOutputIndex = -1;
+    boolean eosOutputHasData;
+    // rendered buffer count including the EOS buffer, -1 until the EOS buffer is rendered or
+    // released. The image of the last rendered buffer is output with EOS flag.
+    int renderedCountAtEos = -1;
+    int acquiredImageCount;
     private boolean eos = false;
 
     public synchronized void addOutput(Output output) {
-      if (outputCount >= MAX_FRAME_COUNT) {
-        if (DEBUG) {
-          Log.v(TAG, "ignore output after max, trackIndex " + trackIndex
-              + ", outputCount " + outputCount);
-        }
-        return;
-      }
       if (REATTACH_TIMESTAMP) {
         long newPtsUs = 1000000L * outputCount / REATTACH_TIMESTAMP_FRAME_RATE;
-        Log.w(TAG, String.format("reattach ts orig ts [%d], new ts [%d], image ts[%d]",
-            output.bufferInfo.presentationTimeUs, newPtsUs,
-            output.image == null ? -1 : output.image.getTimestamp()));
+        if (VERBOSE) {
+          Log.w(TAG, String.format("reattach ts orig ts [%d], new ts [%d], image ts[%d]",
+              output.bufferInfo.presentationTimeUs, newPtsUs,
+              output.image == null ? -1 : output.image.getTimestamp()));
+        }
         output.bufferInfo.presentationTimeUs = newPtsUs;
         if (output.image != null) {
           output.image.setTimestamp(newPtsUs * 1000); // looks like the time unit is nano second
         }
       }
       outputCount++;
-      if (DEBUG) {
+      if (VERBOSE) {
         Log.v(TAG, "trackIndex " + trackIndex + ", outputCount " + outputCount
             + ", ptsUs " + output.bufferInfo.presentationTimeUs);
       }
-      if (outputCount == MAX_FRAME_COUNT) {
-        Log.v(TAG, "set output eos at max count, trackIndex " + trackIndex);
-        output.bufferInfo.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-      }
 
-      try {
-        // blocking to avoid too many metadata buffered
-        outputs.offer(output, 1, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
-      }
+      // outputs in flight are limited by pendingImageCount and pendingMetadataCount
+      boolean queued = outputs.offer(output);
+      assert (queued);
 
       if ((output.bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
         Log.v(TAG, "eos flag found for trackIndex " + trackIndex);
@@ -294,6 +328,12 @@ public class DepthVideoSource {
     public synchronized boolean isEos() {
       return eos && outputs.isEmpty();
     }
+
+    // for tracks which reach EOS without any output
+    public synchronized void setEos() {
+      Log.v(TAG, "set eos for trackIndex " + trackIndex);
+      eos = true;
+    }
   }
 
   private class CodecCallback extends MediaCodec.Callback {
@@ -306,21 +346,26 @@ public class DepthVideoSource {
 
     @Override
     public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int i) {
-      if (DEBUG) {
+      if (VERBOSE) {
         Log.v(TAG, "onInputBufferAvailable trackIndex " + trackIndex + ", inputIndex " + i);
       }
-      mainHandler.obtainMessage(WHAT_INPUT_AVAILABLE, trackIndex, i).sendToTarget();
+      sendMessage(WHAT_INPUT_AVAILABLE, trackIndex, i, null);
     }
 
     @Override
     public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int i,
                                         @NonNull MediaCodec.BufferInfo bufferInfo) {
-      if (DEBUG) {
+      if (VERBOSE) {
         Log.v(TAG, "onOutputBufferAvailable trackIndex " + trackIndex + ", outputIndex " + i);
       }
       Track track = tracks[trackIndex];
+      if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        Log.v(TAG, "decoder eos for trackIndex " + trackIndex + ", size " + bufferInfo.size);
+        track.eosOutputIndex = i;
+        track.eosOutputHasData = bufferInfo.size > 0;
+      }
       track.unrenderedOutputs.offer(i);
-      mainHandler.obtainMessage(WHAT_TRY_RENDER_NEXT, trackIndex, -1).sendToTarget();
+      sendMessage(WHAT_TRY_RENDER_NEXT, trackIndex, -1, null);
     }
 
     @Override
@@ -334,8 +379,7 @@ public class DepthVideoSource {
       if (DEBUG) {
         Log.v(TAG, "onOutputFormatChanged");
       }
-      mainHandler.obtainMessage(WHAT_OUTPUT_FORMAT_AVAILABLE, trackIndex, -1, mediaFormat)
-          .sendToTarget();
+      sendMessage(WHAT_OUTPUT_FORMAT_AVAILABLE, trackIndex, -1, mediaFormat);
     }
   }
 
@@ -349,6 +393,7 @@ public class DepthVideoSource {
   static final int WHAT_TRY_FILL_INPUT = 6;
   static final int WHAT_IMAGE_AVAILABLE = 7;
   static final int WHAT_TRY_RENDER_NEXT = 8;
+  static final int WHAT_TRACK_EOS = 9;
 
   static final int WHAT_INIT = 10;
   static final int WHAT_START = 11;
@@ -362,98 +407,119 @@ public class DepthVideoSource {
 
     @Override
     public void handleMessage(Message msg) {
-      if (DEBUG) {
-        Log.v(TAG, "msg what: " + msg.what);
-      }
-      switch (msg.what) {
-        case WHAT_INPUT_AVAILABLE:
-          // only for media codec
-          tracks[msg.arg1].inputs.offer(msg.arg2);
-          // fall through
-        case WHAT_TRY_FILL_INPUT:
-          readInput();
-          break;
-        case WHAT_OUTPUT_AVAILABLE:
-          assert (msg.obj != null);
-          tracks[msg.arg1].addOutput((Output) msg.obj);
-          if (DEBUG) {
-            Log.v(TAG, "output available for track " + msg.arg1);
-          }
-          if (state == State.Started && listener != null) {
-            listener.onOutputAvailable(msg.arg1);
-          }
-          break;
-        case WHAT_OUTPUT_FORMAT_AVAILABLE: {
-          assert (state == State.Initial);
-          Track track = tracks[msg.arg1];
-          assert (track != null);
-          assert (track.outputFormat == null);
-          track.setOutputFormat((MediaFormat) msg.obj);
-          boolean initialized = true;
-          for (Track t : tracks) {
-            if (t != null && t.outputFormat == null) {
-              initialized = false;
-              break;
-            }
-          }
-          if (initialized) {
-            setState(State.Initialized);
-          }
-          break;
+      DepthVideoSource.this.handleMessage(msg.what, msg.arg1, msg.arg2, msg.obj);
+    }
+  }
+
+  // all work of the handler thread is posted through sendMessage() and run by handleMessage(),
+  // host tests override sendMessage() to run it without a looper
+  void sendMessage(int what, int arg1, int arg2, Object obj) {
+    mainHandler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+  }
+
+  void handleMessage(int what, int arg1, int arg2, Object obj) {
+    if (VERBOSE) {
+      Log.v(TAG, "msg what: " + what);
+    }
+    switch (what) {
+      case WHAT_INPUT_AVAILABLE:
+        // only for media codec
+        tracks[arg1].inputs.offer(arg2);
+        // fall through
+      case WHAT_TRY_FILL_INPUT:
+        readInput();
+        break;
+      case WHAT_OUTPUT_AVAILABLE:
+        assert (obj != null);
+        tracks[arg1].addOutput((Output) obj);
+        if (VERBOSE) {
+          Log.v(TAG, "output available for track " + arg1);
         }
-        case WHAT_RELEASE_OUTPUT:
-          Output output = (Output) msg.obj;
-          Track track = tracks[output.trackIndex];
-          assert (track != null);
-          if (track.isMetadataTrack) {
-            assert (output.image == null);
-            assert (output.byteBuffer != null);
-          } else {
-            assert (track.codec != null);
-            assert (output.image != null);
-            assert (output.byteBuffer == null);
-            if (DEBUG) {
-              Log.v(TAG, "release output trackIndex " + output.trackIndex);
-            }
-            output.image.close();
-            track.pendingImageCount--;
-            assert (track.pendingImageCount >= 0);
-            pullImage(output.trackIndex);
-            tryRenderNext(output.trackIndex);
-          }
-          break;
-        case WHAT_IMAGE_AVAILABLE:
-          pullImage(msg.arg1);
-          break;
-        case WHAT_TRY_RENDER_NEXT:
-          tryRenderNext(msg.arg1);
-          break;
-        case WHAT_INIT:
-          assert (state == State.Initial);
-          try {
-            onInit();
+        if (state == State.Started && listener != null) {
+          listener.onOutputAvailable(arg1);
+        }
+        break;
+      case WHAT_OUTPUT_FORMAT_AVAILABLE: {
+        assert (state == State.Initial);
+        Track track = tracks[arg1];
+        assert (track != null);
+        assert (track.outputFormat == null);
+        track.setOutputFormat((MediaFormat) obj);
+        boolean initialized = true;
+        for (Track t : tracks) {
+          if (t != null && t.outputFormat == null) {
+            initialized = false;
             break;
-          } catch (IOException e) {
-            throw new RuntimeException(e);
           }
-        case WHAT_START:
-          assert (state == State.Initialized);
-          onStart();
-          setState(State.Started);
-          break;
-        case WHAT_STOP:
-          assert (state == State.Started);
-          onStop();
-          setState(State.Stopped);
-          break;
-        case WHAT_RELEASE:
-          assert (state == State.Stopped);
-          onRelease();
-          setState(State.Released);
-          break;
-        default:
-          throw new IllegalArgumentException("unknown msg: " + msg);
+        }
+        if (initialized) {
+          setState(State.Initialized);
+        }
+        break;
       }
+      case WHAT_RELEASE_OUTPUT:
+        Output output = (Output) obj;
+        Track track = tracks[output.trackIndex];
+        assert (track != null);
+        if (track.isMetadataTrack) {
+          assert (output.image == null);
+          assert (output.byteBuffer != null);
+          track.pendingMetadataCount--;
+          assert (track.pendingMetadataCount >= 0);
+        } else {
+          assert (output.byteBuffer == null);
+          if (VERBOSE) {
+            Log.v(TAG, "release output trackIndex " + output.trackIndex);
+          }
+          track.decoder.releaseImage(output);
+          track.pendingImageCount--;
+          assert (track.pendingImageCount >= 0);
+        }
+        track.outputPool.recycle(output);
+        if (track.isMetadataTrack) {
+          readInput();
+        } else {
+          pullImage(track.trackIndex);
+          tryRenderNext(track.trackIndex);
+        }
+        break;
+      case WHAT_IMAGE_AVAILABLE:
+        pullImage(arg1);
+        break;
+      case WHAT_TRY_RENDER_NEXT:
+        tryRenderNext(arg1);
+        break;
+      case WHAT_TRACK_EOS:
+        tracks[arg1].setEos();
+        if (state == State.Started && listener != null) {
+          listener.onOutputAvailable(arg1);
+        }
+        break;
+      case WHAT_INIT:
+        assert (state == State.Initial);
+        try {
+          onInit();
+          break;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      case WHAT_START:
+        assert (state == State.Initialized);
+        onStart();
+        setState(State.Started);
+        break;
+      case WHAT_STOP:
+        assert (state == State.Started);
+        onStop();
+        setState(State.Stopped);
+        break;
+      case WHAT_RELEASE:
+        assert (state == State.Stopped);
+        onRelease();
+        setState(State.Released);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown msg: " + what);
     }
   }
 
@@ -478,52 +544,130 @@ public class DepthVideoSource {
   // start parsing and decoding in preInit to get output formats
   private void onInit() throws IOException {
     extractor.setDataSource(new File(clipPath));
-    trackCount = extractor.getTrackCount();
-    tracks = new Track[trackCount];
-    for (int trackIndex = 0; trackIndex < trackCount; ++ trackIndex) {
+    final int count = extractor.getTrackCount();
+    MediaFormat[] formats = new MediaFormat[count];
+    TrackDecoder[] decoders = new TrackDecoder[count];
+    for (int trackIndex = 0; trackIndex < count; ++ trackIndex) {
       extractor.selectTrack(trackIndex);
-      MediaFormat format = extractor.getTrackFormat(trackIndex);
-      String mime = format.getString(MediaFormat.KEY_MIME);
+      formats[trackIndex] = extractor.getTrackFormat(trackIndex);
+      String mime = formats[trackIndex].getString(MediaFormat.KEY_MIME);
+      assert (mime != null);
       boolean isVideoOrDepth = mime.startsWith("video/");
-      tracks[trackIndex] = isVideoOrDepth
-          ? createTrackWithCodec(trackIndex, format)
-          : new Track(trackIndex, format);
+      assert (isVideoOrDepth || mime.startsWith("application/"));
+      decoders[trackIndex] = isVideoOrDepth
+          ? new CodecDecoder(trackIndex, formats[trackIndex])
+          : null;
     }
+    initTracks(formats, decoders);
   }
 
-  private Track createTrackWithCodec(final int trackIndex, MediaFormat format) {
-    String mime = format.getString(MediaFormat.KEY_MIME);
-    assert (mime != null);
-    MediaCodec codec = null;
-    try {
-      codec = MediaCodec.createDecoderByType(mime);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  /**
+   * Create the tracks and start their decoders, the state is Initialized once all decoders
+   * report their output formats. Host tests call it with fake decoders instead of init().
+   *
+   * @param decoders decoder of each track, null for the metadata track
+   */
+  void initTracks(MediaFormat[] formats, TrackDecoder[] decoders) {
+    assert (state == State.Initial);
+    assert (formats.length == decoders.length);
+    trackCount = formats.length;
+    tracks = new Track[trackCount];
+    for (int trackIndex = 0; trackIndex < trackCount; ++ trackIndex) {
+      tracks[trackIndex] = new Track(trackIndex, formats[trackIndex], decoders[trackIndex]);
+    }
+    // the callbacks run on the handler thread, after the tracks are set
+    for (int trackIndex = 0; trackIndex < trackCount; ++ trackIndex) {
+      if (decoders[trackIndex] != null) {
+        decoders[trackIndex].start(new CodecCallback(trackIndex));
+      }
     }
-    MediaCodec.Callback callback = new CodecCallback(trackIndex);
-    codec.setCallback(callback, mainHandler);
+  }
 
-    MediaFormat codecFormat = new MediaFormat(format);
-    boolean is10BitOutput = is10Bit(format);
-    if (is10BitOutput) {
-      codecFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-          MediaCodecInfo.CodecCapabilities.COLOR_FormatYUVP010);
-    } else {
-      codecFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-          MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+  private class CodecDecoder implements TrackDecoder {
+    private final int trackIndex;
+    private final MediaFormat codecFormat;
+    private final MediaCodec codec;
+    private final ImageReader imageReader;
+
+    CodecDecoder(int trackIndex, MediaFormat format) {
+      String mime = format.getString(MediaFormat.KEY_MIME);
+      assert (mime != null);
+      try {
+        codec = MediaCodec.createDecoderByType(mime);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      this.trackIndex = trackIndex;
+      codecFormat = new MediaFormat(format);
+      boolean is10BitOutput = is10Bit(format);
+      if (is10BitOutput) {
+        codecFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUVP010);
+      } else {
+        codecFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+      }
+
+      int width = codecFormat.getInteger(MediaFormat.KEY_WIDTH);
+      int height = codecFormat.getInteger(MediaFormat.KEY_HEIGHT);
+      imageReader = createImageReader(width, height, is10BitOutput);
+    }
+
+    @Override
+    public void start(MediaCodec.Callback callback) {
+      codec.setCallback(callback, mainHandler);
+      imageReader.setOnImageAvailableListener(imageReader1 -> {
+            if (VERBOSE) {
+              Log.v(TAG, "OnImageAvailableListener  track index " + trackIndex);
+            }
+            sendMessage(WHAT_IMAGE_AVAILABLE, trackIndex, -1, null);
+          }, mainHandler);
+      codec.configure(codecFormat, imageReader.getSurface(), null, 0);
+      codec.start();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int inputIndex) {
+      return codec.getInputBuffer(inputIndex);
     }
 
-    int width = codecFormat.getInteger(MediaFormat.KEY_WIDTH);
-    int height = codecFormat.getInteger(MediaFormat.KEY_HEIGHT);
-    ImageReader imageReader = createImageReader(width, height, is10BitOutput);
-    imageReader.setOnImageAvailableListener(imageReader1 -> {
-          Log.v(TAG, "OnImageAvailableListener  track index " + trackIndex);
-          mainHandler.obtainMessage(WHAT_IMAGE_AVAILABLE, trackIndex, -1)
-              .sendToTarget();
-        }, mainHandler);
-    codec.configure(codecFormat, imageReader.getSurface(), null, 0);
-    codec.start();
-    return new Track(trackIndex, format, codec, callback, imageReader);
+    @Override
+    public void queueInputBuffer(int inputIndex, int size, long presentationTimeUs, int flags) {
+      codec.queueInputBuffer(inputIndex, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int outputIndex, boolean render) {
+      codec.releaseOutputBuffer(outputIndex, render);
+    }
+
+    @Override
+    public boolean acquireImage(Output output) {
+      Image image = imageReader.acquireNextImage();
+      if (image == null) {
+        return false;
+      }
+      output.bufferInfo.set(0, 0, image.getTimestamp() / 1000, 0);
+      output.image = image;
+      return true;
+    }
+
+    @Override
+    public void releaseImage(Output output) {
+      assert (output.image != null);
+      output.image.close();
+    }
+
+    @Override
+    public void stop() {
+      codec.stop();
+    }
+
+    @Override
+    public void release() {
+      codec.release();
+      imageReader.close();
+    }
   }
 
   @SuppressLint("WrongConstant")
@@ -549,9 +693,10 @@ public class DepthVideoSource {
   private void onStop() {
     for (Track track : tracks) {
       if (track != null) {
-        Log.v(TAG, "trackIndex " + track.trackIndex + ", total output: " + track.outputCount);
+        Log.v(TAG, "trackIndex " + track.trackIndex + ", total output: " + track.outputCount
+            + ", output pool size: " + track.outputPool.getCreatedCount());
         if (!track.isMetadataTrack) {
-          track.codec.stop();
+          track.decoder.stop();
         }
       }
     }
@@ -560,8 +705,7 @@ public class DepthVideoSource {
   private void onRelease() {
     for (Track track : tracks) {
       if (track != null && !track.isMetadataTrack) {
-        track.codec.release();
-        track.imageReader.close();
+        track.decoder.release();
       }
     }
     extractor.release();
@@ -571,30 +715,42 @@ public class DepthVideoSource {
 
   private void readInput() {
     if (extractorAllEos) {
+      queueEosInputs();
       return;
     }
     int trackIndex = extractor.getSampleTrackIndex();
     if (trackIndex == -1) {
       Log.v(TAG, "all EOS");
       extractorAllEos = true;
+      queueEosInputs();
       return;
     }
     Track track = tracks[trackIndex];
     assert (track != null);
     ByteBuffer buf;
     int inputIndex = -1;
+    Output output = null;
     if (track.isMetadataTrack) {
-      buf = ByteBuffer.allocate((int) extractor.getSampleSize());
+      if (track.pendingMetadataCount >= OUTPUT_QUEUE_CAPACITY) {
+        // continue when the client returns a metadata output
+        return;
+      }
+      track.pendingMetadataCount++;
+      output = track.outputPool.obtain();
+      int sampleSize = (int) extractor.getSampleSize();
+      if (output.byteBuffer == null || output.byteBuffer.capacity() < sampleSize) {
+        output.byteBuffer = ByteBuffer.allocate(sampleSize);
+      }
+      buf = output.byteBuffer;
+      buf.clear();
     } else if (!track.inputs.isEmpty()) {
-      Integer v = track.inputs.poll();
-      assert (v != null);
-      inputIndex = v;
-      if (DEBUG) {
+      inputIndex = track.inputs.poll();
+      if (VERBOSE) {
         Log.v(TAG, "fill input trackIndex " + trackIndex + ", inputIndex " + inputIndex);
       }
-      buf = track.codec.getInputBuffer(inputIndex);
+      buf = track.decoder.getInputBuffer(inputIndex);
     } else {
-      if (DEBUG) {
+      if (VERBOSE) {
         Log.w(TAG, "waiting input buffer for trackIndex" + trackIndex);
       }
       return;
@@ -614,59 +770,87 @@ public class DepthVideoSource {
     }
     if (!extractor.advance()) { // advance
       codecFlags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+      track.inputEos = true;
     }
 
     tracks[trackIndex].inputCount++;
 
     if (track.isMetadataTrack) {
-      MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-      bufferInfo.set(
+      output.bufferInfo.set(
           0,
           sz,
           pts,
           codecFlags
       );
-
-      Output output = new Output();
-      output.trackIndex = trackIndex;
-      output.bufferInfo = bufferInfo;
-      output.byteBuffer = buf;
-      mainHandler.obtainMessage(WHAT_OUTPUT_AVAILABLE, trackIndex, -1, output).sendToTarget();
+      // the last sample of the track is only known at EOS, so it's held until then
+      if (track.heldMetadata != null) {
+        sendMessage(WHAT_OUTPUT_AVAILABLE, trackIndex, -1, track.heldMetadata);
+        track.heldMetadata = null;
+      }
+      if (track.inputEos) {
+        sendMessage(WHAT_OUTPUT_AVAILABLE, trackIndex, -1, output);
+      } else {
+        track.heldMetadata = output;
+      }
     } else {
-      track.codec.queueInputBuffer(inputIndex, 0, sz, pts, codecFlags);
+      track.decoder.queueInputBuffer(inputIndex, sz, pts, codecFlags);
     }
 
-    mainHandler.obtainMessage(WHAT_TRY_FILL_INPUT).sendToTarget();
+    sendMessage(WHAT_TRY_FILL_INPUT, 0, 0, null);
+  }
+
+  // DepthExtractor reports EOS of all tracks at once, only the track of the last sample gets a
+  // flagged sample. The held metadata sample is flagged instead, and other decoders get an empty
+  // EOS input as soon as they have an input buffer.
+  private void queueEosInputs() {
+    for (Track track : tracks) {
+      if (track == null || track.inputEos) {
+        continue;
+      }
+      if (track.isMetadataTrack) {
+        track.inputEos = true;
+        if (track.heldMetadata != null) {
+          track.heldMetadata.bufferInfo.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+          sendMessage(WHAT_OUTPUT_AVAILABLE, track.trackIndex, -1, track.heldMetadata);
+          track.heldMetadata = null;
+        } else {
+          // ordered after the metadata outputs already posted
+          sendMessage(WHAT_TRACK_EOS, track.trackIndex, -1, null);
+        }
+      } else if (!track.inputs.isEmpty()) {
+        track.inputEos = true;
+        track.decoder.queueInputBuffer(track.inputs.poll(), 0, 0,
+            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+      }
+    }
   }
 
   private void pullImage(int trackIndex) {
     Track track = tracks[trackIndex];
     assert (track != null);
-    assert (track.imageReader != null);
+    assert (track.decoder != null);
     while (true) {
       if (track.pendingImageCount >= MAX_PENDING_IMAGE_COUNT) {
         return;
       }
-      Image image = track.imageReader.acquireNextImage();
-      if (image == null) {
+      Output output = track.outputPool.obtain();
+      if (!track.decoder.acquireImage(output)) {
+        track.outputPool.recycle(output);
         return;
       }
       track.pendingImageCount++;
+      track.acquiredImageCount++;
 
-      MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-      bufferInfo.presentationTimeUs = image.getTimestamp() / 1000;
-      Output output = new Output();
-      output.trackIndex = trackIndex;
-      output.bufferInfo = bufferInfo;
-      output.image = image;
-      mainHandler.obtainMessage(WHAT_OUTPUT_AVAILABLE, trackIndex, -1, output).sendToTarget();
+      if (track.acquiredImageCount == track.renderedCountAtEos) {
+        output.bufferInfo.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+      }
+      sendMessage(WHAT_OUTPUT_AVAILABLE, trackIndex, -1, output);
     }
   }
 
   private void tryRenderNext(int trackIndex) {
     Track track = tracks[trackIndex];
-    int unrenderedCount = track.unrenderedOutputs.size();
-    if (unrenderedCount == 0) {
+    if (track.unrenderedOutputs.isEmpty()) {
       return;
     }
     if (track.renderedCount > track.outputCount) {
@@ -675,10 +859,35 @@ public class DepthVideoSource {
     if (track.pendingImageCount >= MAX_PENDING_IMAGE_COUNT) {
       return;
     }
-    Integer outputIndex = track.unrenderedOutputs.poll();
-    assert (outputIndex != null);
-    track.codec.releaseOutputBuffer(outputIndex, true);
+    int outputIndex = track.unrenderedOutputs.peek();
+    if (outputIndex == track.eosOutputIndex && !track.eosOutputHasData) {
+      // only reached when the track has no output with data
+      track.unrenderedOutputs.poll();
+      track.decoder.releaseOutputBuffer(outputIndex, false);
+      track.renderedCountAtEos = track.renderedCount;
+      if (track.acquiredImageCount == track.renderedCountAtEos) {
+        sendMessage(WHAT_TRACK_EOS, trackIndex, -1, null);
+      }
+      return;
+    }
+    // an empty EOS buffer may follow, so the last buffer with data is only known once the next
+    // buffer is received, and it's held until then
+    if (outputIndex != track.eosOutputIndex && track.unrenderedOutputs.size() < 2) {
+      return;
+    }
+    track.unrenderedOutputs.poll();
+    track.decoder.releaseOutputBuffer(outputIndex, true);
     track.renderedCount++;
-    Log.v(TAG, "render buffer for trackIndex " + trackIndex);
+    if (outputIndex == track.eosOutputIndex) {
+      track.renderedCountAtEos = track.renderedCount;
+    } else if (track.unrenderedOutputs.peek() == track.eosOutputIndex
+        && !track.eosOutputHasData) {
+      // the image of this buffer is the last one
+      track.decoder.releaseOutputBuffer(track.unrenderedOutputs.poll(), false);
+      track.renderedCountAtEos = track.renderedCount;
+    }
+    if (VERBOSE) {
+      Log.v(TAG, "render buffer for trackIndex " + trackIndex);
+    }
   }
 }
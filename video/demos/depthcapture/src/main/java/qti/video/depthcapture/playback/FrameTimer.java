@@ -0,0 +1,161 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import android.opengl.GLES30;
+
+/**
+ * GPU time of the GL commands between {@link #begin()} and {@link #end()} of every frame.
+ * With GL_EXT_disjoint_timer_query, timer queries are read a few frames later when their
+ * results are available, so timing doesn't stall the pipeline. Without it, the CPU time until
+ * glFinish() returns is measured instead, which waits for the GPU every frame and is only
+ * meant for comparisons. Use it on the GL thread.
+ */
+final class FrameTimer {
+  private static final String TIMER_QUERY_EXTENSION = "GL_EXT_disjoint_timer_query";
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+  // queries in flight, a frame is not timed when all of them are pending
+  private static final int QUERY_COUNT = 4;
+
+  private final int[] queries = new int[QUERY_COUNT];
+  private final boolean[] pending = new boolean[QUERY_COUNT];
+  private final int[] values = new int[1];
+  private boolean gpuTimer;
+  // oldest pending query, and the query of the next frame
+  private int head;
+  private int tail;
+  private boolean timing;
+  private long cpuStartNs;
+
+  // stats
+  private long frameCount;
+  private long totalNs;
+  private long maxNs;
+  private long lastNs;
+  private long untimedCount;
+  private long disjointCount;
+
+  /**
+   * Create the queries, or select the CPU timer if timer queries are not supported.
+   */
+  void init() {
+    release();
+    String extensions = GLES30.glGetString(GLES30.GL_EXTENSIONS);
+    gpuTimer = extensions != null && extensions.contains(TIMER_QUERY_EXTENSION);
+    if (gpuTimer) {
+      GLES30.glGenQueries(QUERY_COUNT, queries, 0);
+      GlUtils.checkGlError("glGenQueries");
+      // clear a disjoint event from before
+      GLES30.glGetIntegerv(GL_GPU_DISJOINT_EXT, values, 0);
+    }
+    frameCount = 0;
+    totalNs = 0;
+    maxNs = 0;
+    lastNs = 0;
+    untimedCount = 0;
+    disjointCount = 0;
+  }
+
+  void release() {
+    if (gpuTimer) {
+      GLES30.glDeleteQueries(QUERY_COUNT, queries, 0);
+      gpuTimer = false;
+    }
+    for (int i = 0; i < QUERY_COUNT; ++i) {
+      pending[i] = false;
+    }
+    head = 0;
+    tail = 0;
+    timing = false;
+  }
+
+  void begin() {
+    assert (!timing);
+    if (!gpuTimer) {
+      cpuStartNs = System.nanoTime();
+      timing = true;
+      return;
+    }
+    collect();
+    if (pending[tail]) {
+      untimedCount++;
+      return;
+    }
+    GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[tail]);
+    timing = true;
+  }
+
+  void end() {
+    if (!timing) {
+      return;
+    }
+    timing = false;
+    if (!gpuTimer) {
+      GLES30.glFinish();
+      add(System.nanoTime() - cpuStartNs);
+      return;
+    }
+    GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+    pending[tail] = true;
+    tail = (tail + 1) % QUERY_COUNT;
+  }
+
+  // read the results of completed queries, which complete in order
+  private void collect() {
+    GLES30.glGetIntegerv(GL_GPU_DISJOINT_EXT, values, 0);
+    if (values[0] != 0) {
+      // results of the queries in flight are undefined, e.g. after a GPU frequency change
+      while (pending[head]) {
+        pending[head] = false;
+        head = (head + 1) % QUERY_COUNT;
+        disjointCount++;
+      }
+      return;
+    }
+    while (pending[head]) {
+      GLES30.glGetQueryObjectuiv(queries[head], GLES30.GL_QUERY_RESULT_AVAILABLE, values, 0);
+      if (values[0] == GLES30.GL_FALSE) {
+        return;
+      }
+      GLES30.glGetQueryObjectuiv(queries[head], GLES30.GL_QUERY_RESULT, values, 0);
+      pending[head] = false;
+      head = (head + 1) % QUERY_COUNT;
+      add(values[0] & 0xffffffffL);
+    }
+  }
+
+  private void add(long ns) {
+    frameCount++;
+    totalNs += ns;
+    maxNs = Math.max(maxNs, ns);
+    lastNs = ns;
+  }
+
+  boolean isGpuTimer() {
+    return gpuTimer;
+  }
+
+  long getLastUs() {
+    return lastNs / 1000;
+  }
+
+  long getMeanUs() {
+    return frameCount == 0 ? 0 : totalNs / frameCount / 1000;
+  }
+
+  long getMaxUs() {
+    return maxNs / 1000;
+  }
+
+  String getStats() {
+    return (gpuTimer ? "gpu" : "cpu") + " timed " + frameCount + ", mean us " + getMeanUs()
+        + ", max us " + getMaxUs() + ", untimed " + untimedCount + ", disjoint "
+        + disjointCount;
+  }
+}
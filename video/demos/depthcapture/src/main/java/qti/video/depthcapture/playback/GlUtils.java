@@ -82,6 +82,98 @@ public final class GlUtils {
     return shader;
   }
 
+  /**
+   * Framebuffer with an RGBA8 texture attachment, for intermediate passes. The GL objects are
+   * kept across frames and reallocated only when the size changes. Use it on the GL thread.
+   */
+  public static final class Framebuffer {
+    private final int[] ids = new int[1];
+    private int framebuffer;
+    private int texture;
+    private int width;
+    private int height;
+
+    /**
+     * Allocate the framebuffer for a size, unless it already has that size.
+     *
+     * @return true if the framebuffer was (re)allocated.
+     */
+    public boolean setSize(int width, int height) {
+      assert (width > 0 && height > 0);
+      if (framebuffer != 0 && this.width == width && this.height == height) {
+        return false;
+      }
+      release();
+      GLES30.glGenTextures(1, ids, 0);
+      texture = ids[0];
+      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture);
+      GLES30.glTexStorage2D(GLES30.GL_TEXTURE_2D, 1, GLES30.GL_RGBA8, width, height);
+      checkGlError("glTexStorage2D");
+      // linear filtering upsamples the texture when it is drawn at a larger size
+      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER,
+          GLES30.GL_LINEAR);
+      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER,
+          GLES30.GL_LINEAR);
+      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S,
+          GLES30.GL_CLAMP_TO_EDGE);
+      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T,
+          GLES30.GL_CLAMP_TO_EDGE);
+      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+      GLES30.glGenFramebuffers(1, ids, 0);
+      framebuffer = ids[0];
+      GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffer);
+      GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+          GLES30.GL_TEXTURE_2D, texture, 0);
+      int status = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
+      GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+      if (status != GLES30.GL_FRAMEBUFFER_COMPLETE) {
+        release();
+        throw new RuntimeException("Incomplete framebuffer 0x" + Integer.toHexString(status)
+            + " of " + width + "x" + height);
+      }
+      this.width = width;
+      this.height = height;
+      return true;
+    }
+
+    /**
+     * Bind the framebuffer as the draw target, with a viewport of its size.
+     */
+    public void bind() {
+      assert (framebuffer != 0);
+      GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffer);
+      GLES30.glViewport(0, 0, width, height);
+    }
+
+    public int getTexture() {
+      return texture;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public void release() {
+      if (framebuffer != 0) {
+        ids[0] = framebuffer;
+        GLES30.glDeleteFramebuffers(1, ids, 0);
+        framebuffer = 0;
+      }
+      if (texture != 0) {
+        ids[0] = texture;
+        GLES30.glDeleteTextures(1, ids, 0);
+        texture = 0;
+      }
+      width = 0;
+      height = 0;
+    }
+  }
+
   public static String loadResRaw(Context context, int resRawId) {
     try (InputStream in = context.getResources().openRawResource(resRawId)) {
       byte[] bytes = in.readAllBytes();
@@ -0,0 +1,66 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+/**
+ * FIFO queue of primitive ints, e.g. codec buffer indices, which does not box its elements.
+ * It grows by doubling when full, and does not allocate once it's large enough.
+ * Not thread-safe.
+ */
+final class IntRingQueue {
+  private int[] elements;
+  private int head;
+  private int size;
+
+  IntRingQueue(int initialCapacity) {
+    assert (initialCapacity > 0);
+    elements = new int[initialCapacity];
+  }
+
+  void offer(int value) {
+    if (size == elements.length) {
+      int[] grown = new int[elements.length * 2];
+      for (int i = 0; i < size; ++i) {
+        grown[i] = elements[(head + i) % elements.length];
+      }
+      elements = grown;
+      head = 0;
+    }
+    elements[(head + size) % elements.length] = value;
+    size++;
+  }
+
+  /**
+   * Remove and return the head, the queue should not be empty.
+   */
+  int poll() {
+    assert (size > 0);
+    int value = elements[head];
+    head = (head + 1) % elements.length;
+    size--;
+    return value;
+  }
+
+  int peek() {
+    assert (size > 0);
+    return elements[head];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    head = 0;
+    size = 0;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import android.media.MediaCodec;
+
+/**
+ * Pool of {@link DepthVideoSource.Output} records of a track. Each record owns its BufferInfo,
+ * and keeps its metadata ByteBuffer across reuses so that it's reallocated only for a larger
+ * sample. Records are created on demand, so the pool stops allocating once it holds as many
+ * records as the track has in flight.
+ * Not thread-safe.
+ */
+final class OutputPool {
+  private final int trackIndex;
+  private DepthVideoSource.Output[] free;
+  private int freeCount;
+  private int createdCount;
+
+  OutputPool(int trackIndex, int initialCapacity) {
+    this.trackIndex = trackIndex;
+    free = new DepthVideoSource.Output[initialCapacity];
+  }
+
+  DepthVideoSource.Output obtain() {
+    if (freeCount == 0) {
+      DepthVideoSource.Output output = new DepthVideoSource.Output();
+      output.trackIndex = trackIndex;
+      output.bufferInfo = new MediaCodec.BufferInfo();
+      createdCount++;
+      return output;
+    }
+    DepthVideoSource.Output output = free[--freeCount];
+    free[freeCount] = null;
+    return output;
+  }
+
+  void recycle(DepthVideoSource.Output output) {
+    assert (output.trackIndex == trackIndex);
+    output.image = null;
+    output.bufferIndex = -1;
+    if (freeCount == free.length) {
+      DepthVideoSource.Output[] grown = new DepthVideoSource.Output[free.length * 2];
+      System.arraycopy(free, 0, grown, 0, freeCount);
+      free = grown;
+    }
+    free[freeCount++] = output;
+  }
+
+  int getCreatedCount() {
+    return createdCount;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+/**
+ * Schedules frames for presentation at display vsyncs.
+ * The first presented frame anchors the media timeline to the monotonic clock. At every vsync,
+ * the latest frame due by the next vsync is presented, and older due frames are skipped as
+ * stale. A frame presented after the vsync closest to its due time is counted as late, and the
+ * difference between the presentation interval and the timestamp interval of consecutive
+ * presented frames is reported as judder.
+ *
+ * <p>Vsyncs are requested only while frames are queued. The vsync period is estimated from
+ * consecutive vsyncs, starting from the period given to the constructor.
+ * Not thread-safe, all calls and vsync callbacks should be on the same thread.
+ *
+ * @param <T> frame type.
+ */
+final class PresentationScheduler<T> {
+  private static final int INITIAL_CAPACITY = 4;
+  // weight of a new vsync interval in the period estimate is 1 / (1 << PERIOD_SMOOTHING_SHIFT)
+  private static final int PERIOD_SMOOTHING_SHIFT = 3;
+
+  /**
+   * Monotonic clock, in the time base of the vsync timestamps.
+   */
+  interface Clock {
+    long nanoTime();
+  }
+
+  static final Clock SYSTEM_CLOCK = System::nanoTime;
+
+  interface VsyncCallback {
+    void onVsync(long vsyncTimeNs);
+  }
+
+  /**
+   * Calls a posted callback once at the next vsync, like {@code Choreographer}.
+   */
+  interface VsyncSource {
+    void postVsyncCallback(VsyncCallback callback);
+
+    void removeVsyncCallback(VsyncCallback callback);
+  }
+
+  interface FrameListener<T> {
+    /**
+     * Present a frame at the next vsync.
+     */
+    void onPresent(T frame, long ptsUs, long presentTimeNs);
+
+    /**
+     * Release a frame which is stale or flushed.
+     */
+    void onSkip(T frame, long ptsUs);
+  }
+
+  private final Clock clock;
+  private final VsyncSource vsyncSource;
+  private final FrameListener<T> listener;
+  private final VsyncCallback vsyncCallback = this::onVsync;
+  private boolean started;
+  private boolean vsyncPosted;
+  private long vsyncPeriodNs;
+  // last vsync time if the next vsync was requested right away, or -1
+  private long lastVsyncNs = -1;
+  // clock time of media time 0, -1 until the first frame is presented
+  private long anchorNs = -1;
+
+  // queued frames, in pts order
+  private T[] frames = newArray(INITIAL_CAPACITY);
+  private long[] ptsUs = new long[INITIAL_CAPACITY];
+  private int head;
+  private int size;
+
+  // stats
+  private long presentedCount;
+  private long skippedCount;
+  private long lateCount;
+  private long lastPresentedPtsUs;
+  private long lastPresentTimeNs = -1;
+  private long judderSumNs;
+  private long maxJudderNs;
+
+  /**
+   * PresentationScheduler constructor.
+   *
+   * @param clock monotonic clock.
+   * @param vsyncSource display vsync.
+   * @param vsyncPeriodNs initial vsync period estimate, e.g. from the display refresh rate.
+   * @param listener receives presented and skipped frames.
+   */
+  PresentationScheduler(Clock clock, VsyncSource vsyncSource, long vsyncPeriodNs,
+                        FrameListener<T> listener) {
+    assert (vsyncPeriodNs > 0);
+    this.clock = clock;
+    this.vsyncSource = vsyncSource;
+    this.vsyncPeriodNs = vsyncPeriodNs;
+    this.listener = listener;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T[] newArray(int length) {
+    return (T[]) new Object[length];
+  }
+
+  void start() {
+    started = true;
+    requestVsync();
+  }
+
+  /**
+   * Stop requesting vsyncs and skip all queued frames. Presentation restarts with a new anchor.
+   */
+  void stop() {
+    started = false;
+    if (vsyncPosted) {
+      vsyncSource.removeVsyncCallback(vsyncCallback);
+      vsyncPosted = false;
+    }
+    lastVsyncNs = -1;
+    flush();
+    anchorNs = -1;
+    lastPresentTimeNs = -1;
+  }
+
+  /**
+   * Queue a frame, timestamps should be increasing.
+   */
+  void queueFrame(long framePtsUs, T frame) {
+    assert (frame != null);
+    if (size == frames.length) {
+      T[] grownFrames = newArray(size * 2);
+      long[] grownPts = new long[size * 2];
+      for (int i = 0; i < size; ++i) {
+        grownFrames[i] = frames[(head + i) % frames.length];
+        grownPts[i] = ptsUs[(head + i) % frames.length];
+      }
+      frames = grownFrames;
+      ptsUs = grownPts;
+      head = 0;
+    }
+    final int tail = (head + size) % frames.length;
+    frames[tail] = frame;
+    ptsUs[tail] = framePtsUs;
+    size++;
+    requestVsync();
+  }
+
+  /**
+   * Skip all queued frames.
+   */
+  void flush() {
+    while (size > 0) {
+      long framePtsUs = ptsUs[head];
+      listener.onSkip(poll(), framePtsUs);
+    }
+  }
+
+  int getQueuedCount() {
+    return size;
+  }
+
+  long getVsyncPeriodNs() {
+    return vsyncPeriodNs;
+  }
+
+  private T poll() {
+    T frame = frames[head];
+    frames[head] = null;
+    head = (head + 1) % frames.length;
+    size--;
+    return frame;
+  }
+
+  private void requestVsync() {
+    if (started && !vsyncPosted && size > 0) {
+      vsyncPosted = true;
+      vsyncSource.postVsyncCallback(vsyncCallback);
+    }
+  }
+
+  private void onVsync(long vsyncTimeNs) {
+    vsyncPosted = false;
+    if (!started) {
+      return;
+    }
+    if (lastVsyncNs != -1) {
+      final long intervalNs = vsyncTimeNs - lastVsyncNs;
+      // ignore missed vsyncs
+      if (intervalNs > 0 && intervalNs < vsyncPeriodNs * 3 / 2) {
+        vsyncPeriodNs += (intervalNs - vsyncPeriodNs) >> PERIOD_SMOOTHING_SHIFT;
+      }
+    }
+
+    // the frame is displayed at the first vsync after now, the callback can run late
+    final long nowNs = clock.nanoTime();
+    long targetNs = vsyncTimeNs + vsyncPeriodNs;
+    if (targetNs <= nowNs) {
+      targetNs += (nowNs - targetNs) / vsyncPeriodNs * vsyncPeriodNs + vsyncPeriodNs;
+    }
+    if (size > 0) {
+      if (anchorNs == -1) {
+        anchorNs = targetNs - ptsUs[head] * 1000;
+      }
+      // skip due frames which are followed by another due frame
+      final long dueLimitNs = targetNs + vsyncPeriodNs / 2;
+      while (size > 1 && dueTimeNs(ptsUs[(head + 1) % frames.length]) <= dueLimitNs) {
+        skippedCount++;
+        long framePtsUs = ptsUs[head];
+        listener.onSkip(poll(), framePtsUs);
+      }
+      final long framePtsUs = ptsUs[head];
+      final long frameDueNs = dueTimeNs(framePtsUs);
+      if (frameDueNs <= dueLimitNs) {
+        if (frameDueNs < targetNs - vsyncPeriodNs / 2) {
+          lateCount++;
+        }
+        if (lastPresentTimeNs != -1) {
+          long judderNs = Math.abs((targetNs - lastPresentTimeNs)
+              - (framePtsUs - lastPresentedPtsUs) * 1000);
+          judderSumNs += judderNs;
+          maxJudderNs = Math.max(maxJudderNs, judderNs);
+        }
+        lastPresentTimeNs = targetNs;
+        lastPresentedPtsUs = framePtsUs;
+        presentedCount++;
+        listener.onPresent(poll(), framePtsUs, targetNs);
+      }
+    }
+    requestVsync();
+    lastVsyncNs = vsyncPosted ? vsyncTimeNs : -1;
+  }
+
+  private long dueTimeNs(long framePtsUs) {
+    return anchorNs + framePtsUs * 1000;
+  }
+
+  long getPresentedCount() {
+    return presentedCount;
+  }
+
+  /**
+   * Get frames skipped because a later frame was due at the same vsync.
+   */
+  long getSkippedCount() {
+    return skippedCount;
+  }
+
+  /**
+   * Get frames presented after the vsync closest to their due time.
+   */
+  long getLateCount() {
+    return lateCount;
+  }
+
+  long getMeanJudderUs() {
+    return presentedCount <= 1 ? 0 : judderSumNs / (presentedCount - 1) / 1000;
+  }
+
+  long getMaxJudderUs() {
+    return maxJudderNs / 1000;
+  }
+
+  String getStats() {
+    return "presented " + presentedCount + ", skipped " + skippedCount + ", late " + lateCount
+        + ", judder mean us " + getMeanJudderUs() + ", max us " + getMaxJudderUs()
+        + ", vsync period us " + vsyncPeriodNs / 1000;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import android.hardware.HardwareBuffer;
+
+/**
+ * Cache of GL objects created from {@link HardwareBuffer}s, keyed by
+ * {@link HardwareBuffer#getId()}. Image readers recycle a small pool of buffers, so a texture
+ * created for a buffer can be reused whenever the buffer comes back with a new frame.
+ * {@link HardwareBuffer} objects of an image are new for every call, only the id is stable.
+ *
+ * <p>An entry is evicted when its buffer is not seen for a number of frames, e.g. after the
+ * image reader is closed, or when the cache is full and another buffer comes in.
+ * Not thread-safe, it should be used on the GL thread.
+ *
+ * @param <E> cached GL objects of a buffer.
+ */
+final class TextureCache<E> {
+  private static final long NS_PER_SECOND = 1000000000L;
+
+  interface Factory<E> {
+    E create(HardwareBuffer buffer);
+
+    void destroy(E entry);
+  }
+
+  private final Factory<E> factory;
+  private final long maxIdleFrames;
+  private final long[] bufferIds;
+  private final E[] entries;
+  private final long[] lastUsedFrames;
+  private int size;
+  private long frame;
+
+  // stats
+  private long creationCount;
+  private long evictionCount;
+  private long hitCount;
+  private long windowStartNs = -1;
+  private long windowCreationCount;
+  private long creationsPerSecond;
+
+  /**
+   * TextureCache constructor.
+   *
+   * @param capacity max cached buffers, at least the buffers used by a frame.
+   * @param maxIdleFrames frames after which an unused entry is evicted.
+   * @param factory creates and destroys GL objects.
+   */
+  @SuppressWarnings("unchecked")
+  TextureCache(int capacity, long maxIdleFrames, Factory<E> factory) {
+    assert (capacity > 0);
+    this.factory = factory;
+    this.maxIdleFrames = maxIdleFrames;
+    bufferIds = new long[capacity];
+    entries = (E[]) new Object[capacity];
+    lastUsedFrames = new long[capacity];
+  }
+
+  /**
+   * Get the entry of a buffer, creating it if it's not cached.
+   *
+   * @param bufferId {@link HardwareBuffer#getId()} of the buffer.
+   */
+  E get(long bufferId, HardwareBuffer buffer) {
+    for (int i = 0; i < size; ++i) {
+      if (bufferIds[i] == bufferId) {
+        lastUsedFrames[i] = frame;
+        hitCount++;
+        return entries[i];
+      }
+    }
+    if (size == entries.length) {
+      int lru = 0;
+      for (int i = 1; i < size; ++i) {
+        if (lastUsedFrames[i] < lastUsedFrames[lru]) {
+          lru = i;
+        }
+      }
+      // an entry used by the current frame can't be evicted
+      assert (lastUsedFrames[lru] < frame);
+      evict(lru);
+    }
+    E entry = factory.create(buffer);
+    bufferIds[size] = bufferId;
+    entries[size] = entry;
+    lastUsedFrames[size] = frame;
+    size++;
+    creationCount++;
+    windowCreationCount++;
+    return entry;
+  }
+
+  /**
+   * End a frame: evict idle entries and update the creation rate.
+   *
+   * @param nowNs monotonic time.
+   */
+  void endFrame(long nowNs) {
+    for (int i = size - 1; i >= 0; --i) {
+      if (frame - lastUsedFrames[i] >= maxIdleFrames) {
+        evict(i);
+      }
+    }
+    frame++;
+    if (windowStartNs == -1) {
+      windowStartNs = nowNs;
+    } else if (nowNs - windowStartNs >= NS_PER_SECOND) {
+      creationsPerSecond = windowCreationCount * NS_PER_SECOND / (nowNs - windowStartNs);
+      windowCreationCount = 0;
+      windowStartNs = nowNs;
+    }
+  }
+
+  /**
+   * Destroy all entries.
+   */
+  void clear() {
+    while (size > 0) {
+      evict(size - 1);
+    }
+  }
+
+  private void evict(int i) {
+    E entry = entries[i];
+    size--;
+    bufferIds[i] = bufferIds[size];
+    entries[i] = entries[size];
+    lastUsedFrames[i] = lastUsedFrames[size];
+    entries[size] = null;
+    evictionCount++;
+    factory.destroy(entry);
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  long getCreationCount() {
+    return creationCount;
+  }
+
+  /**
+   * Get the creations in the last complete window of about one second.
+   */
+  long getCreationsPerSecond() {
+    return creationsPerSecond;
+  }
+
+  String getStats() {
+    return "cached " + size + ", created " + creationCount + ", evicted " + evictionCount
+        + ", hits " + hitCount + ", created per second " + creationsPerSecond;
+  }
+}
@@ -0,0 +1,39 @@
+#version 300 es
+
+precision mediump float;
+
+// same radius as the single pass blur
+const float BLUR_R = 0.02;
+const int MAX_TAPS = 8;
+
+in vec2 vTextureCoord;
+out vec4 fragColor;
+
+uniform float uDepthThreshold;
+// (1, 0) for the horizontal pass, (0, 1) for the vertical pass
+uniform vec2 uDirection;
+// taps on each side of the center
+uniform int uTapCount;
+// video YUV in rgb, depth in a
+uniform sampler2D sTexture;
+
+// near samples are left out, so the foreground doesn't bleed into the blurred background
+void main() {
+  vec2 texCoord = (vTextureCoord + 1.0) / 2.0;
+  vec4 center = texture(sTexture, texCoord);
+  vec3 sum = center.rgb;
+  float weightSum = 1.0;
+  for (int i = 1; i <= MAX_TAPS; ++i) {
+    if (i > uTapCount) {
+      break;
+    }
+    vec2 offset = uDirection * (BLUR_R * float(i) / float(uTapCount));
+    vec4 p = texture(sTexture, texCoord + offset);
+    vec4 n = texture(sTexture, texCoord - offset);
+    float wp = step(p.a, uDepthThreshold);
+    float wn = step(n.a, uDepthThreshold);
+    sum += p.rgb * wp + n.rgb * wn;
+    weightSum += wp + wn;
+  }
+  fragColor = vec4(sum / weightSum, center.a);
+}
@@ -0,0 +1,31 @@
+#version 300 es
+
+#extension GL_OES_EGL_image_external : require
+#extension GL_OES_EGL_image_external_essl3 : require
+#extension GL_EXT_YUV_target : require
+
+precision mediump float;
+
+in vec2 vTextureCoord;
+out vec4 fragColor;
+
+uniform float uDepthThreshold;
+uniform __samplerExternal2DY2YEXT sVideoTexture;
+uniform __samplerExternal2DY2YEXT sDepthTexture;
+// blurred video YUV in rgb, upsampled by linear filtering
+uniform sampler2D sBlurTexture;
+
+void main() {
+  vec2 texCoord = vec2((vTextureCoord.x + 1.0) / 2.0, 1.0 - (vTextureCoord.y + 1.0) / 2.0);
+  vec4 depthColor = texture(sDepthTexture, texCoord);
+  vec3 videoColor;
+
+  if (depthColor.x > uDepthThreshold) {
+    videoColor = texture(sVideoTexture, texCoord).xyz;
+  } else {
+    // the blur targets are not flipped
+    videoColor = texture(sBlurTexture, (vTextureCoord + 1.0) / 2.0).xyz;
+  }
+
+  fragColor = vec4(yuv_2_rgb(videoColor, itu_709), 0.0);
+}
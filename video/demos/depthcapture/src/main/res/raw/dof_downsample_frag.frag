@@ -0,0 +1,29 @@
+#version 300 es
+
+#extension GL_OES_EGL_image_external : require
+#extension GL_OES_EGL_image_external_essl3 : require
+#extension GL_EXT_YUV_target : require
+
+precision mediump float;
+
+in vec2 vTextureCoord;
+out vec4 fragColor;
+
+// size of a texel of the downsampled target in texture coordinates
+uniform vec2 uTexelSize;
+uniform __samplerExternal2DY2YEXT sVideoTexture;
+uniform __samplerExternal2DY2YEXT sDepthTexture;
+
+// the source textures are sampled at the nearest texel, average 4 of them per target texel
+vec4 sampleVideoDepth(vec2 coord) {
+  return vec4(texture(sVideoTexture, coord).xyz, texture(sDepthTexture, coord).x);
+}
+
+void main() {
+  vec2 texCoord = vec2((vTextureCoord.x + 1.0) / 2.0, 1.0 - (vTextureCoord.y + 1.0) / 2.0);
+  vec2 d = uTexelSize / 4.0;
+  fragColor = (sampleVideoDepth(texCoord + vec2(-d.x, -d.y))
+      + sampleVideoDepth(texCoord + vec2(d.x, -d.y))
+      + sampleVideoDepth(texCoord + vec2(-d.x, d.y))
+      + sampleVideoDepth(texCoord + vec2(d.x, d.y))) / 4.0;
+}
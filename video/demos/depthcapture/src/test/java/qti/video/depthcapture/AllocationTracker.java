@@ -0,0 +1,66 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reports bytes allocated by the current thread, for allocation regression tests.
+ */
+public final class AllocationTracker {
+  private static final Method ALLOCATED_BYTES_METHOD;
+  private static final Object THREAD_MX_BEAN;
+
+  // java.lang.management is not part of the Android API, so look it up reflectively
+  static {
+    Method method = null;
+    Object bean = null;
+    try {
+      bean = Class.forName("java.lang.management.ManagementFactory")
+          .getMethod("getThreadMXBean").invoke(null);
+      method = Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      method = null;
+    }
+    ALLOCATED_BYTES_METHOD = method;
+    THREAD_MX_BEAN = bean;
+    // the reflective accessor is regenerated after a few calls, get that out of measurements
+    for (int i = 0; i < 32; ++i) {
+      currentThreadAllocatedBytes();
+    }
+  }
+
+  private AllocationTracker() {
+  }
+
+  public static boolean isSupported() {
+    return ALLOCATED_BYTES_METHOD != null;
+  }
+
+  /**
+   * Get bytes allocated by the current thread, or -1 if the JVM cannot report it.
+   */
+  public static long currentThreadAllocatedBytes() {
+    return threadAllocatedBytes(Thread.currentThread());
+  }
+
+  /**
+   * Get bytes allocated by a live thread, or -1 if the JVM cannot report it.
+   */
+  public static long threadAllocatedBytes(Thread thread) {
+    if (ALLOCATED_BYTES_METHOD == null) {
+      return -1;
+    }
+    try {
+      return (Long) ALLOCATED_BYTES_METHOD.invoke(THREAD_MX_BEAN, thread.getId());
+    } catch (ReflectiveOperationException e) {
+      return -1;
+    }
+  }
+}
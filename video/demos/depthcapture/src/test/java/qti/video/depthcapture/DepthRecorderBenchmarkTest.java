@@ -0,0 +1,210 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.junit.Test;
+import qti.video.depth.DepthFormat;
+
+/**
+ * Headless benchmark of the {@link DepthRecorder} mux hot path: per-track output queues and
+ * interleaving ({@link MuxScheduler}), the write-behind stage ({@link MuxWriter}) and metrics
+ * ({@link RecorderMetrics}), driven by {@link FakeEncoder}s into a {@link FakeMuxerSink}.
+ * The recorder thread is modeled by a single thread draining an event queue, like the recorder's
+ * handler thread draining codec callbacks. Results are printed to stdout so that CI can track
+ * them, and the ordering checks make it a regression test as well.
+ */
+public class DepthRecorderBenchmarkTest {
+
+  private static final int[] TRACK_TYPES = {
+      DepthFormat.TRACK_TYPE_SHARP_VIDEO,
+      DepthFormat.TRACK_TYPE_DEPTH_LINEAR,
+      DepthFormat.TRACK_TYPE_DEPTH_INVERSE,
+      DepthFormat.TRACK_TYPE_METADATA,
+      DepthFormat.TRACK_TYPE_TRANSLUCENT_VIDEO,
+  };
+
+  static final class Result {
+    int trackCount;
+    long sampleCount;
+    long byteCount;
+    long elapsedNs;
+    long droppedFrames;
+    long outOfOrderCount;
+    long allocatedBytesPerSample = -1;
+    RecorderMetrics.Snapshot metrics;
+
+    double samplesPerSecond() {
+      return sampleCount * 1e9 / elapsedNs;
+    }
+
+    double megabytesPerSecond() {
+      return byteCount * 1e9 / elapsedNs / (1024 * 1024);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "tracks %d: %d samples in %d ms, %.0f samples/s, %.1f MB/s, dropped %d,"
+              + " alloc/sample %d B\n  mux latency: %s\n  write latency: %s\n  io stall us %d",
+          trackCount, sampleCount, elapsedNs / 1000000, samplesPerSecond(),
+          megabytesPerSecond(), droppedFrames, allocatedBytesPerSample,
+          metrics.muxLatency, metrics.writeLatency, metrics.ioStallTimeUs);
+    }
+  }
+
+  // one pre-allocated event per encoder output buffer, like a codec buffer index
+  private static final class Event {
+    FakeEncoder encoder;
+    int index;
+    long presentationTimeUs;
+    int size;
+    int flags;
+    long availableTimeNs;
+  }
+
+  /**
+   * Run the mux path until all encoders reach EOS.
+   *
+   * @param trackCount number of tracks, 1 to 5.
+   * @param config encoder config shared by all tracks.
+   * @param sinkWriteLatencyUs simulated storage latency per sample.
+   * @param warmupSamples samples excluded from allocation accounting.
+   */
+  static Result run(int trackCount, FakeEncoder.Config config, long sinkWriteLatencyUs,
+                    int warmupSamples) throws InterruptedException {
+    final RecorderMetrics metrics = new RecorderMetrics();
+    final MuxScheduler<Event> scheduler = new MuxScheduler<>(
+        DepthFormat.MAX_TRACK_TYPE_COUNT, e -> e.presentationTimeUs);
+    final FakeMuxerSink sink = new FakeMuxerSink(DepthFormat.MAX_TRACK_TYPE_COUNT,
+        sinkWriteLatencyUs);
+    final MuxWriter writer = new MuxWriter(sink);
+    writer.setWriteLatencyHistogram(metrics.writeLatency);
+    final BlockingQueue<Event> inbox =
+        new ArrayBlockingQueue<>(trackCount * config.outputBufferCount);
+    final Event[][] events = new Event[DepthFormat.MAX_TRACK_TYPE_COUNT][];
+    final FakeEncoder[] encoders = new FakeEncoder[trackCount];
+
+    FakeEncoder.Callback callback = (encoder, index, ptsUs, size, flags) -> {
+      Event e = events[encoder.trackType][index];
+      e.encoder = encoder;
+      e.index = index;
+      e.presentationTimeUs = ptsUs;
+      e.size = size;
+      e.flags = flags;
+      e.availableTimeNs = System.nanoTime();
+      try {
+        inbox.put(e);
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    };
+    for (int i = 0; i < trackCount; ++i) {
+      int trackType = TRACK_TYPES[i];
+      scheduler.addTrack(trackType);
+      events[trackType] = new Event[config.outputBufferCount];
+      for (int j = 0; j < config.outputBufferCount; ++j) {
+        events[trackType][j] = new Event();
+      }
+      encoders[i] = new FakeEncoder(trackType, config, callback);
+    }
+
+    writer.start();
+    final long startNs = System.nanoTime();
+    metrics.markStart(startNs);
+    for (FakeEncoder encoder : encoders) {
+      encoder.start();
+    }
+
+    long muxed = 0;
+    long allocStart = -1;
+    long allocStartSample = 0;
+    while (!scheduler.isAllDrained()) {
+      Event e = inbox.take();
+      int trackType = e.encoder.trackType;
+      metrics.encodedFrames[trackType].inc();
+      scheduler.queue(trackType, e);
+      if ((e.flags & FakeEncoder.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        scheduler.setEos(trackType);
+      }
+      metrics.queueDepth[trackType].set(scheduler.size(trackType));
+
+      int next;
+      while ((next = scheduler.nextTrack()) != -1) {
+        Event out = scheduler.poll(next);
+        writer.submit(next, out.encoder.getOutputBuffer(out.index), 0, out.size,
+            out.presentationTimeUs, out.flags);
+        out.encoder.releaseOutputBuffer(out.index);
+        metrics.muxLatency.recordNs(System.nanoTime() - out.availableTimeNs);
+        metrics.muxWriterQueueDepth.set(writer.getPendingCount());
+        if (++muxed == warmupSamples) {
+          allocStart = AllocationTracker.currentThreadAllocatedBytes();
+          allocStartSample = muxed;
+        }
+      }
+    }
+    final long allocEnd = AllocationTracker.currentThreadAllocatedBytes();
+    writer.drainAndStop();
+    final long endNs = System.nanoTime();
+    metrics.ioStallTimeUs.set(writer.getStallTimeNs() / 1000);
+
+    Result result = new Result();
+    result.trackCount = trackCount;
+    result.elapsedNs = endNs - startNs;
+    result.outOfOrderCount = sink.getOutOfOrderCount();
+    result.byteCount = sink.getByteCount();
+    for (FakeEncoder encoder : encoders) {
+      encoder.join();
+      result.droppedFrames += encoder.getDroppedFrames();
+      result.sampleCount += sink.getSampleCount(encoder.trackType);
+    }
+    if (allocStart >= 0 && allocEnd >= 0 && muxed > allocStartSample) {
+      result.allocatedBytesPerSample = (allocEnd - allocStart) / (muxed - allocStartSample);
+    }
+    result.metrics = metrics.snapshot();
+    return result;
+  }
+
+  private static void check(Result result, FakeEncoder.Config config) {
+    assertEquals(0, result.outOfOrderCount);
+    assertEquals(result.trackCount * (long) config.frameCount,
+        result.sampleCount + result.droppedFrames);
+    assertEquals(result.sampleCount, result.metrics.muxLatency.count);
+  }
+
+  @Test
+  public void unthrottledThroughput_oneToFiveTracks() throws InterruptedException {
+    FakeEncoder.Config config = new FakeEncoder.Config();
+    config.paced = false;
+    config.frameCount = 600;
+    for (int trackCount = 1; trackCount <= TRACK_TYPES.length; ++trackCount) {
+      Result result = run(trackCount, config, 0, 2 * config.keyFrameInterval);
+      System.out.println("[unthrottled] " + result);
+      check(result, config);
+      assertEquals(0, result.droppedFrames);
+    }
+  }
+
+  @Test
+  public void pacedWithSlowStorage_fiveTracks() throws InterruptedException {
+    FakeEncoder.Config config = new FakeEncoder.Config();
+    config.frameRate = 120;
+    config.frameCount = 240;
+    // each write takes most of a frame interval shared by 5 tracks, only the write-behind
+    // queue keeps encoder buffers flowing
+    Result result = run(TRACK_TYPES.length, config, 1000, 2 * config.keyFrameInterval);
+    System.out.println("[paced 120fps, 1ms writes] " + result);
+    check(result, config);
+    assertTrue(result.metrics.writeLatency.p50Us >= 1000);
+  }
+}
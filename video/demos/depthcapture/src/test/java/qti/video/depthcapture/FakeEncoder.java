@@ -0,0 +1,138 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MediaCodec-like encoder which produces synthetic encoded frames, for running the recorder mux
+ * path on a plain JVM. Like a hardware encoder it owns a small pool of output buffers, which are
+ * handed to the client by index and must be returned with {@link #releaseOutputBuffer(int)}.
+ * In paced mode a frame is dropped when no output buffer is free at its due time, in unthrottled
+ * mode the encoder waits for a free buffer instead. The last frame, which carries EOS, is never
+ * dropped.
+ */
+class FakeEncoder {
+  static final int BUFFER_FLAG_KEY_FRAME = 1;
+  static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+  interface Callback {
+    void onOutputBufferAvailable(FakeEncoder encoder, int index, long presentationTimeUs,
+                                 int size, int flags);
+  }
+
+  static class Config {
+    int frameRate = 30;
+    // false to produce frames as fast as the client releases buffers
+    boolean paced = true;
+    int frameSize = 64 * 1024;
+    int keyFrameSize = 256 * 1024;
+    int keyFrameInterval = 30;
+    int frameCount = 300;
+    int outputBufferCount = 4;
+  }
+
+  final int trackType;
+  private final Config config;
+  private final Callback callback;
+  private final ByteBuffer[] outputBuffers;
+  private final BlockingQueue<Integer> freeBuffers;
+  private final Thread thread;
+  private volatile boolean running;
+  private volatile long droppedFrames;
+
+  FakeEncoder(int trackType, Config config, Callback callback) {
+    this.trackType = trackType;
+    this.config = config;
+    this.callback = callback;
+    int capacity = Math.max(config.frameSize, config.keyFrameSize);
+    outputBuffers = new ByteBuffer[config.outputBufferCount];
+    freeBuffers = new ArrayBlockingQueue<>(config.outputBufferCount);
+    for (int i = 0; i < config.outputBufferCount; ++i) {
+      outputBuffers[i] = ByteBuffer.allocateDirect(capacity);
+      // synthetic payload, the content does not matter but should not be all zero
+      for (int j = 0; j < capacity; j += 4) {
+        outputBuffers[i].putInt(j, j * 31 + trackType);
+      }
+      freeBuffers.add(i);
+    }
+    thread = new Thread(this::produce, "FakeEncoder-" + trackType);
+  }
+
+  void start() {
+    running = true;
+    thread.start();
+  }
+
+  void stop() {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void join() throws InterruptedException {
+    thread.join();
+  }
+
+  ByteBuffer getOutputBuffer(int index) {
+    return outputBuffers[index];
+  }
+
+  void releaseOutputBuffer(int index) {
+    freeBuffers.add(index);
+  }
+
+  long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  private void produce() {
+    final long frameIntervalNs = 1000000000L / config.frameRate;
+    final long startNs = System.nanoTime();
+    try {
+      for (int frame = 0; frame < config.frameCount && running; ++frame) {
+        Integer index;
+        if (config.paced) {
+          long dueNs = startNs + frame * frameIntervalNs;
+          long waitNs = dueNs - System.nanoTime();
+          if (waitNs > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNs);
+          }
+          boolean lastFrame = frame == config.frameCount - 1;
+          index = lastFrame ? freeBuffers.take() : freeBuffers.poll();
+          if (index == null) {
+            droppedFrames++;
+            continue;
+          }
+        } else {
+          index = freeBuffers.take();
+        }
+        boolean keyFrame = frame % config.keyFrameInterval == 0;
+        int size = keyFrame ? config.keyFrameSize : config.frameSize;
+        int flags = keyFrame ? BUFFER_FLAG_KEY_FRAME : 0;
+        if (frame == config.frameCount - 1) {
+          flags |= BUFFER_FLAG_END_OF_STREAM;
+        }
+        ByteBuffer buf = outputBuffers[index];
+        buf.limit(size);
+        buf.position(0);
+        long ptsUs = frame * 1000000L / config.frameRate;
+        callback.onOutputBufferAvailable(this, index, ptsUs, size, flags);
+      }
+    } catch (InterruptedException e) {
+      // stopped
+    }
+  }
+}
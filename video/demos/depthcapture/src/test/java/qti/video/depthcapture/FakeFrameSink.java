@@ -0,0 +1,109 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Surface stand-in for {@link SyntheticCameraSource}. It owns a small pool of planar YUV 4:2:0
+ * frames, and a consumer thread releases queued frames after checksumming them, like an encoder
+ * consuming its input surface.
+ */
+class FakeFrameSink implements SyntheticCameraSource.FrameSink {
+  private static final SyntheticCameraSource.Frame STOP =
+      new SyntheticCameraSource.Frame(null, null);
+
+  private final SyntheticCameraSource source;
+  private final BlockingQueue<SyntheticCameraSource.Frame> free;
+  private final BlockingQueue<SyntheticCameraSource.Frame> queued;
+  private final BlockingQueue<Long> timestamps;
+  private final List<Long> timestampsNs = new ArrayList<>();
+  private final List<Long> checksums = new ArrayList<>();
+  private final Thread thread;
+
+  FakeFrameSink(SyntheticCameraSource source, int width, int height, int bytesPerSample,
+                int frameCount) {
+    this.source = source;
+    free = new ArrayBlockingQueue<>(frameCount);
+    queued = new ArrayBlockingQueue<>(frameCount + 1);
+    timestamps = new ArrayBlockingQueue<>(frameCount + 1);
+    for (int i = 0; i < frameCount; ++i) {
+      ImageScaler.Plane[] planes = new ImageScaler.Plane[3];
+      for (int planeIndex = 0; planeIndex < planes.length; ++planeIndex) {
+        final int shift = planeIndex == 0 ? 0 : 1;
+        int w = (width + shift) >> shift;
+        int h = (height + shift) >> shift;
+        planes[planeIndex] = new ImageScaler.Plane(
+            ByteBuffer.allocateDirect(w * h * bytesPerSample), w, h, w * bytesPerSample,
+            bytesPerSample);
+      }
+      free.add(new SyntheticCameraSource.Frame(planes, null));
+    }
+    thread = new Thread(this::consume, "FakeFrameSink");
+    thread.start();
+  }
+
+  @Override
+  public SyntheticCameraSource.Frame dequeueFrame() {
+    return free.poll();
+  }
+
+  @Override
+  public void queueFrame(SyntheticCameraSource.Frame frame, long timestampNs) {
+    timestamps.add(timestampNs);
+    queued.add(frame);
+  }
+
+  @Override
+  public void close() {
+    queued.add(STOP);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // below getters should be called after close()
+
+  List<Long> getTimestampsNs() {
+    return timestampsNs;
+  }
+
+  List<Long> getChecksums() {
+    return checksums;
+  }
+
+  private void consume() {
+    try {
+      while (true) {
+        SyntheticCameraSource.Frame frame = queued.take();
+        if (frame == STOP) {
+          return;
+        }
+        timestampsNs.add(timestamps.take());
+        long checksum = 0;
+        for (ImageScaler.Plane plane : frame.planes) {
+          ByteBuffer buf = plane.buf;
+          for (int i = 0; i < buf.capacity(); ++i) {
+            checksum = checksum * 31 + buf.get(i);
+          }
+        }
+        checksums.add(checksum);
+        free.add(frame);
+        source.onFrameReleased();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
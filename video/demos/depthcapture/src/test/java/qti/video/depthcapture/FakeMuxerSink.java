@@ -0,0 +1,69 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Muxer stand-in which checks sample ordering and optionally simulates storage write latency.
+ */
+class FakeMuxerSink implements MuxWriter.SampleSink {
+  private final long writeLatencyNs;
+  private final long[] lastPtsUs;
+  private final long[] sampleCounts;
+  private long byteCount;
+  private long lastMuxedPtsUs = Long.MIN_VALUE;
+  private long outOfOrderCount;
+  private int checksum;
+
+  FakeMuxerSink(int maxTrackCount, long writeLatencyUs) {
+    this.writeLatencyNs = TimeUnit.MICROSECONDS.toNanos(writeLatencyUs);
+    lastPtsUs = new long[maxTrackCount];
+    sampleCounts = new long[maxTrackCount];
+    Arrays.fill(lastPtsUs, Long.MIN_VALUE);
+  }
+
+  @Override
+  public void writeSample(int trackIndex, ByteBuffer buf, long presentationTimeUs, int flags) {
+    if (presentationTimeUs <= lastPtsUs[trackIndex] || presentationTimeUs < lastMuxedPtsUs) {
+      outOfOrderCount++;
+    }
+    lastPtsUs[trackIndex] = presentationTimeUs;
+    lastMuxedPtsUs = presentationTimeUs;
+    sampleCounts[trackIndex]++;
+    byteCount += buf.remaining();
+    // touch the data like a real write would
+    checksum += buf.get(buf.position()) + buf.get(buf.limit() - 1);
+    if (writeLatencyNs > 0) {
+      long endNs = System.nanoTime() + writeLatencyNs;
+      while (System.nanoTime() < endNs) {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  // below getters should be called after the MuxWriter is drained
+
+  long getSampleCount(int trackIndex) {
+    return sampleCounts[trackIndex];
+  }
+
+  long getByteCount() {
+    return byteCount;
+  }
+
+  long getOutOfOrderCount() {
+    return outOfOrderCount;
+  }
+
+  int getChecksum() {
+    return checksum;
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * {@link FrameSynchronizer} with synthetic timestamps.
+ */
+public class FrameSynchronizerTest {
+  private static final long VIDEO_INTERVAL_US = 1000000L / 30;
+  private static final long TOLERANCE_US = 5000;
+
+  static final class Frame {
+    final int track;
+    final long ptsUs;
+
+    Frame(int track, long ptsUs) {
+      this.track = track;
+      this.ptsUs = ptsUs;
+    }
+  }
+
+  // checks that every frame is released once, and never while it's in an unreleased pair
+  static final class Releaser implements FrameSynchronizer.FrameReleaser<Frame> {
+    final Map<Frame, Integer> releaseCounts = new IdentityHashMap<>();
+    final Map<Frame, Integer> inPairCounts = new IdentityHashMap<>();
+    final int[] releasedPerTrack = new int[4];
+
+    @Override
+    public void releaseFrame(int track, Frame frame) {
+      assertEquals(frame.track, track);
+      assertEquals(0, (int) inPairCounts.getOrDefault(frame, 0));
+      assertEquals(null, releaseCounts.put(frame, 1));
+      releasedPerTrack[track]++;
+    }
+
+    void onPaired(Frame[] pair) {
+      for (Frame frame : pair) {
+        inPairCounts.merge(frame, 1, Integer::sum);
+      }
+    }
+
+    void onReleasePair(Frame[] pair) {
+      for (Frame frame : pair) {
+        inPairCounts.merge(frame, -1, Integer::sum);
+      }
+    }
+  }
+
+  private final Releaser releaser = new Releaser();
+  private final List<Frame[]> pairs = new ArrayList<>();
+
+  // poll and release all available pairs
+  private void drain(FrameSynchronizer<Frame> sync, int trackCount) {
+    while (true) {
+      Frame[] pair = new Frame[trackCount];
+      if (!sync.pollPair(pair)) {
+        return;
+      }
+      assertEquals(pair[0].ptsUs, sync.getPairPtsUs());
+      pairs.add(pair.clone());
+      releaser.onPaired(pair);
+      releaser.onReleasePair(pair);
+      sync.releasePair(pair);
+    }
+  }
+
+  @Test
+  public void sameRate_allPaired() {
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, TOLERANCE_US, releaser);
+    final int frameCount = 100;
+    for (int i = 0; i < frameCount; ++i) {
+      long ptsUs = i * VIDEO_INTERVAL_US;
+      // depth is 3 ms late and jitters
+      sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+      drain(sync, 2);
+      long depthPtsUs = ptsUs + (i % 2 == 0 ? 3000 : -3000);
+      sync.queueFrame(1, depthPtsUs, new Frame(1, depthPtsUs));
+      drain(sync, 2);
+    }
+    sync.setEos(0);
+    sync.setEos(1);
+    drain(sync, 2);
+    assertTrue(sync.isEos());
+    assertEquals(frameCount, pairs.size());
+    for (int i = 0; i < frameCount; ++i) {
+      assertEquals(i * VIDEO_INTERVAL_US, pairs.get(i)[0].ptsUs);
+      assertTrue(Math.abs(pairs.get(i)[1].ptsUs - pairs.get(i)[0].ptsUs) <= TOLERANCE_US);
+    }
+    assertEquals(0, sync.getDroppedCount(0));
+    assertEquals(0, sync.getDroppedCount(1));
+    assertEquals(frameCount, releaser.releasedPerTrack[0]);
+    assertEquals(frameCount, releaser.releasedPerTrack[1]);
+  }
+
+  @Test
+  public void halfRateDepth_reusedWithSingleImageSource() {
+    // depth at 15 fps from a decoder with a single output image: the next depth frame is only
+    // available after the previous one is released
+    final long depthIntervalUs = VIDEO_INTERVAL_US * 2;
+    final long toleranceUs = depthIntervalUs / 2 + 1000;
+    final int[] depthOutstanding = new int[1];
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, toleranceUs,
+        (track, frame) -> {
+          releaser.releaseFrame(track, frame);
+          if (track == 1) {
+            depthOutstanding[0]--;
+          }
+        });
+    sync.setFrameReuse(1, true);
+    final int videoCount = 120;
+    int nextDepth = 0;
+    for (int i = 0; i < videoCount; ++i) {
+      long ptsUs = i * VIDEO_INTERVAL_US;
+      sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+      while (true) {
+        if (depthOutstanding[0] == 0 && nextDepth < videoCount / 2) {
+          long depthPtsUs = nextDepth++ * depthIntervalUs;
+          depthOutstanding[0]++;
+          sync.queueFrame(1, depthPtsUs, new Frame(1, depthPtsUs));
+        }
+        int pairCount = pairs.size();
+        drain(sync, 2);
+        if (pairs.size() == pairCount && (depthOutstanding[0] > 0
+            || nextDepth == videoCount / 2)) {
+          break;
+        }
+      }
+    }
+    assertEquals(videoCount, pairs.size());
+    for (Frame[] pair : pairs) {
+      // the earlier depth frame wins a tie
+      assertTrue(pair[1].ptsUs <= pair[0].ptsUs);
+      assertTrue(pair[0].ptsUs - pair[1].ptsUs <= toleranceUs);
+    }
+    assertEquals(0, sync.getDroppedCount(0));
+    assertEquals(0, sync.getDroppedCount(1));
+    assertEquals(videoCount / 2, sync.getReusedCount(1));
+  }
+
+  @Test
+  public void sameRateDepth_reuseWaitsForNextFrame() {
+    // frame reuse doesn't pair video with the previous depth frame of a same rate clip, when the
+    // next depth frame is only decoded after the previous one is released
+    final long toleranceUs = VIDEO_INTERVAL_US + 1000;
+    final int[] depthOutstanding = new int[1];
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, toleranceUs,
+        (track, frame) -> {
+          releaser.releaseFrame(track, frame);
+          if (track == 1) {
+            depthOutstanding[0]--;
+          }
+        });
+    sync.setFrameReuse(1, true);
+    final int frameCount = 60;
+    int nextDepth = 0;
+    for (int i = 0; i < frameCount; ++i) {
+      sync.queueFrame(0, i * VIDEO_INTERVAL_US, new Frame(0, i * VIDEO_INTERVAL_US));
+      while (true) {
+        if (depthOutstanding[0] == 0 && nextDepth < frameCount) {
+          long depthPtsUs = nextDepth++ * VIDEO_INTERVAL_US;
+          depthOutstanding[0]++;
+          sync.queueFrame(1, depthPtsUs, new Frame(1, depthPtsUs));
+        }
+        int pairCount = pairs.size();
+        drain(sync, 2);
+        if (pairs.size() == pairCount && (depthOutstanding[0] > 0 || nextDepth == frameCount)) {
+          break;
+        }
+      }
+    }
+    assertEquals(frameCount, pairs.size());
+    // the frame interval is known from the second depth frame
+    for (int i = 2; i < frameCount; ++i) {
+      assertEquals(pairs.get(i)[0].ptsUs, pairs.get(i)[1].ptsUs);
+    }
+    assertEquals(0, sync.getDroppedCount(0));
+  }
+
+  @Test
+  public void reusedFrame_releasedAfterLastPair() {
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, VIDEO_INTERVAL_US, releaser);
+    sync.setFrameReuse(1, true);
+    Frame depth = new Frame(1, 0);
+    sync.queueFrame(1, 0, depth);
+    Frame[] first = new Frame[2];
+    Frame[] second = new Frame[2];
+    sync.queueFrame(0, 0, new Frame(0, 0));
+    assertTrue(sync.pollPair(first));
+    releaser.onPaired(first);
+    sync.queueFrame(0, VIDEO_INTERVAL_US, new Frame(0, VIDEO_INTERVAL_US));
+    assertTrue(sync.pollPair(second));
+    releaser.onPaired(second);
+    assertSame(depth, first[1]);
+    assertSame(depth, second[1]);
+
+    // the depth frame is retired by a later frame, while both pairs are in use
+    Frame nextDepth = new Frame(1, VIDEO_INTERVAL_US * 2);
+    sync.queueFrame(1, nextDepth.ptsUs, nextDepth);
+    sync.queueFrame(0, VIDEO_INTERVAL_US * 2, new Frame(0, VIDEO_INTERVAL_US * 2));
+    Frame[] third = new Frame[2];
+    assertTrue(sync.pollPair(third));
+    releaser.onPaired(third);
+    assertSame(nextDepth, third[1]);
+    assertFalse(releaser.releaseCounts.containsKey(depth));
+
+    releaser.onReleasePair(second);
+    sync.releasePair(second);
+    assertFalse(releaser.releaseCounts.containsKey(depth));
+    releaser.onReleasePair(first);
+    sync.releasePair(first);
+    assertTrue(releaser.releaseCounts.containsKey(depth));
+    releaser.onReleasePair(third);
+    sync.releasePair(third);
+    sync.setEos(0);
+    sync.setEos(1);
+    assertFalse(sync.pollPair(third));
+    assertTrue(releaser.releaseCounts.containsKey(nextDepth));
+  }
+
+  @Test
+  public void missingDepth_videoDropped() {
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, TOLERANCE_US, releaser);
+    final int frameCount = 60;
+    for (int i = 0; i < frameCount; ++i) {
+      long ptsUs = i * VIDEO_INTERVAL_US;
+      sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+      if (i < 20 || i >= 30) {
+        sync.queueFrame(1, ptsUs, new Frame(1, ptsUs));
+      }
+      drain(sync, 2);
+    }
+    sync.setEos(0);
+    sync.setEos(1);
+    drain(sync, 2);
+    assertEquals(frameCount - 10, pairs.size());
+    assertEquals(10, sync.getDroppedCount(0));
+    assertEquals(0, sync.getDroppedCount(1));
+    for (Frame[] pair : pairs) {
+      assertEquals(pair[0].ptsUs, pair[1].ptsUs);
+    }
+    assertEquals(frameCount, releaser.releasedPerTrack[0]);
+    assertEquals(frameCount - 10, releaser.releasedPerTrack[1]);
+  }
+
+  @Test
+  public void restartedDepth_lateAndDropped() {
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, TOLERANCE_US, releaser);
+    final int frameCount = 10;
+    for (int i = 0; i < frameCount; ++i) {
+      long ptsUs = i * VIDEO_INTERVAL_US;
+      sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+      sync.queueFrame(1, ptsUs, new Frame(1, ptsUs));
+      drain(sync, 2);
+    }
+    assertEquals(0, sync.getLateCount(1));
+    // a restarted depth decoder outputs frames 4..9 again before frame 10, all but frame 9 are
+    // older than the last pair
+    for (int i = 4; i <= frameCount; ++i) {
+      sync.queueFrame(1, i * VIDEO_INTERVAL_US, new Frame(1, i * VIDEO_INTERVAL_US));
+    }
+    final long ptsUs = frameCount * VIDEO_INTERVAL_US;
+    sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+    drain(sync, 2);
+    assertEquals(frameCount + 1, pairs.size());
+    assertEquals(ptsUs, pairs.get(frameCount)[1].ptsUs);
+    assertEquals(5, sync.getLateCount(1));
+    assertEquals(6, sync.getDroppedCount(1));
+    assertEquals(0, sync.getDroppedCount(0));
+  }
+
+  @Test
+  public void depthEos_videoDroppedAndFlushed() {
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(2, TOLERANCE_US, releaser);
+    sync.setFrameReuse(1, true);
+    sync.queueFrame(1, 0, new Frame(1, 0));
+    sync.setEos(1);
+    for (int i = 0; i < 5; ++i) {
+      long ptsUs = i * VIDEO_INTERVAL_US;
+      sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+    }
+    drain(sync, 2);
+    // the held depth frame pairs with video 0 only
+    assertEquals(1, pairs.size());
+    assertEquals(4, sync.getDroppedCount(0));
+    assertFalse(sync.isEos());
+    sync.setEos(0);
+    drain(sync, 2);
+    assertTrue(sync.isEos());
+    assertEquals(5, releaser.releasedPerTrack[0]);
+    assertEquals(1, releaser.releasedPerTrack[1]);
+  }
+
+  @Test
+  public void threeTracks_pairedWithinTolerance() {
+    FrameSynchronizer<Frame> sync = new FrameSynchronizer<>(3, TOLERANCE_US, releaser);
+    final int frameCount = 50;
+    for (int i = 0; i < frameCount; ++i) {
+      long ptsUs = i * VIDEO_INTERVAL_US;
+      sync.queueFrame(2, ptsUs - 2000, new Frame(2, ptsUs - 2000));
+      sync.queueFrame(1, ptsUs + 4000, new Frame(1, ptsUs + 4000));
+      drain(sync, 3);
+      sync.queueFrame(0, ptsUs, new Frame(0, ptsUs));
+      drain(sync, 3);
+    }
+    assertEquals(frameCount, pairs.size());
+    for (int i = 0; i < frameCount; ++i) {
+      Frame[] pair = pairs.get(i);
+      assertEquals(pair[0].ptsUs + 4000, pair[1].ptsUs);
+      assertEquals(pair[0].ptsUs - 2000, pair[2].ptsUs);
+    }
+    assertEquals(0, sync.getPendingCount(1));
+    assertEquals(frameCount * 3, releaser.releaseCounts.size());
+  }
+}
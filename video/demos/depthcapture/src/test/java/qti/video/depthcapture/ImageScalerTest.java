@@ -0,0 +1,114 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * {@link ImageScaler} with small planes of known samples.
+ */
+public class ImageScalerTest {
+
+  private static ImageScaler.Plane plane8(int width, int height, int rowStride, int pixelStride,
+                                          int... samples) {
+    ByteBuffer buf = ByteBuffer.allocate(rowStride * height);
+    for (int i = 0; i < samples.length; ++i) {
+      buf.put((i / width) * rowStride + (i % width) * pixelStride, (byte) samples[i]);
+    }
+    return new ImageScaler.Plane(buf, width, height, rowStride, pixelStride);
+  }
+
+  private static int get8(ImageScaler.Plane plane, int x, int y) {
+    return plane.buf.get(y * plane.rowStride + x * plane.pixelStride) & 0xff;
+  }
+
+  @Test
+  public void boxFilter_8bitWithPadding() {
+    ImageScaler.Plane src = plane8(4, 4, 6, 1,
+        0, 2, 10, 20,
+        4, 6, 30, 40,
+        255, 255, 1, 1,
+        255, 254, 1, 2);
+    ImageScaler.Plane dst = plane8(2, 2, 3, 1);
+    ImageScaler.scalePlane(src, dst, 1);
+    assertEquals(3, get8(dst, 0, 0));
+    assertEquals(25, get8(dst, 1, 0));
+    // rounded
+    assertEquals(255, get8(dst, 0, 1));
+    assertEquals(1, get8(dst, 1, 1));
+    // padding untouched
+    assertEquals(0, dst.buf.get(2));
+    assertEquals(0, src.buf.position());
+    assertEquals(src.buf.capacity(), src.buf.limit());
+  }
+
+  @Test
+  public void boxFilter_interleavedChroma() {
+    // U and V samples of a 4x2 semi-planar plane, U plane at offset 0
+    ImageScaler.Plane src = plane8(4, 2, 8, 2,
+        10, 20, 30, 40,
+        50, 60, 70, 80);
+    ImageScaler.Plane dst = plane8(2, 1, 4, 2);
+    ImageScaler.scalePlane(src, dst, 1);
+    assertEquals(35, get8(dst, 0, 0));
+    assertEquals(55, get8(dst, 1, 0));
+    assertEquals(0, dst.buf.get(1));
+  }
+
+  @Test
+  public void boxFilter_16bitLittleEndian() {
+    // P010 samples, 10 bits in the high bits of each word
+    ByteBuffer srcBuf = ByteBuffer.allocate(8);
+    final int[] samples = {1023 << 6, 1021 << 6, 1 << 6, 3 << 6};
+    for (int i = 0; i < samples.length; ++i) {
+      srcBuf.put(i * 2, (byte) samples[i]);
+      srcBuf.put(i * 2 + 1, (byte) (samples[i] >>> 8));
+    }
+    ImageScaler.Plane src = new ImageScaler.Plane(srcBuf, 2, 2, 4, 2);
+    ImageScaler.Plane dst = new ImageScaler.Plane(ByteBuffer.allocate(2), 1, 1, 2, 2);
+    ImageScaler.scalePlane(src, dst, 2);
+    final int value = (dst.buf.get(0) & 0xff) | ((dst.buf.get(1) & 0xff) << 8);
+    assertEquals(512 << 6, value);
+  }
+
+  @Test
+  public void nearest_nonIntegerRatio() {
+    ImageScaler.Plane src = plane8(3, 3, 3, 1,
+        1, 2, 3,
+        4, 5, 6,
+        7, 8, 9);
+    ImageScaler.Plane dst = plane8(2, 2, 2, 1);
+    ImageScaler.scalePlane(src, dst, 1);
+    assertEquals(1, get8(dst, 0, 0));
+    assertEquals(2, get8(dst, 1, 0));
+    assertEquals(4, get8(dst, 0, 1));
+    assertEquals(5, get8(dst, 1, 1));
+  }
+
+  @Test
+  public void upscale_unsupported() {
+    ImageScaler.checkDownscale(640, 480, 640, 480);
+    ImageScaler.checkDownscale(640, 480, 320, 240);
+    try {
+      ImageScaler.checkDownscale(640, 480, 641, 240);
+      fail("wider");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      ImageScaler.scalePlane(plane8(2, 2, 2, 1), plane8(2, 4, 2, 1), 1);
+      fail("taller");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * {@link MuxWriter} ordering, back-pressure and stop with a recording sink.
+ */
+public class MuxWriterTest {
+  private static final long TIMEOUT_MS = 5000;
+
+  // records the samples it's given, optionally waiting before each write
+  private static final class RecordingSink implements MuxWriter.SampleSink {
+    final List<Integer> trackIndices = new ArrayList<>();
+    final List<Long> ptsUs = new ArrayList<>();
+    final List<Integer> flags = new ArrayList<>();
+    final List<Integer> firstBytes = new ArrayList<>();
+    final List<Integer> sizes = new ArrayList<>();
+    final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+    CountDownLatch writeGate;
+    long writeSleepMs;
+    volatile Thread writeThread;
+
+    @Override
+    public void writeSample(int trackIndex, ByteBuffer buf, long presentationTimeUs, int flags) {
+      writeThread = Thread.currentThread();
+      firstWriteStarted.countDown();
+      try {
+        if (writeGate != null) {
+          assertTrue(writeGate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+        if (writeSleepMs > 0) {
+          Thread.sleep(writeSleepMs);
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      trackIndices.add(trackIndex);
+      ptsUs.add(presentationTimeUs);
+      this.flags.add(flags);
+      firstBytes.add((int) buf.get(buf.position()));
+      sizes.add(buf.remaining());
+    }
+  }
+
+  private static void submit(MuxWriter writer, ByteBuffer src, int sample) {
+    // a sample in the middle of the buffer, with its index as content
+    final int size = 16 + sample % 7;
+    for (int i = 0; i < size; ++i) {
+      src.put(8 + i, (byte) sample);
+    }
+    writer.submit(sample % 3, src, 8, size, sample * 1000L, sample % 2);
+  }
+
+  @Test
+  public void submittedSamples_writtenInOrder() {
+    RecordingSink sink = new RecordingSink();
+    MuxWriter writer = new MuxWriter(sink, 4);
+    writer.start();
+    ByteBuffer src = ByteBuffer.allocate(64);
+    src.position(3).limit(50);
+    final int samples = 100;
+    for (int i = 0; i < samples; ++i) {
+      submit(writer, src, i);
+      assertEquals(3, src.position());
+      assertEquals(50, src.limit());
+    }
+    writer.drainAndStop();
+
+    assertEquals(samples, writer.getSubmitCount());
+    assertEquals(samples, writer.getWriteCount());
+    assertEquals(samples, sink.ptsUs.size());
+    for (int i = 0; i < samples; ++i) {
+      assertEquals(i % 3, (int) sink.trackIndices.get(i));
+      assertEquals(i * 1000L, (long) sink.ptsUs.get(i));
+      assertEquals(i % 2, (int) sink.flags.get(i));
+      assertEquals((byte) i, (int) sink.firstBytes.get(i));
+      assertEquals(16 + i % 7, (int) sink.sizes.get(i));
+    }
+  }
+
+  @Test
+  public void allSlotsInUse_submitBlocksUntilWritten() throws InterruptedException {
+    RecordingSink sink = new RecordingSink();
+    sink.writeGate = new CountDownLatch(1);
+    final int capacity = 2;
+    MuxWriter writer = new MuxWriter(sink, capacity);
+    writer.start();
+    ByteBuffer src = ByteBuffer.allocate(64);
+    // one sample held by the blocked write, one pending, then no free slot
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i <= capacity; ++i) {
+        submit(writer, src, i);
+      }
+    });
+    producer.start();
+    assertTrue(sink.firstWriteStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (producer.getState() != Thread.State.WAITING
+        && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(1);
+    }
+    assertEquals(Thread.State.WAITING, producer.getState());
+    assertEquals(capacity, writer.getSubmitCount());
+    assertEquals(0, writer.getWriteCount());
+
+    sink.writeGate.countDown();
+    producer.join(TIMEOUT_MS);
+    assertFalse(producer.isAlive());
+    writer.drainAndStop();
+    assertEquals(capacity + 1, writer.getWriteCount());
+    assertTrue(writer.getStallTimeNs() > 0);
+  }
+
+  @Test
+  public void drainAndStop_writesPendingSamplesAndJoins() throws InterruptedException {
+    RecordingSink sink = new RecordingSink();
+    sink.writeGate = new CountDownLatch(1);
+    sink.writeSleepMs = 1;
+    final int capacity = 8;
+    MuxWriter writer = new MuxWriter(sink, capacity);
+    writer.start();
+    ByteBuffer src = ByteBuffer.allocate(64);
+    for (int i = 0; i < capacity; ++i) {
+      submit(writer, src, i);
+    }
+    // the first sample is being written, the others are pending
+    assertTrue(sink.firstWriteStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(capacity - 1, writer.getPendingCount());
+    sink.writeGate.countDown();
+    writer.drainAndStop();
+
+    assertEquals(capacity, writer.getWriteCount());
+    assertEquals(capacity, sink.ptsUs.size());
+    assertEquals(0, writer.getPendingCount());
+    assertFalse(sink.writeThread.isAlive());
+    // stopping again is a no-op
+    writer.drainAndStop();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import qti.video.depth.DepthFormat;
+
+/**
+ * {@link RecorderMetrics} histogram buckets and percentiles on known distributions, and resets.
+ */
+public class RecorderMetricsTest {
+  private static final int SUB_BUCKET_COUNT = RecorderMetrics.LatencyHistogram.SUB_BUCKET_COUNT;
+
+  // a percentile is the upper bound of its bucket, within the relative precision of the buckets
+  private static void assertPercentile(long expected, long actual) {
+    assertTrue("expected " + expected + " got " + actual,
+        actual >= expected && actual <= expected + expected / SUB_BUCKET_COUNT);
+  }
+
+  @Test
+  public void bucketBoundaries_contiguousAndExactBelowSubBucketCount() {
+    for (int v = 0; v < SUB_BUCKET_COUNT; ++v) {
+      assertEquals(v, RecorderMetrics.LatencyHistogram.bucketIndex(v));
+      assertEquals(v, RecorderMetrics.LatencyHistogram.bucketLowerBound(v));
+      assertEquals(v, RecorderMetrics.LatencyHistogram.bucketUpperBound(v));
+    }
+    // powers of two start a bucket, the value before them ends one
+    assertEquals(32, RecorderMetrics.LatencyHistogram.bucketIndex(32));
+    assertEquals(63, RecorderMetrics.LatencyHistogram.bucketIndex(63));
+    assertEquals(64, RecorderMetrics.LatencyHistogram.bucketIndex(64));
+    assertEquals(64, RecorderMetrics.LatencyHistogram.bucketIndex(65));
+    assertEquals(65, RecorderMetrics.LatencyHistogram.bucketIndex(66));
+
+    final int lastIndex = RecorderMetrics.LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+    assertTrue(lastIndex < RecorderMetrics.LatencyHistogram.BUCKET_COUNT);
+    for (int i = 0; i < lastIndex; ++i) {
+      long lower = RecorderMetrics.LatencyHistogram.bucketLowerBound(i);
+      long upper = RecorderMetrics.LatencyHistogram.bucketUpperBound(i);
+      assertEquals("lower " + i, i, RecorderMetrics.LatencyHistogram.bucketIndex(lower));
+      assertEquals("upper " + i, i, RecorderMetrics.LatencyHistogram.bucketIndex(upper));
+      assertEquals(upper + 1, RecorderMetrics.LatencyHistogram.bucketLowerBound(i + 1));
+      // about 3% relative precision
+      assertTrue("width " + i, upper - lower <= Math.max(0, lower / SUB_BUCKET_COUNT));
+    }
+    assertEquals(lastIndex, RecorderMetrics.LatencyHistogram.bucketIndex(
+        RecorderMetrics.LatencyHistogram.bucketLowerBound(lastIndex)));
+  }
+
+  @Test
+  public void uniformDistribution_percentiles() {
+    RecorderMetrics.LatencyHistogram histogram = new RecorderMetrics.LatencyHistogram();
+    // 1..1000us, in reverse to show the order doesn't matter
+    for (int v = 1000; v >= 1; --v) {
+      histogram.recordNs(v * 1000L);
+    }
+    RecorderMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.count);
+    assertEquals(500, snapshot.meanUs);
+    assertEquals(1000, snapshot.maxUs);
+    assertPercentile(500, snapshot.p50Us);
+    assertPercentile(900, snapshot.p90Us);
+    assertPercentile(990, snapshot.p99Us);
+    // the bucket of 999 ends above the max, percentiles are capped by it
+    assertEquals(1000, snapshot.p999Us);
+  }
+
+  @Test
+  public void longTail_percentilesSeparateTailFromBody() {
+    RecorderMetrics.LatencyHistogram histogram = new RecorderMetrics.LatencyHistogram();
+    // 98 fast writes, then 2 stalls
+    for (int i = 0; i < 98; ++i) {
+      histogram.record(10);
+    }
+    histogram.record(50000);
+    histogram.record(40000);
+    RecorderMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(100, snapshot.count);
+    assertEquals(10, snapshot.p50Us);
+    assertEquals(10, snapshot.p90Us);
+    assertPercentile(40000, snapshot.p99Us);
+    assertEquals(50000, snapshot.p999Us);
+    assertEquals(50000, snapshot.maxUs);
+    assertEquals((98 * 10 + 90000) / 100, snapshot.meanUs);
+  }
+
+  @Test
+  public void negativeValue_recordedAsZero() {
+    RecorderMetrics.LatencyHistogram histogram = new RecorderMetrics.LatencyHistogram();
+    histogram.record(-5);
+    RecorderMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(1, snapshot.count);
+    assertEquals(0, snapshot.meanUs);
+    assertEquals(0, snapshot.p50Us);
+    assertEquals(0, snapshot.maxUs);
+  }
+
+  @Test
+  public void reset_clearsHistogramsCountersAndGauges() {
+    RecorderMetrics metrics = new RecorderMetrics();
+    final int trackType = DepthFormat.TRACK_TYPE_SHARP_VIDEO;
+    metrics.encodedFrames[trackType].add(30);
+    metrics.droppedFrames[trackType].inc();
+    metrics.queueDepth[trackType].set(5);
+    metrics.queueDepth[trackType].set(2);
+    metrics.muxLatency.record(1234);
+    metrics.writeLatency.record(56);
+    RecorderMetrics.Snapshot before = metrics.snapshot();
+    assertEquals(30, before.encodedFrames[trackType]);
+    assertEquals(1, before.droppedFrames[trackType]);
+    assertEquals(2, before.queueDepth[trackType]);
+    assertEquals(5, before.maxQueueDepth[trackType]);
+    assertEquals(1, before.muxLatency.count);
+    assertPercentile(1234, before.muxLatency.p50Us);
+
+    metrics.reset();
+    RecorderMetrics.Snapshot after = metrics.snapshot();
+    assertEquals(0, after.encodedFrames[trackType]);
+    assertEquals(0, after.droppedFrames[trackType]);
+    assertEquals(0, after.maxQueueDepth[trackType]);
+    assertEquals(0, after.muxLatency.count);
+    assertEquals(0, after.muxLatency.p50Us);
+    assertEquals(0, after.muxLatency.maxUs);
+    assertEquals(0, after.writeLatency.count);
+    assertEquals(0, metrics.muxLatency.getCount());
+
+    // recording works as before after a reset
+    metrics.muxLatency.record(7);
+    assertEquals(7, metrics.muxLatency.snapshot().p99Us);
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import qti.video.depth.DepthFormat;
+
+/**
+ * Headless run of {@link SyntheticCameraSource} into {@link FakeFrameSink}s.
+ */
+public class SyntheticCameraSourceTest {
+
+  private static final int[] FRAME_TRACK_TYPES = {
+      DepthFormat.TRACK_TYPE_SHARP_VIDEO,
+      DepthFormat.TRACK_TYPE_DEPTH_LINEAR,
+      DepthFormat.TRACK_TYPE_DEPTH_INVERSE,
+  };
+
+  static final class Result {
+    final FakeFrameSink[] sinks = new FakeFrameSink[DepthFormat.MAX_TRACK_TYPE_COUNT];
+    final List<Long> metadataPtsUs = new ArrayList<>();
+    final List<Long> metadataFrameIndices = new ArrayList<>();
+    boolean metadataEos;
+    long elapsedNs;
+    SyntheticCameraSource source;
+  }
+
+  private static SyntheticCameraSource.Config smallConfig() {
+    SyntheticCameraSource.Config config = new SyntheticCameraSource.Config();
+    config.videoWidth = 320;
+    config.videoHeight = 180;
+    config.depthWidth = 160;
+    config.depthHeight = 90;
+    config.frameRate = 60;
+    config.metadataSize = 256;
+    config.frameCount = 300;
+    config.fastReplay = true;
+    return config;
+  }
+
+  static Result run(SyntheticCameraSource.Config config) throws InterruptedException {
+    final Result result = new Result();
+    final SyntheticCameraSource source = new SyntheticCameraSource(config);
+    result.source = source;
+    final CountDownLatch finished = new CountDownLatch(1);
+    source.setOnFinishedListener(finished::countDown);
+    source.init();
+    for (int trackType : FRAME_TRACK_TYPES) {
+      int bitDepth = source.getTrackBitDepth(trackType);
+      result.sinks[trackType] = new FakeFrameSink(source,
+          source.getTrackOutputWidth(trackType), source.getTrackOutputHeight(trackType),
+          bitDepth == 8 ? 1 : 2, 2);
+      source.setOutputSink(trackType, result.sinks[trackType]);
+    }
+    final TrackDataSource metadata = source.getMetadataDataSource();
+    metadata.setOutputListener(new TrackDataSource.OutputListener() {
+      @Override
+      public void onOutputAvailable() {
+        TrackBuffer buffer;
+        while ((buffer = metadata.dequeueBuffer()) != null) {
+          result.metadataPtsUs.add(buffer.bufferInfo.presentationTimeUs);
+          result.metadataFrameIndices.add(buffer.byteBuf.getLong(0));
+          metadata.queueBuffer(buffer);
+        }
+      }
+
+      @Override
+      public void onEos() {
+        result.metadataEos = true;
+      }
+    });
+
+    final long startNs = System.nanoTime();
+    source.start();
+    assertTrue(finished.await(30, TimeUnit.SECONDS));
+    result.elapsedNs = System.nanoTime() - startNs;
+    source.stop();
+    source.release();
+    return result;
+  }
+
+  @Test
+  public void fastReplay_allFramesInOrder() throws InterruptedException {
+    SyntheticCameraSource.Config config = smallConfig();
+    Result result = run(config);
+    for (int trackType : FRAME_TRACK_TYPES) {
+      List<Long> timestampsNs = result.sinks[trackType].getTimestampsNs();
+      assertEquals(config.frameCount, timestampsNs.size());
+      assertEquals(0, result.source.getDroppedFrameCount(trackType));
+      for (int i = 0; i < timestampsNs.size(); ++i) {
+        assertEquals(i * 1000000L / config.frameRate * 1000, (long) timestampsNs.get(i));
+      }
+    }
+    assertEquals(config.frameCount, result.metadataPtsUs.size());
+    for (int i = 0; i < result.metadataPtsUs.size(); ++i) {
+      assertEquals(i, (long) result.metadataFrameIndices.get(i));
+      assertEquals(i * 1000000L / config.frameRate, (long) result.metadataPtsUs.get(i));
+    }
+    assertTrue(result.metadataEos);
+    System.out.println(String.format(Locale.US, "[synthetic %dx%d + 2 x %dx%d] %.0f frames/s",
+        config.videoWidth, config.videoHeight, config.depthWidth, config.depthHeight,
+        config.frameCount * 1e9 / result.elapsedNs));
+  }
+
+  @Test
+  public void fastReplay_deterministic() throws InterruptedException {
+    SyntheticCameraSource.Config config = smallConfig();
+    config.videoBitDepth = 10;
+    config.depthBitDepth = 16;
+    Result first = run(config);
+    Result second = run(config);
+    for (int trackType : FRAME_TRACK_TYPES) {
+      assertEquals(first.sinks[trackType].getChecksums(),
+          second.sinks[trackType].getChecksums());
+    }
+  }
+
+  @Test
+  public void depthSamples() {
+    SyntheticFrameGenerator generator = new SyntheticFrameGenerator(30);
+    final int width = 64;
+    final int height = 36;
+    for (int bitDepth : new int[] {8, 10, 16}) {
+      int bytesPerSample = bitDepth == 8 ? 1 : 2;
+      ImageScaler.Plane[] planes = new ImageScaler.Plane[3];
+      for (int planeIndex = 0; planeIndex < planes.length; ++planeIndex) {
+        int shift = planeIndex == 0 ? 0 : 1;
+        int w = width >> shift;
+        int h = height >> shift;
+        planes[planeIndex] = new ImageScaler.Plane(ByteBuffer.allocate(w * h * bytesPerSample),
+            w, h, w * bytesPerSample, bytesPerSample);
+      }
+      generator.fillDepth(7, DepthFormat.TRACK_TYPE_DEPTH_LINEAR, planes, bitDepth);
+      ByteBuffer luma = planes[0].buf;
+      for (int y = 0; y < height; ++y) {
+        for (int x = 0; x < width; ++x) {
+          int offset = (y * width + x) * bytesPerSample;
+          int sample = bytesPerSample == 1 ? luma.get(offset) & 0xff
+              : (luma.get(offset) & 0xff) | (luma.get(offset + 1) & 0xff) << 8;
+          if (bitDepth == 10) {
+            assertEquals(0, sample & 0x3f);
+            sample >>= 6;
+          }
+          int mm = SyntheticFrameGenerator.depthMmAt(7, x, y, width, height);
+          assertEquals(SyntheticFrameGenerator.toSample(mm, false, bitDepth), sample);
+          assertEquals(mm == 0, sample == 0);
+          if (bitDepth == 16) {
+            assertEquals(mm, sample);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.zip.CRC32;
+import org.junit.Assume;
+import org.junit.Test;
+import qti.video.depthcapture.AllocationTracker;
+
+/**
+ * {@link CpuBokehRenderer} against a line by line transcription of bokeh_frag.frag, and golden
+ * checksums of synthetic frames.
+ */
+public class CpuBokehRendererTest {
+  private static final float THRESHOLD = 0.3f;
+  // CRC32 of the RGB bytes of golden(), update only after checking the output image
+  private static final long GOLDEN_CRC_8BIT = 795203712L;
+  private static final long GOLDEN_CRC_16BIT = 3217275440L;
+
+  // gradient with a checkerboard in luma, ramps in chroma
+  static CpuBokehRenderer.Plane[] videoPlanes(int width, int height, int bytesPerSample) {
+    CpuBokehRenderer.Plane[] planes = new CpuBokehRenderer.Plane[3];
+    for (int planeIndex = 0; planeIndex < planes.length; ++planeIndex) {
+      final int shift = planeIndex == 0 ? 0 : 1;
+      final int w = (width + shift) >> shift;
+      final int h = (height + shift) >> shift;
+      // padded rows like hardware buffers
+      final int rowStride = (w + 16) * bytesPerSample;
+      ByteBuffer buf = ByteBuffer.allocateDirect(rowStride * h);
+      for (int y = 0; y < h; ++y) {
+        for (int x = 0; x < w; ++x) {
+          int v;
+          if (planeIndex == 0) {
+            v = 16 + ((x * 7 + y * 3) % 200) + (((x / 4 + y / 4) & 1) == 0 ? 20 : 0);
+          } else {
+            v = 128 + (planeIndex == 1 ? (x % 64) - 32 : (y % 48) - 24);
+          }
+          putSample(buf, y * rowStride + x * bytesPerSample, v << ((bytesPerSample - 1) * 8),
+              bytesPerSample);
+        }
+      }
+      planes[planeIndex] = new CpuBokehRenderer.Plane(buf, w, h, rowStride, bytesPerSample);
+    }
+    return planes;
+  }
+
+  // near disc (bright) on a far background
+  static CpuBokehRenderer.Plane depthPlane(int width, int height) {
+    ByteBuffer buf = ByteBuffer.allocateDirect(width * height);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int dx = x - width / 2;
+        int dy = y - height / 2;
+        boolean near = dx * dx + dy * dy < height * height / 9;
+        buf.put(y * width + x, (byte) (near ? 200 : 40 + x % 20));
+      }
+    }
+    return new CpuBokehRenderer.Plane(buf, width, height, width, 1);
+  }
+
+  private static void putSample(ByteBuffer buf, int offset, int v, int bytesPerSample) {
+    buf.put(offset, (byte) v);
+    if (bytesPerSample == 2) {
+      buf.put(offset + 1, (byte) (v >>> 8));
+    }
+  }
+
+  // texture() of a Y2Y external sampler with nearest filtering and clamp to edge
+  private static float[] texture(CpuBokehRenderer.Plane[] planes, int bytesPerSample,
+                                 float u, float v) {
+    float[] color = new float[3];
+    for (int planeIndex = 0; planeIndex < planes.length; ++planeIndex) {
+      CpuBokehRenderer.Plane plane = planes[planeIndex];
+      int x = CpuBokehRenderer.texelIndex(u, plane.width);
+      int y = CpuBokehRenderer.texelIndex(v, plane.height);
+      int offset = y * plane.rowStride + x * plane.pixelStride;
+      int sample = bytesPerSample == 1 ? plane.buf.get(offset) & 0xff
+          : (plane.buf.get(offset) & 0xff) | (plane.buf.get(offset + 1) & 0xff) << 8;
+      color[planeIndex] = sample / (bytesPerSample == 1 ? 255.f : 65535.f);
+    }
+    return color;
+  }
+
+  // main() of bokeh_frag.frag for every pixel
+  static int[] shaderReference(CpuBokehRenderer.Plane[] video, int videoBytesPerSample,
+                               CpuBokehRenderer.Plane depth, int width, int height) {
+    final float r = CpuBokehRenderer.BLUR_R;
+    final float[][] offsets = {
+        {0, 0}, {r, 0}, {-r, 0}, {0, r}, {0, -r},
+        {r / 2, r / 2}, {r / 2, -r / 2}, {-r / 2, r / 2}, {-r / 2, -r / 2},
+    };
+    int[] argb = new int[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        float u = (x + 0.5f) / width;
+        float v = (y + 0.5f) / height;
+        float depthColor = texture(new CpuBokehRenderer.Plane[] {depth}, 1, u, v)[0];
+        float[] color = new float[3];
+        int taps = depthColor > THRESHOLD ? 1 : offsets.length;
+        for (int tap = 0; tap < taps; ++tap) {
+          float[] p = texture(video, videoBytesPerSample, u + offsets[tap][0],
+              v + offsets[tap][1]);
+          for (int c = 0; c < 3; ++c) {
+            color[c] += p[c] / taps;
+          }
+        }
+        argb[y * width + x] = CpuBokehRenderer.yuvToArgb(color[0], color[1], color[2]);
+      }
+    }
+    return argb;
+  }
+
+  private static int[] render(ForkJoinPool pool, CpuBokehRenderer.Plane[] video,
+                              int videoBytesPerSample, CpuBokehRenderer.Plane depth,
+                              int width, int height) {
+    CpuBokehRenderer renderer = new CpuBokehRenderer(pool);
+    renderer.setBokehThreshold(THRESHOLD);
+    int[] argb = new int[width * height];
+    renderer.render(video, videoBytesPerSample, depth, 1, argb, width, height);
+    return argb;
+  }
+
+  private static void assertClose(int[] expected, int[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; ++i) {
+      for (int shift = 0; shift < 32; shift += 8) {
+        int e = expected[i] >>> shift & 0xff;
+        int a = actual[i] >>> shift & 0xff;
+        assertTrue("pixel " + i + " expected " + Integer.toHexString(expected[i]) + " got "
+            + Integer.toHexString(actual[i]), Math.abs(e - a) <= 1);
+      }
+    }
+  }
+
+  private static long allocatedBytes(List<Thread> threads) {
+    long bytes = 0;
+    for (Thread thread : threads) {
+      bytes += AllocationTracker.threadAllocatedBytes(thread);
+    }
+    return bytes;
+  }
+
+  private static long crc(int[] argb) {
+    CRC32 crc = new CRC32();
+    for (int pixel : argb) {
+      crc.update(pixel);
+      crc.update(pixel >>> 8);
+      crc.update(pixel >>> 16);
+    }
+    return crc.getValue();
+  }
+
+  @Test
+  public void matchesShader_8bit() {
+    // output size differs from the video and depth sizes, like a view of another size
+    CpuBokehRenderer.Plane[] video = videoPlanes(320, 180, 1);
+    CpuBokehRenderer.Plane depth = depthPlane(80, 45);
+    assertClose(shaderReference(video, 1, depth, 256, 144),
+        render(ForkJoinPool.commonPool(), video, 1, depth, 256, 144));
+  }
+
+  @Test
+  public void matchesShader_16bit() {
+    CpuBokehRenderer.Plane[] video = videoPlanes(160, 90, 2);
+    CpuBokehRenderer.Plane depth = depthPlane(160, 90);
+    assertClose(shaderReference(video, 2, depth, 160, 90),
+        render(ForkJoinPool.commonPool(), video, 2, depth, 160, 90));
+  }
+
+  @Test
+  public void tiles_sameAsSingleThread() {
+    CpuBokehRenderer.Plane[] video = videoPlanes(640, 360, 1);
+    CpuBokehRenderer.Plane depth = depthPlane(160, 90);
+    ForkJoinPool single = new ForkJoinPool(1);
+    ForkJoinPool parallel = new ForkJoinPool(4);
+    try {
+      assertArrayEquals(render(single, video, 1, depth, 640, 360),
+          render(parallel, video, 1, depth, 640, 360));
+    } finally {
+      single.shutdown();
+      parallel.shutdown();
+    }
+  }
+
+  @Test
+  public void nearEverywhere_noBlur() {
+    CpuBokehRenderer.Plane[] video = videoPlanes(64, 36, 1);
+    ByteBuffer near = ByteBuffer.allocateDirect(16 * 9);
+    for (int i = 0; i < near.capacity(); ++i) {
+      near.put(i, (byte) 0xff);
+    }
+    int[] argb = render(ForkJoinPool.commonPool(), video, 1,
+        new CpuBokehRenderer.Plane(near, 16, 9, 16, 1), 64, 36);
+    for (int y = 0; y < 36; ++y) {
+      for (int x = 0; x < 64; ++x) {
+        int luma = video[0].buf.get(y * video[0].rowStride + x) & 0xff;
+        int cb = video[1].buf.get(y / 2 * video[1].rowStride + x / 2) & 0xff;
+        int cr = video[2].buf.get(y / 2 * video[2].rowStride + x / 2) & 0xff;
+        assertEquals(CpuBokehRenderer.yuvToArgb(luma / 255.f, cb / 255.f, cr / 255.f),
+            argb[y * 64 + x]);
+      }
+    }
+  }
+
+  @Test
+  public void yuvToArgb_limitedRange() {
+    assertEquals(0xff000000, CpuBokehRenderer.yuvToArgb(16 / 255.f, 0.5f, 0.5f));
+    assertEquals(0xffffffff, CpuBokehRenderer.yuvToArgb(235 / 255.f, 0.5f, 0.5f));
+    // BT.709 red
+    assertClose(new int[] {0xffff0000},
+        new int[] {CpuBokehRenderer.yuvToArgb(63 / 255.f, 102 / 255.f, 240 / 255.f)});
+  }
+
+  @Test
+  public void golden() {
+    CpuBokehRenderer.Plane[] video = videoPlanes(320, 180, 1);
+    CpuBokehRenderer.Plane depth = depthPlane(80, 45);
+    assertEquals(GOLDEN_CRC_8BIT,
+        crc(render(ForkJoinPool.commonPool(), video, 1, depth, 320, 180)));
+    CpuBokehRenderer.Plane[] video16 = videoPlanes(320, 180, 2);
+    assertEquals(GOLDEN_CRC_16BIT,
+        crc(render(ForkJoinPool.commonPool(), video16, 2, depth, 320, 180)));
+  }
+
+  @Test
+  public void steadyState_doesNotAllocate() {
+    Assume.assumeTrue(AllocationTracker.isSupported());
+    final int width = 640;
+    final int height = 360;
+    CpuBokehRenderer.Plane[] video = videoPlanes(width, height, 1);
+    CpuBokehRenderer.Plane depth = depthPlane(160, 90);
+    int[] argb = new int[width * height];
+    // the caller and the workers of the pool
+    List<Thread> threads = new CopyOnWriteArrayList<>();
+    threads.add(Thread.currentThread());
+    ForkJoinPool pool = new ForkJoinPool(2, p -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+      threads.add(thread);
+      return thread;
+    }, null, false);
+    try {
+      CpuBokehRenderer renderer = new CpuBokehRenderer(pool);
+      renderer.setBokehThreshold(THRESHOLD);
+      final int warmup = 20;
+      final int frames = 100;
+      long start = 0;
+      for (int frame = 0; frame < warmup + frames; ++frame) {
+        if (frame == warmup) {
+          start = allocatedBytes(threads);
+        }
+        renderer.render(video, 1, depth, 1, argb, width, height);
+      }
+      final long allocated = allocatedBytes(threads) - start;
+      // the pool allocates tens of bytes per frame to signal its workers, the tiles of a frame
+      // are about 5 KB
+      assertTrue("allocated " + allocated + " bytes in " + frames + " frames",
+          allocated < frames * 256L);
+    } finally {
+      pool.shutdown();
+    }
+    // the reused tiles render the whole frame
+    assertArrayEquals(render(ForkJoinPool.commonPool(), video, 1, depth, width, height), argb);
+  }
+
+  @Test
+  public void benchmark1080p() {
+    final int width = 1920;
+    final int height = 1080;
+    CpuBokehRenderer.Plane[] video = videoPlanes(width, height, 1);
+    CpuBokehRenderer.Plane depth = depthPlane(480, 270);
+    int[] argb = new int[width * height];
+    for (int threads : new int[] {1, Runtime.getRuntime().availableProcessors()}) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      CpuBokehRenderer renderer = new CpuBokehRenderer(pool);
+      renderer.setBokehThreshold(THRESHOLD);
+      final int warmup = 3;
+      final int frames = 10;
+      long startNs = 0;
+      for (int frame = 0; frame < warmup + frames; ++frame) {
+        if (frame == warmup) {
+          startNs = System.nanoTime();
+        }
+        renderer.render(video, 1, depth, 1, argb, width, height);
+      }
+      long elapsedNs = System.nanoTime() - startNs;
+      pool.shutdown();
+      System.out.println(String.format(Locale.US, "[cpu bokeh %dx%d, %d threads] %.1f ms/frame",
+          width, height, threads, elapsedNs / 1e6 / frames));
+    }
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import org.junit.Assume;
+import org.junit.Test;
+import qti.video.depth.DepthExtractor;
+import qti.video.depthcapture.AllocationTracker;
+
+/**
+ * Allocation regression test of {@link DepthVideoSource} playback. The handler thread messages
+ * run on the test thread, samples of a video, a depth and a metadata track are generated by the
+ * extractor, and the decoders pass samples through as rendered images.
+ */
+public class DepthVideoSourceAllocationTest {
+  private static final int METADATA_TRACK = 2;
+  private static final int TRACK_COUNT = 3;
+  private static final int CODEC_BUFFER_COUNT = 4;
+  private static final int FRAME_RATE = 60;
+  private static final int WARMUP_FRAMES = FRAME_RATE;
+  private static final int FRAMES = FRAME_RATE * 20;
+
+  // a sample of the metadata track, then of the depth track, then of the video track per frame
+  private static final class FrameExtractor extends DepthExtractor {
+    private final int frameCount;
+    private int sample;
+
+    FrameExtractor(int frameCount) {
+      this.frameCount = frameCount;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+      return sample < frameCount * TRACK_COUNT ? TRACK_COUNT - 1 - sample % TRACK_COUNT : -1;
+    }
+
+    @Override
+    public long getSampleSize() {
+      return 64 + (sample / TRACK_COUNT) % 32;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer byteBuf, int offset) {
+      final int size = (int) getSampleSize();
+      byteBuf.clear();
+      byteBuf.putInt(offset, sample);
+      byteBuf.position(offset + size);
+      return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+      return (sample / TRACK_COUNT) * 1000000L / FRAME_RATE;
+    }
+
+    @Override
+    public int getSampleFlags() {
+      return MediaExtractor.SAMPLE_FLAG_SYNC;
+    }
+
+    @Override
+    public boolean advance() {
+      ++sample;
+      return getSampleTrackIndex() != -1;
+    }
+  }
+
+  // decodes a sample of each queued input into the next free output buffer, and renders the
+  // output buffer into an image of the sample time. Like the codec callbacks, decoding runs
+  // between the messages of the handler thread.
+  private static final class PassThroughDecoder implements DepthVideoSource.TrackDecoder {
+    private final DepthVideoSource source;
+    private final int trackIndex;
+    private MediaCodec.Callback callback;
+    private final ByteBuffer[] inputBuffers = new ByteBuffer[CODEC_BUFFER_COUNT];
+    private final int[] inputSizes = new int[CODEC_BUFFER_COUNT];
+    private final long[] inputTimesUs = new long[CODEC_BUFFER_COUNT];
+    private final int[] inputFlags = new int[CODEC_BUFFER_COUNT];
+    private final MediaCodec.BufferInfo[] outputInfos =
+        new MediaCodec.BufferInfo[CODEC_BUFFER_COUNT];
+    private final IntRingQueue queuedInputs = new IntRingQueue(CODEC_BUFFER_COUNT);
+    private final IntRingQueue freeOutputs = new IntRingQueue(CODEC_BUFFER_COUNT);
+    // sample times of the rendered images, not acquired yet
+    private final long[] imageTimesUs = new long[CODEC_BUFFER_COUNT];
+    private int imageHead;
+    private int imageCount;
+    int releasedImageCount;
+
+    PassThroughDecoder(DepthVideoSource source, int trackIndex) {
+      this.source = source;
+      this.trackIndex = trackIndex;
+      for (int i = 0; i < CODEC_BUFFER_COUNT; ++i) {
+        inputBuffers[i] = ByteBuffer.allocate(256);
+        outputInfos[i] = new MediaCodec.BufferInfo();
+        freeOutputs.offer(i);
+      }
+    }
+
+    @Override
+    public void start(MediaCodec.Callback callback) {
+      this.callback = callback;
+      callback.onOutputFormatChanged(null, new MediaFormat());
+      for (int i = 0; i < CODEC_BUFFER_COUNT; ++i) {
+        callback.onInputBufferAvailable(null, i);
+      }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int inputIndex) {
+      return inputBuffers[inputIndex];
+    }
+
+    @Override
+    public void queueInputBuffer(int inputIndex, int size, long presentationTimeUs, int flags) {
+      inputSizes[inputIndex] = size;
+      inputTimesUs[inputIndex] = presentationTimeUs;
+      inputFlags[inputIndex] = flags;
+      queuedInputs.offer(inputIndex);
+    }
+
+    // returns false if no input could be decoded
+    boolean decode() {
+      if (queuedInputs.isEmpty() || freeOutputs.isEmpty()) {
+        return false;
+      }
+      while (!queuedInputs.isEmpty() && !freeOutputs.isEmpty()) {
+        final int inputIndex = queuedInputs.poll();
+        final int outputIndex = freeOutputs.poll();
+        // BufferInfo.set() is a stub in host tests
+        MediaCodec.BufferInfo info = outputInfos[outputIndex];
+        info.offset = 0;
+        info.size = inputSizes[inputIndex];
+        info.presentationTimeUs = inputTimesUs[inputIndex];
+        info.flags = inputFlags[inputIndex];
+        callback.onOutputBufferAvailable(null, outputIndex, info);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+          callback.onInputBufferAvailable(null, inputIndex);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int outputIndex, boolean render) {
+      if (render) {
+        assertTrue(imageCount < CODEC_BUFFER_COUNT);
+        imageTimesUs[(imageHead + imageCount++) % CODEC_BUFFER_COUNT] =
+            outputInfos[outputIndex].presentationTimeUs;
+        source.sendMessage(DepthVideoSource.WHAT_IMAGE_AVAILABLE, trackIndex, -1, null);
+      }
+      freeOutputs.offer(outputIndex);
+    }
+
+    @Override
+    public boolean acquireImage(DepthVideoSource.Output output) {
+      if (imageCount == 0) {
+        return false;
+      }
+      output.bufferInfo.offset = 0;
+      output.bufferInfo.size = 0;
+      output.bufferInfo.presentationTimeUs = imageTimesUs[imageHead];
+      output.bufferInfo.flags = 0;
+      imageHead = (imageHead + 1) % CODEC_BUFFER_COUNT;
+      imageCount--;
+      return true;
+    }
+
+    @Override
+    public void releaseImage(DepthVideoSource.Output output) {
+      releasedImageCount++;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+  }
+
+  // runs the messages of the handler thread on the test thread, in order
+  private static final class HostSource extends DepthVideoSource {
+    private static final int CAPACITY = 256;
+    private final int[] whats = new int[CAPACITY];
+    private final int[] arg1s = new int[CAPACITY];
+    private final int[] arg2s = new int[CAPACITY];
+    private final Object[] objs = new Object[CAPACITY];
+    private int head;
+    private int count;
+
+    HostSource(DepthExtractor extractor) {
+      super("generated", extractor, null);
+    }
+
+    @Override
+    void sendMessage(int what, int arg1, int arg2, Object obj) {
+      assertTrue(count < CAPACITY);
+      final int tail = (head + count++) % CAPACITY;
+      whats[tail] = what;
+      arg1s[tail] = arg1;
+      arg2s[tail] = arg2;
+      objs[tail] = obj;
+    }
+
+    void runMessages() {
+      while (count > 0) {
+        final int what = whats[head];
+        final int arg1 = arg1s[head];
+        final int arg2 = arg2s[head];
+        final Object obj = objs[head];
+        objs[head] = null;
+        head = (head + 1) % CAPACITY;
+        count--;
+        handleMessage(what, arg1, arg2, obj);
+      }
+    }
+  }
+
+  private HostSource source;
+  private PassThroughDecoder[] decoders;
+  private final int[] outputCounts = new int[TRACK_COUNT];
+  private final int[] eosOutputCounts = new int[TRACK_COUNT];
+  private long checksum;
+
+  private void startPlayback(int frameCount) {
+    source = new HostSource(new FrameExtractor(frameCount));
+    MediaFormat[] formats = new MediaFormat[TRACK_COUNT];
+    DepthVideoSource.TrackDecoder[] trackDecoders =
+        new DepthVideoSource.TrackDecoder[TRACK_COUNT];
+    decoders = new PassThroughDecoder[METADATA_TRACK];
+    for (int trackIndex = 0; trackIndex < TRACK_COUNT; ++trackIndex) {
+      formats[trackIndex] = new MediaFormat();
+      if (trackIndex != METADATA_TRACK) {
+        decoders[trackIndex] = new PassThroughDecoder(source, trackIndex);
+        trackDecoders[trackIndex] = decoders[trackIndex];
+      }
+    }
+    source.initTracks(formats, trackDecoders);
+    runMessages();
+    assertEquals(TRACK_COUNT, source.getTrackCount());
+    source.handleMessage(DepthVideoSource.WHAT_START, 0, 0, null);
+  }
+
+  private void runMessages() {
+    boolean decoded;
+    do {
+      source.runMessages();
+      decoded = false;
+      for (PassThroughDecoder decoder : decoders) {
+        decoded |= decoder.decode();
+      }
+    } while (decoded);
+  }
+
+  // renderer side: take every available output and return it
+  private void renderOutputs() {
+    runMessages();
+    for (int trackIndex = 0; trackIndex < TRACK_COUNT; ++trackIndex) {
+      DepthVideoSource.Output output;
+      while ((output = source.dequeueOutput(trackIndex)) != null) {
+        outputCounts[trackIndex]++;
+        if ((output.bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+          eosOutputCounts[trackIndex]++;
+        }
+        checksum += output.bufferInfo.presentationTimeUs;
+        if (output.byteBuffer != null) {
+          checksum += output.byteBuffer.getInt(0);
+        }
+        source.queueOutput(output);
+      }
+    }
+    runMessages();
+  }
+
+  private boolean allEos() {
+    for (int trackIndex = 0; trackIndex < TRACK_COUNT; ++trackIndex) {
+      if (!source.isEos(trackIndex)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Test
+  public void wholeClip_lastOutputOfEachTrackFlaggedEos() {
+    final int frameCount = 50;
+    startPlayback(frameCount);
+    for (int i = 0; i < frameCount * 4 && !allEos(); ++i) {
+      renderOutputs();
+    }
+    assertTrue(allEos());
+    for (int trackIndex = 0; trackIndex < TRACK_COUNT; ++trackIndex) {
+      assertEquals(frameCount, outputCounts[trackIndex]);
+      assertEquals("track " + trackIndex, 1, eosOutputCounts[trackIndex]);
+    }
+    for (PassThroughDecoder decoder : decoders) {
+      assertEquals(frameCount, decoder.releasedImageCount);
+    }
+    source.handleMessage(DepthVideoSource.WHAT_STOP, 0, 0, null);
+    source.handleMessage(DepthVideoSource.WHAT_RELEASE, 0, 0, null);
+  }
+
+  @Test
+  public void steadyStatePlayback_doesNotAllocate() {
+    Assume.assumeTrue(AllocationTracker.isSupported());
+    startPlayback(FRAMES + FRAME_RATE);
+    for (int i = 0; i < WARMUP_FRAMES; ++i) {
+      renderOutputs();
+    }
+    final int warmupOutputCount = outputCounts[0];
+    // cost of the measurement itself
+    long calibrationStart = AllocationTracker.currentThreadAllocatedBytes();
+    long calibrationEnd = AllocationTracker.currentThreadAllocatedBytes();
+    long overhead = calibrationEnd - calibrationStart;
+
+    long start = AllocationTracker.currentThreadAllocatedBytes();
+    for (int i = WARMUP_FRAMES; i < FRAMES; ++i) {
+      renderOutputs();
+    }
+    long allocated = AllocationTracker.currentThreadAllocatedBytes() - start - overhead;
+    final int frames = FRAMES - WARMUP_FRAMES;
+    // every render step outputs a frame of each track
+    assertEquals(frames, outputCounts[0] - warmupOutputCount);
+    assertFalse(allEos());
+    assertTrue(checksum != 0);
+    // the path itself is allocation free (0 bytes with -Xint), but JIT deoptimization can
+    // rematerialize a few objects. Any per-frame allocation costs at least 16 bytes a frame.
+    assertTrue("allocated " + allocated, allocated < frames * 8L);
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * {@link IntRingQueue} order across wrapping and growth.
+ */
+public class IntRingQueueTest {
+  @Test
+  public void fifoAcrossWrapAndGrowth() {
+    IntRingQueue queue = new IntRingQueue(2);
+    int next = 0;
+    int expected = 0;
+    for (int round = 0; round < 10; ++round) {
+      for (int i = 0; i <= round; ++i) {
+        queue.offer(next++);
+      }
+      while (queue.size() > 1) {
+        assertEquals(expected, queue.peek());
+        assertEquals(expected++, queue.poll());
+      }
+    }
+    assertEquals(expected, queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * {@link OutputPool} reuse of released records.
+ */
+public class OutputPoolTest {
+  @Test
+  public void recycledRecords_reused() {
+    OutputPool pool = new OutputPool(3, 1);
+    DepthVideoSource.Output first = pool.obtain();
+    DepthVideoSource.Output second = pool.obtain();
+    assertEquals(3, first.trackIndex);
+    pool.recycle(first);
+    pool.recycle(second);
+    assertSame(second, pool.obtain());
+    assertSame(first, pool.obtain());
+    assertEquals(2, pool.getCreatedCount());
+  }
+}
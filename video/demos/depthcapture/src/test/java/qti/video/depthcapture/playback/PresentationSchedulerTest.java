@@ -0,0 +1,215 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * {@link PresentationScheduler} with a fake clock and vsync source.
+ */
+public class PresentationSchedulerTest {
+  private static final long VSYNC_PERIOD_NS = 1000000000L / 60;
+
+  // vsyncs at multiples of the period, a callback can run late
+  static final class FakeVsyncSource implements PresentationScheduler.VsyncSource,
+      PresentationScheduler.Clock {
+    final long periodNs;
+    long nowNs;
+    long nextVsyncNs;
+    PresentationScheduler.VsyncCallback callback;
+    int vsyncCount;
+
+    FakeVsyncSource(long periodNs) {
+      this.periodNs = periodNs;
+      nextVsyncNs = periodNs;
+    }
+
+    @Override
+    public long nanoTime() {
+      return nowNs;
+    }
+
+    @Override
+    public void postVsyncCallback(PresentationScheduler.VsyncCallback callback) {
+      assertTrue(this.callback == null);
+      this.callback = callback;
+    }
+
+    @Override
+    public void removeVsyncCallback(PresentationScheduler.VsyncCallback callback) {
+      this.callback = null;
+    }
+
+    // advance to the next vsync and run the callback after a delay
+    void vsync(long callbackDelayNs) {
+      final long vsyncNs = nextVsyncNs;
+      nextVsyncNs += periodNs;
+      nowNs = vsyncNs + callbackDelayNs;
+      vsyncCount++;
+      PresentationScheduler.VsyncCallback pending = callback;
+      callback = null;
+      if (pending != null) {
+        pending.onVsync(vsyncNs);
+      }
+    }
+  }
+
+  static final class Frame {
+    final long ptsUs;
+    long presentTimeNs = -1;
+    boolean skipped;
+
+    Frame(long ptsUs) {
+      this.ptsUs = ptsUs;
+    }
+  }
+
+  private final FakeVsyncSource vsync = new FakeVsyncSource(VSYNC_PERIOD_NS);
+  private final List<Frame> presented = new ArrayList<>();
+  private final List<Frame> skipped = new ArrayList<>();
+  private final PresentationScheduler<Frame> scheduler = new PresentationScheduler<>(vsync, vsync,
+      VSYNC_PERIOD_NS, new PresentationScheduler.FrameListener<Frame>() {
+        @Override
+        public void onPresent(Frame frame, long ptsUs, long presentTimeNs) {
+          assertEquals(frame.ptsUs, ptsUs);
+          frame.presentTimeNs = presentTimeNs;
+          presented.add(frame);
+        }
+
+        @Override
+        public void onSkip(Frame frame, long ptsUs) {
+          assertEquals(frame.ptsUs, ptsUs);
+          frame.skipped = true;
+          skipped.add(frame);
+        }
+      });
+
+  // queue frames of a clip once they are decoded, then run vsyncs until all are consumed
+  private void play(int frameRate, int frameCount, int queueAhead) {
+    scheduler.start();
+    int queued = 0;
+    while (presented.size() + skipped.size() < frameCount) {
+      while (queued < frameCount && scheduler.getQueuedCount() < queueAhead) {
+        final long ptsUs = queued * 1000000L / frameRate;
+        scheduler.queueFrame(ptsUs, new Frame(ptsUs));
+        queued++;
+      }
+      vsync.vsync(0);
+    }
+  }
+
+  @Test
+  public void halfVsyncRate_everyOtherVsyncWithoutJudder() {
+    play(30, 60, 1);
+    assertEquals(60, presented.size());
+    assertEquals(0, scheduler.getSkippedCount());
+    assertEquals(0, scheduler.getLateCount());
+    for (int i = 1; i < presented.size(); ++i) {
+      long intervalNs = presented.get(i).presentTimeNs - presented.get(i - 1).presentTimeNs;
+      assertEquals(2 * VSYNC_PERIOD_NS, intervalNs, 2);
+    }
+    assertEquals(0, scheduler.getMaxJudderUs());
+  }
+
+  @Test
+  public void filmRate_pulldownJudder() {
+    play(24, 48, 2);
+    assertEquals(48, presented.size());
+    assertEquals(0, scheduler.getSkippedCount());
+    // 3:2 pulldown, frames are on screen for 2 or 3 vsyncs
+    for (int i = 1; i < presented.size(); ++i) {
+      long vsyncs = Math.round((presented.get(i).presentTimeNs
+          - presented.get(i - 1).presentTimeNs) / (double) VSYNC_PERIOD_NS);
+      assertTrue(vsyncs == 2 || vsyncs == 3);
+    }
+    assertEquals(VSYNC_PERIOD_NS / 2 / 1000, scheduler.getMaxJudderUs(), 1);
+  }
+
+  @Test
+  public void stallThenBurst_staleFramesSkipped() {
+    scheduler.start();
+    scheduler.queueFrame(0, new Frame(0));
+    vsync.vsync(0);
+    assertEquals(1, presented.size());
+    // the decoder stalls for 10 vsyncs, then frames 1..5 arrive at once
+    for (int i = 0; i < 10; ++i) {
+      vsync.vsync(0);
+    }
+    for (int i = 1; i <= 5; ++i) {
+      scheduler.queueFrame(i * 1000000L / 30, new Frame(i * 1000000L / 30));
+    }
+    vsync.vsync(0);
+    assertEquals(2, presented.size());
+    assertEquals(4, scheduler.getSkippedCount());
+    assertEquals(5 * 1000000L / 30, presented.get(1).ptsUs);
+    assertEquals(1, scheduler.getLateCount());
+    assertEquals(0, scheduler.getQueuedCount());
+  }
+
+  @Test
+  public void lateCallback_presentsAtNextVsyncAfterNow() {
+    scheduler.start();
+    scheduler.queueFrame(0, new Frame(0));
+    vsync.vsync(0);
+    final long firstPresentNs = presented.get(0).presentTimeNs;
+    assertEquals(2 * VSYNC_PERIOD_NS, firstPresentNs);
+    scheduler.queueFrame(1000000L / 30, new Frame(1000000L / 30));
+    vsync.vsync(0);
+    assertEquals(1, presented.size());
+    // the handler is busy for more than a vsync period
+    vsync.vsync(VSYNC_PERIOD_NS * 3 / 2);
+    assertEquals(2, presented.size());
+    assertEquals(firstPresentNs + 3 * VSYNC_PERIOD_NS, presented.get(1).presentTimeNs);
+    assertEquals(1, scheduler.getLateCount());
+  }
+
+  @Test
+  public void idle_noVsyncRequests() {
+    scheduler.start();
+    assertTrue(vsync.callback == null);
+    scheduler.queueFrame(0, new Frame(0));
+    assertFalse(vsync.callback == null);
+    vsync.vsync(0);
+    assertTrue(vsync.callback == null);
+    scheduler.queueFrame(1000000L / 30, new Frame(1000000L / 30));
+    scheduler.stop();
+    assertTrue(vsync.callback == null);
+    assertEquals(1, skipped.size());
+  }
+
+  @Test
+  public void vsyncPeriod_estimated() {
+    // the display runs at 90 Hz while the initial estimate is 60 Hz
+    FakeVsyncSource fastVsync = new FakeVsyncSource(1000000000L / 90);
+    PresentationScheduler<Frame> fastScheduler = new PresentationScheduler<>(fastVsync,
+        fastVsync, VSYNC_PERIOD_NS, new PresentationScheduler.FrameListener<Frame>() {
+          @Override
+          public void onPresent(Frame frame, long ptsUs, long presentTimeNs) {
+          }
+
+          @Override
+          public void onSkip(Frame frame, long ptsUs) {
+          }
+        });
+    fastScheduler.start();
+    // a frame far in the future keeps vsyncs requested
+    fastScheduler.queueFrame(0, new Frame(0));
+    fastVsync.vsync(0);
+    fastScheduler.queueFrame(10000000, new Frame(10000000));
+    for (int i = 0; i < 60; ++i) {
+      fastVsync.vsync(0);
+    }
+    assertEquals(1000000000L / 90, fastScheduler.getVsyncPeriodNs(), 10000);
+  }
+}
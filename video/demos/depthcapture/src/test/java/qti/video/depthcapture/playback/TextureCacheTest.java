@@ -0,0 +1,111 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depthcapture.playback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.HardwareBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * {@link TextureCache} with a fake GL object factory and buffer ids of recycled pools.
+ */
+public class TextureCacheTest {
+  private static final long FRAME_INTERVAL_NS = 1000000000L / 30;
+
+  static final class Texture {
+    final int id;
+    boolean destroyed;
+
+    Texture(int id) {
+      this.id = id;
+    }
+  }
+
+  static final class FakeFactory implements TextureCache.Factory<Texture> {
+    int createdCount;
+    final Set<Texture> live = new HashSet<>();
+
+    @Override
+    public Texture create(HardwareBuffer buffer) {
+      Texture texture = new Texture(++createdCount);
+      live.add(texture);
+      return texture;
+    }
+
+    @Override
+    public void destroy(Texture entry) {
+      assertTrue(live.remove(entry));
+      entry.destroyed = true;
+    }
+  }
+
+  private final FakeFactory factory = new FakeFactory();
+  private final TextureCache<Texture> cache = new TextureCache<>(8, 30, factory);
+  private long nowNs;
+
+  // draw frames of a video pool and a depth pool, buffer ids start at the pool bases
+  private void draw(int frameCount, long videoBase, int videoPoolSize, long depthBase,
+                    int depthPoolSize) {
+    for (int frame = 0; frame < frameCount; ++frame) {
+      Texture video = cache.get(videoBase + frame % videoPoolSize, null);
+      Texture depth = cache.get(depthBase + frame % depthPoolSize, null);
+      assertTrue(!video.destroyed && !depth.destroyed);
+      cache.endFrame(nowNs);
+      nowNs += FRAME_INTERVAL_NS;
+    }
+  }
+
+  @Test
+  public void recycledPools_createdOnce() {
+    draw(300, 100, 3, 200, 2);
+    assertEquals(5, factory.createdCount);
+    assertEquals(5, cache.getSize());
+    assertEquals(0, cache.getCreationsPerSecond());
+    cache.clear();
+    assertEquals(0, factory.live.size());
+  }
+
+  @Test
+  public void sameBufferId_sameEntry() {
+    Texture first = cache.get(7, null);
+    cache.endFrame(0);
+    assertSame(first, cache.get(7, null));
+    assertEquals(1, cache.getCreationCount());
+  }
+
+  @Test
+  public void newPools_oldEntriesEvictedWhenIdle() {
+    draw(60, 100, 2, 200, 1);
+    // the decoders are reconfigured with new image readers
+    draw(10, 300, 2, 400, 1);
+    assertEquals(6, cache.getSize());
+    draw(30, 300, 2, 400, 1);
+    assertEquals(3, cache.getSize());
+    assertEquals(3, factory.live.size());
+    for (Texture texture : factory.live) {
+      assertTrue(texture.id > 3);
+    }
+  }
+
+  @Test
+  public void largePool_leastRecentlyUsedEvicted() {
+    // 12 buffers in use don't fit the cache, every frame creates textures but the cache is
+    // bounded and the textures of the current frame are kept
+    draw(60, 100, 6, 200, 6);
+    assertEquals(8, cache.getSize());
+    assertEquals(8, factory.live.size());
+    assertEquals(120, factory.createdCount);
+    // two buffers per frame at 30 fps
+    assertEquals(60, cache.getCreationsPerSecond(), 2);
+  }
+}
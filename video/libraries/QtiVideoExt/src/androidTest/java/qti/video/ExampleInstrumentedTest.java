@@ -1617,6 +1617,57 @@ public class ExampleInstrumentedTest {
     validateExtensionName(QMediaExtensions.KEY_ROI_MAP_MB_QP_BIAS_MAP);
   }
 
+  @Test
+  public void createForCodec_coldLatency() {
+    final String[][] codecs = {
+        {"c2.qti.hevc.encoder", "video/hevc"},
+        {"c2.qti.avc.encoder", "video/avc"},
+        {"c2.qti.hevc.decoder", "video/hevc"},
+        {"c2.qti.av1.decoder", "video/av01"},
+    };
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    for (String[] codec : codecs) {
+      // not cached, only the params of this codec are read from the asset file or queried
+      QMediaCodecCapabilities.clearCache();
+      long start = System.nanoTime();
+      QMediaCodecCapabilities ext = QMediaCodecCapabilities.createForCodec(codec[0], codec[1],
+          context);
+      long cold = System.nanoTime() - start;
+      assertNotNull(codec[0], ext);
+      start = System.nanoTime();
+      QMediaCodecCapabilities.createForCodec(codec[0], codec[1], context);
+      long cached = System.nanoTime() - start;
+      Log.d(TAG, "createForCodec(" + codec[0] + ") in nanoseconds: cold " + cold + ", cached "
+          + cached + (isSupportedLegacyDevice ? " (asset file)" : " (codec query)"));
+    }
+  }
+
+  @Test
+  public void capabilitiesProber_probeAll() {
+    final String[] codecs = {
+        "c2.qti.hevc.encoder", "c2.qti.avc.encoder", "c2.qti.av1.encoder",
+        "c2.qti.hevc.decoder", "c2.qti.avc.decoder", "c2.qti.av1.decoder",
+    };
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    QMediaCodecCapabilities.clearCache();
+    CapabilitiesProber prober = new CapabilitiesProber(context);
+    for (String codec : codecs) {
+      prober.add(codec);
+    }
+    CapabilitiesProber.Result result = prober.probe();
+    Log.d(TAG, result.toString());
+    assertTrue(result.toString(), result.getProbedCount() > 0);
+    assertNull(result.getCapabilities("c2.qti.hevc.encoder", "video/avc"));
+
+    // the probed capabilities are cached
+    QMediaCodecCapabilities probed = result.getCapabilities("c2.qti.hevc.encoder", "video/hevc");
+    Assume.assumeNotNull(probed);
+    QMediaCodecCapabilities ext = QMediaCodecCapabilities.createForCodec("c2.qti.hevc.encoder",
+        "video/hevc", context);
+    assertNotNull(ext);
+    assertEquals(probed.getSupportedParameterRanges(), ext.getSupportedParameterRanges());
+  }
+
   @Test
   public void test_QMediaExtensions_ProSightExtensionRange() {
     assertEquals(QMediaExtensions.ProSightExtensionRange.DEFAULT.getValue(), 0);
@@ -0,0 +1,354 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * Process-wide cache of the parameter ranges of codecs, keyed by codec canonical name, mime
+ * type, build fingerprint and, if the loader knows it, the {@link CapabilitiesFingerprint} of the
+ * ranges it would load. The ranges of a key are loaded once, from a snapshot file if a
+ * snapshot directory is set, or else by a loader, i.e. from the asset file or by a codec query.
+ * Later lookups return the same unmodifiable map. Failed loads are not cached, e.g. a codec
+ * that can't be created now may be created later. Thread-safe, keys are loaded in parallel.
+ *
+ * <p>Snapshots are written after a load, one file per codec and mime type. A snapshot of another
+ * build fingerprint or of another snapshot version is ignored and overwritten, and so is a
+ * snapshot that fails to read, e.g. a truncated one. A snapshot also has the
+ * {@link CapabilitiesFingerprint} of its ranges, computed when it's written. A snapshot whose
+ * fingerprint doesn't match the one of the key is ignored too, e.g. after an update of the asset
+ * table that kept the build fingerprint.
+ */
+final class CapabilitiesCache {
+  private static final String TAG = "CapabilitiesCache";
+
+  private static final int SNAPSHOT_MAGIC = 0x514d4343; // QMCC
+  private static final int SNAPSHOT_VERSION = 4;
+  private static final String SNAPSHOT_SUFFIX = ".caps";
+  // kinds of snapshot numbers
+  private static final int KIND_NULL = 0;
+  private static final int KIND_INT = 1;
+  private static final int KIND_LONG = 2;
+  private static final int KIND_FLOAT = 3;
+
+  private static final CapabilitiesCache INSTANCE = new CapabilitiesCache();
+
+  /**
+   * Cache key.
+   */
+  static final class Key {
+    final String canonicalName;
+    final String mime;
+    final String fingerprint;
+    // fingerprint of the ranges at their source, empty if unknown
+    final String capabilitiesFingerprint;
+
+    Key(String canonicalName, String mime, String fingerprint) {
+      this(canonicalName, mime, fingerprint, null);
+    }
+
+    Key(String canonicalName, String mime, String fingerprint, String capabilitiesFingerprint) {
+      this.canonicalName = canonicalName;
+      this.mime = mime;
+      this.fingerprint = fingerprint == null ? "" : fingerprint;
+      this.capabilitiesFingerprint = capabilitiesFingerprint == null ? "" : capabilitiesFingerprint;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return canonicalName.equals(key.canonicalName) && mime.equals(key.mime)
+          && fingerprint.equals(key.fingerprint)
+          && capabilitiesFingerprint.equals(key.capabilitiesFingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((canonicalName.hashCode() * 31 + mime.hashCode()) * 31 + fingerprint.hashCode()) * 31
+          + capabilitiesFingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return canonicalName + " " + mime + " " + fingerprint + " " + capabilitiesFingerprint;
+    }
+
+    // a file per codec and mime type, replaced by the snapshot of a new build
+    String getSnapshotFileName() {
+      return (canonicalName + "_" + mime).replaceAll("[^A-Za-z0-9._-]", "_") + SNAPSHOT_SUFFIX;
+    }
+  }
+
+  interface Loader {
+    /**
+     * Load the parameter ranges of a codec.
+     *
+     * @return parameter ranges by parameter name, null if failed.
+     */
+    Map<String, SupportedValues> load();
+  }
+
+  // callers of a key wait for its first load
+  private static final class Entry {
+    Map<String, SupportedValues> ranges;
+  }
+
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+  private volatile File snapshotDirectory;
+
+  // stats
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong loadCount = new AtomicLong();
+  private final AtomicLong snapshotLoadCount = new AtomicLong();
+  private final AtomicLong failedLoadCount = new AtomicLong();
+
+  static CapabilitiesCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Set the directory of snapshots, null to not read or write snapshots.
+   */
+  void setSnapshotDirectory(File directory) {
+    snapshotDirectory = directory;
+  }
+
+  /**
+   * Get the parameter ranges of a key, loading them if they are not cached.
+   *
+   * @return unmodifiable parameter ranges, null if the load failed.
+   */
+  Map<String, SupportedValues> get(Key key, Loader loader) {
+    Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+    synchronized (entry) {
+      if (entry.ranges != null) {
+        hitCount.incrementAndGet();
+        return entry.ranges;
+      }
+      Map<String, SupportedValues> ranges = readSnapshot(key);
+      if (ranges != null) {
+        snapshotLoadCount.incrementAndGet();
+      } else {
+        ranges = loader.load();
+        if (ranges == null) {
+          failedLoadCount.incrementAndGet();
+          return null;
+        }
+        loadCount.incrementAndGet();
+        writeSnapshot(key, ranges);
+      }
+      entry.ranges = Collections.unmodifiableMap(new HashMap<>(ranges));
+      return entry.ranges;
+    }
+  }
+
+  /**
+   * Drop all cached ranges, snapshot files are kept.
+   */
+  void clear() {
+    entries.clear();
+  }
+
+  String getStats() {
+    return "keys " + entries.size() + ", hits " + hitCount.get() + ", loads " + loadCount.get()
+        + ", snapshot loads " + snapshotLoadCount.get() + ", failed loads "
+        + failedLoadCount.get();
+  }
+
+  long getLoadCount() {
+    return loadCount.get();
+  }
+
+  long getSnapshotLoadCount() {
+    return snapshotLoadCount.get();
+  }
+
+  private Map<String, SupportedValues> readSnapshot(Key key) {
+    File directory = snapshotDirectory;
+    if (directory == null) {
+      return null;
+    }
+    File file = new File(directory, key.getSnapshotFileName());
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION
+          || !in.readUTF().equals(key.canonicalName) || !in.readUTF().equals(key.mime)
+          || !in.readUTF().equals(key.fingerprint)) {
+        Log.i(TAG, "Stale snapshot " + file);
+        return null;
+      }
+      // written with the snapshot, so loading doesn't hash the ranges again
+      final String capabilitiesFingerprint = in.readUTF();
+      if (!key.capabilitiesFingerprint.isEmpty()
+          && !key.capabilitiesFingerprint.equals(capabilitiesFingerprint)) {
+        Log.i(TAG, "Snapshot " + file + " doesn't match the capabilities fingerprint");
+        return null;
+      }
+      final int count = in.readInt();
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      for (int i = 0; i < count; ++i) {
+        String name = in.readUTF();
+        SupportedValues.Type type = SupportedValues.Type.values()[in.readByte()];
+        SupportedValues.DataType dataType = SupportedValues.DataType.values()[in.readByte()];
+        ValueRange<?> range = readRange(in);
+        List<?> values = readValues(in);
+        @SuppressWarnings("unchecked") SupportedValues<?> supportedValues =
+            new SupportedValues(type, dataType, range, values);
+        ranges.put(name, supportedValues);
+      }
+      return ranges;
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Failed to read snapshot " + file + ": " + e);
+      return null;
+    }
+  }
+
+  private void writeSnapshot(Key key, Map<String, SupportedValues> ranges) {
+    File directory = snapshotDirectory;
+    if (directory == null) {
+      return;
+    }
+    File file = new File(directory, key.getSnapshotFileName());
+    // write a new file and rename it, readers in other processes see a complete snapshot
+    File tmpFile = new File(directory, key.getSnapshotFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeUTF(key.canonicalName);
+      out.writeUTF(key.mime);
+      out.writeUTF(key.fingerprint);
+      out.writeUTF(CapabilitiesFingerprint.of(ranges));
+      out.writeInt(ranges.size());
+      for (Map.Entry<String, SupportedValues> entry : ranges.entrySet()) {
+        SupportedValues<?> supportedValues = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeByte(supportedValues.getType().ordinal());
+        out.writeByte(supportedValues.getDataType().ordinal());
+        writeRange(out, supportedValues.getRange());
+        // the values of VALUES and FLAGS
+        List<?> values = supportedValues.getValues();
+        writeValues(out, values != null ? values : supportedValues.getFlags());
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write snapshot " + file + ": " + e);
+      tmpFile.delete();
+      return;
+    }
+    if (!tmpFile.renameTo(file)) {
+      Log.e(TAG, "Failed to rename snapshot " + tmpFile);
+      tmpFile.delete();
+    }
+  }
+
+  private static int getKind(Object number) {
+    return number == null ? KIND_NULL : number instanceof Long ? KIND_LONG
+        : number instanceof Float ? KIND_FLOAT : KIND_INT;
+  }
+
+  private static void writeNumber(DataOutputStream out, int kind, Object number)
+      throws IOException {
+    switch (kind) {
+      case KIND_LONG:
+        out.writeLong((Long) number);
+        break;
+      case KIND_FLOAT:
+        out.writeFloat((Float) number);
+        break;
+      default:
+        out.writeInt((Integer) number);
+        break;
+    }
+  }
+
+  private static Object readNumber(DataInputStream in, int kind) throws IOException {
+    switch (kind) {
+      case KIND_LONG:
+        return in.readLong();
+      case KIND_FLOAT:
+        return in.readFloat();
+      default:
+        return in.readInt();
+    }
+  }
+
+  private static void writeRange(DataOutputStream out, ValueRange<?> range) throws IOException {
+    final int kind = range == null ? KIND_NULL : getKind(range.getMin());
+    out.writeByte(kind);
+    if (kind == KIND_NULL) {
+      return;
+    }
+    writeNumber(out, kind, range.getMin());
+    writeNumber(out, kind, range.getMax());
+    writeNumber(out, kind, range.getStep());
+    writeNumber(out, kind, range.getNum());
+    writeNumber(out, kind, range.getDenom());
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ValueRange<?> readRange(DataInputStream in) throws IOException {
+    final int kind = in.readByte();
+    if (kind == KIND_NULL) {
+      return null;
+    }
+    return new ValueRange(readNumber(in, kind), readNumber(in, kind), readNumber(in, kind),
+        readNumber(in, kind), readNumber(in, kind));
+  }
+
+  private static void writeValues(DataOutputStream out, List<?> values) throws IOException {
+    if (values == null) {
+      out.writeByte(KIND_NULL);
+      return;
+    }
+    final int kind = values.isEmpty() ? KIND_INT : getKind(values.get(0));
+    out.writeByte(kind);
+    out.writeInt(values.size());
+    for (Object value : values) {
+      writeNumber(out, kind, value);
+    }
+  }
+
+  private static List<?> readValues(DataInputStream in) throws IOException {
+    final int kind = in.readByte();
+    if (kind == KIND_NULL) {
+      return null;
+    }
+    final int count = in.readInt();
+    List<Object> values = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      values.add(readNumber(in, kind));
+    }
+    return values;
+  }
+}
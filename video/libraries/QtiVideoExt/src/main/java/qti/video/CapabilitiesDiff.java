@@ -0,0 +1,176 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+
+/**
+ * Diff of two sets of codec capabilities, e.g. the asset files of two SoCs, or an asset file and
+ * the result of a capabilities query of a codec. Both are read by {@link CapabilitiesJsonReader}
+ * and compared by {@link CapabilitiesFingerprint}, so the codecs with the same fingerprint have
+ * the same parameter ranges.
+ *
+ * <p>Output, one line per codec in name order, and one line per changed param of a codec:
+ * <pre>
+ *   = codec fingerprint                    same params
+ *   ~ codec fingerprint -&gt; fingerprint
+ *       + param supported values           only in the second set
+ *       - param supported values           only in the first set
+ *       ~ param supported values -&gt; supported values
+ *   - codec fingerprint                    only in the first set
+ *   + codec fingerprint                    only in the second set
+ * </pre>
+ *
+ * <p>Pure Java, {@link #main(String[])} runs on a host.
+ */
+final class CapabilitiesDiff {
+  private CapabilitiesDiff() {
+  }
+
+  /**
+   * Read the params of the codecs of a JSON document.
+   *
+   * @param codecName name of the codec of a query result, which has no "codecs.params"
+   * @return parameter ranges by parameter name, by codec canonical name
+   */
+  static Map<String, Map<String, SupportedValues>> read(byte[] json, String codecName)
+      throws IOException {
+    Map<String, Map<String, SupportedValues>> codecs = new HashMap<>();
+    Map<String, int[]> index = CapabilitiesJsonReader.indexCodecs(json);
+    if (index.isEmpty()) {
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      new CapabilitiesJsonReader(json).readParams(ranges);
+      codecs.put(codecName, ranges);
+      return codecs;
+    }
+    for (Map.Entry<String, int[]> codec : index.entrySet()) {
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      new CapabilitiesJsonReader(json, codec.getValue()[0], codec.getValue()[1])
+          .readParams(ranges);
+      codecs.put(codec.getKey(), ranges);
+    }
+    return codecs;
+  }
+
+  /**
+   * Diff two sets of codecs.
+   *
+   * @param out receives the diff
+   * @return number of codecs that are not the same in both sets
+   */
+  static int diff(Map<String, Map<String, SupportedValues>> from,
+                  Map<String, Map<String, SupportedValues>> to, StringBuilder out) {
+    int changedCount = 0;
+    TreeSet<String> codecs = new TreeSet<>(from.keySet());
+    codecs.addAll(to.keySet());
+    for (String codec : codecs) {
+      Map<String, SupportedValues> fromRanges = from.get(codec);
+      Map<String, SupportedValues> toRanges = to.get(codec);
+      if (toRanges == null) {
+        out.append("- ").append(codec).append(' ')
+            .append(CapabilitiesFingerprint.of(fromRanges)).append('\n');
+        changedCount++;
+        continue;
+      }
+      if (fromRanges == null) {
+        out.append("+ ").append(codec).append(' ')
+            .append(CapabilitiesFingerprint.of(toRanges)).append('\n');
+        changedCount++;
+        continue;
+      }
+      String fromFingerprint = CapabilitiesFingerprint.of(fromRanges);
+      String toFingerprint = CapabilitiesFingerprint.of(toRanges);
+      if (fromFingerprint.equals(toFingerprint)) {
+        out.append("= ").append(codec).append(' ').append(fromFingerprint).append('\n');
+        continue;
+      }
+      out.append("~ ").append(codec).append(' ').append(fromFingerprint).append(" -> ")
+          .append(toFingerprint).append('\n');
+      diffParams(fromRanges, toRanges, out);
+      changedCount++;
+    }
+    return changedCount;
+  }
+
+  private static void diffParams(Map<String, SupportedValues> from,
+                                 Map<String, SupportedValues> to, StringBuilder out) {
+    TreeMap<String, String> fromParams = describe(from);
+    TreeMap<String, String> toParams = describe(to);
+    TreeSet<String> params = new TreeSet<>(fromParams.keySet());
+    params.addAll(toParams.keySet());
+    for (String param : params) {
+      String fromValues = fromParams.get(param);
+      String toValues = toParams.get(param);
+      if (toValues == null) {
+        out.append("    - ").append(param).append(' ').append(fromValues).append('\n');
+      } else if (fromValues == null) {
+        out.append("    + ").append(param).append(' ').append(toValues).append('\n');
+      } else if (!fromValues.equals(toValues)) {
+        out.append("    ~ ").append(param).append(' ').append(fromValues).append(" -> ")
+            .append(toValues).append('\n');
+      }
+    }
+  }
+
+  private static TreeMap<String, String> describe(Map<String, SupportedValues> ranges) {
+    TreeMap<String, String> params = new TreeMap<>();
+    for (Map.Entry<String, SupportedValues> entry : ranges.entrySet()) {
+      params.put(entry.getKey(), CapabilitiesFingerprint.describe(entry.getValue()));
+    }
+    return params;
+  }
+
+  // a file, or codec=file for the result of a capabilities query
+  private static Map<String, Map<String, SupportedValues>> load(String arg) throws IOException {
+    final int separator = arg.indexOf('=');
+    String codecName = separator > 0 ? arg.substring(0, separator) : "";
+    File input = new File(separator > 0 ? arg.substring(separator + 1) : arg);
+    try {
+      return read(Files.readAllBytes(input.toPath()), codecName);
+    } catch (IOException e) {
+      throw new IOException("Failed to read " + input + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Diff the capabilities of two JSON files.
+   *
+   * @return number of codecs that are not the same in both files
+   */
+  static int run(String from, String to, PrintStream out) throws IOException {
+    StringBuilder diff = new StringBuilder();
+    final int changedCount = diff(load(from), load(to), diff);
+    out.print(diff);
+    return changedCount;
+  }
+
+  /**
+   * Print the diff of two capabilities files. A file is an asset file, or the result of a
+   * capabilities query of a codec given as codec=file, e.g.
+   * c2.qti.hevc.encoder=hevc_encoder_query.json. Exits with 1 if they differ.
+   *
+   * <p>Usage: CapabilitiesDiff &lt;JSON file&gt; &lt;JSON file&gt;
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: CapabilitiesDiff <JSON file> <JSON file>");
+      System.exit(2);
+    }
+    if (run(args[0], args[1], System.out) > 0) {
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * Stable hash of the parameter ranges of a codec, the same for the same ranges whatever their
+ * source (asset file, compiled table, snapshot or codec query), process or JVM. Params are hashed
+ * in name order and values in numeric order, so it doesn't depend on map or JSON order.
+ *
+ * <p>64-bit FNV-1a of names and enum constants as UTF-8 and of numbers as their bits, printed as
+ * 16 hex digits. Pure Java, it's also used by host tools.
+ */
+final class CapabilitiesFingerprint {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  // kinds of numbers
+  private static final int KIND_NULL = 0;
+  private static final int KIND_INT = 1;
+  private static final int KIND_LONG = 2;
+  private static final int KIND_FLOAT = 3;
+
+  private long hash = FNV_OFFSET_BASIS;
+
+  private CapabilitiesFingerprint() {
+  }
+
+  /**
+   * Get the fingerprint of the parameter ranges of a codec.
+   *
+   * @return 16 hex digits
+   */
+  static String of(Map<String, SupportedValues> ranges) {
+    return toString(hash(ranges));
+  }
+
+  /**
+   * Get the fingerprint of the parameter ranges of a codec as a number, e.g. to store it in a
+   * binary file.
+   */
+  static long hash(Map<String, SupportedValues> ranges) {
+    CapabilitiesFingerprint fingerprint = new CapabilitiesFingerprint();
+    for (Map.Entry<String, SupportedValues> entry : new TreeMap<>(ranges).entrySet()) {
+      fingerprint.addString(entry.getKey());
+      fingerprint.add(entry.getValue());
+    }
+    return fingerprint.hash;
+  }
+
+  /**
+   * Print a fingerprint returned by {@link #hash(Map)} like {@link #of(Map)}.
+   */
+  static String toString(long hash) {
+    return String.format(Locale.ROOT, "%016x", hash);
+  }
+
+  /**
+   * Describe supported values, e.g. "RANGE INTEGER [0, 100, 1, 1, 1]" for a range of min, max,
+   * step, num and denom, "VALUES INTEGER {1, 2}" or "ANY STRING". Values are in numeric order.
+   */
+  static String describe(SupportedValues<?> supportedValues) {
+    StringBuilder description = new StringBuilder();
+    description.append(supportedValues.getType()).append(' ')
+        .append(supportedValues.getDataType());
+    ValueRange<?> range = supportedValues.getRange();
+    if (range != null) {
+      description.append(" [").append(range.getMin()).append(", ").append(range.getMax())
+          .append(", ").append(range.getStep()).append(", ").append(range.getNum())
+          .append(", ").append(range.getDenom()).append(']');
+    }
+    List<?> values = getSortedValues(supportedValues);
+    if (values != null) {
+      description.append(" {");
+      for (int i = 0; i < values.size(); ++i) {
+        description.append(i > 0 ? ", " : "").append(values.get(i));
+      }
+      description.append('}');
+    }
+    return description.toString();
+  }
+
+  private void add(SupportedValues<?> supportedValues) {
+    addString(supportedValues.getType().name());
+    addString(supportedValues.getDataType().name());
+    ValueRange<?> range = supportedValues.getRange();
+    if (range == null) {
+      addByte(KIND_NULL);
+    } else {
+      addNumber(range.getMin());
+      addNumber(range.getMax());
+      addNumber(range.getStep());
+      addNumber(range.getNum());
+      addNumber(range.getDenom());
+    }
+    List<?> values = getSortedValues(supportedValues);
+    if (values == null) {
+      addByte(KIND_NULL);
+    } else {
+      addLong(values.size());
+      for (Object value : values) {
+        addNumber(value);
+      }
+    }
+  }
+
+  // the values of VALUES and FLAGS, in numeric order
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static List<?> getSortedValues(SupportedValues<?> supportedValues) {
+    List<?> values = supportedValues.getValues();
+    if (values == null) {
+      values = supportedValues.getFlags();
+    }
+    if (values == null) {
+      return null;
+    }
+    List<Comparable> sorted = new ArrayList<>((List<Comparable>) values);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  private void addNumber(Object number) {
+    if (number instanceof Float) {
+      addByte(KIND_FLOAT);
+      addLong(Float.floatToIntBits((Float) number));
+    } else if (number instanceof Long) {
+      addByte(KIND_LONG);
+      addLong((Long) number);
+    } else if (number instanceof Integer) {
+      addByte(KIND_INT);
+      addLong((Integer) number);
+    } else {
+      addByte(KIND_NULL);
+    }
+  }
+
+  private void addString(String s) {
+    for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      addByte(b);
+    }
+    // names can't contain '\0', the end of a name is unambiguous
+    addByte(0);
+  }
+
+  private void addLong(long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      addByte((int) (value >>> shift));
+    }
+  }
+
+  private void addByte(int b) {
+    hash ^= b & 0xff;
+    hash *= FNV_PRIME;
+  }
+}
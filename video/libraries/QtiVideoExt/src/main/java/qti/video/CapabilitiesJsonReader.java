@@ -0,0 +1,572 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * Streaming reader of codec parameter ranges in UTF-8 JSON, from capabilities asset files or
+ * capabilities query results. Objects are read without building a tree: values that are not
+ * needed are skipped, and only the numbers of "values" arrays are materialized.
+ *
+ * <p>An asset file has the params of every codec under "codecs.params".
+ * {@link #indexCodecs(byte[])} finds the offsets of the codec objects in one pass, so the params
+ * of a codec are read without reading the other codecs again.
+ *
+ * <p>Numbers are converted like org.json: integers that don't fit in an int wrap to int for
+ * 32-bit types, and fractional numbers saturate. Pure Java, it's also used by host tools.
+ */
+final class CapabilitiesJsonReader {
+  static final String CODECS_KEY = "codecs.params";
+
+  private final byte[] json;
+  private final int end;
+  private int pos;
+
+  CapabilitiesJsonReader(byte[] json) {
+    this(json, 0, json.length);
+  }
+
+  /**
+   * Read a part of a JSON document, e.g. a codec object of {@link #indexCodecs(byte[])}.
+   */
+  CapabilitiesJsonReader(byte[] json, int offset, int length) {
+    this.json = json;
+    this.pos = offset;
+    this.end = offset + length;
+  }
+
+  /**
+   * Index the codec objects of an asset file.
+   *
+   * @return offset and length of the object of every codec in "codecs.params", by codec
+   *     canonical name. Empty if the document has no "codecs.params".
+   */
+  static Map<String, int[]> indexCodecs(byte[] json) throws IOException {
+    CapabilitiesJsonReader reader = new CapabilitiesJsonReader(json);
+    Map<String, int[]> codecs = new HashMap<>();
+    reader.beginObject();
+    for (boolean first = true; reader.hasNextMember(first); first = false) {
+      String name = reader.nextName();
+      if (!name.equals(CODECS_KEY) || reader.peek() != '{') {
+        reader.skipValue();
+        continue;
+      }
+      reader.beginObject();
+      for (boolean firstCodec = true; reader.hasNextMember(firstCodec); firstCodec = false) {
+        String codecName = reader.nextName();
+        final int start = reader.valuePosition();
+        reader.skipValue();
+        codecs.put(codecName, new int[] {start, reader.pos - start});
+      }
+      reader.endObject();
+    }
+    reader.endObject();
+    return codecs;
+  }
+
+  /**
+   * Read a params object, i.e. a codec object of an asset file or a query result. Nested
+   * parameter names are joined with '.', e.g. "coded.pl.level".
+   *
+   * @param ranges receives the supported values by parameter name.
+   */
+  void readParams(Map<String, SupportedValues> ranges) throws IOException {
+    readMembers(null, ranges);
+  }
+
+  private void readMembers(String parentName, Map<String, SupportedValues> ranges)
+      throws IOException {
+    beginObject();
+    for (boolean first = true; hasNextMember(first); first = false) {
+      String name = nextName();
+      String fullName = (parentName == null) ? name : parentName + "." + name;
+      if (peek() != '{') {
+        throw error("Param " + fullName + " is not an object");
+      }
+      readParam(fullName, ranges);
+    }
+    endObject();
+  }
+
+  // a param with "values", "valuestype" and "datatype" is a field, other params have fields
+  private void readParam(String fullName, Map<String, SupportedValues> ranges)
+      throws IOException {
+    final int start = pos;
+    int valuesPos = -1;
+    String valuesType = null;
+    String dataType = null;
+    beginObject();
+    for (boolean first = true; hasNextMember(first); first = false) {
+      String name = nextName();
+      switch (name) {
+        case "values":
+          valuesPos = valuePosition();
+          skipValue();
+          break;
+        case "valuestype":
+          valuesType = nextStringOrEmpty();
+          break;
+        case "datatype":
+          dataType = nextStringOrEmpty();
+          break;
+        default:
+          skipValue();
+          break;
+      }
+    }
+    endObject();
+    if (valuesPos == -1 || valuesType == null || dataType == null) {
+      final int paramEnd = pos;
+      pos = start;
+      readMembers(fullName, ranges);
+      assert (pos == paramEnd);
+      return;
+    }
+    final int paramEnd = pos;
+    pos = valuesPos;
+    List<Number> values = peek() == '[' ? nextNumbers() : null;
+    pos = paramEnd;
+    if (valuesType.isEmpty() || dataType.isEmpty() || values == null) {
+      throw error("Failed to get range data for param " + fullName);
+    }
+    ranges.put(fullName, toSupportedValues(valuesType, dataType, values));
+  }
+
+  /**
+   * Convert a field of the JSON to supported values.
+   *
+   * @param values numbers of the "values" array, null elements for other values.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  static SupportedValues<?> toSupportedValues(String typeStr, String dataTypeStr,
+                                              List<Number> values) {
+    SupportedValues.Type type = getParamRangeType(typeStr);
+    SupportedValues.DataType datatype = getParamDataType(dataTypeStr);
+    ValueRange<?> range;
+    Object array;
+    if (type == SupportedValues.Type.RANGE) {
+      range = getRange(dataTypeStr, values);
+      array = null;
+    } else if (type == SupportedValues.Type.EMPTY) {
+      // make both range and values null
+      range = null;
+      array = null;
+    } else if (type == SupportedValues.Type.ANY) {
+      if (checkForUnsignedRange(dataTypeStr)) {
+        type = SupportedValues.Type.RANGE;
+        range = getRangeForAny(dataTypeStr);
+      } else {
+        // make range null
+        range = null;
+      }
+      array = null;
+    } else {
+      // for all other types (values/flags)
+      array = getValues(dataTypeStr, values);
+      range = null;
+    }
+    return SupportedValues.ofArray(type, datatype, (ValueRange) range, array);
+  }
+
+  static SupportedValues.DataType getParamDataType(String datatypeStr) {
+    switch (datatypeStr.toLowerCase(Locale.ROOT)) {
+      case "int32":
+      case "uint32":
+      case "cntr32":
+        return SupportedValues.DataType.INTEGER;
+      case "string":
+        return SupportedValues.DataType.STRING;
+      case "blob":
+        return SupportedValues.DataType.BYTE_BUFFER;
+      case "int64":
+      case "uint64":
+      case "cntr64":
+        return SupportedValues.DataType.LONG;
+      case "float":
+        return SupportedValues.DataType.FLOAT;
+      case "struct_flag":
+      default:
+        return SupportedValues.DataType.NULL;
+    }
+  }
+
+  static SupportedValues.Type getParamRangeType(String typeStr) {
+    switch (typeStr.toLowerCase(Locale.ROOT)) {
+      case "any":
+        return SupportedValues.Type.ANY;
+      case "flags":
+        return SupportedValues.Type.FLAGS;
+      case "values":
+        return SupportedValues.Type.VALUES;
+      case "range":
+        return SupportedValues.Type.RANGE;
+      default:
+        return SupportedValues.Type.EMPTY;
+    }
+  }
+
+  private static boolean isInt32Data(String datatypeStr) {
+    return datatypeStr.equalsIgnoreCase("int32")
+        || datatypeStr.equalsIgnoreCase("uint32")
+        || datatypeStr.equalsIgnoreCase("cntr32")
+        || datatypeStr.equalsIgnoreCase("blob")
+        || datatypeStr.equalsIgnoreCase("string");
+  }
+
+  private static boolean isInt64Data(String datatypeStr) {
+    return datatypeStr.equalsIgnoreCase("int64")
+        || datatypeStr.equalsIgnoreCase("uint64")
+        || datatypeStr.equalsIgnoreCase("cntr64");
+  }
+
+  // int[], long[] or float[] of the values of a VALUES or FLAGS field
+  private static Object getValues(String datatypeStr, List<Number> array) {
+    if (array.contains(null)) {
+      return null;
+    }
+    final int size = array.size();
+    if (isInt32Data(datatypeStr)) {
+      int[] ints = new int[size];
+      for (int i = 0; i < size; ++i) {
+        ints[i] = array.get(i).intValue();
+      }
+      return ints;
+    } else if (isInt64Data(datatypeStr)) {
+      long[] longs = new long[size];
+      for (int i = 0; i < size; ++i) {
+        longs[i] = array.get(i).longValue();
+      }
+      return longs;
+    } else if (datatypeStr.equalsIgnoreCase("float")) {
+      float[] floats = new float[size];
+      for (int i = 0; i < size; ++i) {
+        floats[i] = (float) array.get(i).doubleValue();
+      }
+      return floats;
+    } else {
+      // struct_flag and unknown types
+      return null;
+    }
+  }
+
+  static boolean checkForUnsignedRange(String datatypeStr) {
+    switch (datatypeStr.toLowerCase(Locale.ROOT)) {
+      case "uint32":
+      case "cntr32":
+      case "uint64":
+      case "cntr64":
+      case "blob":
+      case "string":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static ValueRange<?> getRangeForAny(String datatypeStr) {
+    if (datatypeStr.equalsIgnoreCase("uint32") || datatypeStr.equalsIgnoreCase("cntr32")) {
+      return new ValueRange<>(0, Integer.MAX_VALUE, 1, 1, 1);
+    } else if (datatypeStr.equalsIgnoreCase("string") || datatypeStr.equalsIgnoreCase("blob")) {
+      return new ValueRange<>(0, 255, 1, 1, 1);
+    } else if (datatypeStr.equalsIgnoreCase("uint64") || datatypeStr.equalsIgnoreCase("cntr64")) {
+      // this doesnt exactly cover the full range for uint64/cntr64 but
+      // use long to match types used in Android MediaCodec API
+      return new ValueRange<>(0L, Long.MAX_VALUE, 1L, 1L, 1L);
+    } else if (datatypeStr.equalsIgnoreCase("int32")) {
+      return new ValueRange<>(Integer.MIN_VALUE, Integer.MAX_VALUE, 1, 1, 1);
+    } else if (datatypeStr.equalsIgnoreCase("int64")) {
+      return new ValueRange<>(Long.MIN_VALUE, Long.MAX_VALUE, 1L, 1L, 1L);
+    } else if (datatypeStr.equalsIgnoreCase("float")) {
+      return new ValueRange<>(Float.MIN_VALUE, Float.MAX_VALUE, 1.f, 1.f, 1.f);
+    } else {
+      return null;
+    }
+  }
+
+  // min, max, step, num and denom of a RANGE field
+  private static ValueRange<?> getRange(String datatypeStr, List<Number> array) {
+    // length check to verify the range array is properly formatted
+    if (array.size() != 5 || array.contains(null)) {
+      return null;
+    }
+    if (isInt32Data(datatypeStr)) {
+      return new ValueRange<>(array.get(0).intValue(), array.get(1).intValue(),
+          array.get(2).intValue(), array.get(3).intValue(), array.get(4).intValue());
+    } else if (isInt64Data(datatypeStr)) {
+      return new ValueRange<>(array.get(0).longValue(), array.get(1).longValue(),
+          array.get(2).longValue(), array.get(3).longValue(), array.get(4).longValue());
+    } else if (datatypeStr.equalsIgnoreCase("float")) {
+      return new ValueRange<>((float) array.get(0).doubleValue(),
+          (float) array.get(1).doubleValue(), (float) array.get(2).doubleValue(),
+          (float) array.get(3).doubleValue(), (float) array.get(4).doubleValue());
+    } else {
+      // struct_flag and unknown types
+      return null;
+    }
+  }
+
+  // tokenizer
+
+  private IOException error(String message) {
+    return new IOException(message + " at offset " + pos);
+  }
+
+  private void skipWhitespace() {
+    while (pos < end) {
+      final byte c = json[pos];
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private int peek() throws IOException {
+    skipWhitespace();
+    if (pos >= end) {
+      throw error("Unexpected end of JSON");
+    }
+    return json[pos];
+  }
+
+  private int valuePosition() throws IOException {
+    peek();
+    return pos;
+  }
+
+  private void expect(char c) throws IOException {
+    if (peek() != c) {
+      throw error("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private void beginObject() throws IOException {
+    expect('{');
+  }
+
+  private void endObject() throws IOException {
+    expect('}');
+  }
+
+  // true if another member follows, consumes the ',' before it
+  private boolean hasNextMember(boolean first) throws IOException {
+    if (peek() == '}') {
+      return false;
+    }
+    if (!first) {
+      expect(',');
+    }
+    return true;
+  }
+
+  private String nextName() throws IOException {
+    String name = nextString();
+    expect(':');
+    return name;
+  }
+
+  private String nextStringOrEmpty() throws IOException {
+    if (peek() == '"') {
+      return nextString();
+    }
+    skipValue();
+    return "";
+  }
+
+  private String nextString() throws IOException {
+    expect('"');
+    final int start = pos;
+    while (pos < end) {
+      final byte c = json[pos];
+      if (c == '"') {
+        return new String(json, start, pos++ - start, StandardCharsets.UTF_8);
+      }
+      if (c == '\\') {
+        return nextEscapedString(start);
+      }
+      pos++;
+    }
+    throw error("Unterminated string");
+  }
+
+  private String nextEscapedString(int start) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    int segmentStart = start;
+    while (pos < end) {
+      final byte c = json[pos];
+      if (c == '"') {
+        builder.append(new String(json, segmentStart, pos++ - segmentStart,
+            StandardCharsets.UTF_8));
+        return builder.toString();
+      }
+      if (c != '\\') {
+        pos++;
+        continue;
+      }
+      builder.append(new String(json, segmentStart, pos - segmentStart, StandardCharsets.UTF_8));
+      if (pos + 1 >= end) {
+        break;
+      }
+      final byte escaped = json[pos + 1];
+      pos += 2;
+      switch (escaped) {
+        case 'b':
+          builder.append('\b');
+          break;
+        case 'f':
+          builder.append('\f');
+          break;
+        case 'n':
+          builder.append('\n');
+          break;
+        case 'r':
+          builder.append('\r');
+          break;
+        case 't':
+          builder.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > end) {
+            throw error("Bad unicode escape");
+          }
+          try {
+            builder.append((char) Integer.parseInt(
+                new String(json, pos, 4, StandardCharsets.US_ASCII), 16));
+          } catch (NumberFormatException e) {
+            throw error("Bad unicode escape");
+          }
+          pos += 4;
+          break;
+        default:
+          // '"', '\\', '/'
+          builder.append((char) escaped);
+          break;
+      }
+      segmentStart = pos;
+    }
+    throw error("Unterminated string");
+  }
+
+  // numbers of an array, null for other values
+  private List<Number> nextNumbers() throws IOException {
+    expect('[');
+    List<Number> numbers = new ArrayList<>();
+    if (peek() == ']') {
+      pos++;
+      return numbers;
+    }
+    while (true) {
+      final int c = peek();
+      if (c == '-' || (c >= '0' && c <= '9')) {
+        numbers.add(nextNumber());
+      } else {
+        skipValue();
+        numbers.add(null);
+      }
+      if (peek() == ',') {
+        pos++;
+      } else {
+        expect(']');
+        return numbers;
+      }
+    }
+  }
+
+  // Integer, Long or Double, like org.json
+  private Number nextNumber() throws IOException {
+    final int start = pos;
+    boolean integer = true;
+    while (pos < end) {
+      final byte c = json[pos];
+      if (c == '.' || c == 'e' || c == 'E') {
+        integer = false;
+      } else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+        break;
+      }
+      pos++;
+    }
+    String literal = new String(json, start, pos - start, StandardCharsets.US_ASCII);
+    try {
+      if (integer) {
+        try {
+          final long value = Long.parseLong(literal);
+          if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+          }
+          return value;
+        } catch (NumberFormatException e) {
+          // beyond long
+        }
+      }
+      return Double.valueOf(literal);
+    } catch (NumberFormatException e) {
+      throw error("Bad number " + literal);
+    }
+  }
+
+  private void skipValue() throws IOException {
+    final int c = peek();
+    if (c == '"') {
+      skipString();
+      return;
+    }
+    if (c != '{' && c != '[') {
+      // number, true, false or null
+      while (pos < end) {
+        final byte b = json[pos];
+        if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r'
+            || b == '\t') {
+          break;
+        }
+        pos++;
+      }
+      return;
+    }
+    int depth = 0;
+    while (pos < end) {
+      final byte b = json[pos];
+      if (b == '"') {
+        skipString();
+        continue;
+      }
+      pos++;
+      if (b == '{' || b == '[') {
+        depth++;
+      } else if (b == '}' || b == ']') {
+        if (--depth == 0) {
+          return;
+        }
+      }
+    }
+    throw error("Unterminated object or array");
+  }
+
+  private void skipString() throws IOException {
+    pos++;
+    while (pos < end) {
+      final byte c = json[pos++];
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        pos++;
+      }
+    }
+    throw error("Unterminated string");
+  }
+}
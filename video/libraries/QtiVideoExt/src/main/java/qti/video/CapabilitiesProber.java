@@ -0,0 +1,276 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Batch query of the capabilities of several codecs, e.g. all the encoders and decoders an app
+ * uses, at app start. The codecs are probed in parallel on a small executor, at most
+ * maxSessions codec instances exist at the same time, and the mime types of a codec are queried
+ * with a single instance of the codec. The capabilities are kept in the process-wide cache, so
+ * later calls of {@link QMediaCodecCapabilities#createForCodec} don't query the codecs again.
+ *
+ * <p>On devices with an asset file no codec instance is created.
+ *
+ * <pre>
+ * CapabilitiesProber.Result result = new CapabilitiesProber(context)
+ *     .add("c2.qti.hevc.encoder")
+ *     .add("c2.qti.avc.decoder", MediaFormat.MIMETYPE_VIDEO_AVC)
+ *     .probe();
+ * QMediaCodecCapabilities caps = result.getCapabilities("c2.qti.hevc.encoder", "video/hevc");
+ * </pre>
+ */
+public final class CapabilitiesProber {
+  private static final String TAG = "CapabilitiesProber";
+
+  /**
+   * Default maximum number of codec instances created at the same time.
+   */
+  public static final int DEFAULT_MAX_SESSIONS = 2;
+
+  private final Context context;
+  private final int maxSessions;
+  // requested mime types by codec name, in the order they were added
+  private final Map<String, Set<String>> components = new LinkedHashMap<>();
+
+  public CapabilitiesProber(Context context) {
+    this(context, DEFAULT_MAX_SESSIONS);
+  }
+
+  /**
+   * Create a prober.
+   *
+   * @param maxSessions maximum number of codec instances created at the same time, also the
+   *                    number of threads probing codecs
+   */
+  public CapabilitiesProber(Context context, int maxSessions) {
+    assert (maxSessions > 0);
+    this.context = context;
+    this.maxSessions = Math.max(1, maxSessions);
+  }
+
+  /**
+   * Request the capabilities of a codec for a mime type.
+   *
+   * @param codecName underlying codec name or alias name
+   * @param mime      media type
+   * @return this prober
+   */
+  public CapabilitiesProber add(String codecName, String mime) {
+    components.computeIfAbsent(codecName, k -> new LinkedHashSet<>())
+        .add(mime.toLowerCase(Locale.ROOT));
+    return this;
+  }
+
+  /**
+   * Request the capabilities of a codec for all its supported mime types.
+   *
+   * @param codecName underlying codec name or alias name
+   * @return this prober
+   */
+  public CapabilitiesProber add(String codecName) {
+    MediaCodecInfo info = QMediaCodecCapabilities.findCodecInfo(codecName);
+    if (info == null) {
+      Log.e(TAG, "Not a valid codec " + codecName);
+      return this;
+    }
+    for (String type : info.getSupportedTypes()) {
+      add(codecName, type);
+    }
+    return this;
+  }
+
+  /**
+   * Query the requested capabilities. Blocks until all the codecs are probed, so don't call it
+   * on the main thread.
+   *
+   * @return capabilities by codec and mime type, null for the ones that can't be queried
+   */
+  public Result probe() {
+    final long startNs = System.nanoTime();
+    Result result = new Result();
+    if (components.isEmpty()) {
+      return result;
+    }
+    final int threadCount = Math.min(maxSessions, components.size());
+    final AtomicInteger threadIndex = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+        r -> new Thread(r, TAG + "-" + threadIndex.incrementAndGet()));
+    List<Callable<Void>> tasks = new ArrayList<>(components.size());
+    for (Map.Entry<String, Set<String>> component : components.entrySet()) {
+      tasks.add(() -> {
+        probeComponent(component.getKey(), component.getValue(), result);
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Log.e(TAG, "Failed to probe codec: " + e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while probing codecs");
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+    result.elapsedTimeNs = System.nanoTime() - startNs;
+    Log.i(TAG, result.toString() + " with " + threadCount + " sessions");
+    return result;
+  }
+
+  // probe the mime types of a codec, sharing one codec instance
+  private void probeComponent(String codecName, Set<String> mimes, Result result) {
+    final long startNs = System.nanoTime();
+    CodecSession session = new CodecSession(codecName);
+    try {
+      for (String mime : mimes) {
+        QMediaCodecCapabilities capabilities =
+            QMediaCodecCapabilities.createForCodec(codecName, mime, context, session);
+        result.put(codecName, mime, capabilities);
+      }
+    } finally {
+      session.release();
+      result.componentTimeNs.addAndGet(System.nanoTime() - startNs);
+    }
+  }
+
+  // codec instance created on the first query of the codec, if the capabilities are not cached
+  // and there is no asset file
+  private static final class CodecSession implements Supplier<MediaCodec> {
+    private final String codecName;
+    private MediaCodec codec;
+    private boolean failed;
+
+    CodecSession(String codecName) {
+      this.codecName = codecName;
+    }
+
+    @Override
+    public MediaCodec get() {
+      if (codec == null && !failed) {
+        try {
+          Log.v(TAG, "Creating Codec " + codecName);
+          codec = MediaCodec.createByCodecName(codecName);
+        } catch (Exception e) {
+          Log.e(TAG, "Failed to create codec " + codecName);
+          failed = true;
+        }
+      }
+      return codec;
+    }
+
+    void release() {
+      if (codec != null) {
+        codec.release();
+        codec = null;
+      }
+    }
+  }
+
+  /**
+   * Capabilities queried by {@link #probe()}.
+   */
+  public static final class Result {
+    // by "codec name mime type"
+    private final Map<String, QMediaCodecCapabilities> capabilities = new ConcurrentHashMap<>();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong componentTimeNs = new AtomicLong();
+    private long elapsedTimeNs;
+
+    Result() {
+    }
+
+    private static String key(String codecName, String mime) {
+      return codecName.toLowerCase(Locale.ROOT) + " " + mime.toLowerCase(Locale.ROOT);
+    }
+
+    void put(String codecName, String mime, QMediaCodecCapabilities codecCapabilities) {
+      if (codecCapabilities != null) {
+        capabilities.put(key(codecName, mime), codecCapabilities);
+      } else {
+        failures.add(codecName + " " + mime);
+      }
+    }
+
+    /**
+     * Get the capabilities of a codec for a mime type.
+     *
+     * @return capabilities, null if they were not requested or can't be queried
+     */
+    public QMediaCodecCapabilities getCapabilities(String codecName, String mime) {
+      return capabilities.get(key(codecName, mime));
+    }
+
+    /**
+     * Get the number of codec and mime type combinations that were queried.
+     */
+    public int getProbedCount() {
+      return capabilities.size();
+    }
+
+    /**
+     * Get the codec and mime type combinations that can't be queried, as "codec mime".
+     */
+    public List<String> getFailures() {
+      synchronized (failures) {
+        return new ArrayList<>(failures);
+      }
+    }
+
+    /**
+     * Get the time to probe all the codecs.
+     *
+     * @return wall time of {@link #probe()} in nanoseconds
+     */
+    public long getElapsedTimeNs() {
+      return elapsedTimeNs;
+    }
+
+    /**
+     * Get the sum of the times to probe each codec, i.e. about the time of probing the codecs
+     * one after another.
+     *
+     * @return time in nanoseconds
+     */
+    public long getComponentTimeNs() {
+      return componentTimeNs.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "Probed %d codec/mime in %.1f ms (%.1f ms of codecs)%s",
+          capabilities.size(), elapsedTimeNs / 1e6, componentTimeNs.get() / 1e6,
+          failures.isEmpty() ? "" : ", failed " + getFailures());
+    }
+  }
+}
@@ -0,0 +1,488 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * Binary table of the parameter ranges of the codecs of a capabilities asset file, compiled from
+ * the JSON at build time so the ranges are read without parsing. A table is usually a memory
+ * mapped asset; lookups read the buffer in place and only decode the params asked for.
+ *
+ * <p>Layout, big-endian:
+ * <pre>
+ *   header   magic, version, codec count, param count, string count (ints)
+ *   codecs   name string, param count, first param (ints), fingerprint (long), sorted by name
+ *   params   name string (int), type, data type, layout, number kind (bytes),
+ *            number count, number offset (ints), sorted by name within a codec
+ *   strings  offset, length (ints), then the UTF-8 bytes; names are interned
+ *   numbers  ranges and values, identical arrays are stored once
+ * </pre>
+ *
+ * <p>The fingerprint of a codec is the {@link CapabilitiesFingerprint} of its params, computed
+ * when the table is compiled, so it's known without reading the params.
+ *
+ * <p>Immutable and thread-safe. Pure Java, {@link #main(String[])} is run by the build.
+ */
+final class CapabilitiesTable {
+  static final String TABLE_SUFFIX = ".qmct";
+
+  private static final int MAGIC = 0x514d4354; // QMCT
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 20;
+  private static final int CODEC_SIZE = 20;
+  private static final int PARAM_SIZE = 16;
+  private static final int STRING_SIZE = 8;
+  // layouts of the numbers of a param
+  private static final int LAYOUT_NONE = 0;
+  private static final int LAYOUT_RANGE = 1;
+  private static final int LAYOUT_VALUES = 2;
+  // kinds of numbers
+  private static final int KIND_NULL = 0;
+  private static final int KIND_INT = 1;
+  private static final int KIND_LONG = 2;
+  private static final int KIND_FLOAT = 3;
+
+  private final ByteBuffer buffer;
+  private final int codecCount;
+  private final int paramsOffset;
+  private final int stringsOffset;
+
+  private CapabilitiesTable(ByteBuffer buffer, int codecCount, int paramCount) {
+    this.buffer = buffer;
+    this.codecCount = codecCount;
+    this.paramsOffset = HEADER_SIZE + codecCount * CODEC_SIZE;
+    this.stringsOffset = paramsOffset + paramCount * PARAM_SIZE;
+  }
+
+  /**
+   * Get the name of the table compiled from a JSON asset file.
+   */
+  static String getTableFileName(String jsonFileName) {
+    int dot = jsonFileName.lastIndexOf('.');
+    return (dot > 0 ? jsonFileName.substring(0, dot) : jsonFileName) + TABLE_SUFFIX;
+  }
+
+  /**
+   * Open a table, the buffer is read in place and must not be modified.
+   *
+   * @throws IOException if the buffer is not a table of this version
+   */
+  static CapabilitiesTable wrap(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a capabilities table");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Capabilities table version " + buffer.getInt(4));
+    }
+    final int codecCount = buffer.getInt(8);
+    final int paramCount = buffer.getInt(12);
+    final int stringCount = buffer.getInt(16);
+    if (codecCount < 0 || paramCount < 0 || stringCount < 0
+        || HEADER_SIZE + (long) codecCount * CODEC_SIZE + (long) paramCount * PARAM_SIZE
+        + (long) stringCount * STRING_SIZE > buffer.capacity()) {
+      throw new IOException("Truncated capabilities table");
+    }
+    return new CapabilitiesTable(buffer, codecCount, paramCount);
+  }
+
+  /**
+   * Get the canonical names of the codecs of the table.
+   */
+  List<String> getCodecs() {
+    List<String> codecs = new ArrayList<>(codecCount);
+    for (int i = 0; i < codecCount; ++i) {
+      codecs.add(getString(buffer.getInt(HEADER_SIZE + i * CODEC_SIZE)));
+    }
+    return codecs;
+  }
+
+  boolean hasCodec(String canonName) {
+    return findCodec(canonName) >= 0;
+  }
+
+  /**
+   * Read all params of a codec.
+   *
+   * @param ranges receives the supported values by parameter name.
+   * @return false if the codec is not in the table.
+   */
+  boolean readParams(String canonName, Map<String, SupportedValues> ranges) {
+    final int codec = findCodec(canonName);
+    if (codec < 0) {
+      return false;
+    }
+    final int paramCount = buffer.getInt(codec + 4);
+    final int firstParam = buffer.getInt(codec + 8);
+    for (int i = 0; i < paramCount; ++i) {
+      final int param = paramsOffset + (firstParam + i) * PARAM_SIZE;
+      ranges.put(getString(buffer.getInt(param)), readParam(param));
+    }
+    return true;
+  }
+
+  /**
+   * Get the {@link CapabilitiesFingerprint} of the params of a codec, without reading them.
+   *
+   * @return 16 hex digits, null if the codec is not in the table.
+   */
+  String getFingerprint(String canonName) {
+    final int codec = findCodec(canonName);
+    return codec < 0 ? null : CapabilitiesFingerprint.toString(buffer.getLong(codec + 12));
+  }
+
+  /**
+   * Read a param of a codec, without reading the other params.
+   *
+   * @return supported values of the param, null if the codec or the param is not in the table.
+   */
+  SupportedValues<?> get(String canonName, String paramName) {
+    final int codec = findCodec(canonName);
+    if (codec < 0) {
+      return null;
+    }
+    final int firstParam = buffer.getInt(codec + 8);
+    int low = firstParam;
+    int high = firstParam + buffer.getInt(codec + 4) - 1;
+    byte[] name = paramName.getBytes(StandardCharsets.UTF_8);
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int param = paramsOffset + mid * PARAM_SIZE;
+      final int cmp = compareString(buffer.getInt(param), name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return readParam(param);
+      }
+    }
+    return null;
+  }
+
+  // offset of the codec record, -1 if not found
+  private int findCodec(String canonName) {
+    byte[] name = canonName.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = codecCount - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int codec = HEADER_SIZE + mid * CODEC_SIZE;
+      final int cmp = compareString(buffer.getInt(codec), name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return codec;
+      }
+    }
+    return -1;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private SupportedValues<?> readParam(int param) {
+    SupportedValues.Type type = SupportedValues.Type.values()[buffer.get(param + 4)];
+    SupportedValues.DataType dataType = SupportedValues.DataType.values()[buffer.get(param + 5)];
+    final int layout = buffer.get(param + 6);
+    final int kind = buffer.get(param + 7);
+    final int count = buffer.getInt(param + 8);
+    final int offset = buffer.getInt(param + 12);
+    ValueRange<?> range = null;
+    Object values = null;
+    if (layout == LAYOUT_RANGE) {
+      final int size = getSize(kind);
+      range = new ValueRange(readNumber(kind, offset), readNumber(kind, offset + size),
+          readNumber(kind, offset + 2 * size), readNumber(kind, offset + 3 * size),
+          readNumber(kind, offset + 4 * size));
+    } else if (layout == LAYOUT_VALUES) {
+      values = readArray(kind, offset, count);
+    }
+    return SupportedValues.ofArray(type, dataType, (ValueRange) range, values);
+  }
+
+  // int[], long[] or float[] of values
+  private Object readArray(int kind, int offset, int count) {
+    switch (kind) {
+      case KIND_LONG:
+        long[] longs = new long[count];
+        for (int i = 0; i < count; ++i) {
+          longs[i] = buffer.getLong(offset + i * 8);
+        }
+        return longs;
+      case KIND_FLOAT:
+        float[] floats = new float[count];
+        for (int i = 0; i < count; ++i) {
+          floats[i] = buffer.getFloat(offset + i * 4);
+        }
+        return floats;
+      default:
+        int[] ints = new int[count];
+        for (int i = 0; i < count; ++i) {
+          ints[i] = buffer.getInt(offset + i * 4);
+        }
+        return ints;
+    }
+  }
+
+  private Object readNumber(int kind, int offset) {
+    switch (kind) {
+      case KIND_LONG:
+        return buffer.getLong(offset);
+      case KIND_FLOAT:
+        return buffer.getFloat(offset);
+      default:
+        return buffer.getInt(offset);
+    }
+  }
+
+  private String getString(int index) {
+    final int entry = stringsOffset + index * STRING_SIZE;
+    final int offset = buffer.getInt(entry);
+    byte[] bytes = new byte[buffer.getInt(entry + 4)];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = buffer.get(offset + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // compares the UTF-8 bytes of a string of the table with a name, like compareBytes()
+  private int compareString(int index, byte[] name) {
+    final int entry = stringsOffset + index * STRING_SIZE;
+    final int offset = buffer.getInt(entry);
+    final int length = buffer.getInt(entry + 4);
+    final int n = Math.min(length, name.length);
+    for (int i = 0; i < n; ++i) {
+      final int cmp = (buffer.get(offset + i) & 0xff) - (name[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - name.length;
+  }
+
+  private static int compareBytes(String a, String b) {
+    byte[] x = a.getBytes(StandardCharsets.UTF_8);
+    byte[] y = b.getBytes(StandardCharsets.UTF_8);
+    final int n = Math.min(x.length, y.length);
+    for (int i = 0; i < n; ++i) {
+      final int cmp = (x[i] & 0xff) - (y[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return x.length - y.length;
+  }
+
+  private static int getSize(int kind) {
+    return kind == KIND_LONG ? 8 : 4;
+  }
+
+  private static int getKind(Object number) {
+    return number == null ? KIND_NULL : number instanceof Long ? KIND_LONG
+        : number instanceof Float ? KIND_FLOAT : KIND_INT;
+  }
+
+  /**
+   * Compile a capabilities asset file.
+   *
+   * @return the table of every codec in "codecs.params".
+   * @throws IOException if the JSON can't be read
+   */
+  static byte[] compile(byte[] json) throws IOException {
+    Map<String, Map<String, SupportedValues>> codecs = new HashMap<>();
+    for (Map.Entry<String, int[]> codec : CapabilitiesJsonReader.indexCodecs(json).entrySet()) {
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      int[] span = codec.getValue();
+      new CapabilitiesJsonReader(json, span[0], span[1]).readParams(ranges);
+      codecs.put(codec.getKey(), ranges);
+    }
+    if (codecs.isEmpty()) {
+      throw new IOException("No " + CapabilitiesJsonReader.CODECS_KEY);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(codecs, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Write a table of the params of codecs.
+   *
+   * @param codecs supported values by parameter name, by codec canonical name.
+   */
+  static void write(Map<String, Map<String, SupportedValues>> codecs, OutputStream output)
+      throws IOException {
+    Map<String, Integer> strings = new HashMap<>();
+    List<String> stringList = new ArrayList<>();
+    Map<ByteBuffer, Integer> numberArrays = new HashMap<>();
+    ByteArrayOutputStream numberBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream codecBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream paramBytes = new ByteArrayOutputStream();
+    DataOutputStream codecOut = new DataOutputStream(codecBytes);
+    DataOutputStream paramOut = new DataOutputStream(paramBytes);
+    // number offsets are relative to the numbers until the size of the strings is known
+    List<Integer> numberOffsetPositions = new ArrayList<>();
+
+    TreeMap<String, Map<String, SupportedValues>> sortedCodecs =
+        new TreeMap<>(CapabilitiesTable::compareBytes);
+    sortedCodecs.putAll(codecs);
+    int paramCount = 0;
+    for (Map.Entry<String, Map<String, SupportedValues>> codec : sortedCodecs.entrySet()) {
+      TreeMap<String, SupportedValues> params = new TreeMap<>(CapabilitiesTable::compareBytes);
+      params.putAll(codec.getValue());
+      codecOut.writeInt(intern(codec.getKey(), strings, stringList));
+      codecOut.writeInt(params.size());
+      codecOut.writeInt(paramCount);
+      codecOut.writeLong(CapabilitiesFingerprint.hash(codec.getValue()));
+      for (Map.Entry<String, SupportedValues> param : params.entrySet()) {
+        SupportedValues<?> supportedValues = param.getValue();
+        ValueRange<?> range = supportedValues.getRange();
+        List<?> values = supportedValues.getValues() != null ? supportedValues.getValues()
+            : supportedValues.getFlags();
+        List<Object> numbers = new ArrayList<>();
+        int layout = LAYOUT_NONE;
+        if (range != null) {
+          layout = LAYOUT_RANGE;
+          Collections.addAll(numbers, range.getMin(), range.getMax(), range.getStep(),
+              range.getNum(), range.getDenom());
+        } else if (values != null) {
+          layout = LAYOUT_VALUES;
+          numbers.addAll(values);
+        }
+        final int kind = numbers.isEmpty() ? KIND_INT : getKind(numbers.get(0));
+        paramOut.writeInt(intern(param.getKey(), strings, stringList));
+        paramOut.writeByte(supportedValues.getType().ordinal());
+        paramOut.writeByte(supportedValues.getDataType().ordinal());
+        paramOut.writeByte(layout);
+        paramOut.writeByte(kind);
+        paramOut.writeInt(numbers.size());
+        numberOffsetPositions.add(paramOut.size());
+        paramOut.writeInt(addNumbers(numbers, kind, numberArrays, numberBytes));
+        paramCount++;
+      }
+    }
+
+    final int stringsOffset = HEADER_SIZE + codecBytes.size() + paramBytes.size();
+    int stringDataOffset = stringsOffset + stringList.size() * STRING_SIZE;
+    List<byte[]> stringData = new ArrayList<>(stringList.size());
+    for (String string : stringList) {
+      stringData.add(string.getBytes(StandardCharsets.UTF_8));
+    }
+    int numbersOffset = stringDataOffset;
+    for (byte[] bytes : stringData) {
+      numbersOffset += bytes.length;
+    }
+    ByteBuffer params = ByteBuffer.wrap(paramBytes.toByteArray());
+    for (int position : numberOffsetPositions) {
+      params.putInt(position, numbersOffset + params.getInt(position));
+    }
+
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(sortedCodecs.size());
+    out.writeInt(paramCount);
+    out.writeInt(stringList.size());
+    codecBytes.writeTo(out);
+    out.write(params.array());
+    for (byte[] bytes : stringData) {
+      out.writeInt(stringDataOffset);
+      out.writeInt(bytes.length);
+      stringDataOffset += bytes.length;
+    }
+    for (byte[] bytes : stringData) {
+      out.write(bytes);
+    }
+    numberBytes.writeTo(out);
+    out.flush();
+  }
+
+  private static int intern(String string, Map<String, Integer> strings,
+                            List<String> stringList) {
+    Integer index = strings.get(string);
+    if (index == null) {
+      index = stringList.size();
+      strings.put(string, index);
+      stringList.add(string);
+    }
+    return index;
+  }
+
+  // offset of the numbers in the number bytes, identical arrays are written once
+  private static int addNumbers(List<Object> numbers, int kind,
+                                Map<ByteBuffer, Integer> numberArrays,
+                                ByteArrayOutputStream numberBytes) {
+    ByteBuffer array = ByteBuffer.allocate(numbers.size() * getSize(kind));
+    for (Object number : numbers) {
+      switch (kind) {
+        case KIND_LONG:
+          array.putLong((Long) number);
+          break;
+        case KIND_FLOAT:
+          array.putFloat((Float) number);
+          break;
+        default:
+          array.putInt((Integer) number);
+          break;
+      }
+    }
+    array.flip();
+    Integer offset = numberArrays.get(array);
+    if (offset == null) {
+      offset = numberBytes.size();
+      numberArrays.put(array, offset);
+      numberBytes.write(array.array(), 0, array.limit());
+    }
+    return offset;
+  }
+
+  /**
+   * Compile capabilities asset files into tables.
+   *
+   * <p>Usage: CapabilitiesTable &lt;output directory&gt; &lt;JSON file&gt;...
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: CapabilitiesTable <output directory> <JSON file>...");
+      System.exit(1);
+    }
+    File outputDirectory = new File(args[0]);
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+      throw new IOException("Failed to create " + outputDirectory);
+    }
+    for (int i = 1; i < args.length; ++i) {
+      File input = new File(args[i]);
+      byte[] json = Files.readAllBytes(input.toPath());
+      byte[] table;
+      try {
+        table = compile(json);
+      } catch (IOException e) {
+        throw new IOException("Failed to compile " + input + ": " + e.getMessage(), e);
+      }
+      File output = new File(outputDirectory, getTableFileName(input.getName()));
+      Files.write(output.toPath(), table);
+      System.out.println(input.getName() + ": " + json.length + " bytes -> " + output.getName()
+          + ": " + table.length + " bytes");
+    }
+  }
+}
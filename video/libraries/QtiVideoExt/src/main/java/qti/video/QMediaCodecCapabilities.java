@@ -8,24 +8,31 @@
 package qti.video;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.function.Supplier;
 
 /**
  * Encapsulates the capabilities of a given codec component. You can get all
@@ -36,45 +43,92 @@ import org.json.JSONObject;
 public final class QMediaCodecCapabilities {
 
   private static final String TAG = "QMediaCodecCapabilities";
+  private static final String VENDOR_KEY_PREFIX = "vendor.";
 
   private final MediaCodecInfo info;
   private final String mimeType;
   private final Context context;
-  private final String jsonFile;
-  private HashMap<String, SupportedValues> paramRanges;
+  private final String assetFile;
+  private Map<String, SupportedValues> paramRanges;
+  private String capabilitiesFingerprint;
+
+  // the codecs don't change while the process runs, list them once
+  private static final class CodecListHolder {
+    static final MediaCodecInfo[] CODEC_INFOS =
+        new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos();
+  }
+
+  // asset file of the device, looked up once
+  private static volatile boolean assetFileLookedUp;
+  private static volatile String deviceAssetFile;
+
+  // table of the asset file, opened once, null if it failed to open
+  private static String assetTableFileName;
+  private static CapabilitiesTable assetTable;
 
   private QMediaCodecCapabilities(String mime, MediaCodecInfo info, Context context) {
     this.context = context;
     this.info = info;
     this.mimeType = mime;
-    this.paramRanges = new HashMap<>();
+    this.paramRanges = Collections.emptyMap();
 
-    // look for if a json asset file for this device exists
-    String assetFile = null;
+    // look for if a capabilities table asset for this device exists
     // if context is null, assume non-legacy device --> in populateRangeMap (in createForCodec)
     // will verify if the non-legacy device is a supported device or not
-    if (context != null) {
-      String[] list;
-      try {
-        list = context.getAssets().list("");
-        String board = Build.BOARD.toLowerCase(Locale.ROOT);
-        String model = Build.SOC_MODEL.toLowerCase(Locale.ROOT);
-        for (String file : list) {
-          if (file.contains("QMediaCodecCapabilities")) {
-            if (file.contains(board) || file.contains(model)) {
-              // TODO: to test JUnit
-              // legacy (uncomment following line of code)
-              // non-legacy (comment following line of code)
-              assetFile = file;
-              break;
-            }
+    this.assetFile = context != null ? findAssetFile(context) : null;
+  }
+
+  private static String findAssetFile(Context context) {
+    if (assetFileLookedUp) {
+      return deviceAssetFile;
+    }
+    String assetFile = null;
+    String[] list;
+    try {
+      list = context.getAssets().list("");
+      String board = Build.BOARD.toLowerCase(Locale.ROOT);
+      String model = Build.SOC_MODEL.toLowerCase(Locale.ROOT);
+      for (String file : list) {
+        // the JSON assets are compiled into tables by the build, and not packaged
+        if (file.contains("QMediaCodecCapabilities")
+            && file.endsWith(CapabilitiesTable.TABLE_SUFFIX)) {
+          if (file.contains(board) || file.contains(model)) {
+            // TODO: to test JUnit
+            // legacy (uncomment following line of code)
+            // non-legacy (comment following line of code)
+            assetFile = file;
+            break;
           }
         }
-      } catch (IOException e) {
-        Log.e(TAG, "Failed to getAssets()");
       }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to getAssets()");
+      return null;
     }
-    this.jsonFile = assetFile;
+    deviceAssetFile = assetFile;
+    assetFileLookedUp = true;
+    return assetFile;
+  }
+
+  /**
+   * Keep snapshots of the capabilities in a directory, e.g.
+   * <a href="https://developer.android.com/reference/android/content/Context#getCacheDir()">
+   *   Context.getCacheDir()</a>, so later processes don't query codecs or read the asset table
+   * again. Snapshots are ignored after a system update, since they are keyed by the build
+   * fingerprint, and after an update of the asset table. Capabilities are cached in memory for
+   * the process in any case.
+   *
+   * @param directory snapshot directory, null to not use snapshots
+   */
+  public static void setCacheDirectory(File directory) {
+    CapabilitiesCache.getInstance().setSnapshotDirectory(directory);
+  }
+
+  /**
+   * Drop the capabilities cached in memory, they are loaded again on the next query.
+   */
+  public static void clearCache() {
+    CapabilitiesCache.getInstance().clear();
   }
 
   /**
@@ -92,28 +146,26 @@ public final class QMediaCodecCapabilities {
    */
   public static QMediaCodecCapabilities createForCodec(String codecName, String mime,
                                                        Context context) {
-    // check that the user is requesting a valid codec
-    MediaCodecInfo info = verifyValidCodecAndMime(codecName, mime);
-    if (info == null) {
-      Log.e(TAG, "Not a valid codec/mime");
-      return null;
-    }
-
-    QMediaCodecCapabilities codecCapabilities = new QMediaCodecCapabilities(mime, info, context);
-
-    // try to query param ranges
-    if (!codecCapabilities.populateRangeMap(null)) {
-      Log.e(TAG, "Failed to populate range map for codec" + codecName);
-      return null;
-    }
-    return codecCapabilities;
+    return createForCodec(codecName, mime, context, null);
   }
 
   // TODO: make it public?
   static QMediaCodecCapabilities createForCodec(MediaCodec codec, String mime,
                                                        Context context) {
+    return createForCodec(codec.getName(), mime, context, () -> codec);
+  }
+
+  /**
+   * package scope method to instantiate the QMediaCodecCapabilities with a codec instance that
+   * is only created if the param ranges are queried from the codec, e.g. an instance shared by
+   * the queries of several mime types.
+   *
+   * @param codecSupplier supplies the codec instance to query, which is reset and not released,
+   *                      or null to create and release a private instance
+   */
+  static QMediaCodecCapabilities createForCodec(String codecName, String mime, Context context,
+                                                Supplier<MediaCodec> codecSupplier) {
     // check that the user is requesting a valid codec
-    String codecName = codec.getName();
     MediaCodecInfo info = verifyValidCodecAndMime(codecName, mime);
     if (info == null) {
       Log.e(TAG, "Not a valid codec/mime");
@@ -123,7 +175,7 @@ public final class QMediaCodecCapabilities {
     QMediaCodecCapabilities codecCapabilities = new QMediaCodecCapabilities(mime, info, context);
 
     // try to query param ranges
-    if (!codecCapabilities.populateRangeMap(codec)) {
+    if (!codecCapabilities.populateRangeMap(codecSupplier)) {
       Log.e(TAG, "Failed to populate range map for codec" + codecName);
       return null;
     }
@@ -263,19 +315,29 @@ public final class QMediaCodecCapabilities {
    *     null otherwise
    */
   private static MediaCodecInfo verifyValidCodecAndMime(String codecName, String mime) {
-    MediaCodecInfo[] mediaCodecInfos =
-        new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos();
-    // check if this codec exists
-    for (MediaCodecInfo codecInfo : mediaCodecInfos) {
-      if (codecInfo.getName().equalsIgnoreCase(codecName)) {
-        // verify mime type
-        String[] types = codecInfo.getSupportedTypes();
-        for (String type : types) {
-          if (type.equalsIgnoreCase(mime)) {
-            return codecInfo;
-          }
+    MediaCodecInfo codecInfo = findCodecInfo(codecName);
+    if (codecInfo != null) {
+      // verify mime type
+      String[] types = codecInfo.getSupportedTypes();
+      for (String type : types) {
+        if (type.equalsIgnoreCase(mime)) {
+          return codecInfo;
         }
-        break;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * package scope method to look up a codec by name.
+   *
+   * @param codecName the input name of the codec (NOT the canon name)
+   * @return MediaCodecInfo of the codec, null if there is no such codec
+   */
+  static MediaCodecInfo findCodecInfo(String codecName) {
+    for (MediaCodecInfo codecInfo : CodecListHolder.CODEC_INFOS) {
+      if (codecInfo.getName().equalsIgnoreCase(codecName)) {
+        return codecInfo;
       }
     }
     return null;
@@ -284,19 +346,19 @@ public final class QMediaCodecCapabilities {
   /**
    * package scope method to get the assetfile (for junit/debugging).
    *
-   * @return the name of the JSON asset file
+   * @return the name of the capabilities table asset file
    */
   String getAssetFile() {
-    return this.jsonFile;
+    return this.assetFile;
   }
 
   /**
    * helper method to check if the device is a (supported) legacy device.
    *
-   * @return true if device is a supported legacy device (meaning that the json asset file exists)
+   * @return true if device is a supported legacy device (meaning that the asset file exists)
    */
   private boolean isLegacyDevice() {
-    return (jsonFile != null);
+    return (assetFile != null);
   }
 
   /**
@@ -414,6 +476,152 @@ public final class QMediaCodecCapabilities {
     }
   }
 
+  /**
+   * Check if a value of an integer or long parameter is supported, e.g. before setting it with
+   * <a href="https://developer.android.com/reference/android/media/MediaCodec#setParameters(android.os.Bundle)">MediaCodec.setParameters()</a>.
+   * Ranges are evaluated arithmetically and values are looked up in sorted arrays, so the
+   * check doesn't allocate.
+   *
+   * @param parameterName name of the parameter, e.g. {@link QMediaExtensions#KEY_LTR_MAX_FRAMES}
+   * @param value value to check, unsigned 32-bit values can be given as a long
+   * @return true if the parameter is an integer or long parameter and the value is supported.
+   */
+  public boolean isSupported(String parameterName, long value) {
+    SupportedValues<?> supportedValues = findSupportedValues(parameterName);
+    return supportedValues != null && supportedValues.contains(value);
+  }
+
+  /**
+   * Check if a value of a float parameter is supported.
+   *
+   * @param parameterName name of the parameter
+   * @param value value to check
+   * @return true if the parameter is a float parameter and the value is supported.
+   */
+  public boolean isSupported(String parameterName, float value) {
+    SupportedValues<?> supportedValues = findSupportedValues(parameterName);
+    return supportedValues != null && supportedValues.contains(value);
+  }
+
+  /**
+   * Check the vendor parameters of a format against the supported values of the codec in one
+   * pass, e.g. before
+   * <a href="https://developer.android.com/reference/android/media/MediaCodec#configure(android.media.MediaFormat,%20android.view.Surface,%20android.media.MediaCrypto,%20int)">MediaCodec.configure()</a>.
+   * Keys other than "vendor." keys are not checked.
+   *
+   * @param format format to check, it is not modified
+   * @return report of the unsupported parameters, values of the wrong type and values that are
+   *     not supported, with the nearest supported values.
+   */
+  public ValidationReport validate(MediaFormat format) {
+    ValidationReport report = new ValidationReport();
+    Map<String, SupportedValues> ranges = getRanges();
+    for (String key : format.getKeys()) {
+      if (!key.startsWith(VENDOR_KEY_PREFIX)) {
+        continue;
+      }
+      Object value;
+      switch (format.getValueTypeForKey(key)) {
+        case MediaFormat.TYPE_INTEGER:
+          value = format.getInteger(key);
+          break;
+        case MediaFormat.TYPE_LONG:
+          value = format.getLong(key);
+          break;
+        case MediaFormat.TYPE_FLOAT:
+          value = format.getFloat(key);
+          break;
+        case MediaFormat.TYPE_STRING:
+          value = format.getString(key);
+          break;
+        case MediaFormat.TYPE_BYTE_BUFFER:
+          value = format.getByteBuffer(key);
+          break;
+        default:
+          value = null;
+          break;
+      }
+      validateValue(ranges, key, value, report);
+    }
+    return report;
+  }
+
+  /**
+   * Check the vendor parameters of a bundle for
+   * <a href="https://developer.android.com/reference/android/media/MediaCodec#setParameters(android.os.Bundle)">MediaCodec.setParameters()</a>
+   * against the supported values of the codec in one pass.
+   *
+   * @param params parameters to check, they are not modified
+   * @return report of the unsupported parameters, values of the wrong type and values that are
+   *     not supported, with the nearest supported values.
+   */
+  public ValidationReport validate(Bundle params) {
+    ValidationReport report = new ValidationReport();
+    Map<String, SupportedValues> ranges = getRanges();
+    for (String key : params.keySet()) {
+      if (key.startsWith(VENDOR_KEY_PREFIX)) {
+        // read untyped, a typed getter would hide a value of the wrong type as the default
+        @SuppressWarnings("deprecation")
+        Object value = params.get(key);
+        validateValue(ranges, key, value, report);
+      }
+    }
+    return report;
+  }
+
+  private Map<String, SupportedValues> getRanges() {
+    if (paramRanges == null || paramRanges.isEmpty()) {
+      populateRangeMap(null);
+    }
+    return paramRanges;
+  }
+
+  /**
+   * Check a parameter value, adding an issue to the report if it's not supported.
+   */
+  static void validateValue(Map<String, SupportedValues> ranges, String key, Object value,
+                            ValidationReport report) {
+    report.checkedCount++;
+    SupportedValues<?> supportedValues = ranges.get(key);
+    if (supportedValues == null) {
+      report.add(key, ValidationReport.Problem.UNSUPPORTED, value, null);
+      return;
+    }
+    final SupportedValues.DataType dataType = supportedValues.getDataType();
+    if (value instanceof Integer || value instanceof Long) {
+      // an int can be given for a long
+      if (dataType != SupportedValues.DataType.LONG
+          && !(dataType == SupportedValues.DataType.INTEGER && value instanceof Integer)) {
+        report.add(key, ValidationReport.Problem.TYPE_MISMATCH, value, null);
+      } else if (!supportedValues.contains(((Number) value).longValue())) {
+        report.add(key, ValidationReport.Problem.OUT_OF_RANGE, value,
+            supportedValues.nearest(((Number) value).longValue()));
+      }
+    } else if (value instanceof Float) {
+      if (dataType != SupportedValues.DataType.FLOAT) {
+        report.add(key, ValidationReport.Problem.TYPE_MISMATCH, value, null);
+      } else if (!supportedValues.contains((float) value)) {
+        report.add(key, ValidationReport.Problem.OUT_OF_RANGE, value,
+            supportedValues.nearest((float) value));
+      }
+    } else if (value instanceof String) {
+      if (dataType != SupportedValues.DataType.STRING) {
+        report.add(key, ValidationReport.Problem.TYPE_MISMATCH, value, null);
+      }
+    } else if (value instanceof ByteBuffer || value instanceof byte[]) {
+      if (dataType != SupportedValues.DataType.BYTE_BUFFER) {
+        report.add(key, ValidationReport.Problem.TYPE_MISMATCH, value, null);
+      }
+    } else {
+      report.add(key, ValidationReport.Problem.TYPE_MISMATCH, value, null);
+    }
+  }
+
+  // supported values of a parameter, null without logging if the parameter is not supported
+  private SupportedValues<?> findSupportedValues(String parameterName) {
+    return getRanges().get(parameterName);
+  }
+
   /**
    * helper method to do the actual param query.
    *
@@ -453,82 +661,71 @@ public final class QMediaCodecCapabilities {
     return Collections.unmodifiableMap(paramRanges);
   }
 
-  private byte[] readAllBytes(InputStream inputStream) throws IOException {
-    final int kBufferSize = 4096;
-    List<byte[]> buffers = new ArrayList<>();
-    int lastReadBytes = 0;
-    int readBytes;
-    do {
-      byte[] buf = new byte[kBufferSize];
-      readBytes = inputStream.read(buf, 0, kBufferSize);
-      if (readBytes == -1) {
-        break;
-      } else {
-        buffers.add(buf);
-        lastReadBytes = readBytes;
-      }
-    } while (true);
-    if (buffers.size() == 0) {
-      return new byte[0];
-    }
-    final int total = kBufferSize * (buffers.size() - 1) + lastReadBytes;
-    byte[] result = new byte[total];
-    int offset = 0;
-    int remaining = total;
-    for (byte[] buf : buffers) {
-      int sz = Math.min(buf.length, remaining);
-      System.arraycopy(buf, 0, result, offset, sz);
-      offset += sz;
-      remaining -= sz;
-    }
-    return result;
+  /**
+   * Get a fingerprint of the supported values of all the parameters of the codec. It's the same
+   * for the same capabilities on any device or build, so it can be the key of data derived from
+   * the capabilities, e.g. persisted encoder settings that stay valid across system updates
+   * which don't change the codec.
+   *
+   * @return 16 hex digits
+   */
+  public String getCapabilitiesFingerprint() {
+    if (capabilitiesFingerprint == null) {
+      capabilitiesFingerprint = CapabilitiesFingerprint.of(getRanges());
+    }
+    return capabilitiesFingerprint;
   }
 
   /**
-   * private helper method during creation of QMediaCodecCapabilities obj to query param ranges.
+   * private helper method during creation of QMediaCodecCapabilities obj to get param ranges
+   * from the process-wide cache, querying them if they are not cached.
    *
+   * @param codecSupplier supplies the codec instance to query, null to create one
    * @return true if param range map was properly populated, false otherwise
    */
-  private boolean populateRangeMap(MediaCodec codec) {
-    paramRanges = new HashMap<>();
+  private boolean populateRangeMap(Supplier<MediaCodec> codecSupplier) {
+    // ranges of the asset table can change without a system update, the table has their
+    // fingerprint
+    String capabilitiesFingerprint = null;
+    if (isLegacyDevice()) {
+      CapabilitiesTable table = openAssetTable(context, assetFile);
+      if (table != null) {
+        capabilitiesFingerprint = table.getFingerprint(info.getCanonicalName());
+      }
+    }
+    CapabilitiesCache.Key key = new CapabilitiesCache.Key(info.getCanonicalName(),
+        mimeType.toLowerCase(Locale.ROOT), Build.FINGERPRINT, capabilitiesFingerprint);
+    Map<String, SupportedValues> ranges =
+        CapabilitiesCache.getInstance().get(key, () -> queryRangeMap(codecSupplier));
+    if (ranges == null) {
+      paramRanges = Collections.emptyMap();
+      return false;
+    }
+    paramRanges = ranges;
+    return true;
+  }
+
+  /**
+   * private helper method to query param ranges from the asset file or the codec.
+   *
+   * @param codecSupplier supplies the codec instance to query, only called to query the codec
+   * @return param range map, null if failed
+   */
+  private Map<String, SupportedValues> queryRangeMap(Supplier<MediaCodec> codecSupplier) {
+    Map<String, SupportedValues> ranges = new HashMap<>();
     // populate the map
     String codecName = info.getName();
     String canonName = info.getCanonicalName();
-    String fileName = jsonFile;
     if (isLegacyDevice()) {
-      String json;
-      try (InputStream inputStream = context.getAssets().open(fileName)) {
-        json = new String(readAllBytes(inputStream), StandardCharsets.UTF_8);
-      } catch (IOException e) {
-        Log.e(TAG, "Failed to open asset file " + fileName + " as stream");
-        return false;
-      } catch (Exception e) {
-        Log.e(TAG, "Failed to read asset file");
-        return false;
-      }
-      JSONObject jsonObject;
-      try {
-        jsonObject = new JSONObject(json);
-      } catch (JSONException e) {
-        Log.e(TAG, "Failed to parse asset file to jsonObject");
-        return false;
-      }
-      JSONObject codecs = jsonObject.optJSONObject("codecs.params");
-      if (codecs == null) {
-        Log.e(TAG, "Failed to get codecs from JSON file");
-        return false;
-      }
-      JSONObject params = codecs.optJSONObject(canonName);
-      if (params == null) {
-        Log.e(TAG, "Codec " + canonName + " not found in asset file!");
-        return false;
+      CapabilitiesTable table = openAssetTable(context, assetFile);
+      if (table == null) {
+        return null;
       }
-      if (parseNestedParamRangeFromJson(null, params)) {
-        return true;
-      } else {
-        Log.e(TAG, "Failed to parse params json from asset file");
-        return false;
+      if (!table.readParams(canonName, ranges)) {
+        Log.e(TAG, "Codec " + canonName + " not found in asset table!");
+        return null;
       }
+      return ranges;
     } else {
       // not legacy device
       // setup MediaFormat
@@ -549,6 +746,7 @@ public final class QMediaCodecCapabilities {
         flag = MediaCodec.CONFIGURE_FLAG_ENCODE;
       }
 
+      MediaCodec codec = codecSupplier != null ? codecSupplier.get() : null;
       MediaCodec mediaCodec;
       if (codec != null) {
         mediaCodec = codec;
@@ -561,7 +759,7 @@ public final class QMediaCodecCapabilities {
           mediaCodec = MediaCodec.createByCodecName(codecName);
         } catch (Exception e) {
           Log.e(TAG, "Failed to create codec");
-          return false;
+          return null;
         }
       }
 
@@ -572,7 +770,7 @@ public final class QMediaCodecCapabilities {
       if (!vendorParams.contains(c2CapsQueryInput_Key)
           || !vendorParams.contains(c2CapsQueryOutput_Key)) {
         Log.e(TAG, "Not a supported device");
-        return false;
+        return null;
       }
       // reset the codec to put it back to uninitialized state
       mediaCodec.reset();
@@ -592,7 +790,7 @@ public final class QMediaCodecCapabilities {
       } catch (Exception e) {
         e.printStackTrace();
         Log.e(TAG, "Fetch param range failed; failed to configure (codec in released state)");
-        return false;
+        return null;
       }
       MediaFormat outFormat = mediaCodec.getOutputFormat();
       if (codec == null) {
@@ -604,301 +802,55 @@ public final class QMediaCodecCapabilities {
       }
       if (!outFormat.containsKey(c2CapsQueryOutput_Key)) {
         Log.e(TAG, "Query for param ranges FAILED");
-        return false;
+        return null;
       }
       // parse json result
       String json = outFormat.getString(c2CapsQueryOutput_Key);
-      JSONObject params;
       try {
-        params = new JSONObject(json);
-      } catch (JSONException e) {
-        e.printStackTrace();
-        return false;
-      }
-      if (parseNestedParamRangeFromJson(null, params)) {
-        return true;
-      } else {
-        Log.e(TAG, "Failed to parse params json from full query");
-        return false;
-      }
-    }
-  }
-
-  private boolean parseNestedParamRangeFromJson(String parentName, JSONObject params) {
-    if (params == null) {
-      Log.e(TAG, "Null JSON param result");
-      return false;
-    }
-    JSONArray paramNames = params.names();
-    if (paramNames != null) {
-      for (int i = 0; i < paramNames.length(); i++) {
-        String paramName = paramNames.optString(i);
-        if (paramName == null) {
-          // this should never happen
-          Log.e(TAG, "Failed to get paramName from paramNames");
-          return false;
-        }
-        JSONObject internal = params.optJSONObject(paramName);
-        if (internal == null) {
-          // this should never happen
-          Log.e(TAG, "Failed to get param from params");
-          return false;
-        }
-        String fullName = (parentName == null) ? paramName : parentName + "." + paramName;
-        if (!internal.has("values") || !internal.has("valuestype") || !internal.has("datatype")) {
-          if (!parseNestedParamRangeFromJson(fullName, internal)) {
-            return false;
-          }
-        } else {
-          // else make the SupportedValue obj and add to map
-          String typestr = internal.optString("valuestype");
-          String datatypestr = internal.optString("datatype");
-          JSONArray arr = internal.optJSONArray("values");
-          if (typestr.equals("") || datatypestr.equals("") || arr == null) {
-            // this should never happen
-            Log.e(TAG, "Failed to get range data for param " + fullName);
-            return false;
-          }
-          SupportedValues.Type type = getParamRangeType(typestr);
-          SupportedValues.DataType datatype = getParamDataType(datatypestr);
-          ValueRange<?> range;
-          List<?> values;
-          if (type == SupportedValues.Type.RANGE) {
-            range = getRangeFromJson(datatypestr, arr);
-            values = null;
-          } else if (type == SupportedValues.Type.EMPTY) {
-            // make both range and values null
-            range = null;
-            values = null;
-          } else if (type == SupportedValues.Type.ANY) {
-            if (checkForUnsignedRange(datatypestr)) {
-              type = SupportedValues.Type.RANGE;
-              range = getRangeForAny(datatypestr);
-            } else {
-              // make range null
-              range = null;
-            }
-            values = null;
-          } else {
-            // for all other types (values/flags)
-            values = getValuesFromJson(datatypestr, arr);
-            range = null;
-          }
-          @SuppressWarnings("unchecked") SupportedValues<?> supportedValues =
-              new SupportedValues(type, datatype, range, values);
-          paramRanges.put(fullName, supportedValues);
-        }
-      }
-      return true;
-    } else {
-      Log.e(TAG, "Failed to get params from codec");
-      return false;
-    }
-  }
-
-  private SupportedValues.DataType getParamDataType(String datatypeStr) {
-    switch (datatypeStr.toLowerCase(Locale.ROOT)) {
-      case "int32":
-      case "uint32":
-      case "cntr32":
-        return SupportedValues.DataType.INTEGER;
-      case "string":
-        return SupportedValues.DataType.STRING;
-      case "blob":
-        return SupportedValues.DataType.BYTE_BUFFER;
-      case "int64":
-      case "uint64":
-      case "cntr64":
-        return SupportedValues.DataType.LONG;
-      case "float":
-        return SupportedValues.DataType.FLOAT;
-      case "struct_flag":
-      default:
-        return SupportedValues.DataType.NULL;
-    }
-  }
-
-  private SupportedValues.Type getParamRangeType(String typeStr) {
-    switch (typeStr.toLowerCase(Locale.ROOT)) {
-      case "any":
-        return SupportedValues.Type.ANY;
-      case "flags":
-        return SupportedValues.Type.FLAGS;
-      case "values":
-        return SupportedValues.Type.VALUES;
-      case "range":
-        return SupportedValues.Type.RANGE;
-      default:
-        return SupportedValues.Type.EMPTY;
-    }
-  }
-
-  private List<?> getValuesFromJson(String datatypeStr, JSONArray array) {
-    if (array == null) {
-      Log.e(TAG, "Improperly formatted JSON values result");
-      return null;
-    }
-    try {
-      if (datatypeStr.equalsIgnoreCase("int32")
-          || datatypeStr.equalsIgnoreCase("uint32")
-          || datatypeStr.equalsIgnoreCase("cntr32")
-          || datatypeStr.equalsIgnoreCase("blob")
-          || datatypeStr.equalsIgnoreCase("string")) {
-        List<Integer> intList = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-          int value = array.getInt(i);
-          intList.add(value);
-        }
-        return intList;
-      } else if (datatypeStr.equalsIgnoreCase("int64")
-          || datatypeStr.equalsIgnoreCase("uint64")
-          || datatypeStr.equalsIgnoreCase("cntr64")) {
-        List<Long> longList = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-          long value = array.getLong(i);
-          longList.add(value);
-        }
-        return longList;
-      } else if (datatypeStr.equalsIgnoreCase("float")) {
-        List<Float> floatList = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-          float value = (float) array.getDouble(i);
-          floatList.add(value);
-        }
-        return floatList;
-      } else if (datatypeStr.equalsIgnoreCase("struct_flag")) {
-        return null;
-      } else {
+        new CapabilitiesJsonReader(json.getBytes(StandardCharsets.UTF_8)).readParams(ranges);
+        return ranges;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to parse params json from full query: " + e.getMessage());
         return null;
       }
-    } catch (JSONException e) {
-      e.printStackTrace();
-    }
-    return null;
-  }
-
-  private boolean checkForUnsignedRange(String datatypeStr) {
-    boolean isUnsigned = false;
-    switch (datatypeStr.toLowerCase(Locale.ROOT)) {
-      case "uint32":
-      case "cntr32":
-      case "uint64":
-      case "cntr64":
-      case "blob":
-      case "string":
-        isUnsigned = true;
-        break;
-      default:
-        break;
-    }
-    return isUnsigned;
-  }
-
-  private ValueRange<?> getRangeForAny(String datatypeStr) {
-    if (datatypeStr.equalsIgnoreCase("uint32") || datatypeStr.equalsIgnoreCase("cntr32")) {
-      int min = 0;
-      int max = Integer.MAX_VALUE;
-      int step = 1;
-      int num = 1;
-      int denom = 1;
-      return new ValueRange<>(min, max, step, num, denom);
-    } else if (datatypeStr.equalsIgnoreCase("string") || datatypeStr.equalsIgnoreCase("blob")) {
-      int min = 0;
-      int max = 255;
-      int step = 1;
-      int num = 1;
-      int denom = 1;
-      return new ValueRange<>(min, max, step, num, denom);
-    } else if (datatypeStr.equalsIgnoreCase("uint64") || datatypeStr.equalsIgnoreCase("cntr64")) {
-      // this doesnt exactly cover the full range for uint64/cntr64 but
-      // use long to match types used in Android MediaCodec API
-      long min = 0;
-      long max = Long.MAX_VALUE;
-      long step = 1;
-      long num = 1;
-      long denom = 1;
-      return new ValueRange<>(min, max, step, num, denom);
-    } else if (datatypeStr.equalsIgnoreCase("int32")) {
-      int min = Integer.MIN_VALUE;
-      int max = Integer.MAX_VALUE;
-      int step = 1;
-      int num = 1;
-      int denom = 1;
-      return new ValueRange<>(min, max, step, num, denom);
-    } else if (datatypeStr.equalsIgnoreCase("int64")) {
-      long min = Long.MIN_VALUE;
-      long max = Long.MAX_VALUE;
-      long step = 1;
-      long num = 1;
-      long denom = 1;
-      return new ValueRange<>(min, max, step, num, denom);
-    } else if (datatypeStr.equalsIgnoreCase("float")) {
-      float min = Float.MIN_VALUE;
-      float max = Float.MAX_VALUE;
-      float step = 1;
-      float num = 1;
-      float denom = 1;
-      return new ValueRange<>(min, max, step, num, denom);
-    } else {
-      return null;
     }
   }
 
   /**
-   * private helper method to parse JSON range result of RANGE type to ValueRange.
+   * private helper method to open the table asset compiled at build time, memory mapped if the
+   * table is stored uncompressed.
    *
-   * @param datatypeStr string parsed from json representing the param datatype
-   * @param array       the JSONArray holding range values parsed from the json
-   * @return ValueRange object of the parameter field range
+   * @return the table, null if it failed to open
    */
-  private ValueRange<?> getRangeFromJson(String datatypeStr, JSONArray array) {
-    // length check to verify the range array is properly formatted
-    if (array == null || array.length() != 5) {
-      Log.e(TAG, "Improperly formatted JSON range result");
-      return null;
+  private static synchronized CapabilitiesTable openAssetTable(Context context, String fileName) {
+    if (fileName.equals(assetTableFileName)) {
+      return assetTable;
     }
-    try {
-      if (datatypeStr.equalsIgnoreCase("int32")
-          || datatypeStr.equalsIgnoreCase("uint32")
-          || datatypeStr.equalsIgnoreCase("cntr32")
-          || datatypeStr.equalsIgnoreCase("string")
-          || datatypeStr.equalsIgnoreCase("blob")) {
-        int min = array.getInt(0);
-        int max = array.getInt(1);
-        int step = array.getInt(2);
-        int num = array.getInt(3);
-        int denom = array.getInt(4);
-        return new ValueRange<>(min, max, step, num, denom);
-      } else if (datatypeStr.equalsIgnoreCase("int64")) {
-        long min = array.getLong(0);
-        long max = array.getLong(1);
-        long step = array.getLong(2);
-        long num = array.getLong(3);
-        long denom = array.getLong(4);
-        return new ValueRange<>(min, max, step, num, denom);
-      } else if (datatypeStr.equalsIgnoreCase("uint64") || datatypeStr.equalsIgnoreCase("cntr64")) {
-        long min = array.getLong(0);
-        long max = array.getLong(1);
-        long step = array.getLong(2);
-        long num = array.getLong(3);
-        long denom = array.getLong(4);
-        return new ValueRange<>(min, max, step, num, denom);
-      } else if (datatypeStr.equalsIgnoreCase("float")) {
-        float min = (float) array.getDouble(0);
-        float max = (float) array.getDouble(1);
-        float step = (float) array.getDouble(2);
-        float num = (float) array.getDouble(3);
-        float denom = (float) array.getDouble(4);
-        return new ValueRange<>(min, max, step, num, denom);
-      } else if (datatypeStr.equalsIgnoreCase("struct_flag")) {
-        return null;
-      } else {
+    assetTableFileName = fileName;
+    assetTable = null;
+    ByteBuffer buffer;
+    try (AssetFileDescriptor fd = context.getAssets().openFd(fileName);
+         FileInputStream inputStream = fd.createInputStream()) {
+      buffer = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          fd.getStartOffset(), fd.getLength());
+    } catch (FileNotFoundException e) {
+      // compressed by the app build
+      try (InputStream inputStream = context.getAssets().open(fileName)) {
+        buffer = ByteBuffer.wrap(inputStream.readAllBytes());
+      } catch (IOException e2) {
+        Log.e(TAG, "Failed to read asset table " + fileName + ": " + e2.getMessage());
         return null;
       }
-    } catch (JSONException e) {
-      e.printStackTrace();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to map asset table " + fileName + ": " + e.getMessage());
+      return null;
     }
-    return null;
+    try {
+      assetTable = CapabilitiesTable.wrap(buffer);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open asset table " + fileName + ": " + e.getMessage());
+    }
+    return assetTable;
   }
 
   /**
@@ -957,12 +909,27 @@ public final class QMediaCodecCapabilities {
    * v[i] = v[i-1] * num / denom + step for i >= 1, while min < v[i] <= max.
    */
   public static class ValueRange<T> {
+    // longest series evaluated for a geometric or multiply-accumulate range
+    private static final int MAX_SERIES_LENGTH = 4096;
+    // relative tolerance of float series
+    private static final double FLOAT_TOLERANCE = 1e-5;
 
     private final T min;
     private final T max;
     private final T step;
     private final T num;
     private final T denom;
+    // unboxed bounds and series for contains()
+    private final long lmin;
+    private final long lmax;
+    private final long lstep;
+    private final long lnum;
+    private final long ldenom;
+    private final double fmin;
+    private final double fmax;
+    private final double fstep;
+    private final double fnum;
+    private final double fdenom;
 
     ValueRange(T min, T max, T step, T num, T denom) {
       this.min = min;
@@ -970,6 +937,16 @@ public final class QMediaCodecCapabilities {
       this.step = step;
       this.num = num;
       this.denom = denom;
+      lmin = ((Number) min).longValue();
+      lmax = ((Number) max).longValue();
+      lstep = ((Number) step).longValue();
+      lnum = ((Number) num).longValue();
+      ldenom = ((Number) denom).longValue();
+      fmin = ((Number) min).doubleValue();
+      fmax = ((Number) max).doubleValue();
+      fstep = ((Number) step).doubleValue();
+      fnum = ((Number) num).doubleValue();
+      fdenom = ((Number) denom).doubleValue();
     }
 
     /**
@@ -1016,6 +993,137 @@ public final class QMediaCodecCapabilities {
     public T getDenom() {
       return denom;
     }
+
+    /**
+     * Check if a value is one of the range, for a range of Integer or Long. Arithmetic series
+     * are checked without enumerating them.
+     */
+    boolean contains(long value) {
+      if (value < lmin || value > lmax) {
+        return false;
+      }
+      if (lnum == ldenom) {
+        // any value if step is 0, else an arithmetic series; value - min fits in 64 bits unsigned
+        return lstep == 0 || (lstep > 0 && Long.remainderUnsigned(value - lmin, lstep) == 0);
+      }
+      if (ldenom == 0) {
+        return value == lmin;
+      }
+      // geometric or multiply-accumulate series, which grows at least by step
+      long v = lmin;
+      for (int i = 0; i < MAX_SERIES_LENGTH && v < value; ++i) {
+        if (lnum != 0 && Math.abs(v) > Long.MAX_VALUE / Math.abs(lnum)) {
+          return false;
+        }
+        final long next = v * lnum / ldenom + lstep;
+        if (next <= v) {
+          return false;
+        }
+        v = next;
+      }
+      return v == value;
+    }
+
+    /**
+     * Check if a value is one of the range, for a range of Float. Values of series match within
+     * a small relative tolerance.
+     */
+    boolean contains(float value) {
+      if (Float.isNaN(value) || value < fmin || value > fmax) {
+        return false;
+      }
+      if (fnum == fdenom) {
+        if (fstep <= 0) {
+          return true;
+        }
+        final double k = Math.rint((value - fmin) / fstep);
+        return isClose(fmin + k * fstep, value);
+      }
+      if (fdenom == 0) {
+        return isClose(fmin, value);
+      }
+      double v = fmin;
+      for (int i = 0; i < MAX_SERIES_LENGTH && v < value && !isClose(v, value); ++i) {
+        final double next = v * fnum / fdenom + fstep;
+        if (next <= v) {
+          return false;
+        }
+        v = next;
+      }
+      return isClose(v, value);
+    }
+
+    private static boolean isClose(double a, double b) {
+      return Math.abs(a - b) <= FLOAT_TOLERANCE * Math.max(1., Math.abs(b));
+    }
+
+    /**
+     * Get the value of the range nearest to a value, for a range of Integer or Long. Ties go to
+     * the lower value.
+     */
+    long nearest(long value) {
+      if (value <= lmin) {
+        return lmin;
+      }
+      if (lnum == ldenom) {
+        if (lstep <= 0) {
+          return Math.min(value, lmax);
+        }
+        final long last = lmin + Long.divideUnsigned(lmax - lmin, lstep) * lstep;
+        if (value >= last) {
+          return last;
+        }
+        final long lower = lmin + Long.divideUnsigned(value - lmin, lstep) * lstep;
+        final long upper = lower + lstep;
+        return value - lower <= upper - value ? lower : upper;
+      }
+      long lower = lmin;
+      for (int i = 0; i < MAX_SERIES_LENGTH && ldenom != 0; ++i) {
+        if (lnum != 0 && Math.abs(lower) > Long.MAX_VALUE / Math.abs(lnum)) {
+          break;
+        }
+        final long next = lower * lnum / ldenom + lstep;
+        if (next <= lower || next > lmax) {
+          break;
+        }
+        if (next >= value) {
+          return value - lower <= next - value ? lower : next;
+        }
+        lower = next;
+      }
+      return lower;
+    }
+
+    /**
+     * Get the value of the range nearest to a value, for a range of Float.
+     */
+    float nearest(float value) {
+      if (Float.isNaN(value) || value <= fmin) {
+        return (float) fmin;
+      }
+      if (fnum == fdenom) {
+        if (fstep <= 0) {
+          return (float) Math.min(value, fmax);
+        }
+        final double last = fmin + Math.floor((fmax - fmin) / fstep) * fstep;
+        if (value >= last) {
+          return (float) last;
+        }
+        return (float) (fmin + Math.rint((value - fmin) / fstep) * fstep);
+      }
+      double lower = fmin;
+      for (int i = 0; i < MAX_SERIES_LENGTH && fdenom != 0; ++i) {
+        final double next = lower * fnum / fdenom + fstep;
+        if (next <= lower || next > fmax) {
+          break;
+        }
+        if (next >= value) {
+          return (float) (value - lower <= next - value ? lower : next);
+        }
+        lower = next;
+      }
+      return (float) lower;
+    }
   }
 
   /**
@@ -1035,13 +1143,308 @@ public final class QMediaCodecCapabilities {
     private final Type type;
     private final DataType datatype;
     private final ValueRange<T> range;
+    // values or flags as int[], long[] or float[], and a sorted copy for lookups
+    private final Object array;
+    private final Object sortedArray;
+    private final long flagMask;
+    // boxed view of the array
     private final List<T> values;
 
     SupportedValues(Type type, DataType datatype, ValueRange<T> range, List<T> values) {
+      this(type, datatype, range, toArray(values));
+    }
+
+    private SupportedValues(Type type, DataType datatype, ValueRange<T> range, Object array) {
       this.type = type;
       this.datatype = datatype;
       this.range = range;
-      this.values = values;
+      this.array = array;
+      this.sortedArray = sorted(array);
+      long mask = 0;
+      if (array instanceof int[]) {
+        for (int flag : (int[]) array) {
+          mask |= flag & 0xffffffffL;
+        }
+      } else if (array instanceof long[]) {
+        for (long flag : (long[]) array) {
+          mask |= flag;
+        }
+      }
+      this.flagMask = mask;
+      @SuppressWarnings("unchecked") List<T> view = (List<T>) view(array);
+      this.values = view;
+    }
+
+    /**
+     * Create supported values of primitive values or flags.
+     *
+     * @param array int[], long[] or float[] that is not modified later, or null
+     */
+    static <T> SupportedValues<T> ofArray(Type type, DataType datatype, ValueRange<T> range,
+                                          Object array) {
+      assert (array == null || array instanceof int[] || array instanceof long[]
+          || array instanceof float[]);
+      return new SupportedValues<>(type, datatype, range, array);
+    }
+
+    private static Object toArray(List<?> values) {
+      if (values == null) {
+        return null;
+      }
+      final int size = values.size();
+      if (size > 0 && values.get(0) instanceof Long) {
+        long[] array = new long[size];
+        for (int i = 0; i < size; ++i) {
+          array[i] = (Long) values.get(i);
+        }
+        return array;
+      } else if (size > 0 && values.get(0) instanceof Float) {
+        float[] array = new float[size];
+        for (int i = 0; i < size; ++i) {
+          array[i] = (Float) values.get(i);
+        }
+        return array;
+      }
+      int[] array = new int[size];
+      for (int i = 0; i < size; ++i) {
+        array[i] = (Integer) values.get(i);
+      }
+      return array;
+    }
+
+    private static Object sorted(Object array) {
+      if (array instanceof int[]) {
+        int[] a = (int[]) array;
+        for (int i = 1; i < a.length; ++i) {
+          if (a[i - 1] > a[i]) {
+            a = a.clone();
+            Arrays.sort(a);
+            return a;
+          }
+        }
+      } else if (array instanceof long[]) {
+        long[] a = (long[]) array;
+        for (int i = 1; i < a.length; ++i) {
+          if (a[i - 1] > a[i]) {
+            a = a.clone();
+            Arrays.sort(a);
+            return a;
+          }
+        }
+      } else if (array instanceof float[]) {
+        float[] a = (float[]) array;
+        for (int i = 1; i < a.length; ++i) {
+          if (a[i - 1] > a[i]) {
+            a = a.clone();
+            Arrays.sort(a);
+            return a;
+          }
+        }
+      }
+      return array;
+    }
+
+    // immutable list of the array, boxing on access
+    private static List<?> view(Object array) {
+      if (array instanceof int[]) {
+        final int[] a = (int[]) array;
+        return new AbstractList<Integer>() {
+          @Override
+          public Integer get(int index) {
+            return a[index];
+          }
+
+          @Override
+          public int size() {
+            return a.length;
+          }
+        };
+      } else if (array instanceof long[]) {
+        final long[] a = (long[]) array;
+        return new AbstractList<Long>() {
+          @Override
+          public Long get(int index) {
+            return a[index];
+          }
+
+          @Override
+          public int size() {
+            return a.length;
+          }
+        };
+      } else if (array instanceof float[]) {
+        final float[] a = (float[]) array;
+        return new AbstractList<Float>() {
+          @Override
+          public Float get(int index) {
+            return a[index];
+          }
+
+          @Override
+          public int size() {
+            return a.length;
+          }
+        };
+      }
+      return null;
+    }
+
+    /**
+     * Check if an integer value is supported. Values of parameters of type
+     * {@link DataType#INTEGER} are 32-bit, unsigned values above Integer.MAX_VALUE can be given
+     * as a long or as the int of the same bits.
+     *
+     * @return true if the data type is INTEGER or LONG and the value is supported.
+     */
+    public boolean contains(long value) {
+      if (datatype == DataType.INTEGER) {
+        if (value > Integer.MAX_VALUE && value <= 0xffffffffL) {
+          // unsigned 32-bit values are stored as ints
+          value = (int) value;
+        } else if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+          return false;
+        }
+      } else if (datatype != DataType.LONG) {
+        return false;
+      }
+      switch (type) {
+        case ANY:
+          return true;
+        case RANGE:
+          return range != null && range.contains(value);
+        case VALUES:
+          if (sortedArray instanceof int[]) {
+            return Arrays.binarySearch((int[]) sortedArray, (int) value) >= 0;
+          } else if (sortedArray instanceof long[]) {
+            return Arrays.binarySearch((long[]) sortedArray, value) >= 0;
+          }
+          return false;
+        case FLAGS:
+          if (array == null) {
+            return false;
+          }
+          if (datatype == DataType.INTEGER) {
+            value &= 0xffffffffL;
+          }
+          return (value & ~flagMask) == 0;
+        case EMPTY:
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Check if a float value is supported.
+     *
+     * @return true if the data type is FLOAT and the value is supported.
+     */
+    public boolean contains(float value) {
+      if (datatype != DataType.FLOAT) {
+        return false;
+      }
+      switch (type) {
+        case ANY:
+          return true;
+        case RANGE:
+          return range != null && range.contains(value);
+        case VALUES:
+          return sortedArray instanceof float[]
+              && Arrays.binarySearch((float[]) sortedArray, value) >= 0;
+        case FLAGS:
+        case EMPTY:
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Get the supported value nearest to an integer value, e.g. to clamp a value that is not
+     * supported.
+     *
+     * @return Integer or Long by data type, null if no value is supported or the data type is
+     *     not INTEGER or LONG.
+     */
+    Number nearest(long value) {
+      if (datatype == DataType.INTEGER && value > Integer.MAX_VALUE && value <= 0xffffffffL) {
+        value = (int) value;
+      } else if (datatype != DataType.INTEGER && datatype != DataType.LONG) {
+        return null;
+      }
+      long nearest;
+      switch (type) {
+        case ANY:
+          nearest = value;
+          break;
+        case RANGE:
+          if (range == null) {
+            return null;
+          }
+          nearest = range.nearest(value);
+          break;
+        case VALUES:
+          if (sortedArray instanceof int[] && ((int[]) sortedArray).length > 0) {
+            int[] a = (int[]) sortedArray;
+            final int index = insertionIndex(Arrays.binarySearch(a,
+                (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value))), a.length);
+            nearest = index == 0 || (index < a.length && a[index] - value < value - a[index - 1])
+                ? a[index] : a[index - 1];
+          } else if (sortedArray instanceof long[] && ((long[]) sortedArray).length > 0) {
+            long[] a = (long[]) sortedArray;
+            final int index = insertionIndex(Arrays.binarySearch(a, value), a.length);
+            nearest = index == 0 || (index < a.length && a[index] - value < value - a[index - 1])
+                ? a[index] : a[index - 1];
+          } else {
+            return null;
+          }
+          break;
+        case FLAGS:
+          if (array == null) {
+            return null;
+          }
+          nearest = value & flagMask;
+          break;
+        case EMPTY:
+        default:
+          return null;
+      }
+      if (datatype == DataType.INTEGER) {
+        return (int) nearest;
+      }
+      return nearest;
+    }
+
+    /**
+     * Get the supported value nearest to a float value.
+     *
+     * @return null if no value is supported or the data type is not FLOAT.
+     */
+    Float nearest(float value) {
+      if (datatype != DataType.FLOAT) {
+        return null;
+      }
+      switch (type) {
+        case ANY:
+          return value;
+        case RANGE:
+          return range == null ? null : range.nearest(value);
+        case VALUES:
+          if (!(sortedArray instanceof float[]) || ((float[]) sortedArray).length == 0) {
+            return null;
+          }
+          float[] a = (float[]) sortedArray;
+          final int index = insertionIndex(Arrays.binarySearch(a, value), a.length);
+          return index == 0 || (index < a.length && a[index] - value < value - a[index - 1])
+              ? a[index] : a[index - 1];
+        case FLAGS:
+        case EMPTY:
+        default:
+          return null;
+      }
+    }
+
+    // index of the first element not below the searched value, for a result of binarySearch()
+    private static int insertionIndex(int searchResult, int length) {
+      return searchResult >= 0 ? searchResult : Math.min(-searchResult - 1, length);
     }
 
     /**
@@ -1126,4 +1529,138 @@ public final class QMediaCodecCapabilities {
       BYTE_BUFFER         // for blob
     }
   }
+
+  /**
+   * Result of {@link #validate(MediaFormat)} or {@link #validate(Bundle)}.
+   */
+  public static final class ValidationReport {
+    private final List<Issue> issues = new ArrayList<>();
+    private int checkedCount;
+
+    ValidationReport() {
+    }
+
+    /**
+     * Problem of a parameter.
+     */
+    public enum Problem {
+      UNSUPPORTED,        // the codec doesn't have the parameter
+      TYPE_MISMATCH,      // the value is not of the type of the parameter
+      OUT_OF_RANGE        // the value is not one of the supported values
+    }
+
+    /**
+     * A parameter that can't be set as is.
+     */
+    public static final class Issue {
+      private final String key;
+      private final Problem problem;
+      private final Object value;
+      private final Number clampedValue;
+
+      Issue(String key, Problem problem, Object value, Number clampedValue) {
+        this.key = key;
+        this.problem = problem;
+        this.value = value;
+        this.clampedValue = clampedValue;
+      }
+
+      public String getKey() {
+        return key;
+      }
+
+      public Problem getProblem() {
+        return problem;
+      }
+
+      /**
+       * Get the value of the parameter.
+       */
+      public Object getValue() {
+        return value;
+      }
+
+      /**
+       * Get the supported value nearest to the value.
+       *
+       * @return the nearest supported value of an OUT_OF_RANGE number, of the type of the
+       *     parameter, otherwise null.
+       */
+      public Number getClampedValue() {
+        return clampedValue;
+      }
+
+      @Override
+      public String toString() {
+        return key + ": " + problem + " " + value
+            + (clampedValue != null ? " -> " + clampedValue : "");
+      }
+    }
+
+    void add(String key, Problem problem, Object value, Number clampedValue) {
+      issues.add(new Issue(key, problem, value, clampedValue));
+    }
+
+    /**
+     * Check if all the checked parameters are supported.
+     */
+    public boolean isValid() {
+      return issues.isEmpty();
+    }
+
+    /**
+     * Get the parameters that can't be set as is, in the order they were checked.
+     */
+    public List<Issue> getIssues() {
+      return Collections.unmodifiableList(issues);
+    }
+
+    /**
+     * Get the number of vendor parameters that were checked.
+     */
+    public int getCheckedCount() {
+      return checkedCount;
+    }
+
+    /**
+     * Replace the values of OUT_OF_RANGE parameters with their clamped values, and remove the
+     * other parameters with issues.
+     */
+    public void applyTo(MediaFormat format) {
+      for (Issue issue : issues) {
+        if (issue.clampedValue instanceof Integer) {
+          format.setInteger(issue.key, (Integer) issue.clampedValue);
+        } else if (issue.clampedValue instanceof Long) {
+          format.setLong(issue.key, (Long) issue.clampedValue);
+        } else if (issue.clampedValue instanceof Float) {
+          format.setFloat(issue.key, (Float) issue.clampedValue);
+        } else {
+          format.removeKey(issue.key);
+        }
+      }
+    }
+
+    /**
+     * Replace the values of OUT_OF_RANGE parameters with their clamped values, and remove the
+     * other parameters with issues.
+     */
+    public void applyTo(Bundle params) {
+      for (Issue issue : issues) {
+        if (issue.clampedValue instanceof Integer) {
+          params.putInt(issue.key, (Integer) issue.clampedValue);
+        } else if (issue.clampedValue instanceof Long) {
+          params.putLong(issue.key, (Long) issue.clampedValue);
+        } else if (issue.clampedValue instanceof Float) {
+          params.putFloat(issue.key, (Float) issue.clampedValue);
+        } else {
+          params.remove(issue.key);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return checkedCount + " checked" + (issues.isEmpty() ? "" : ", " + issues);
+    }
+  }
 }
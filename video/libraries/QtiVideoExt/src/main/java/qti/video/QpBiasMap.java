@@ -0,0 +1,311 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import android.os.Bundle;
+import android.util.Log;
+import java.util.Arrays;
+
+/**
+ * QP-bias map of a frame for {@link QMediaExtensions#KEY_ROI_MAP_MB_QP_BIAS_MAP}, with a byte
+ * per block of {@link QMediaExtensions#KEY_ROI_MAP_MB_SIDE_LENGTH} pixels, in raster order. A
+ * block holds its QP bias + {@link #NO_BIAS}.
+ *
+ * <p>Rectangles, ellipses and saliency masks are drawn into the map of the frame by rows of
+ * blocks, a shape overwrites the blocks of the shapes drawn before it. {@link #commit()} makes it
+ * the current map, optionally smoothed with the maps of the previous frames, and starts the map
+ * of the next frame. The two maps are reused, so a frame doesn't allocate, and the current map
+ * stays unchanged while the next one is drawn.
+ *
+ * <pre>
+ * QpBiasMap map = new QpBiasMap(width, height, 16);
+ * // for each frame
+ * map.addEllipse(face.top, face.left, face.bottom, face.right, -6);
+ * if (map.commit()) {
+ *   map.writeTo(bundle);
+ *   encoder.setParameters(bundle);
+ * }
+ * </pre>
+ *
+ * <p>Not thread-safe.
+ */
+public final class QpBiasMap {
+  private static final String TAG = "QpBiasMap";
+
+  /**
+   * Value of a block without QP bias.
+   */
+  public static final int NO_BIAS = 128;
+  public static final int MIN_BIAS = -NO_BIAS;
+  public static final int MAX_BIAS = 255 - NO_BIAS;
+  // weights of the smoothing, in 1/256
+  private static final int WEIGHT_BITS = 8;
+  private static final int ONE = 1 << WEIGHT_BITS;
+
+  private final int width;
+  private final int height;
+  private final int mbSideLength;
+  private final int columns;
+  private final int rows;
+  // map of the next commit() and map of the last commit()
+  private byte[] back;
+  private byte[] front;
+  // weight of the map of a frame in the smoothed map, smoothed biases in 1/256
+  private int smoothingWeight = ONE;
+  private int[] smoothed;
+  // mask column of each column of blocks
+  private final int[] maskColumns;
+
+  /**
+   * Create the map of frames of a size.
+   *
+   * @param mbSideLength side length of the blocks, 16, 32 or 64
+   * @throws IllegalArgumentException if the size or the side length is not supported
+   */
+  public QpBiasMap(int width, int height, int mbSideLength) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("invalid frame size " + width + "x" + height);
+    }
+    if (mbSideLength != 16 && mbSideLength != 32 && mbSideLength != 64) {
+      throw new IllegalArgumentException("unsupported MB side length " + mbSideLength);
+    }
+    this.width = width;
+    this.height = height;
+    this.mbSideLength = mbSideLength;
+    columns = getBlockCount(width, mbSideLength);
+    rows = getBlockCount(height, mbSideLength);
+    back = new byte[columns * rows];
+    front = new byte[columns * rows];
+    Arrays.fill(back, (byte) NO_BIAS);
+    Arrays.fill(front, (byte) NO_BIAS);
+    maskColumns = new int[columns];
+  }
+
+  // blocks covering a length, the last one partially
+  private static int getBlockCount(int length, int mbSideLength) {
+    return (length + mbSideLength - 1) / mbSideLength;
+  }
+
+  /**
+   * Get the size of the map of frames of a size, a byte per block.
+   */
+  public static int getMapSize(int width, int height, int mbSideLength) {
+    return getBlockCount(width, mbSideLength) * getBlockCount(height, mbSideLength);
+  }
+
+  public int getMbSideLength() {
+    return mbSideLength;
+  }
+
+  /**
+   * Get the number of blocks of a row of the map.
+   */
+  public int getColumns() {
+    return columns;
+  }
+
+  /**
+   * Get the number of rows of blocks of the map.
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  private static byte toValue(int bias) {
+    return (byte) (Math.max(MIN_BIAS, Math.min(MAX_BIAS, bias)) + NO_BIAS);
+  }
+
+  /**
+   * Remove the shapes drawn since the last {@link #commit()}.
+   */
+  public void clear() {
+    Arrays.fill(back, (byte) NO_BIAS);
+  }
+
+  /**
+   * Draw a rectangle, in pixels, into all the blocks it covers.
+   *
+   * @param bias QP bias of the rectangle, negative to improve the quality, clamped to
+   *     [{@link #MIN_BIAS}, {@link #MAX_BIAS}]
+   */
+  public void addRect(int top, int left, int bottom, int right, int bias) {
+    if (bottom <= top || right <= left) {
+      return;
+    }
+    final int row0 = Math.max(0, top / mbSideLength);
+    final int row1 = Math.min(rows, getBlockCount(bottom, mbSideLength));
+    final int column0 = Math.max(0, left / mbSideLength);
+    final int column1 = Math.min(columns, getBlockCount(right, mbSideLength));
+    if (column0 >= column1) {
+      return;
+    }
+    final byte value = toValue(bias);
+    for (int row = row0; row < row1; ++row) {
+      Arrays.fill(back, row * columns + column0, row * columns + column1, value);
+    }
+  }
+
+  /**
+   * Draw the ellipse of a bounding rectangle, in pixels, into the blocks whose centers are in
+   * the ellipse, or into the block of its center if the ellipse is smaller than a block.
+   *
+   * @param bias QP bias of the ellipse, negative to improve the quality, clamped to
+   *     [{@link #MIN_BIAS}, {@link #MAX_BIAS}]
+   */
+  public void addEllipse(int top, int left, int bottom, int right, int bias) {
+    if (bottom <= top || right <= left) {
+      return;
+    }
+    final float centerX = (left + right) * 0.5f;
+    final float centerY = (top + bottom) * 0.5f;
+    final float radiusX = (right - left) * 0.5f;
+    final float radiusY = (bottom - top) * 0.5f;
+    final byte value = toValue(bias);
+    boolean drawn = false;
+    final int row0 = Math.max(0, top / mbSideLength);
+    final int row1 = Math.min(rows, getBlockCount(bottom, mbSideLength));
+    for (int row = row0; row < row1; ++row) {
+      final float dy = ((row + 0.5f) * mbSideLength - centerY) / radiusY;
+      if (dy * dy > 1.f) {
+        continue;
+      }
+      // span of the row of block centers in the ellipse
+      final float halfWidth = radiusX * (float) Math.sqrt(1.f - dy * dy);
+      final int column0 = Math.max(0,
+          (int) Math.ceil((centerX - halfWidth) / mbSideLength - 0.5f));
+      final int column1 = Math.min(columns - 1,
+          (int) Math.floor((centerX + halfWidth) / mbSideLength - 0.5f));
+      if (column0 <= column1) {
+        Arrays.fill(back, row * columns + column0, row * columns + column1 + 1, value);
+        drawn = true;
+      }
+    }
+    if (!drawn && centerX >= 0.f && centerY >= 0.f) {
+      final int row = (int) (centerY / mbSideLength);
+      final int column = (int) (centerX / mbSideLength);
+      if (row < rows && column < columns) {
+        back[row * columns + column] = value;
+      }
+    }
+  }
+
+  /**
+   * Draw a saliency mask covering the frame, e.g. the output of a saliency model, sampled at
+   * the centers of the blocks. A block gets the bias scaled by its saliency, and blocks of
+   * saliency 0 are not drawn.
+   *
+   * @param mask saliency of each pixel of the mask, 0 - 255, in raster order
+   * @param bias QP bias of saliency 255, clamped to [{@link #MIN_BIAS}, {@link #MAX_BIAS}]
+   * @return false if the mask is smaller than its size, it's not drawn
+   */
+  public boolean addMask(byte[] mask, int maskWidth, int maskHeight, int bias) {
+    if (maskWidth <= 0 || maskHeight <= 0 || mask == null
+        || mask.length < (long) maskWidth * maskHeight) {
+      Log.e(TAG, "Invalid mask of " + maskWidth + "x" + maskHeight);
+      return false;
+    }
+    for (int column = 0; column < columns; ++column) {
+      maskColumns[column] = (int) Math.min(maskWidth - 1,
+          (2L * column + 1) * mbSideLength * maskWidth / (2L * width));
+    }
+    for (int row = 0; row < rows; ++row) {
+      final int maskRow = (int) Math.min(maskHeight - 1,
+          (2L * row + 1) * mbSideLength * maskHeight / (2L * height));
+      final int maskOffset = maskRow * maskWidth;
+      final int offset = row * columns;
+      // runs of blocks of the same value, -1 for blocks not drawn
+      int runStart = 0;
+      int runValue = -1;
+      for (int column = 0; column <= columns; ++column) {
+        int value = -1;
+        if (column < columns) {
+          final int saliency = mask[maskOffset + maskColumns[column]] & 0xFF;
+          if (saliency != 0) {
+            value = toValue(Math.round(bias * saliency / 255.f)) & 0xFF;
+          }
+        }
+        if (value != runValue) {
+          if (runValue >= 0) {
+            Arrays.fill(back, offset + runStart, offset + column, (byte) runValue);
+          }
+          runStart = column;
+          runValue = value;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Smooth the maps between frames, the current map becomes
+   * weight * new map + (1 - weight) * previous map, e.g. so a bias follows a moving box without
+   * flickering.
+   *
+   * @param weight weight of the map of a frame, in (0, 1], 1 to not smooth
+   * @return false if the weight is not supported, the smoothing is unchanged
+   */
+  public boolean setSmoothing(float weight) {
+    if (!(weight > 0.f && weight <= 1.f)) {
+      Log.e(TAG, "Invalid smoothing weight " + weight);
+      return false;
+    }
+    smoothingWeight = Math.max(1, Math.round(weight * ONE));
+    if (smoothingWeight < ONE) {
+      if (smoothed == null) {
+        smoothed = new int[front.length];
+      }
+      // from the current map
+      for (int i = 0; i < front.length; ++i) {
+        smoothed[i] = ((front[i] & 0xFF) - NO_BIAS) * ONE;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Make the shapes drawn since the last commit the current map, smoothed if
+   * {@link #setSmoothing(float)}, and start the map of the next frame without shapes.
+   *
+   * @return true if the current map changed, and must be sent to the encoder
+   */
+  public boolean commit() {
+    if (smoothingWeight < ONE) {
+      for (int i = 0; i < back.length; ++i) {
+        final int bias = ((back[i] & 0xFF) - NO_BIAS) * ONE;
+        smoothed[i] += (bias - smoothed[i]) * smoothingWeight >> WEIGHT_BITS;
+        back[i] = (byte) (((smoothed[i] + ONE / 2) >> WEIGHT_BITS) + NO_BIAS);
+      }
+    }
+    final boolean changed = !Arrays.equals(back, front);
+    final byte[] map = front;
+    front = back;
+    back = map;
+    Arrays.fill(back, (byte) NO_BIAS);
+    return changed;
+  }
+
+  /**
+   * Get the current map.
+   *
+   * @return the map, unchanged until the next {@link #commit()}
+   */
+  public byte[] getMap() {
+    return front;
+  }
+
+  /**
+   * Put the side length and the current map in the bundle of
+   * <a href="https://developer.android.com/reference/android/media/MediaCodec#setParameters(android.os.Bundle)">MediaCodec.setParameters()</a>.
+   * The map is copied with the bundle by setParameters(), so the bundle can be reused for the
+   * next frame.
+   */
+  public void writeTo(Bundle params) {
+    params.putInt(QMediaExtensions.KEY_ROI_MAP_MB_SIDE_LENGTH, mbSideLength);
+    params.putByteArray(QMediaExtensions.KEY_ROI_MAP_MB_QP_BIAS_MAP, front);
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import android.os.Bundle;
+import java.util.Arrays;
+
+/**
+ * Encoder of ROI rectangles for {@link QMediaExtensions#KEY_ROI_RECT_INFO} and
+ * {@link QMediaExtensions#KEY_ROI_RECT_INFO_EXT}, e.g. the boxes of a face tracker.
+ *
+ * <p>Any number of boxes with a QP bias can be added for a frame. If there are more than
+ * {@link #MAX_RECTS}, the boxes are merged pairwise into their bounding boxes, cheapest first,
+ * until there are {@link #MAX_RECTS}. The cost of a merge is its QP-area error: the area of
+ * each box times the change of its QP bias to the area-weighted mean bias of the merged box,
+ * plus the area the merged box adds times that mean bias.
+ *
+ * <p>The payloads are written to preallocated builders, "top,left-bottom,right=qp;" per rect in
+ * ascending QP bias order, the first {@link #RECTS_PER_KEY} rects for KEY_ROI_RECT_INFO and the
+ * others for KEY_ROI_RECT_INFO_EXT. A frame doesn't allocate, besides the payload strings of
+ * the bundle when they changed, and the arrays when a frame has more boxes than ever before.
+ *
+ * <pre>
+ * RoiRectEncoder roi = new RoiRectEncoder(64);
+ * // for each frame
+ * roi.clear();
+ * for (Face face : faces) {
+ *   roi.addRect(face.top, face.left, face.bottom, face.right, -6);
+ * }
+ * roi.encode(presentationTimeUs);
+ * roi.writeTo(bundle);
+ * encoder.setParameters(bundle);
+ * </pre>
+ *
+ * <p>Not thread-safe.
+ */
+public final class RoiRectEncoder {
+  /**
+   * Maximum number of rects of a frame, with KEY_ROI_RECT_INFO_EXT.
+   */
+  public static final int MAX_RECTS = 10;
+  /**
+   * Maximum number of rects of KEY_ROI_RECT_INFO or KEY_ROI_RECT_INFO_EXT.
+   */
+  public static final int RECTS_PER_KEY = 5;
+  // "top,left-bottom,right=qp;" with 5-digit coordinates
+  private static final int MAX_RECT_LENGTH = 32;
+
+  // boxes of the frame, then clusters of boxes while merging; the bounding box, the area
+  // covered by the boxes and the area-weighted mean QP bias of a cluster
+  private int[] top;
+  private int[] left;
+  private int[] bottom;
+  private int[] right;
+  private float[] area;
+  private float[] qp;
+  private boolean[] merged;
+  private int count;
+  // clusters not merged while merging
+  private int[] clusters;
+  private int clusterCount;
+  // cost of merging two clusters, by row, with a row per box
+  private float[] costs;
+  // cheapest merge of a cluster
+  private int[] bestPartner;
+  private float[] bestCost;
+
+  // output rects, indices of the clusters in QP order
+  private final int[] order = new int[MAX_RECTS];
+  private int rectCount;
+  private long timestampUs;
+  private final StringBuilder rectInfo = new StringBuilder(RECTS_PER_KEY * MAX_RECT_LENGTH);
+  private final StringBuilder rectInfoExt = new StringBuilder(RECTS_PER_KEY * MAX_RECT_LENGTH);
+  // last payload strings, reused while the payloads don't change
+  private String rectInfoString = "";
+  private String rectInfoExtString = "";
+
+  /**
+   * Create an encoder.
+   *
+   * @param capacity expected maximum number of boxes of a frame, the arrays grow if needed. The
+   *     costs of the merges take capacity * capacity floats.
+   */
+  public RoiRectEncoder(int capacity) {
+    allocate(Math.max(capacity, MAX_RECTS));
+  }
+
+  private void allocate(int capacity) {
+    top = top == null ? new int[capacity] : Arrays.copyOf(top, capacity);
+    left = left == null ? new int[capacity] : Arrays.copyOf(left, capacity);
+    bottom = bottom == null ? new int[capacity] : Arrays.copyOf(bottom, capacity);
+    right = right == null ? new int[capacity] : Arrays.copyOf(right, capacity);
+    area = area == null ? new float[capacity] : Arrays.copyOf(area, capacity);
+    qp = qp == null ? new float[capacity] : Arrays.copyOf(qp, capacity);
+    merged = new boolean[capacity];
+    clusters = new int[capacity];
+    costs = new float[capacity * capacity];
+    bestPartner = new int[capacity];
+    bestCost = new float[capacity];
+  }
+
+  /**
+   * Remove the boxes of the previous frame.
+   */
+  public void clear() {
+    count = 0;
+    rectCount = 0;
+  }
+
+  /**
+   * Add a box of the frame.
+   *
+   * @param qpBias QP bias of the box, negative to improve the quality
+   * @return false if the box is empty or has no bias, and is ignored
+   */
+  public boolean addRect(int top, int left, int bottom, int right, int qpBias) {
+    if (bottom <= top || right <= left || qpBias == 0) {
+      return false;
+    }
+    if (count == this.top.length) {
+      allocate(count * 2);
+    }
+    this.top[count] = top;
+    this.left[count] = left;
+    this.bottom[count] = bottom;
+    this.right[count] = right;
+    this.area[count] = (float) (bottom - top) * (right - left);
+    this.qp[count] = qpBias;
+    count++;
+    return true;
+  }
+
+  /**
+   * Get the number of boxes added since {@link #clear()}.
+   */
+  public int getBoxCount() {
+    return count;
+  }
+
+  /**
+   * Merge the boxes into at most {@link #MAX_RECTS} rects and write the payloads.
+   *
+   * @param timestampUs presentation time of the frame of the boxes, in microseconds
+   * @return number of rects
+   */
+  public int encode(long timestampUs) {
+    this.timestampUs = timestampUs;
+    Arrays.fill(merged, 0, count, false);
+    if (count > MAX_RECTS) {
+      merge();
+    }
+    rectCount = 0;
+    for (int i = 0; i < count; ++i) {
+      if (!merged[i]) {
+        // insertion in QP order, at most MAX_RECTS
+        int j = rectCount++;
+        while (j > 0 && qp[order[j - 1]] > qp[i]) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = i;
+      }
+    }
+    rectInfo.setLength(0);
+    rectInfoExt.setLength(0);
+    for (int i = 0; i < rectCount; ++i) {
+      appendRect(i < RECTS_PER_KEY ? rectInfo : rectInfoExt, order[i]);
+    }
+    return rectCount;
+  }
+
+  private void appendRect(StringBuilder payload, int i) {
+    payload.append(top[i]).append(',').append(left[i]).append('-').append(bottom[i])
+        .append(',').append(right[i]).append('=').append(Math.round(qp[i])).append(';');
+  }
+
+  // agglomerative merge, every cluster keeps its cheapest partner so a merge only updates the
+  // costs of the merged cluster, and the partners of the clusters that pointed to the merged ones
+  private void merge() {
+    final int stride = top.length;
+    clusterCount = 0;
+    for (int i = 0; i < count; ++i) {
+      clusters[clusterCount++] = i;
+      for (int j = 0; j < i; ++j) {
+        final float cost = getMergeCost(i, j);
+        costs[i * stride + j] = cost;
+        costs[j * stride + i] = cost;
+      }
+    }
+    for (int i = 0; i < count; ++i) {
+      findBestPartner(i);
+    }
+    while (clusterCount > MAX_RECTS) {
+      int a = clusters[0];
+      for (int k = 1; k < clusterCount; ++k) {
+        if (bestCost[clusters[k]] < bestCost[a]) {
+          a = clusters[k];
+        }
+      }
+      final int b = bestPartner[a];
+      // b into a
+      final float mergedArea = getMergedArea(a, b);
+      qp[a] = (qp[a] * area[a] + qp[b] * area[b]) / (area[a] + area[b]);
+      area[a] = mergedArea;
+      top[a] = Math.min(top[a], top[b]);
+      left[a] = Math.min(left[a], left[b]);
+      bottom[a] = Math.max(bottom[a], bottom[b]);
+      right[a] = Math.max(right[a], right[b]);
+      merged[b] = true;
+      for (int k = 0; k < clusterCount; ++k) {
+        if (clusters[k] == b) {
+          clusters[k] = clusters[--clusterCount];
+          break;
+        }
+      }
+
+      for (int k = 0; k < clusterCount; ++k) {
+        final int i = clusters[k];
+        if (i != a) {
+          final float cost = getMergeCost(i, a);
+          costs[i * stride + a] = cost;
+          costs[a * stride + i] = cost;
+        }
+      }
+      findBestPartner(a);
+      for (int k = 0; k < clusterCount; ++k) {
+        final int i = clusters[k];
+        if (i == a) {
+          continue;
+        }
+        if (bestPartner[i] == a || bestPartner[i] == b) {
+          findBestPartner(i);
+        } else if (costs[i * stride + a] < bestCost[i]) {
+          bestCost[i] = costs[i * stride + a];
+          bestPartner[i] = a;
+        }
+      }
+    }
+  }
+
+  private void findBestPartner(int i) {
+    final int row = i * top.length;
+    int partner = -1;
+    float cost = Float.MAX_VALUE;
+    for (int k = 0; k < clusterCount; ++k) {
+      final int j = clusters[k];
+      if (j != i && (partner < 0 || costs[row + j] < cost)) {
+        cost = costs[row + j];
+        partner = j;
+      }
+    }
+    bestPartner[i] = partner;
+    bestCost[i] = cost;
+  }
+
+  // area covered by two clusters, their boxes are assumed to fill their bounding boxes where
+  // they intersect
+  private float getMergedArea(int a, int b) {
+    final long width = Math.min(right[a], right[b]) - Math.max(left[a], left[b]);
+    final long height = Math.min(bottom[a], bottom[b]) - Math.max(top[a], top[b]);
+    final float intersection = width > 0 && height > 0 ? (float) width * height : 0.f;
+    return area[a] + area[b] - Math.min(intersection, Math.min(area[a], area[b]));
+  }
+
+  private float getMergeCost(int a, int b) {
+    final float areaA = area[a];
+    final float areaB = area[b];
+    final float areaSum = areaA + areaB;
+    final float mergedQp = (qp[a] * areaA + qp[b] * areaB) / areaSum;
+    final float boundingArea = (float) (Math.max(bottom[a], bottom[b]) - Math.min(top[a], top[b]))
+        * (Math.max(right[a], right[b]) - Math.min(left[a], left[b]));
+    final float addedArea = Math.max(0.f, boundingArea - getMergedArea(a, b));
+    // areaA * |qpA - mergedQp| + areaB * |qpB - mergedQp|
+    return 2.f * areaA * areaB * Math.abs(qp[a] - qp[b]) / areaSum
+        + addedArea * Math.abs(mergedQp);
+  }
+
+  /**
+   * Get the number of rects of the last {@link #encode(long)}.
+   */
+  public int getRectCount() {
+    return rectCount;
+  }
+
+  /**
+   * Get the timestamp of the last {@link #encode(long)}.
+   */
+  public long getTimestampUs() {
+    return timestampUs;
+  }
+
+  /**
+   * Get the payload of {@link QMediaExtensions#KEY_ROI_RECT_INFO}.
+   *
+   * @return the payload, the same string as long as the payload doesn't change
+   */
+  public String getRectInfo() {
+    if (!rectInfoString.contentEquals(rectInfo)) {
+      rectInfoString = rectInfo.toString();
+    }
+    return rectInfoString;
+  }
+
+  /**
+   * Get the payload of {@link QMediaExtensions#KEY_ROI_RECT_INFO_EXT}.
+   *
+   * @return the payload, empty if there are not more than {@link #RECTS_PER_KEY} rects. The same
+   *     string as long as the payload doesn't change.
+   */
+  public String getRectInfoExt() {
+    if (!rectInfoExtString.contentEquals(rectInfoExt)) {
+      rectInfoExtString = rectInfoExt.toString();
+    }
+    return rectInfoExtString;
+  }
+
+  /**
+   * Put the payloads of the last {@link #encode(long)} with their timestamp in the bundle of
+   * <a href="https://developer.android.com/reference/android/media/MediaCodec#setParameters(android.os.Bundle)">MediaCodec.setParameters()</a>,
+   * {@link QMediaExtensions#KEY_ROI_RECT_INFO_EXT} only if there are more than
+   * {@link #RECTS_PER_KEY} rects. setParameters() copies the bundle, so the same bundle can be
+   * reused for the next frame.
+   *
+   * @return false if there are no rects, nothing is put
+   */
+  public boolean writeTo(Bundle params) {
+    if (rectCount == 0) {
+      return false;
+    }
+    params.putString(QMediaExtensions.KEY_ROI_RECT_INFO, getRectInfo());
+    if (rectCount > RECTS_PER_KEY) {
+      params.putString(QMediaExtensions.KEY_ROI_RECT_INFO_EXT, getRectInfoExt());
+    } else {
+      params.remove(QMediaExtensions.KEY_ROI_RECT_INFO_EXT);
+    }
+    params.putLong(QMediaExtensions.KEY_ROI_INFO_TIMESTAMP, timestampUs);
+    return true;
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+
+/**
+ * Reusable vendor parameters for
+ * <a href="https://developer.android.com/reference/android/media/MediaCodec#setParameters(android.os.Bundle)">MediaCodec.setParameters()</a>,
+ * e.g. the per-frame QP, LTR or ROI parameters of an encoder.
+ *
+ * <p>Params are declared once, and checked once against the supported values of the codec.
+ * Values are checked when they are set, without allocating. Only the params whose values changed
+ * since they were last sent are put in the bundle, which is reused, so a frame costs no
+ * allocation besides the boxing of Bundle.
+ *
+ * <pre>
+ * VendorParameters params = new VendorParameters(capabilities);
+ * VendorParameters.IntParam frameQp = params.addInt(QMediaExtensions.KEY_ADV_QP_FRAME_QP_VALUE);
+ * // for each frame
+ * frameQp.set(qp);
+ * params.applyTo(encoder);
+ * </pre>
+ *
+ * <p>Not thread-safe.
+ */
+public final class VendorParameters {
+  private static final String TAG = "VendorParameters";
+
+  // supported values by param name, null to not check the values
+  private final Map<String, SupportedValues> ranges;
+  private final List<Param> params = new ArrayList<>();
+  private int changedCount;
+  private BundleSink bundleSink;
+
+  /**
+   * Receives the changed params.
+   */
+  interface ParameterSink {
+    void putInt(String key, int value);
+
+    void putLong(String key, long value);
+
+    void putString(String key, String value);
+  }
+
+  // the reused bundle
+  private static final class BundleSink implements ParameterSink {
+    final Bundle bundle = new Bundle();
+
+    @Override
+    public void putInt(String key, int value) {
+      bundle.putInt(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+      bundle.putLong(key, value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+      bundle.putString(key, value);
+    }
+  }
+
+  /**
+   * Create parameters of a codec.
+   *
+   * @param capabilities capabilities of the codec, null to not check the params and values
+   */
+  public VendorParameters(QMediaCodecCapabilities capabilities) {
+    this(capabilities != null ? capabilities.getSupportedParameterRanges() : null);
+  }
+
+  VendorParameters(Map<String, SupportedValues> ranges) {
+    this.ranges = ranges;
+  }
+
+  /**
+   * A param, sent by the next {@link #applyTo(MediaCodec)} when its value changed.
+   */
+  public abstract class Param {
+    final String key;
+    // null if not checked
+    final SupportedValues<?> supportedValues;
+    boolean hasValue;
+    boolean sent;
+    boolean changed;
+
+    Param(String key, SupportedValues<?> supportedValues) {
+      this.key = key;
+      this.supportedValues = supportedValues;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Send the param again with the next {@link #applyTo(MediaCodec)}, even if its value didn't
+     * change, e.g. for a param that applies to the next frame only.
+     */
+    public void resend() {
+      if (hasValue) {
+        markChanged();
+      }
+    }
+
+    void markChanged() {
+      if (!changed) {
+        changed = true;
+        changedCount++;
+      }
+    }
+
+    abstract void write(ParameterSink sink);
+  }
+
+  /**
+   * A param of data type INTEGER.
+   */
+  public final class IntParam extends Param {
+    private int value;
+    private int sentValue;
+
+    IntParam(String key, SupportedValues<?> supportedValues) {
+      super(key, supportedValues);
+    }
+
+    /**
+     * Set the value of the param.
+     *
+     * @return false if the value is not supported, the previous value is kept
+     */
+    public boolean set(int value) {
+      if (supportedValues != null && !supportedValues.contains(value)) {
+        Log.e(TAG, "Unsupported value " + value + " for " + key);
+        return false;
+      }
+      this.value = value;
+      hasValue = true;
+      if (!sent || value != sentValue) {
+        markChanged();
+      }
+      return true;
+    }
+
+    public int get() {
+      return value;
+    }
+
+    @Override
+    void write(ParameterSink sink) {
+      sink.putInt(key, value);
+      sentValue = value;
+    }
+  }
+
+  /**
+   * A param of data type LONG, e.g. a timestamp.
+   */
+  public final class LongParam extends Param {
+    private long value;
+    private long sentValue;
+
+    LongParam(String key, SupportedValues<?> supportedValues) {
+      super(key, supportedValues);
+    }
+
+    /**
+     * Set the value of the param.
+     *
+     * @return false if the value is not supported, the previous value is kept
+     */
+    public boolean set(long value) {
+      if (supportedValues != null && !supportedValues.contains(value)) {
+        Log.e(TAG, "Unsupported value " + value + " for " + key);
+        return false;
+      }
+      this.value = value;
+      hasValue = true;
+      if (!sent || value != sentValue) {
+        markChanged();
+      }
+      return true;
+    }
+
+    public long get() {
+      return value;
+    }
+
+    @Override
+    void write(ParameterSink sink) {
+      sink.putLong(key, value);
+      sentValue = value;
+    }
+  }
+
+  /**
+   * A param of data type STRING, e.g. an ROI payload.
+   */
+  public final class StringParam extends Param {
+    private String value;
+    private String sentValue;
+
+    StringParam(String key, SupportedValues<?> supportedValues) {
+      super(key, supportedValues);
+    }
+
+    /**
+     * Set the value of the param.
+     *
+     * @return false if the value is null, the previous value is kept
+     */
+    public boolean set(String value) {
+      if (value == null) {
+        Log.e(TAG, "Null value for " + key);
+        return false;
+      }
+      this.value = value;
+      hasValue = true;
+      if (!sent || !value.equals(sentValue)) {
+        markChanged();
+      }
+      return true;
+    }
+
+    public String get() {
+      return value;
+    }
+
+    @Override
+    void write(ParameterSink sink) {
+      sink.putString(key, value);
+      sentValue = value;
+    }
+  }
+
+  /**
+   * Declare a param of data type INTEGER.
+   *
+   * @return the param, null if the codec doesn't have the param or it's not an INTEGER
+   */
+  public IntParam addInt(String key) {
+    if (!checkParam(key, SupportedValues.DataType.INTEGER)) {
+      return null;
+    }
+    IntParam param = new IntParam(key, getSupportedValues(key));
+    params.add(param);
+    return param;
+  }
+
+  /**
+   * Declare a param of data type LONG.
+   *
+   * @return the param, null if the codec doesn't have the param or it's not a LONG
+   */
+  public LongParam addLong(String key) {
+    if (!checkParam(key, SupportedValues.DataType.LONG)) {
+      return null;
+    }
+    LongParam param = new LongParam(key, getSupportedValues(key));
+    params.add(param);
+    return param;
+  }
+
+  /**
+   * Declare a param of data type STRING.
+   *
+   * @return the param, null if the codec doesn't have the param or it's not a STRING
+   */
+  public StringParam addString(String key) {
+    if (!checkParam(key, SupportedValues.DataType.STRING)) {
+      return null;
+    }
+    // any string is supported
+    StringParam param = new StringParam(key, null);
+    params.add(param);
+    return param;
+  }
+
+  private SupportedValues<?> getSupportedValues(String key) {
+    return ranges != null ? ranges.get(key) : null;
+  }
+
+  private boolean checkParam(String key, SupportedValues.DataType dataType) {
+    for (int i = 0; i < params.size(); ++i) {
+      if (params.get(i).key.equals(key)) {
+        Log.e(TAG, "Param " + key + " already added");
+        return false;
+      }
+    }
+    if (ranges == null) {
+      return true;
+    }
+    SupportedValues<?> supportedValues = ranges.get(key);
+    if (supportedValues == null) {
+      Log.e(TAG, "Param " + key + " not supported by the codec");
+      return false;
+    }
+    if (supportedValues.getDataType() != dataType) {
+      Log.e(TAG, "Param " + key + " is " + supportedValues.getDataType() + ", not " + dataType);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Check if a param changed since the params were last sent.
+   */
+  public boolean hasChanges() {
+    return changedCount > 0;
+  }
+
+  /**
+   * Get the params that changed since they were last sent, and consider them sent.
+   *
+   * @return the bundle of the params, which is reused by the next call
+   */
+  public Bundle getChanges() {
+    if (bundleSink == null) {
+      bundleSink = new BundleSink();
+    }
+    bundleSink.bundle.clear();
+    writeChanges(bundleSink);
+    return bundleSink.bundle;
+  }
+
+  /**
+   * Send the params that changed since they were last sent to a codec. The bundle is copied
+   * by MediaCodec.setParameters(), so it's reused for the next frame.
+   *
+   * @return true if params were sent, false if no param changed
+   */
+  public boolean applyTo(MediaCodec codec) {
+    if (!hasChanges()) {
+      return false;
+    }
+    codec.setParameters(getChanges());
+    return true;
+  }
+
+  /**
+   * Write the params that changed since they were last sent, and consider them sent.
+   */
+  void writeChanges(ParameterSink sink) {
+    for (int i = 0; i < params.size() && changedCount > 0; ++i) {
+      Param param = params.get(i);
+      if (param.changed) {
+        param.write(sink);
+        param.sent = true;
+        param.changed = false;
+        changedCount--;
+      }
+    }
+  }
+}
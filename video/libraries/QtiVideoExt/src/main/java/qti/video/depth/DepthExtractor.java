@@ -118,6 +118,44 @@ public class DepthExtractor {
         pubTracks.add(trackInfo);
       }
     }
+    setDepthReferenceSize();
+  }
+
+  // Depth tracks can be encoded at a lower resolution than the video. Expose the size of the
+  // video they are aligned to: the sharp video in inner clip, or the first video in outer clip.
+  private void setDepthReferenceSize() {
+    MediaFormat reference = null;
+    for (TrackInfo trackInfo : pubTracks) {
+      MediaFormat format = trackInfo.format;
+      if (format.containsKey(DepthFormat.KEY_TRACK_TYPE)
+          && format.getInteger(DepthFormat.KEY_TRACK_TYPE)
+          == DepthFormat.TRACK_TYPE_SHARP_VIDEO) {
+        reference = format;
+        break;
+      }
+      String mime = format.getString(MediaFormat.KEY_MIME);
+      if (reference == null && trackInfo.extractorInfo.isOuterExtractor
+          && mime != null && mime.startsWith("video/")) {
+        reference = format;
+      }
+    }
+    if (reference == null) {
+      return;
+    }
+    final int width = reference.getInteger(MediaFormat.KEY_WIDTH);
+    final int height = reference.getInteger(MediaFormat.KEY_HEIGHT);
+    for (TrackInfo trackInfo : pubTracks) {
+      MediaFormat format = trackInfo.format;
+      if (!format.containsKey(DepthFormat.KEY_TRACK_TYPE)) {
+        continue;
+      }
+      int trackType = format.getInteger(DepthFormat.KEY_TRACK_TYPE);
+      if (trackType == DepthFormat.TRACK_TYPE_DEPTH_LINEAR
+          || trackType == DepthFormat.TRACK_TYPE_DEPTH_INVERSE) {
+        format.setInteger(DepthFormat.KEY_REFERENCE_WIDTH, width);
+        format.setInteger(DepthFormat.KEY_REFERENCE_HEIGHT, height);
+      }
+    }
   }
 
   public void release() {
@@ -144,7 +182,9 @@ public class DepthExtractor {
    *     contain key {@link DepthFormat#KEY_TRACK_TYPE}, the value is one of
    *     {@link DepthFormat#TRACK_TYPE_SHARP_VIDEO}, {@link DepthFormat#TRACK_TYPE_DEPTH_LINEAR},
    *     {@link DepthFormat#TRACK_TYPE_DEPTH_INVERSE}, {@link DepthFormat#TRACK_TYPE_METADATA} and
-   *     {@link DepthFormat#TRACK_TYPE_TRANSLUCENT_VIDEO}
+   *     {@link DepthFormat#TRACK_TYPE_TRANSLUCENT_VIDEO}. Depth tracks also contain
+   *     {@link DepthFormat#KEY_REFERENCE_WIDTH} and {@link DepthFormat#KEY_REFERENCE_HEIGHT} if
+   *     the clip has a video track.
    */
   public MediaFormat getTrackFormat(int trackIndex) {
     TrackInfo trackInfo = pubTracks.get(trackIndex);
@@ -19,6 +19,17 @@ public final class DepthFormat {
   public static final int TRACK_TYPE_TRANSLUCENT_VIDEO = 4;
   public static final int MAX_TRACK_TYPE_COUNT = 5;
 
+  // Mime of depth tracks losslessly encoded with DepthRvlCodec. Each sample is a self-contained
+  // RVL frame of 10-bit depth, which can be decoded by DepthRvlCodec#decode(), and written back
+  // to a P010 plane by DepthRvlCodec#writeP010().
+  public static final String MIMETYPE_DEPTH_RVL = "application/x-depth-rvl";
+
+  // Size of the video track which a depth track is aligned to. Depth tracks may be encoded at a
+  // reduced resolution, and the scale is the reference size divided by the depth track size.
+  // Set by DepthExtractor on TRACK_TYPE_DEPTH_LINEAR and TRACK_TYPE_DEPTH_INVERSE track formats.
+  public static final String KEY_REFERENCE_WIDTH = "depth-reference-width";
+  public static final String KEY_REFERENCE_HEIGHT = "depth-reference-height";
+
   // Non-public meta keys and types for depth container.
   // Only used by muxer and extractor internally.
   static final String META_KEY_EDVD_OFFSET = "editable.tracks.offset";
@@ -36,6 +36,9 @@ public class DepthMuxer {
   private final String tmpInnerClipPath;
   private final ArrayList<TrackInfo> publicTracks = new ArrayList<>(MAX_TRACK_COUNT_IN_A_CLIP);
   private boolean clipsMerged = false;
+  private long editInnerClipLatencyMs = -1;
+  private long editOuterClipLatencyMs = -1;
+  private long mergeClipLatencyMs = -1;
 
   // non-private only for unit test
   static class TrackInfo {
@@ -156,13 +159,16 @@ public class DepthMuxer {
       Mp4DepthMetaEditor editor = new Mp4DepthMetaEditor(outerF, innerF);
       editor.editInnerClip(getInnerTrackTypes());
       final long timeMs1 = System.currentTimeMillis();
-      Log.v(TAG, "edit inner clip latency ms: " + (timeMs1 - startTimeMs));
+      editInnerClipLatencyMs = timeMs1 - startTimeMs;
+      Log.v(TAG, "edit inner clip latency ms: " + editInnerClipLatencyMs);
       editor.editOuterClip();
       final long timeMs2 = System.currentTimeMillis();
-      Log.v(TAG, "edit outer clip latency ms: " + (timeMs2 - timeMs1));
+      editOuterClipLatencyMs = timeMs2 - timeMs1;
+      Log.v(TAG, "edit outer clip latency ms: " + editOuterClipLatencyMs);
       editor.mergeClip();
       final long timeMs3 = System.currentTimeMillis();
-      Log.v(TAG, "merge clip latency ms: " + (timeMs3 - timeMs2));
+      mergeClipLatencyMs = timeMs3 - timeMs2;
+      Log.v(TAG, "merge clip latency ms: " + mergeClipLatencyMs);
       Log.v(TAG, "inner clip size: " + innerF.length());
       Log.v(TAG, "total edit and merge latency ms: " + (timeMs3 - startTimeMs));
     }
@@ -193,6 +199,34 @@ public class DepthMuxer {
     trackInfo.muxer.writeSampleData(trackInfo.internalTrackId, byteBuf, bufferInfo);
   }
 
+  /**
+   * Get the latency of editing the inner clip in the last {@link #stop()} or {@link #release()}.
+   *
+   * @return latency in milliseconds, or -1 if the clips have not been edited.
+   */
+  public long getEditInnerClipLatencyMs() {
+    return editInnerClipLatencyMs;
+  }
+
+  /**
+   * Get the latency of editing the outer clip in the last {@link #stop()} or {@link #release()}.
+   *
+   * @return latency in milliseconds, or -1 if the clips have not been edited.
+   */
+  public long getEditOuterClipLatencyMs() {
+    return editOuterClipLatencyMs;
+  }
+
+  /**
+   * Get the latency of merging inner clip into outer clip in the last {@link #stop()} or
+   * {@link #release()}.
+   *
+   * @return latency in milliseconds, or -1 if the clips have not been merged.
+   */
+  public long getMergeClipLatencyMs() {
+    return mergeClipLatencyMs;
+  }
+
   // non-private only for unit test
   TrackInfo getTrackInfo(int pubTrackIndex) {
     return publicTracks.get(pubTrackIndex);
@@ -0,0 +1,408 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lossless codec for 16-bit depth frames, stored in tracks of mime
+ * {@link DepthFormat#MIMETYPE_DEPTH_RVL}.
+ * It implements RVL (run length + variable length) coding: runs of zero (invalid) depth are run
+ * length coded, and valid depth values are delta predicted from the previous valid value, zigzag
+ * mapped and written as variable length nibbles.
+ * A frame is split into horizontal stripes coded independently, so stripes are encoded and
+ * decoded in parallel when the codec is created with more than one thread.
+ *
+ * <p>Frame layout, all integers are 32-bit little endian:
+ * <pre>
+ *   magic "RVL1" | width | height | stripeCount | stripe byte sizes[stripeCount] | stripes
+ * </pre>
+ * Each stripe is a sequence of 32-bit words holding 8 nibbles each, most significant first.
+ */
+public final class DepthRvlCodec implements AutoCloseable {
+  public static final int MAGIC = 0x314c5652; // "RVL1" in little endian
+  public static final int DEFAULT_STRIPE_COUNT = 8;
+  private static final int HEADER_INTS = 4;
+  // P010 keeps its 10 data bits in the high bits of each 16-bit word
+  private static final int P010_SHIFT = 6;
+
+  private final ExecutorService executor;
+  // per stripe encode scratch, reused across frames
+  private int[][] stripeWords = new int[0][];
+  private final int[] stripeWordCounts = new int[DEFAULT_STRIPE_COUNT];
+
+  /**
+   * DepthRvlCodec constructor.
+   *
+   * @param threadCount number of threads to encode and decode stripes, 1 to run in the caller
+   *     thread only.
+   */
+  public DepthRvlCodec(int threadCount) {
+    assert (threadCount >= 1);
+    executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Get an upper bound of the encoded frame size.
+   */
+  public static int maxEncodedSize(int width, int height) {
+    // per pixel: at most 6 nibbles for the value, 2 nibbles for runs
+    long pixels = (long) width * height;
+    long bytes = 4L * (HEADER_INTS + DEFAULT_STRIPE_COUNT)
+        + pixels * 4 + DEFAULT_STRIPE_COUNT * 8L;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("frame too large: " + width + "x" + height);
+    }
+    return (int) bytes;
+  }
+
+  public static int getWidth(ByteBuffer frame) {
+    checkMagic(frame);
+    return getIntLe(frame, frame.position() + 4);
+  }
+
+  public static int getHeight(ByteBuffer frame) {
+    checkMagic(frame);
+    return getIntLe(frame, frame.position() + 8);
+  }
+
+  private static void checkMagic(ByteBuffer frame) {
+    if (frame.remaining() < HEADER_INTS * 4 || getIntLe(frame, frame.position()) != MAGIC) {
+      throw new IllegalArgumentException("not a RVL depth frame");
+    }
+  }
+
+  // read without touching the byte order of client buffers
+  private static int getIntLe(ByteBuffer buf, int index) {
+    return (buf.get(index) & 0xff)
+        | (buf.get(index + 1) & 0xff) << 8
+        | (buf.get(index + 2) & 0xff) << 16
+        | (buf.get(index + 3) & 0xff) << 24;
+  }
+
+  /**
+   * Read the depth of a P010 luma plane, which holds 10-bit samples in the high bits of 16-bit
+   * little endian words, as the 10-bit values to {@link #encode}.
+   *
+   * @param plane plane buffer, read from index 0. Position and limit are not changed.
+   * @param rowStride row stride in bytes.
+   * @param pixelStride pixel stride in bytes.
+   * @param depth output of width * height depth samples.
+   */
+  public static void readP010(ByteBuffer plane, int rowStride, int pixelStride, int width,
+                              int height, short[] depth) {
+    assert (depth.length >= width * height);
+    final ByteBuffer le = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    le.clear();
+    if (pixelStride == 2 && rowStride % 2 == 0) {
+      final ShortBuffer samples = le.asShortBuffer();
+      for (int y = 0; y < height; ++y) {
+        samples.position(y * rowStride / 2);
+        samples.get(depth, y * width, width);
+      }
+    } else {
+      int i = 0;
+      for (int y = 0; y < height; ++y) {
+        int offset = y * rowStride;
+        for (int x = 0; x < width; ++x) {
+          depth[i++] = le.getShort(offset);
+          offset += pixelStride;
+        }
+      }
+    }
+    for (int i = 0; i < width * height; ++i) {
+      depth[i] = (short) ((depth[i] & 0xffff) >>> P010_SHIFT);
+    }
+  }
+
+  /**
+   * Write decoded depth to a P010 luma plane, the reverse of
+   * {@link #readP010(ByteBuffer, int, int, int, int, short[])}.
+   *
+   * @param depth width * height 10-bit depth samples.
+   * @param plane plane buffer, written from index 0. Position and limit are not changed.
+   * @param rowStride row stride in bytes.
+   * @param pixelStride pixel stride in bytes.
+   */
+  public static void writeP010(short[] depth, int width, int height, ByteBuffer plane,
+                               int rowStride, int pixelStride) {
+    assert (depth.length >= width * height);
+    final ByteBuffer le = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    le.clear();
+    int i = 0;
+    for (int y = 0; y < height; ++y) {
+      int offset = y * rowStride;
+      for (int x = 0; x < width; ++x) {
+        le.putShort(offset, (short) (depth[i++] << P010_SHIFT));
+        offset += pixelStride;
+      }
+    }
+  }
+
+  /**
+   * Encode a depth frame.
+   *
+   * @param depth unsigned 16-bit depth samples, 0 means invalid depth.
+   * @param width frame width.
+   * @param height frame height.
+   * @param out the encoded frame is written at its position, and the position is advanced.
+   *     The remaining space should be at least {@link #maxEncodedSize(int, int)}.
+   * @return encoded frame size in bytes.
+   * @apiNote encode() reuses internal buffers, it should not be called concurrently.
+   */
+  public int encode(short[] depth, int width, int height, ByteBuffer out) {
+    assert (depth.length >= width * height);
+    final int stripeCount = Math.min(DEFAULT_STRIPE_COUNT, Math.max(1, height));
+    final int maxStripeWords = maxStripeWords(width, height, stripeCount);
+    if (stripeWords.length < stripeCount || stripeWords[0].length < maxStripeWords) {
+      stripeWords = new int[stripeCount][maxStripeWords];
+    }
+
+    runStripes(stripeCount, stripe -> {
+      int[] range = stripeRows(height, stripeCount, stripe);
+      stripeWordCounts[stripe] = encodeStripe(depth, range[0] * width, range[1] * width,
+          stripeWords[stripe]);
+    });
+
+    final ByteBuffer le = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    final int start = out.position();
+    int pos = start;
+    le.putInt(pos, MAGIC);
+    le.putInt(pos + 4, width);
+    le.putInt(pos + 8, height);
+    le.putInt(pos + 12, stripeCount);
+    pos += HEADER_INTS * 4;
+    for (int stripe = 0; stripe < stripeCount; ++stripe) {
+      le.putInt(pos, stripeWordCounts[stripe] * 4);
+      pos += 4;
+    }
+    for (int stripe = 0; stripe < stripeCount; ++stripe) {
+      int[] words = stripeWords[stripe];
+      for (int i = 0; i < stripeWordCounts[stripe]; ++i) {
+        le.putInt(pos, words[i]);
+        pos += 4;
+      }
+    }
+    out.position(pos);
+    return pos - start;
+  }
+
+  /**
+   * Decode a depth frame.
+   *
+   * @param frame encoded frame between position and limit. Position is not changed.
+   * @param depth output of width * height unsigned 16-bit depth samples.
+   */
+  public void decode(ByteBuffer frame, short[] depth) {
+    checkMagic(frame);
+    final ByteBuffer le = frame.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    final int start = frame.position();
+    final int width = le.getInt(start + 4);
+    final int height = le.getInt(start + 8);
+    final int stripeCount = le.getInt(start + 12);
+    if (width <= 0 || height <= 0 || stripeCount <= 0 || stripeCount > height) {
+      throw new IllegalArgumentException("invalid RVL header " + width + "x" + height
+          + ", stripes " + stripeCount);
+    }
+    if (depth.length < width * height) {
+      throw new IllegalArgumentException("output too small for " + width + "x" + height);
+    }
+    final int[] offsets = new int[stripeCount + 1];
+    offsets[0] = start + (HEADER_INTS + stripeCount) * 4;
+    for (int stripe = 0; stripe < stripeCount; ++stripe) {
+      offsets[stripe + 1] = offsets[stripe] + le.getInt(start + (HEADER_INTS + stripe) * 4);
+    }
+    if (offsets[stripeCount] > frame.limit()) {
+      throw new IllegalArgumentException("truncated RVL frame");
+    }
+
+    runStripes(stripeCount, stripe -> {
+      int[] range = stripeRows(height, stripeCount, stripe);
+      decodeStripe(le, offsets[stripe], offsets[stripe + 1], depth,
+          range[0] * width, range[1] * width);
+    });
+  }
+
+  private interface StripeTask {
+    void run(int stripe);
+  }
+
+  private void runStripes(int stripeCount, StripeTask task) {
+    if (executor == null || stripeCount == 1) {
+      for (int stripe = 0; stripe < stripeCount; ++stripe) {
+        task.run(stripe);
+      }
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<>(stripeCount);
+    for (int stripe = 1; stripe < stripeCount; ++stripe) {
+      final int s = stripe;
+      futures.add(executor.submit(() -> task.run(s)));
+    }
+    task.run(0);
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  // returns [firstRow, endRow) of the stripe
+  private static int[] stripeRows(int height, int stripeCount, int stripe) {
+    return new int[] {
+        (int) ((long) height * stripe / stripeCount),
+        (int) ((long) height * (stripe + 1) / stripeCount)};
+  }
+
+  private static int maxStripeWords(int width, int height, int stripeCount) {
+    int maxRows = (height + stripeCount - 1) / stripeCount;
+    // at most 8 nibbles per pixel plus 2 for the last runs, and 8 nibbles per word
+    return maxRows * width + 1;
+  }
+
+  private static final class NibbleWriter {
+    final int[] words;
+    int wordCount;
+    int word;
+    int nibbles;
+
+    NibbleWriter(int[] words) {
+      this.words = words;
+    }
+
+    void writeVle(int value) {
+      do {
+        int nibble = value & 0x7;
+        value >>>= 3;
+        if (value != 0) {
+          nibble |= 0x8;
+        }
+        word = (word << 4) | nibble;
+        if (++nibbles == 8) {
+          words[wordCount++] = word;
+          nibbles = 0;
+          word = 0;
+        }
+      } while (value != 0);
+    }
+
+    int finish() {
+      if (nibbles != 0) {
+        words[wordCount++] = word << (4 * (8 - nibbles));
+      }
+      return wordCount;
+    }
+  }
+
+  private static int encodeStripe(short[] depth, int begin, int end, int[] words) {
+    NibbleWriter writer = new NibbleWriter(words);
+    int previous = 0;
+    int i = begin;
+    while (i < end) {
+      int zeros = 0;
+      while (i < end && depth[i] == 0) {
+        ++zeros;
+        ++i;
+      }
+      writer.writeVle(zeros);
+      int nonzeroStart = i;
+      while (i < end && depth[i] != 0) {
+        ++i;
+      }
+      writer.writeVle(i - nonzeroStart);
+      for (int j = nonzeroStart; j < i; ++j) {
+        int current = depth[j] & 0xffff;
+        int delta = current - previous;
+        writer.writeVle((delta << 1) ^ (delta >> 31));
+        previous = current;
+      }
+    }
+    return writer.finish();
+  }
+
+  private static final class NibbleReader {
+    final ByteBuffer buf;
+    int pos;
+    final int end;
+    int word;
+    int nibbles;
+
+    NibbleReader(ByteBuffer buf, int pos, int end) {
+      this.buf = buf;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    int readVle() {
+      int value = 0;
+      int shift = 0;
+      int nibble;
+      do {
+        if (nibbles == 0) {
+          if (pos >= end) {
+            throw new IllegalArgumentException("corrupted RVL stripe");
+          }
+          word = buf.getInt(pos);
+          pos += 4;
+          nibbles = 8;
+        }
+        nibble = word >>> 28;
+        word <<= 4;
+        --nibbles;
+        value |= (nibble & 0x7) << shift;
+        shift += 3;
+      } while ((nibble & 0x8) != 0 && shift < 32);
+      return value;
+    }
+  }
+
+  private static void decodeStripe(ByteBuffer le, int from, int to, short[] depth,
+                                   int begin, int end) {
+    NibbleReader reader = new NibbleReader(le, from, to);
+    int previous = 0;
+    int i = begin;
+    while (i < end) {
+      int zeros = reader.readVle();
+      int nonzeros = reader.readVle();
+      if (zeros < 0 || nonzeros < 0 || (long) zeros + nonzeros > end - i) {
+        throw new IllegalArgumentException("corrupted RVL stripe");
+      }
+      for (int j = 0; j < zeros; ++j) {
+        depth[i++] = 0;
+      }
+      for (int j = 0; j < nonzeros; ++j) {
+        int zigzag = reader.readVle();
+        int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+        previous += delta;
+        depth[i++] = (short) previous;
+      }
+    }
+  }
+}
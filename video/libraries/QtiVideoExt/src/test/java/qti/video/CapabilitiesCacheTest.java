@@ -0,0 +1,235 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * {@link CapabilitiesCache} with fake loaders and snapshots in a temporary directory.
+ */
+public class CapabilitiesCacheTest {
+  private static final CapabilitiesCache.Key KEY =
+      new CapabilitiesCache.Key("c2.qti.hevc.encoder", "video/hevc", "build/1");
+
+  // one parameter of every supported values type
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  static Map<String, SupportedValues> sampleRanges() {
+    Map<String, SupportedValues> ranges = new HashMap<>();
+    ranges.put("vendor.qti-ext-enc-roiinfo.type", new SupportedValues(SupportedValues.Type.RANGE,
+        SupportedValues.DataType.INTEGER, new ValueRange<>(0, 51, 1, 1, 1), null));
+    ranges.put("vendor.qti-ext-enc-ltr.mark-frame", new SupportedValues(
+        SupportedValues.Type.RANGE, SupportedValues.DataType.LONG,
+        new ValueRange<>(0L, Long.MAX_VALUE, 1L, 1L, 1L), null));
+    ranges.put("vendor.qti-ext-enc-frame-rate.value", new SupportedValues(
+        SupportedValues.Type.RANGE, SupportedValues.DataType.FLOAT,
+        new ValueRange<>(1.f, 240.f, 0.5f, 1.f, 1.f), null));
+    ranges.put("coded.pl.profile", new SupportedValues(SupportedValues.Type.VALUES,
+        SupportedValues.DataType.INTEGER, null, Arrays.asList(1, 2, 4096, 8192)));
+    ranges.put("raw.flags", new SupportedValues(SupportedValues.Type.FLAGS,
+        SupportedValues.DataType.INTEGER, null, Arrays.asList(1, 2, 4)));
+    ranges.put("vendor.qti-ext-enc-info.string", new SupportedValues(SupportedValues.Type.ANY,
+        SupportedValues.DataType.STRING, null, null));
+    ranges.put("coded.vui.empty", new SupportedValues(SupportedValues.Type.EMPTY,
+        SupportedValues.DataType.NULL, null, null));
+    return ranges;
+  }
+
+  static void assertSameRanges(Map<String, SupportedValues> expected,
+                               Map<String, SupportedValues> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String name : expected.keySet()) {
+      SupportedValues<?> e = expected.get(name);
+      SupportedValues<?> a = actual.get(name);
+      assertEquals(name, e.getType(), a.getType());
+      assertEquals(name, e.getDataType(), a.getDataType());
+      if (e.getRange() == null) {
+        assertNull(name, a.getRange());
+      } else {
+        assertEquals(name, e.getRange().getMin(), a.getRange().getMin());
+        assertEquals(name, e.getRange().getMax(), a.getRange().getMax());
+        assertEquals(name, e.getRange().getStep(), a.getRange().getStep());
+        assertEquals(name, e.getRange().getNum(), a.getRange().getNum());
+        assertEquals(name, e.getRange().getDenom(), a.getRange().getDenom());
+      }
+      assertEquals(name, e.getValues(), a.getValues());
+      assertEquals(name, e.getFlags(), a.getFlags());
+    }
+  }
+
+  private static File createTempDirectory() throws IOException {
+    File directory = Files.createTempDirectory("caps").toFile();
+    directory.deleteOnExit();
+    return directory;
+  }
+
+  @Test
+  public void concurrentQueries_loadedOnce() throws Exception {
+    CapabilitiesCache cache = new CapabilitiesCache();
+    AtomicInteger loads = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Map<String, SupportedValues>>> results = new ArrayList<>();
+    for (int i = 0; i < 16; ++i) {
+      results.add(executor.submit(() -> cache.get(KEY, () -> {
+        loads.incrementAndGet();
+        try {
+          // like creating and configuring a codec
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return sampleRanges();
+      })));
+    }
+    Map<String, SupportedValues> first = results.get(0).get();
+    for (Future<Map<String, SupportedValues>> result : results) {
+      assertSame(first, result.get());
+    }
+    executor.shutdown();
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getLoadCount());
+    assertSameRanges(sampleRanges(), first);
+
+    // cached queries are cheap
+    final int queries = 100000;
+    long startNs = System.nanoTime();
+    for (int i = 0; i < queries; ++i) {
+      cache.get(new CapabilitiesCache.Key("c2.qti.hevc.encoder", "video/hevc", "build/1"),
+          () -> null);
+    }
+    long meanNs = (System.nanoTime() - startNs) / queries;
+    System.out.println("[capabilities cache] mean cached query ns: " + meanNs);
+    assertTrue(meanNs < 1000000);
+  }
+
+  @Test
+  public void failedLoad_notCached() {
+    CapabilitiesCache cache = new CapabilitiesCache();
+    assertNull(cache.get(KEY, () -> null));
+    assertSameRanges(sampleRanges(), cache.get(KEY, CapabilitiesCacheTest::sampleRanges));
+    assertEquals(1, cache.getLoadCount());
+  }
+
+  @Test
+  public void snapshot_loadedByAnotherProcess() throws IOException {
+    File directory = createTempDirectory();
+    CapabilitiesCache cache = new CapabilitiesCache();
+    cache.setSnapshotDirectory(directory);
+    cache.get(KEY, CapabilitiesCacheTest::sampleRanges);
+    File snapshot = new File(directory, KEY.getSnapshotFileName());
+    snapshot.deleteOnExit();
+    assertTrue(snapshot.isFile());
+
+    // a new process
+    CapabilitiesCache nextCache = new CapabilitiesCache();
+    nextCache.setSnapshotDirectory(directory);
+    Map<String, SupportedValues> ranges = nextCache.get(KEY, () -> {
+      throw new AssertionError("loaded instead of the snapshot");
+    });
+    assertSameRanges(sampleRanges(), ranges);
+    assertEquals(1, nextCache.getSnapshotLoadCount());
+    assertEquals(0, nextCache.getLoadCount());
+  }
+
+  @Test
+  public void snapshotOfOtherBuild_loadedAgain() throws IOException {
+    File directory = createTempDirectory();
+    CapabilitiesCache cache = new CapabilitiesCache();
+    cache.setSnapshotDirectory(directory);
+    cache.get(KEY, CapabilitiesCacheTest::sampleRanges);
+    new File(directory, KEY.getSnapshotFileName()).deleteOnExit();
+
+    // after a system update
+    CapabilitiesCache.Key updatedKey =
+        new CapabilitiesCache.Key(KEY.canonicalName, KEY.mime, "build/2");
+    assertEquals(KEY.getSnapshotFileName(), updatedKey.getSnapshotFileName());
+    CapabilitiesCache nextCache = new CapabilitiesCache();
+    nextCache.setSnapshotDirectory(directory);
+    Map<String, SupportedValues> updated = sampleRanges();
+    updated.remove("raw.flags");
+    assertSameRanges(updated, nextCache.get(updatedKey, () -> updated));
+    assertEquals(0, nextCache.getSnapshotLoadCount());
+
+    // the snapshot was replaced
+    CapabilitiesCache lastCache = new CapabilitiesCache();
+    lastCache.setSnapshotDirectory(directory);
+    assertSameRanges(updated, lastCache.get(updatedKey, () -> null));
+    assertEquals(1, lastCache.getSnapshotLoadCount());
+  }
+
+  @Test
+  public void snapshotNotMatchingFingerprint_loadedAgain() throws IOException {
+    File directory = createTempDirectory();
+    CapabilitiesCache.Key key = new CapabilitiesCache.Key(KEY.canonicalName, KEY.mime,
+        KEY.fingerprint, CapabilitiesFingerprint.of(sampleRanges()));
+    CapabilitiesCache cache = new CapabilitiesCache();
+    cache.setSnapshotDirectory(directory);
+    cache.get(key, CapabilitiesCacheTest::sampleRanges);
+    new File(directory, key.getSnapshotFileName()).deleteOnExit();
+
+    // the same fingerprint, the snapshot is loaded
+    CapabilitiesCache sameCache = new CapabilitiesCache();
+    sameCache.setSnapshotDirectory(directory);
+    assertSameRanges(sampleRanges(), sameCache.get(key, () -> null));
+    assertEquals(1, sameCache.getSnapshotLoadCount());
+
+    // after an update of the asset table, the same build
+    Map<String, SupportedValues> updated = sampleRanges();
+    updated.remove("raw.flags");
+    CapabilitiesCache.Key updatedKey = new CapabilitiesCache.Key(KEY.canonicalName, KEY.mime,
+        KEY.fingerprint, CapabilitiesFingerprint.of(updated));
+    CapabilitiesCache nextCache = new CapabilitiesCache();
+    nextCache.setSnapshotDirectory(directory);
+    assertSameRanges(updated, nextCache.get(updatedKey, () -> updated));
+    assertEquals(0, nextCache.getSnapshotLoadCount());
+    assertEquals(1, nextCache.getLoadCount());
+
+    // the snapshot was replaced
+    CapabilitiesCache lastCache = new CapabilitiesCache();
+    lastCache.setSnapshotDirectory(directory);
+    assertSameRanges(updated, lastCache.get(updatedKey, () -> null));
+    assertEquals(1, lastCache.getSnapshotLoadCount());
+  }
+
+  @Test
+  public void truncatedSnapshot_loadedAgain() throws IOException {
+    File directory = createTempDirectory();
+    CapabilitiesCache cache = new CapabilitiesCache();
+    cache.setSnapshotDirectory(directory);
+    cache.get(KEY, CapabilitiesCacheTest::sampleRanges);
+    File snapshot = new File(directory, KEY.getSnapshotFileName());
+    snapshot.deleteOnExit();
+
+    byte[] bytes = Files.readAllBytes(snapshot.toPath());
+    Files.write(snapshot.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+
+    CapabilitiesCache nextCache = new CapabilitiesCache();
+    nextCache.setSnapshotDirectory(directory);
+    assertSameRanges(sampleRanges(), nextCache.get(KEY, CapabilitiesCacheTest::sampleRanges));
+    assertEquals(0, nextCache.getSnapshotLoadCount());
+    assertEquals(1, nextCache.getLoadCount());
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * {@link CapabilitiesFingerprint} and {@link CapabilitiesDiff} with the asset file of the module.
+ */
+public class CapabilitiesDiffTest {
+  private static final String HEVC_ENCODER = "c2.qti.hevc.encoder";
+
+  private static Map<String, Map<String, SupportedValues>> readAsset() throws IOException {
+    return CapabilitiesDiff.read(CapabilitiesJsonReaderTest.readAsset(), "");
+  }
+
+  @Test
+  public void fingerprint_sameForAllSources() throws IOException {
+    byte[] json = CapabilitiesJsonReaderTest.readAsset();
+    Map<String, Map<String, SupportedValues>> codecs = readAsset();
+    CapabilitiesTable table = CapabilitiesTable.wrap(ByteBuffer.wrap(
+        CapabilitiesTable.compile(json)));
+    for (Map.Entry<String, Map<String, SupportedValues>> codec : codecs.entrySet()) {
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      table.readParams(codec.getKey(), ranges);
+      assertEquals(codec.getKey(), CapabilitiesFingerprint.of(codec.getValue()),
+          CapabilitiesFingerprint.of(ranges));
+    }
+    // the hash is stable across processes and JVMs
+    assertEquals("0c720e7d89b6df3a", CapabilitiesFingerprint.of(codecs.get(HEVC_ENCODER)));
+  }
+
+  @Test
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void fingerprint_orderAndValues() {
+    Map<String, SupportedValues> ranges = CapabilitiesCacheTest.sampleRanges();
+    final String fingerprint = CapabilitiesFingerprint.of(ranges);
+
+    // another map and value order
+    Map<String, SupportedValues> reordered = new LinkedHashMap<>();
+    for (String name : new TreeSet<>(ranges.keySet()).descendingSet()) {
+      reordered.put(name, ranges.get(name));
+    }
+    reordered.put("coded.pl.profile", new SupportedValues(SupportedValues.Type.VALUES,
+        SupportedValues.DataType.INTEGER, null, Arrays.asList(8192, 4096, 2, 1)));
+    assertEquals(fingerprint, CapabilitiesFingerprint.of(reordered));
+
+    // a step, a data type, a param name
+    reordered.put("vendor.qti-ext-enc-roiinfo.type", new SupportedValues(
+        SupportedValues.Type.RANGE, SupportedValues.DataType.INTEGER,
+        new ValueRange<>(0, 51, 2, 1, 1), null));
+    assertNotEquals(fingerprint, CapabilitiesFingerprint.of(reordered));
+    Map<String, SupportedValues> changed = CapabilitiesCacheTest.sampleRanges();
+    changed.put("vendor.qti-ext-enc-info.string", new SupportedValues(SupportedValues.Type.ANY,
+        SupportedValues.DataType.BYTE_BUFFER, null, null));
+    assertNotEquals(fingerprint, CapabilitiesFingerprint.of(changed));
+    changed = CapabilitiesCacheTest.sampleRanges();
+    changed.put("raw.flag", changed.remove("raw.flags"));
+    assertNotEquals(fingerprint, CapabilitiesFingerprint.of(changed));
+
+    assertEquals("VALUES INTEGER {1, 2, 4096, 8192}",
+        CapabilitiesFingerprint.describe(reordered.get("coded.pl.profile")));
+    assertEquals("RANGE FLOAT [1.0, 240.0, 0.5, 1.0, 1.0]",
+        CapabilitiesFingerprint.describe(ranges.get("vendor.qti-ext-enc-frame-rate.value")));
+    assertEquals("ANY STRING",
+        CapabilitiesFingerprint.describe(ranges.get("vendor.qti-ext-enc-info.string")));
+  }
+
+  @Test
+  public void diff_sameCodecs() throws IOException {
+    StringBuilder out = new StringBuilder();
+    assertEquals(0, CapabilitiesDiff.diff(readAsset(), readAsset(), out));
+    String[] lines = out.toString().split("\n");
+    assertEquals(18, lines.length);
+    for (String line : lines) {
+      assertTrue(line, line.startsWith("= c2.qti."));
+    }
+  }
+
+  @Test
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void diff_changedCodecsAndParams() throws IOException {
+    Map<String, Map<String, SupportedValues>> to = readAsset();
+    to.remove("c2.qti.vp9.decoder.secure");
+    to.put("c2.qti.apv.encoder", new HashMap<>());
+    Map<String, SupportedValues> hevc = to.get(HEVC_ENCODER);
+    hevc.remove("vendor.qti-ext-enc-vbvdelay.value");
+    hevc.put("vendor.qti-ext-enc-initial-qp.qp-i", new SupportedValues(SupportedValues.Type.RANGE,
+        SupportedValues.DataType.INTEGER, new ValueRange<>(0, 51, 1, 1, 1), null));
+    hevc.put("vendor.qti-ext-enc-new.value", new SupportedValues(SupportedValues.Type.VALUES,
+        SupportedValues.DataType.INTEGER, null, Arrays.asList(1, 0)));
+
+    StringBuilder out = new StringBuilder();
+    assertEquals(3, CapabilitiesDiff.diff(readAsset(), to, out));
+    String diff = out.toString();
+    // codecs in name order
+    assertTrue(diff, diff.startsWith("+ c2.qti.apv.encoder "));
+    assertTrue(diff, diff.contains("\n- c2.qti.vp9.decoder.secure "));
+    assertTrue(diff, diff.contains("\n~ c2.qti.hevc.encoder "));
+    assertTrue(diff, diff.contains("\n    ~ vendor.qti-ext-enc-initial-qp.qp-i "
+        + "RANGE INTEGER [0, 100, 1, 1, 1] -> RANGE INTEGER [0, 51, 1, 1, 1]\n"
+        + "    + vendor.qti-ext-enc-new.value VALUES INTEGER {0, 1}\n"));
+    assertTrue(diff, diff.contains("\n    - vendor.qti-ext-enc-vbvdelay.value "
+        + "RANGE INTEGER [200, 300, 100, 1, 1]\n"));
+    int changedLines = 0;
+    for (String line : diff.split("\n")) {
+      changedLines += line.startsWith("= ") ? 0 : 1;
+    }
+    // 3 codecs and 3 params
+    assertEquals(diff, 6, changedLines);
+  }
+
+  @Test
+  public void run_queryResultAgainstAssetFile() throws IOException {
+    // the object of a codec in the asset file is like the result of a capabilities query
+    byte[] json = CapabilitiesJsonReaderTest.readAsset();
+    int[] span = CapabilitiesJsonReader.indexCodecs(json).get(HEVC_ENCODER);
+    File query = File.createTempFile("query", ".json");
+    query.deleteOnExit();
+    Files.write(query.toPath(), Arrays.copyOfRange(json, span[0], span[0] + span[1]));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (PrintStream out = new PrintStream(bytes, true, "UTF-8")) {
+      // the other codecs are only in the asset file
+      assertEquals(17, CapabilitiesDiff.run(CapabilitiesJsonReaderTest.ASSET_FILE,
+          HEVC_ENCODER + "=" + query.getPath(), out));
+    }
+    String diff = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(diff, diff.contains("= " + HEVC_ENCODER + " 0c720e7d89b6df3a\n"));
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+
+/**
+ * {@link CapabilitiesJsonReader} with the asset file of the module and small documents.
+ */
+public class CapabilitiesJsonReaderTest {
+  // unit tests run in the module directory
+  static final String ASSET_FILE = "src/main/assets/QMediaCodecCapabilities_sm8550_kalama.json";
+  private static final String HEVC_ENCODER = "c2.qti.hevc.encoder";
+
+  static byte[] readAsset() throws IOException {
+    return Files.readAllBytes(Paths.get(ASSET_FILE));
+  }
+
+  /**
+   * Read the params of a codec of the asset file.
+   */
+  static Map<String, SupportedValues> readCodec(String codec) throws IOException {
+    return readCodec(readAsset(), codec);
+  }
+
+  static Map<String, SupportedValues> readCodec(byte[] json, String codec)
+      throws IOException {
+    int[] span = CapabilitiesJsonReader.indexCodecs(json).get(codec);
+    assertNotNull(codec, span);
+    Map<String, SupportedValues> ranges = new HashMap<>();
+    new CapabilitiesJsonReader(json, span[0], span[1]).readParams(ranges);
+    return ranges;
+  }
+
+  private static Map<String, SupportedValues> read(String json) throws IOException {
+    Map<String, SupportedValues> ranges = new HashMap<>();
+    new CapabilitiesJsonReader(json.getBytes(StandardCharsets.UTF_8)).readParams(ranges);
+    return ranges;
+  }
+
+  @Test
+  public void index_allCodecs() throws IOException {
+    Map<String, int[]> codecs = CapabilitiesJsonReader.indexCodecs(readAsset());
+    assertEquals(18, codecs.size());
+    assertTrue(codecs.containsKey(HEVC_ENCODER));
+    assertTrue(codecs.containsKey("c2.qti.vp9.decoder.secure"));
+  }
+
+  @Test
+  public void hevcEncoder() throws IOException {
+    Map<String, SupportedValues> ranges = readCodec(HEVC_ENCODER);
+    assertEquals(121, ranges.size());
+
+    SupportedValues<?> level = ranges.get("coded.pl.level");
+    assertEquals(SupportedValues.Type.VALUES, level.getType());
+    assertEquals(SupportedValues.DataType.INTEGER, level.getDataType());
+    assertEquals(22, level.getValues().size());
+
+    // UINT32 values above Integer.MAX_VALUE wrap like JSONArray.getInt()
+    SupportedValues<?> pixelFormat = ranges.get("raw.pixel-format.value");
+    assertTrue(pixelFormat.getValues().contains((int) 3254779904L));
+
+    SupportedValues<?> frameRate = ranges.get("coded.frame-rate.value");
+    assertEquals(SupportedValues.DataType.FLOAT, frameRate.getDataType());
+    assertEquals(1.f, frameRate.getRange().getMin());
+    assertEquals(480.f, frameRate.getRange().getMax());
+
+    SupportedValues<?> initialQp = ranges.get("vendor.qti-ext-enc-initial-qp.qp-i");
+    assertEquals(SupportedValues.Type.RANGE, initialQp.getType());
+    assertEquals(0, initialQp.getRange().getMin());
+    assertEquals(100, initialQp.getRange().getMax());
+
+    SupportedValues<?> priority = ranges.get("algo.priority.value");
+    assertEquals(Integer.MIN_VALUE, priority.getRange().getMin());
+    assertEquals(0, priority.getRange().getMax());
+  }
+
+  @Test
+  public void allCodecs_types() throws IOException {
+    byte[] json = readAsset();
+    Map<SupportedValues.Type, Integer> counts = new EnumMap<>(SupportedValues.Type.class);
+    int total = 0;
+    for (String codec : CapabilitiesJsonReader.indexCodecs(json).keySet()) {
+      for (SupportedValues<?> supportedValues : readCodec(json, codec).values()) {
+        counts.merge(supportedValues.getType(), 1, Integer::sum);
+        total++;
+      }
+    }
+    assertEquals(2158, total);
+    // ANY of unsigned integers is read as a RANGE
+    assertEquals(Integer.valueOf(1507), counts.get(SupportedValues.Type.RANGE));
+    assertEquals(Integer.valueOf(117), counts.get(SupportedValues.Type.ANY));
+    assertEquals(Integer.valueOf(377), counts.get(SupportedValues.Type.VALUES));
+    assertEquals(Integer.valueOf(157), counts.get(SupportedValues.Type.EMPTY));
+  }
+
+  @Test
+  public void escapesAndWhitespace() throws IOException {
+    Map<String, SupportedValues> ranges = read("{ \"a\\u002eb\" : { \"c\\\"d\" :\n"
+        + "  {\"note\": \"x\\\\y\\n\", \"datatype\": \"INT32\", \"valuestype\": \"RANGE\",\n"
+        + "   \"values\": [ -5 , 1.0e1, 1, 1, 1 ], \"extra\": [{}, [], null, true]} } }");
+    assertEquals(1, ranges.size());
+    SupportedValues<?> field = ranges.get("a.b.c\"d");
+    assertNotNull(field);
+    assertEquals(-5, field.getRange().getMin());
+    assertEquals(10, field.getRange().getMax());
+  }
+
+  @Test
+  public void malformed_throws() {
+    for (String json : Arrays.asList("", "{", "{\"a\": 1}", "{\"a\": {\"b\": [1, }}",
+        // unterminated
+        "{\"a\": {\"datatype\": \"INT32\", \"valuestype\": \"RANGE\", \"values\": [1, 2]}")) {
+      try {
+        read(json);
+        fail("no error for " + json);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void benchmark_oneCodec() throws IOException {
+    byte[] json = readAsset();
+    // cold: the first lookup of the process, before the reader code is warmed up
+    long startNs = System.nanoTime();
+    Map<String, SupportedValues> ranges = readCodec(json, HEVC_ENCODER);
+    final long coldNs = System.nanoTime() - startNs;
+    assertEquals(121, ranges.size());
+
+    final int iterations = 50;
+    long indexNs = Long.MAX_VALUE;
+    long oneCodecNs = Long.MAX_VALUE;
+    long allCodecsNs = Long.MAX_VALUE;
+    for (int i = 0; i < iterations; ++i) {
+      startNs = System.nanoTime();
+      Map<String, int[]> codecs = CapabilitiesJsonReader.indexCodecs(json);
+      indexNs = Math.min(indexNs, System.nanoTime() - startNs);
+
+      startNs = System.nanoTime();
+      int[] span = codecs.get(HEVC_ENCODER);
+      new CapabilitiesJsonReader(json, span[0], span[1]).readParams(new HashMap<>());
+      oneCodecNs = Math.min(oneCodecNs, System.nanoTime() - startNs);
+
+      // like building the objects of the whole file before looking up the codec
+      startNs = System.nanoTime();
+      for (int[] codec : codecs.values()) {
+        new CapabilitiesJsonReader(json, codec[0], codec[1]).readParams(new HashMap<>());
+      }
+      allCodecsNs = Math.min(allCodecsNs, System.nanoTime() - startNs);
+    }
+    // timings are only reported, they depend on the host
+    System.out.println(String.format(Locale.US,
+        "[capabilities json %d KB] cold one codec %.2f ms, warm: index %.2f ms, one codec %.2f ms,"
+            + " all codecs %.2f ms",
+        json.length / 1024, coldNs / 1e6, indexNs / 1e6, oneCodecNs / 1e6, allCodecsNs / 1e6));
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+
+/**
+ * {@link CapabilitiesTable} compiled from the asset file of the module, against the JSON path.
+ */
+public class CapabilitiesTableTest {
+  private static final String HEVC_ENCODER = "c2.qti.hevc.encoder";
+
+  @Test
+  public void roundTrip_allCodecs() throws IOException {
+    byte[] json = CapabilitiesJsonReaderTest.readAsset();
+    CapabilitiesTable table = CapabilitiesTable.wrap(ByteBuffer.wrap(
+        CapabilitiesTable.compile(json)));
+    Map<String, int[]> codecs = CapabilitiesJsonReader.indexCodecs(json);
+    assertEquals(codecs.keySet(), new HashSet<>(table.getCodecs()));
+    for (String codec : codecs.keySet()) {
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      assertTrue(codec, table.readParams(codec, ranges));
+      Map<String, SupportedValues> expected = CapabilitiesJsonReaderTest.readCodec(json, codec);
+      CapabilitiesCacheTest.assertSameRanges(expected, ranges);
+      // lookups of single params
+      Map<String, SupportedValues> params = new HashMap<>();
+      for (String param : expected.keySet()) {
+        params.put(param, table.get(codec, param));
+      }
+      CapabilitiesCacheTest.assertSameRanges(expected, params);
+    }
+  }
+
+  @Test
+  public void roundTrip_allTypes() throws IOException {
+    Map<String, SupportedValues> ranges = CapabilitiesCacheTest.sampleRanges();
+    Map<String, Map<String, SupportedValues>> codecs = new HashMap<>();
+    codecs.put(HEVC_ENCODER, ranges);
+    codecs.put("c2.qti.avc.encoder", Collections.emptyMap());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CapabilitiesTable.write(codecs, out);
+    CapabilitiesTable table = CapabilitiesTable.wrap(ByteBuffer.wrap(out.toByteArray()));
+    Map<String, SupportedValues> read = new HashMap<>();
+    assertTrue(table.readParams(HEVC_ENCODER, read));
+    CapabilitiesCacheTest.assertSameRanges(ranges, read);
+    Map<String, SupportedValues> empty = new HashMap<>();
+    assertTrue(table.readParams("c2.qti.avc.encoder", empty));
+    assertTrue(empty.isEmpty());
+  }
+
+  @Test
+  public void fingerprint_matchesParams() throws IOException {
+    byte[] json = CapabilitiesJsonReaderTest.readAsset();
+    CapabilitiesTable table = CapabilitiesTable.wrap(ByteBuffer.wrap(
+        CapabilitiesTable.compile(json)));
+    for (String codec : table.getCodecs()) {
+      Map<String, SupportedValues> ranges = new HashMap<>();
+      assertTrue(codec, table.readParams(codec, ranges));
+      assertEquals(codec, CapabilitiesFingerprint.of(ranges), table.getFingerprint(codec));
+    }
+    assertNull(table.getFingerprint("c2.qti.hevc"));
+  }
+
+  @Test
+  public void missing_null() throws IOException {
+    CapabilitiesTable table = CapabilitiesTable.wrap(ByteBuffer.wrap(
+        CapabilitiesTable.compile(CapabilitiesJsonReaderTest.readAsset())));
+    assertFalse(table.hasCodec("c2.qti.hevc"));
+    assertFalse(table.readParams("c2.qti.hevc.encoder.unknown", new HashMap<>()));
+    assertNull(table.get("c2.qti.hevc", "coded.pl.level"));
+    assertNull(table.get(HEVC_ENCODER, "coded.pl"));
+    assertNull(table.get(HEVC_ENCODER, ""));
+    assertNotNull(table.get(HEVC_ENCODER, "coded.pl.level"));
+  }
+
+  @Test
+  public void notATable_throws() {
+    byte[] table = new byte[64];
+    try {
+      CapabilitiesTable.wrap(ByteBuffer.wrap(table));
+      fail("no error for zeros");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      CapabilitiesTable.compile("{\"target\": {}}".getBytes());
+      fail("no error for no codecs");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void main_writesTables() throws IOException {
+    File directory = Files.createTempDirectory("tables").toFile();
+    directory.deleteOnExit();
+    CapabilitiesTable.main(new String[] {directory.getPath(),
+        CapabilitiesJsonReaderTest.ASSET_FILE});
+    File output = new File(directory, "QMediaCodecCapabilities_sm8550_kalama.qmct");
+    output.deleteOnExit();
+    byte[] expected = CapabilitiesTable.compile(CapabilitiesJsonReaderTest.readAsset());
+    assertArrayEquals(expected, Files.readAllBytes(output.toPath()));
+  }
+
+  @Test
+  public void benchmark_startup() throws IOException {
+    byte[] json = CapabilitiesJsonReaderTest.readAsset();
+    File file = File.createTempFile("caps", CapabilitiesTable.TABLE_SUFFIX);
+    file.deleteOnExit();
+    Files.write(file.toPath(), CapabilitiesTable.compile(json));
+    final int iterations = 50;
+    long jsonNs = Long.MAX_VALUE;
+    long tableNs = Long.MAX_VALUE;
+    long paramNs = Long.MAX_VALUE;
+    for (int i = 0; i < iterations; ++i) {
+      // process start: index the JSON and read a codec, or map the table and read a codec
+      long startNs = System.nanoTime();
+      CapabilitiesJsonReaderTest.readCodec(json, HEVC_ENCODER);
+      jsonNs = Math.min(jsonNs, System.nanoTime() - startNs);
+
+      startNs = System.nanoTime();
+      CapabilitiesTable table;
+      try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+        table = CapabilitiesTable.wrap(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+            in.length()));
+      }
+      table.readParams(HEVC_ENCODER, new HashMap<>());
+      tableNs = Math.min(tableNs, System.nanoTime() - startNs);
+
+      startNs = System.nanoTime();
+      table.get(HEVC_ENCODER, "vendor.qti-ext-enc-initial-qp.qp-i");
+      paramNs = Math.min(paramNs, System.nanoTime() - startNs);
+    }
+    System.out.println(String.format(Locale.US,
+        "[capabilities table %d KB, json %d KB] json %.3f ms, table %.3f ms, one param %.1f us",
+        file.length() / 1024, json.length / 1024, jsonNs / 1e6, tableNs / 1e6, paramNs / 1e3));
+    assertTrue(file.length() < json.length);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * {@link QpBiasMap} with small maps drawn as text.
+ */
+public class QpBiasMapTest {
+  private static int bias(QpBiasMap map, int row, int column) {
+    return (map.getMap()[row * map.getColumns() + column] & 0xFF) - QpBiasMap.NO_BIAS;
+  }
+
+  // the map as rows of '.' for no bias and '#' for a bias
+  private static String draw(QpBiasMap map) {
+    StringBuilder rows = new StringBuilder();
+    for (int row = 0; row < map.getRows(); ++row) {
+      for (int column = 0; column < map.getColumns(); ++column) {
+        rows.append(bias(map, row, column) == 0 ? '.' : '#');
+      }
+      rows.append('\n');
+    }
+    return rows.toString();
+  }
+
+  @Test
+  public void mapSize() {
+    assertEquals(120 * 68, QpBiasMap.getMapSize(1920, 1080, 16));
+    assertEquals(60 * 34, QpBiasMap.getMapSize(1920, 1080, 32));
+    assertEquals(30 * 17, QpBiasMap.getMapSize(1920, 1080, 64));
+    assertEquals(80 * 45, QpBiasMap.getMapSize(1280, 720, 16));
+    assertEquals(1, QpBiasMap.getMapSize(1, 1, 64));
+    QpBiasMap map = new QpBiasMap(1080, 1920, 64);
+    assertEquals(17, map.getColumns());
+    assertEquals(30, map.getRows());
+    assertEquals(17 * 30, map.getMap().length);
+    for (int side : new int[] {0, 8, 24, 128}) {
+      try {
+        new QpBiasMap(1920, 1080, side);
+        fail("side length " + side);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void rectsCoverTheirBlocks() {
+    QpBiasMap map = new QpBiasMap(200, 100, 32);
+    assertEquals(7, map.getColumns());
+    assertEquals(4, map.getRows());
+    map.addRect(10, 40, 33, 64, -6);
+    // clipped
+    map.addRect(96, 192, 300, 400, 200);
+    // drawn over
+    map.addRect(0, 0, 32, 64, -2);
+    // empty
+    map.addRect(50, 50, 50, 60, -9);
+    assertTrue(map.commit());
+    assertEquals(""
+        + "##.....\n"
+        + ".#.....\n"
+        + ".......\n"
+        + "......#\n", draw(map));
+    assertEquals(-2, bias(map, 0, 1));
+    assertEquals(-6, bias(map, 1, 1));
+    assertEquals(QpBiasMap.MAX_BIAS, bias(map, 3, 6));
+  }
+
+  @Test
+  public void ellipsesAndMasks() {
+    QpBiasMap map = new QpBiasMap(160, 160, 16);
+    map.addEllipse(0, 0, 160, 160, -4);
+    // smaller than a block
+    map.addEllipse(2, 150, 6, 154, -8);
+    assertTrue(map.commit());
+    assertEquals(""
+        + "...####..#\n"
+        + ".########.\n"
+        + ".########.\n"
+        + "##########\n"
+        + "##########\n"
+        + "##########\n"
+        + "##########\n"
+        + ".########.\n"
+        + ".########.\n"
+        + "...####...\n", draw(map));
+    assertEquals(-8, bias(map, 0, 9));
+
+    // a 2x2 mask, the left half salient
+    byte[] mask = {(byte) 255, 0, (byte) 128, 0};
+    assertTrue(map.addMask(mask, 2, 2, -6));
+    assertFalse(map.addMask(mask, 4, 4, -6));
+    map.commit();
+    assertEquals(-6, bias(map, 0, 0));
+    assertEquals(-6, bias(map, 4, 4));
+    assertEquals(-3, bias(map, 5, 0));
+    assertEquals(0, bias(map, 9, 5));
+  }
+
+  @Test
+  public void doubleBufferedAndSmoothed() {
+    QpBiasMap map = new QpBiasMap(64, 64, 16);
+    // nothing to send
+    assertFalse(map.commit());
+    map.addRect(0, 0, 16, 16, -8);
+    assertTrue(map.commit());
+    byte[] first = map.getMap();
+    byte[] copy = first.clone();
+    // drawn into the other map
+    map.addRect(0, 0, 64, 64, -2);
+    assertArrayEquals(copy, first);
+    map.clear();
+    map.addRect(0, 0, 16, 16, -8);
+    assertFalse(map.commit());
+    assertNotSame(first, map.getMap());
+    assertArrayEquals(copy, map.getMap());
+    map.addRect(0, 0, 16, 16, -8);
+    map.commit();
+    assertSame(first, map.getMap());
+
+    // halfway to the new bias with every frame
+    assertTrue(map.setSmoothing(0.5f));
+    assertFalse(map.setSmoothing(0.f));
+    assertFalse(map.setSmoothing(1.5f));
+    assertTrue(map.commit());
+    assertEquals(-4, bias(map, 0, 0));
+    map.addRect(0, 0, 16, 16, -8);
+    map.commit();
+    assertEquals(-6, bias(map, 0, 0));
+    for (int i = 0; i < 10; ++i) {
+      map.addRect(0, 0, 16, 16, -8);
+      map.commit();
+    }
+    assertEquals(-8, bias(map, 0, 0));
+    assertEquals(0, bias(map, 0, 1));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link RoiRectEncoder} with small and generated sets of boxes.
+ */
+public class RoiRectEncoderTest {
+  // top, left, bottom, right, qp of the rects of payloads
+  private static List<int[]> parse(String... payloads) {
+    List<int[]> rects = new ArrayList<>();
+    for (String payload : payloads) {
+      for (String rect : payload.split(";")) {
+        if (rect.isEmpty()) {
+          continue;
+        }
+        String[] parts = rect.split("[,=]|(?<=\\d)-");
+        assertEquals(rect, 5, parts.length);
+        int[] r = new int[5];
+        for (int i = 0; i < 5; ++i) {
+          r[i] = Integer.parseInt(parts[i]);
+        }
+        rects.add(r);
+      }
+    }
+    return rects;
+  }
+
+  // top, left, bottom, right, qp of faces around a few centers, like the boxes of a tracker
+  private static int[] faces(Random random, int boxCount) {
+    int[] boxes = new int[boxCount * 5];
+    for (int i = 0; i < boxCount; ++i) {
+      final int center = i % 16;
+      final int y = 120 * (center / 4) + random.nextInt(40);
+      final int x = 200 * (center % 4) + random.nextInt(60);
+      final int size = 16 + random.nextInt(48);
+      boxes[i * 5] = y;
+      boxes[i * 5 + 1] = x;
+      boxes[i * 5 + 2] = y + size;
+      boxes[i * 5 + 3] = x + size;
+      boxes[i * 5 + 4] = i % 3 == 0 ? -8 : -4;
+    }
+    return boxes;
+  }
+
+  private static void addRects(RoiRectEncoder encoder, int[] boxes) {
+    encoder.clear();
+    for (int i = 0; i < boxes.length; i += 5) {
+      encoder.addRect(boxes[i], boxes[i + 1], boxes[i + 2], boxes[i + 3], boxes[i + 4]);
+    }
+  }
+
+  @Test
+  public void fewRects_notMerged() {
+    RoiRectEncoder encoder = new RoiRectEncoder(8);
+    assertTrue(encoder.addRect(1, 1, 2, 2, -3));
+    assertTrue(encoder.addRect(3, 3, 4, 4, -3));
+    assertTrue(encoder.addRect(5, 5, 6, 6, -6));
+    assertFalse(encoder.addRect(7, 7, 7, 8, -6));
+    assertFalse(encoder.addRect(7, 7, 8, 8, 0));
+    assertEquals(3, encoder.encode(1000L));
+    // in QP order
+    assertEquals("5,5-6,6=-6;1,1-2,2=-3;3,3-4,4=-3;", encoder.getRectInfo());
+    assertEquals("", encoder.getRectInfoExt());
+    assertEquals(1000L, encoder.getTimestampUs());
+
+    encoder.clear();
+    assertEquals(0, encoder.encode(2000L));
+    assertEquals("", encoder.getRectInfo());
+  }
+
+  @Test
+  public void manyRects_mergedIntoTenCoveringRects() {
+    RoiRectEncoder encoder = new RoiRectEncoder(16);
+    // grows the arrays
+    int[] boxes = faces(new Random(1), 150);
+    addRects(encoder, boxes);
+    assertEquals(150, encoder.getBoxCount());
+    assertEquals(RoiRectEncoder.MAX_RECTS, encoder.encode(0L));
+    List<int[]> main = parse(encoder.getRectInfo());
+    List<int[]> rects = parse(encoder.getRectInfo(), encoder.getRectInfoExt());
+    assertEquals(RoiRectEncoder.RECTS_PER_KEY, main.size());
+    assertEquals(RoiRectEncoder.MAX_RECTS, rects.size());
+    for (int i = 1; i < rects.size(); ++i) {
+      assertTrue(rects.get(i - 1)[4] <= rects.get(i)[4]);
+    }
+    // every box is in a rect
+    for (int i = 0; i < boxes.length; i += 5) {
+      boolean covered = false;
+      for (int[] rect : rects) {
+        covered |= rect[0] <= boxes[i] && rect[1] <= boxes[i + 1] && rect[2] >= boxes[i + 2]
+            && rect[3] >= boxes[i + 3];
+      }
+      assertTrue("box " + i / 5, covered);
+    }
+  }
+
+  @Test
+  public void cheapestMergesFirst() {
+    RoiRectEncoder encoder = new RoiRectEncoder(16);
+    // 7 boxes far apart, 2 adjacent boxes of the same bias and 2 of different biases
+    for (int i = 0; i < 7; ++i) {
+      encoder.addRect(0, 1000 * i, 100, 1000 * i + 100, -5);
+    }
+    encoder.addRect(500, 0, 600, 100, -5);
+    encoder.addRect(600, 0, 700, 100, -5);
+    encoder.addRect(500, 2000, 600, 2100, -2);
+    encoder.addRect(600, 2000, 700, 2100, -8);
+    assertEquals(RoiRectEncoder.MAX_RECTS, encoder.encode(0L));
+    List<int[]> rects = parse(encoder.getRectInfo(), encoder.getRectInfoExt());
+    boolean mergedSameBias = false;
+    for (int[] rect : rects) {
+      mergedSameBias |= rect[0] == 500 && rect[1] == 0 && rect[2] == 700 && rect[3] == 100
+          && rect[4] == -5;
+      assertFalse(rect[0] == 500 && rect[1] == 2000 && rect[2] == 700);
+    }
+    assertTrue(mergedSameBias);
+
+    // one more merge: the boxes of different biases, to their mean bias
+    encoder.addRect(5000, 0, 5100, 100, -5);
+    encoder.encode(0L);
+    rects = parse(encoder.getRectInfo(), encoder.getRectInfoExt());
+    boolean mergedBiases = false;
+    for (int[] rect : rects) {
+      mergedBiases |= rect[0] == 500 && rect[1] == 2000 && rect[2] == 700 && rect[4] == -5;
+    }
+    assertTrue(mergedBiases);
+  }
+
+  @Test
+  public void samePayload_sameString() {
+    RoiRectEncoder encoder = new RoiRectEncoder(32);
+    int[] boxes = faces(new Random(2), 20);
+    addRects(encoder, boxes);
+    encoder.encode(0L);
+    String rectInfo = encoder.getRectInfo();
+    String rectInfoExt = encoder.getRectInfoExt();
+    addRects(encoder, boxes);
+    encoder.encode(16666L);
+    assertSame(rectInfo, encoder.getRectInfo());
+    assertSame(rectInfoExt, encoder.getRectInfoExt());
+  }
+
+  @Test
+  public void benchmark_encode() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    for (int boxCount : new int[] {10, 100, 200}) {
+      // the boxes of a few frames, replayed
+      final int frameCount = 16;
+      int[][] frames = new int[frameCount][];
+      Random random = new Random(3);
+      for (int f = 0; f < frameCount; ++f) {
+        frames[f] = faces(random, boxCount);
+      }
+      RoiRectEncoder encoder = new RoiRectEncoder(boxCount);
+      final int iterations = 2000;
+      long bestNs = Long.MAX_VALUE;
+      long allocatedBytes = 0;
+      for (int round = 0; round < 5; ++round) {
+        final long startBytes = threads.getCurrentThreadAllocatedBytes();
+        final long startNs = System.nanoTime();
+        for (int n = 0; n < iterations; ++n) {
+          addRects(encoder, frames[n % frameCount]);
+          encoder.encode(n * 16666L);
+        }
+        bestNs = Math.min(bestNs, System.nanoTime() - startNs);
+        allocatedBytes = threads.getCurrentThreadAllocatedBytes() - startBytes;
+      }
+      System.out.println(String.format(Locale.US,
+          "[roi rects] %d boxes -> %d rects in %.1f us/frame, %.2f bytes/frame", boxCount,
+          encoder.getRectCount(), bestNs / 1e3 / iterations, (double) allocatedBytes / iterations));
+      assertTrue(allocatedBytes < iterations);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * {@link SupportedValues#contains(long)} and {@link SupportedValues#contains(float)} against
+ * enumerated series and the asset file of the module.
+ */
+public class SupportedValuesTest {
+  private static SupportedValues<Integer> intRange(int min, int max, int step, int num,
+                                                   int denom) {
+    return new SupportedValues<>(SupportedValues.Type.RANGE, SupportedValues.DataType.INTEGER,
+        new ValueRange<>(min, max, step, num, denom), null);
+  }
+
+  private static SupportedValues<Float> floatRange(float min, float max, float step, float num,
+                                                   float denom) {
+    return new SupportedValues<>(SupportedValues.Type.RANGE, SupportedValues.DataType.FLOAT,
+        new ValueRange<>(min, max, step, num, denom), null);
+  }
+
+  // v[0] = min, v[i] = v[i-1] * num / denom + step while increasing and not above max
+  private static Set<Long> enumerate(long min, long max, long step, long num, long denom) {
+    Set<Long> series = new HashSet<>();
+    long v = min;
+    while (v <= max && series.add(v)) {
+      long next = num == denom ? v + step : v * num / denom + step;
+      if (next <= v) {
+        break;
+      }
+      v = next;
+    }
+    return series;
+  }
+
+  @Test
+  public void intRange_matchesEnumeration() {
+    final int[][] ranges = {
+        {0, 100, 1, 1, 1},      // all values
+        {10, 20, 2, 1, 1},      // arithmetic
+        {-7, 50, 5, 1, 1},
+        {1, 4096, 0, 2, 1},     // geometric
+        {1, 1000, 1, 2, 1},     // multiply-accumulate
+        {3, 500, 2, 3, 2},
+    };
+    for (int[] r : ranges) {
+      SupportedValues<Integer> values = intRange(r[0], r[1], r[2], r[3], r[4]);
+      Set<Long> series = enumerate(r[0], r[1], r[2], r[3], r[4]);
+      for (long v = r[0] - 3; v <= r[1] + 3; ++v) {
+        assertEquals(Arrays.toString(r) + " " + v, series.contains(v), values.contains(v));
+      }
+    }
+  }
+
+  @Test
+  public void intRange_continuousAndExtremes() {
+    SupportedValues<Integer> continuous = intRange(-5, 5, 0, 1, 1);
+    assertTrue(continuous.contains(-5));
+    assertTrue(continuous.contains(5));
+    assertFalse(continuous.contains(6));
+
+    SupportedValues<Integer> all = intRange(Integer.MIN_VALUE, Integer.MAX_VALUE, 3, 1, 1);
+    assertTrue(all.contains(Integer.MIN_VALUE + 3));
+    assertFalse(all.contains(Integer.MIN_VALUE + 4));
+    // not a 32-bit value
+    assertFalse(all.contains(1L << 33));
+
+    SupportedValues<Long> longs = new SupportedValues<>(SupportedValues.Type.RANGE,
+        SupportedValues.DataType.LONG,
+        new ValueRange<>(Long.MIN_VALUE, Long.MAX_VALUE, 3L, 1L, 1L), null);
+    assertTrue(longs.contains(Long.MIN_VALUE + 3));
+    assertFalse(longs.contains(Long.MIN_VALUE + 4));
+    assertFalse(longs.contains(1.f));
+
+    // doubles until the multiplication would overflow
+    SupportedValues<Long> geometric = new SupportedValues<>(SupportedValues.Type.RANGE,
+        SupportedValues.DataType.LONG, new ValueRange<>(1L, Long.MAX_VALUE, 0L, 2L, 1L), null);
+    assertTrue(geometric.contains(1L << 62));
+    assertFalse(geometric.contains(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void floatRange() {
+    SupportedValues<Float> frameRate = floatRange(1.f, 480.f, 1.f, 1.f, 1.f);
+    assertTrue(frameRate.contains(30.f));
+    assertFalse(frameRate.contains(29.97f));
+    assertFalse(frameRate.contains(481.f));
+    assertFalse(frameRate.contains(Float.NaN));
+    // not a float parameter
+    assertFalse(frameRate.contains(30L));
+
+    SupportedValues<Float> continuous = floatRange(0.f, 1000.f, 0.f, 1.f, 1.f);
+    assertTrue(continuous.contains(0.5f));
+    assertTrue(continuous.contains(1000.f));
+
+    SupportedValues<Float> halves = floatRange(1.f, 240.f, 0.5f, 1.f, 1.f);
+    assertTrue(halves.contains(29.5f));
+    assertFalse(halves.contains(29.75f));
+
+    SupportedValues<Float> geometric = floatRange(0.125f, 8.f, 0.f, 2.f, 1.f);
+    assertTrue(geometric.contains(0.5f));
+    assertTrue(geometric.contains(8.f));
+    assertFalse(geometric.contains(3.f));
+  }
+
+  @Test
+  public void values_sortedLookupOrderedView() {
+    SupportedValues<Integer> modes = SupportedValues.ofArray(SupportedValues.Type.VALUES,
+        SupportedValues.DataType.INTEGER, null, new int[] {3, 1, 7});
+    // declared order is kept
+    assertEquals(Arrays.asList(3, 1, 7), modes.getValues());
+    assertTrue(modes.contains(1));
+    assertTrue(modes.contains(7));
+    assertFalse(modes.contains(2));
+    assertFalse(modes.contains(1.f));
+
+    SupportedValues<Float> rates = SupportedValues.ofArray(SupportedValues.Type.VALUES,
+        SupportedValues.DataType.FLOAT, null, new float[] {60.f, 30.f});
+    assertTrue(rates.contains(30.f));
+    assertFalse(rates.contains(25.f));
+  }
+
+  @Test
+  public void flagsEmptyAny() {
+    SupportedValues<Integer> flags = new SupportedValues<>(SupportedValues.Type.FLAGS,
+        SupportedValues.DataType.INTEGER, null, Arrays.asList(1, 2, 4));
+    assertTrue(flags.contains(5));
+    assertTrue(flags.contains(0));
+    assertFalse(flags.contains(8));
+    assertEquals(Arrays.asList(1, 2, 4), flags.getFlags());
+
+    assertFalse(new SupportedValues<Integer>(SupportedValues.Type.EMPTY,
+        SupportedValues.DataType.INTEGER, null, null).contains(0));
+    assertTrue(new SupportedValues<Integer>(SupportedValues.Type.ANY,
+        SupportedValues.DataType.INTEGER, null, null).contains(12345));
+    assertFalse(new SupportedValues<Integer>(SupportedValues.Type.ANY,
+        SupportedValues.DataType.NULL, null, null).contains(12345));
+  }
+
+  @Test
+  public void asset_unsignedValues() throws IOException {
+    Map<String, SupportedValues> ranges =
+        CapabilitiesJsonReaderTest.readCodec("c2.qti.hevc.encoder");
+
+    SupportedValues<?> pixelFormat = ranges.get("raw.pixel-format.value");
+    // UINT32 3254779904 is stored as an int, it matches as a long or as the int of its bits
+    assertTrue(pixelFormat.contains(3254779904L));
+    assertTrue(pixelFormat.contains((int) 3254779904L));
+    assertFalse(pixelFormat.contains(3254779906L));
+
+    SupportedValues<?> initialQp = ranges.get("vendor.qti-ext-enc-initial-qp.qp-i");
+    assertTrue(initialQp.contains(51));
+    assertFalse(initialQp.contains(101));
+  }
+}
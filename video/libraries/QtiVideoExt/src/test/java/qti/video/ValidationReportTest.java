@@ -0,0 +1,124 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+import qti.video.QMediaCodecCapabilities.ValidationReport;
+import qti.video.QMediaCodecCapabilities.ValueRange;
+
+/**
+ * {@link QMediaCodecCapabilities#validateValue} with the HEVC encoder of the asset file of the
+ * module, and the nearest supported values of OUT_OF_RANGE values.
+ */
+public class ValidationReportTest {
+  private static Map<String, SupportedValues> ranges;
+
+  private static ValidationReport validate(Map<String, Object> params) throws IOException {
+    if (ranges == null) {
+      ranges = CapabilitiesJsonReaderTest.readCodec("c2.qti.hevc.encoder");
+    }
+    ValidationReport report = new ValidationReport();
+    for (Map.Entry<String, Object> param : params.entrySet()) {
+      QMediaCodecCapabilities.validateValue(ranges, param.getKey(), param.getValue(), report);
+    }
+    return report;
+  }
+
+  // a typical encoder configuration
+  private static Map<String, Object> encoderParams() {
+    Map<String, Object> params = new LinkedHashMap<>();
+    params.put(QMediaExtensions.KEY_INIT_QP_I_FRAME_ENABLE, 1);
+    params.put(QMediaExtensions.KEY_INIT_QP_P_FRAME_ENABLE, 1);
+    params.put(QMediaExtensions.KEY_INIT_QP_B_FRAME_ENABLE, 0);
+    params.put(QMediaExtensions.KEY_INIT_QP_I_FRAME, 30);
+    params.put(QMediaExtensions.KEY_INIT_QP_P_FRAME, 32);
+    params.put(QMediaExtensions.KEY_INIT_QP_B_FRAME, 34);
+    params.put(QMediaExtensions.KEY_LTR_MAX_FRAMES, 2);
+    params.put(QMediaExtensions.KEY_LTR_MARK_FRAME, 0);
+    params.put(QMediaExtensions.KEY_LTR_USE_FRAME, 1);
+    params.put(QMediaExtensions.KEY_SLICE_SPACING_SIZE, 1024);
+    params.put(QMediaExtensions.KEY_ROI_RECT_INFO, "0,0-64,64=-5;");
+    params.put("vendor.qti-ext-enc-preprocess-rotate.angle", 90);
+    return params;
+  }
+
+  @Test
+  public void supportedParams_valid() throws IOException {
+    ValidationReport report = validate(encoderParams());
+    assertTrue(report.toString(), report.isValid());
+    assertEquals(12, report.getCheckedCount());
+  }
+
+  @Test
+  public void issues() throws IOException {
+    Map<String, Object> params = encoderParams();
+    params.put(QMediaExtensions.KEY_INIT_QP_I_FRAME, 120);
+    params.put(QMediaExtensions.KEY_LTR_USE_FRAME, -5);
+    params.put("vendor.qti-ext-enc-preprocess-rotate.angle", 100);
+    params.put(QMediaExtensions.KEY_SLICE_SPACING_SIZE, 1024L);
+    params.put("vendor.qti-ext-enc-unknown.value", 1);
+    params.put("vendor.qti-ext-enc-vbvdelay.value", 260);
+    ValidationReport report = validate(params);
+    List<ValidationReport.Issue> issues = report.getIssues();
+    assertEquals(report.toString(), 6, issues.size());
+
+    // in the order they were checked
+    assertEquals(QMediaExtensions.KEY_INIT_QP_I_FRAME, issues.get(0).getKey());
+    assertEquals(ValidationReport.Problem.OUT_OF_RANGE, issues.get(0).getProblem());
+    assertEquals(120, issues.get(0).getValue());
+    assertEquals(100, issues.get(0).getClampedValue());
+    assertEquals(-1, issues.get(1).getClampedValue());
+    assertEquals(ValidationReport.Problem.TYPE_MISMATCH, issues.get(2).getProblem());
+    assertNull(issues.get(2).getClampedValue());
+    // nearest of the series 0, 90, 180, 270
+    assertEquals(90, issues.get(3).getClampedValue());
+    assertEquals(ValidationReport.Problem.UNSUPPORTED, issues.get(4).getProblem());
+    // 200, 300 step 100: ties go to the lower value, 260 is nearer to 300
+    assertEquals(300, issues.get(5).getClampedValue());
+  }
+
+  @Test
+  public void nearest() {
+    SupportedValues<Integer> modes = SupportedValues.ofArray(SupportedValues.Type.VALUES,
+        SupportedValues.DataType.INTEGER, null, new int[] {3, 1, 7});
+    assertEquals(1, modes.nearest(-10));
+    assertEquals(1, modes.nearest(2));
+    assertEquals(3, modes.nearest(4));
+    assertEquals(7, modes.nearest(6));
+    assertEquals(7, modes.nearest(100));
+
+    SupportedValues<Integer> geometric = new SupportedValues<>(SupportedValues.Type.RANGE,
+        SupportedValues.DataType.INTEGER, new ValueRange<>(1, 1000, 0, 2, 1), null);
+    assertEquals(64, geometric.nearest(70));
+    assertEquals(128, geometric.nearest(100));
+    assertEquals(512, geometric.nearest(1000));
+
+    SupportedValues<Float> frameRate = new SupportedValues<>(SupportedValues.Type.RANGE,
+        SupportedValues.DataType.FLOAT, new ValueRange<>(1.f, 480.f, 1.f, 1.f, 1.f), null);
+    assertEquals(30.f, frameRate.nearest(29.97f), 0.f);
+    assertEquals(480.f, frameRate.nearest(1000.f), 0.f);
+    assertEquals(1.f, frameRate.nearest(0.f), 0.f);
+
+    SupportedValues<Integer> flags = new SupportedValues<>(SupportedValues.Type.FLAGS,
+        SupportedValues.DataType.INTEGER, null, java.util.Arrays.asList(1, 2, 4));
+    assertEquals(5, flags.nearest(13));
+
+    assertNull(new SupportedValues<Integer>(SupportedValues.Type.EMPTY,
+        SupportedValues.DataType.INTEGER, null, null).nearest(1));
+    assertNull(modes.nearest(1.f));
+  }
+}
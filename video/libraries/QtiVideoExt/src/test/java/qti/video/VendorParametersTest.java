@@ -0,0 +1,135 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import qti.video.QMediaCodecCapabilities.SupportedValues;
+
+/**
+ * {@link VendorParameters} with the HEVC encoder of the asset file of the module.
+ */
+public class VendorParametersTest {
+  private static Map<String, SupportedValues> ranges;
+
+  // the params of a setParameters() call
+  private static final class RecordingSink implements VendorParameters.ParameterSink {
+    final Map<String, Object> params = new LinkedHashMap<>();
+
+    @Override
+    public void putInt(String key, int value) {
+      params.put(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+      params.put(key, value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+      params.put(key, value);
+    }
+  }
+
+  private static Map<String, SupportedValues> getRanges() throws IOException {
+    if (ranges == null) {
+      ranges = CapabilitiesJsonReaderTest.readCodec("c2.qti.hevc.encoder");
+    }
+    return ranges;
+  }
+
+  private static Map<String, Object> send(VendorParameters params) {
+    RecordingSink sink = new RecordingSink();
+    params.writeChanges(sink);
+    return sink.params;
+  }
+
+  @Test
+  public void onlyChangedParamsSent() throws IOException {
+    VendorParameters params = new VendorParameters(getRanges());
+    VendorParameters.IntParam mode = params.addInt(QMediaExtensions.KEY_ADV_QP_BITRATE_MODE);
+    VendorParameters.IntParam frameQp = params.addInt(QMediaExtensions.KEY_ADV_QP_FRAME_QP_VALUE);
+    VendorParameters.StringParam roi = params.addString(QMediaExtensions.KEY_ROI_RECT_INFO);
+    VendorParameters.LongParam timestamp = params.addLong(QMediaExtensions.KEY_ROI_INFO_TIMESTAMP);
+    assertNotNull(mode);
+    assertNotNull(frameQp);
+    assertNotNull(roi);
+    assertNotNull(timestamp);
+    assertFalse(params.hasChanges());
+
+    assertTrue(mode.set(0));
+    assertTrue(frameQp.set(20));
+    assertTrue(roi.set("0,0-64,64=-5;"));
+    assertTrue(timestamp.set(33333L));
+    assertTrue(params.hasChanges());
+    Map<String, Object> sent = send(params);
+    assertEquals(4, sent.size());
+    assertEquals(0, sent.get(QMediaExtensions.KEY_ADV_QP_BITRATE_MODE));
+    assertEquals(33333L, sent.get(QMediaExtensions.KEY_ROI_INFO_TIMESTAMP));
+    assertFalse(params.hasChanges());
+
+    // next frame: same mode, QP and ROI
+    mode.set(0);
+    frameQp.set(20);
+    roi.set(new String("0,0-64,64=-5;"));
+    timestamp.set(66666L);
+    sent = send(params);
+    assertEquals(1, sent.size());
+    assertEquals(66666L, sent.get(QMediaExtensions.KEY_ROI_INFO_TIMESTAMP));
+
+    // a param for the next frame only
+    frameQp.resend();
+    sent = send(params);
+    assertEquals(1, sent.size());
+    assertEquals(20, sent.get(QMediaExtensions.KEY_ADV_QP_FRAME_QP_VALUE));
+    assertTrue(send(params).isEmpty());
+
+    // changed and changed back before sending
+    frameQp.set(30);
+    frameQp.set(20);
+    assertEquals(1, send(params).size());
+  }
+
+  @Test
+  public void checkedOnce() throws IOException {
+    VendorParameters params = new VendorParameters(getRanges());
+    assertNull(params.addInt("vendor.qti-ext-enc-unknown.value"));
+    // wrong data types
+    assertNull(params.addInt(QMediaExtensions.KEY_ROI_RECT_INFO));
+    assertNull(params.addLong(QMediaExtensions.KEY_LTR_USE_FRAME));
+    VendorParameters.IntParam useFrame = params.addInt(QMediaExtensions.KEY_LTR_USE_FRAME);
+    assertNotNull(useFrame);
+    assertNull(params.addInt(QMediaExtensions.KEY_LTR_USE_FRAME));
+
+    // LTR slots -1..3
+    assertTrue(useFrame.set(3));
+    assertFalse(useFrame.set(4));
+    assertEquals(3, useFrame.get());
+    assertEquals(3, send(params).get(QMediaExtensions.KEY_LTR_USE_FRAME));
+    assertFalse(useFrame.set(20));
+    assertFalse(params.hasChanges());
+
+    // not checked without capabilities
+    VendorParameters unchecked = new VendorParameters((Map<String, SupportedValues>) null);
+    VendorParameters.IntParam any = unchecked.addInt("vendor.qti-ext-enc-unknown.value");
+    assertNotNull(any);
+    assertTrue(any.set(Integer.MAX_VALUE));
+    // no value to send again
+    unchecked.addInt(QMediaExtensions.KEY_LTR_MARK_FRAME).resend();
+    assertEquals(1, send(unchecked).size());
+  }
+}
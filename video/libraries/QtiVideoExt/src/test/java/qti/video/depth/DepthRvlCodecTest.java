@@ -0,0 +1,221 @@
+/*
+ **************************************************************************************************
+ * Copyright (c) 2023, Qualcomm Innovation Center, Inc. All rights reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ **************************************************************************************************
+ */
+
+package qti.video.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trip and benchmark of {@link DepthRvlCodec}.
+ * Set system property "depthRvl.rawFrame" to "path:width:height" to also benchmark a recorded
+ * raw 16-bit little endian depth frame.
+ */
+public class DepthRvlCodecTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+
+  // smooth depth ramp with invalid holes and sensor noise, like a ToF frame
+  private static short[] syntheticDepth(int width, int height, long seed) {
+    Random random = new Random(seed);
+    short[] depth = new short[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int v = 500 + x * 4 + y * 2 + random.nextInt(5) - 2;
+        boolean hole = ((x / 40) + (y / 30)) % 7 == 0 || random.nextInt(50) == 0;
+        depth[y * width + x] = hole ? 0 : (short) v;
+      }
+    }
+    return depth;
+  }
+
+  private static int roundTrip(DepthRvlCodec codec, short[] depth, int width, int height) {
+    ByteBuffer buf = ByteBuffer.allocateDirect(DepthRvlCodec.maxEncodedSize(width, height));
+    int size = codec.encode(depth, width, height, buf);
+    assertEquals(size, buf.position());
+    buf.flip();
+    assertEquals(width, DepthRvlCodec.getWidth(buf));
+    assertEquals(height, DepthRvlCodec.getHeight(buf));
+    short[] decoded = new short[width * height];
+    codec.decode(buf, decoded);
+    assertArrayEquals(depth, decoded);
+    assertEquals(0, buf.position());
+    return size;
+  }
+
+  @Test
+  public void roundTrip_edgeCases() {
+    try (DepthRvlCodec codec = new DepthRvlCodec(1)) {
+      int[][] sizes = {{1, 1}, {3, 1}, {1, 9}, {17, 13}, {WIDTH, HEIGHT}};
+      for (int[] size : sizes) {
+        int w = size[0];
+        int h = size[1];
+        short[] zeros = new short[w * h];
+        roundTrip(codec, zeros, w, h);
+        short[] max = new short[w * h];
+        Arrays.fill(max, (short) 0xffff);
+        roundTrip(codec, max, w, h);
+        short[] alternating = new short[w * h];
+        for (int i = 0; i < alternating.length; ++i) {
+          alternating[i] = (short) ((i & 1) == 0 ? 0 : (i % 3 == 0 ? 0xffff : 1));
+        }
+        roundTrip(codec, alternating, w, h);
+        roundTrip(codec, syntheticDepth(w, h, w * 31 + h), w, h);
+      }
+    }
+  }
+
+  @Test
+  public void roundTrip_randomValues() {
+    Random random = new Random(42);
+    short[] depth = new short[WIDTH * HEIGHT];
+    for (int i = 0; i < depth.length; ++i) {
+      depth[i] = (short) random.nextInt(0x10000);
+    }
+    try (DepthRvlCodec codec = new DepthRvlCodec(1)) {
+      int size = roundTrip(codec, depth, WIDTH, HEIGHT);
+      assertTrue(size <= DepthRvlCodec.maxEncodedSize(WIDTH, HEIGHT));
+    }
+  }
+
+  @Test
+  public void multiThreaded_sameOutput() {
+    short[] depth = syntheticDepth(WIDTH, HEIGHT, 1);
+    ByteBuffer single = ByteBuffer.allocate(DepthRvlCodec.maxEncodedSize(WIDTH, HEIGHT));
+    ByteBuffer multi = ByteBuffer.allocate(DepthRvlCodec.maxEncodedSize(WIDTH, HEIGHT));
+    try (DepthRvlCodec codec1 = new DepthRvlCodec(1);
+         DepthRvlCodec codec4 = new DepthRvlCodec(4)) {
+      codec1.encode(depth, WIDTH, HEIGHT, single);
+      codec4.encode(depth, WIDTH, HEIGHT, multi);
+      single.flip();
+      multi.flip();
+      assertEquals(single, multi);
+      short[] decoded = new short[WIDTH * HEIGHT];
+      codec4.decode(multi, decoded);
+      assertArrayEquals(depth, decoded);
+    }
+  }
+
+  @Test
+  public void p010_roundTrip() {
+    // 10-bit depth, padded rows
+    short[] depth = syntheticDepth(WIDTH, HEIGHT, 3);
+    for (int i = 0; i < depth.length; ++i) {
+      depth[i] = (short) (depth[i] & 0x3ff);
+    }
+    depth[1] = 0x3ff;
+    for (int pixelStride : new int[] {2, 4}) {
+      final int rowStride = WIDTH * pixelStride + 64;
+      ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+      DepthRvlCodec.writeP010(depth, WIDTH, HEIGHT, plane, rowStride, pixelStride);
+      // the high bits of little endian words
+      assertEquals((byte) 0xc0, plane.get(pixelStride));
+      assertEquals((byte) 0xff, plane.get(pixelStride + 1));
+      short[] read = new short[WIDTH * HEIGHT];
+      DepthRvlCodec.readP010(plane, rowStride, pixelStride, WIDTH, HEIGHT, read);
+      assertArrayEquals(depth, read);
+      assertEquals(0, plane.position());
+      assertEquals(plane.capacity(), plane.limit());
+    }
+  }
+
+  @Test
+  public void decode_corruptedInput() {
+    short[] depth = syntheticDepth(WIDTH, HEIGHT, 2);
+    ByteBuffer buf = ByteBuffer.allocate(DepthRvlCodec.maxEncodedSize(WIDTH, HEIGHT));
+    short[] decoded = new short[WIDTH * HEIGHT];
+    try (DepthRvlCodec codec = new DepthRvlCodec(1)) {
+      int size = codec.encode(depth, WIDTH, HEIGHT, buf);
+
+      ByteBuffer truncated = ByteBuffer.wrap(buf.array(), 0, size - 4);
+      expectIllegalArgument(codec, truncated, decoded);
+
+      ByteBuffer badMagic = ByteBuffer.wrap(buf.array().clone(), 0, size);
+      badMagic.put(0, (byte) 0);
+      expectIllegalArgument(codec, badMagic, decoded);
+
+      // drop the stripe data but keep the stripe sizes
+      ByteBuffer badStripe = ByteBuffer.wrap(buf.array().clone(), 0, size);
+      badStripe.order(ByteOrder.LITTLE_ENDIAN).putInt(16, 4);
+      expectIllegalArgument(codec, badStripe, decoded);
+
+      expectIllegalArgument(codec, ByteBuffer.wrap(buf.array(), 0, size), new short[10]);
+    }
+  }
+
+  private static void expectIllegalArgument(DepthRvlCodec codec, ByteBuffer frame,
+                                            short[] depth) {
+    try {
+      codec.decode(frame, depth);
+      fail("corrupted frame decoded");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static void benchmark(String name, short[] depth, int width, int height) {
+    final int iterations = 50;
+    ByteBuffer buf = ByteBuffer.allocateDirect(DepthRvlCodec.maxEncodedSize(width, height));
+    short[] decoded = new short[width * height];
+    for (int threads : new int[] {1, 4}) {
+      try (DepthRvlCodec codec = new DepthRvlCodec(threads)) {
+        int size = 0;
+        long encodeNs = 0;
+        long decodeNs = 0;
+        for (int i = 0; i < iterations; ++i) {
+          buf.clear();
+          long t0 = System.nanoTime();
+          size = codec.encode(depth, width, height, buf);
+          long t1 = System.nanoTime();
+          buf.flip();
+          codec.decode(buf, decoded);
+          long t2 = System.nanoTime();
+          // first 10 iterations are warmup
+          if (i >= 10) {
+            encodeNs += t1 - t0;
+            decodeNs += t2 - t1;
+          }
+        }
+        assertArrayEquals(depth, decoded);
+        double megabytes = (double) width * height * 2 * (iterations - 10) / (1024 * 1024);
+        System.out.println(String.format(Locale.US,
+            "[%s %dx%d, %d threads] ratio %.2f, encode %.0f MB/s, decode %.0f MB/s",
+            name, width, height, threads, width * height * 2.0 / size,
+            megabytes * 1e9 / encodeNs, megabytes * 1e9 / decodeNs));
+      }
+    }
+  }
+
+  @Test
+  public void benchmark_compressionAndSpeed() throws IOException {
+    benchmark("synthetic", syntheticDepth(WIDTH, HEIGHT, 3), WIDTH, HEIGHT);
+
+    String raw = System.getProperty("depthRvl.rawFrame");
+    if (raw != null) {
+      String[] parts = raw.split(":");
+      int width = Integer.parseInt(parts[1]);
+      int height = Integer.parseInt(parts[2]);
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(parts[0])))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      short[] depth = new short[width * height];
+      bytes.asShortBuffer().get(depth);
+      benchmark(parts[0], depth, width, height);
+    }
+  }
+}
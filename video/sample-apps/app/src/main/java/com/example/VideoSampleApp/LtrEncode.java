@@ -15,13 +15,14 @@ import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
-import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
+import qti.video.QMediaCodecCapabilities;
 import qti.video.QMediaExtensions;
+import qti.video.VendorParameters;
 
 public class LtrEncode {
   private final String TAG = "QP_Control";
@@ -32,6 +33,8 @@ public class LtrEncode {
   boolean CodecError = false, mDecodeoutputDone = false, mDecodeinputDone = false;
   private final int flag = 0;
   private int D_InputFrame = 0;
+  // last input frame the params were sent for
+  private int mParamsInputFrame = 0;
   private int D_OutputFrame = 0;
   private int E_OutputFrame = 0;
   private int mBitrate;
@@ -44,6 +47,8 @@ public class LtrEncode {
   private MediaFormat format = null, EncoderFormat, DecoderFormat;
   private MediaMuxer mMuxer;
   private GFXSurface D_GFXSource;
+  private VendorParameters LTRParams;
+  private VendorParameters.IntParam LTRMarkFrame, LTRUseFrame;
 
   LtrEncode(MainActivity activity) {
     mainActivity = activity;
@@ -64,10 +69,26 @@ public class LtrEncode {
   }
 
   private void setLTR() {
-    Bundle ERInfo = new Bundle();
-    ERInfo.putInt(QMediaExtensions.KEY_LTR_MARK_FRAME, 20);
-    ERInfo.putInt(QMediaExtensions.KEY_LTR_USE_FRAME, 20);
-    ERInfo.putInt(QMediaExtensions.KEY_LTR_RESPONSE, 20);
+    if (D_InputFrame == 1) {
+      // Store the next frame in LTR slot 0
+      LTRMarkFrame.set(0);
+    } else {
+      // Use the frame of LTR slot 0 as reference of the next frame
+      LTRUseFrame.set(0);
+      LTRUseFrame.resend();
+    }
+    // KEY_LTR_RESPONSE is signaled by the encoder in the output format
+    LTRParams.applyTo(mEncodec);
+  }
+
+  private void createLTRParams() throws Exception {
+    QMediaCodecCapabilities caps = QMediaCodecCapabilities.createForCodec(mEncodec.getName(),
+        mEncodec.getCodecInfo().getSupportedTypes()[0], mainActivity);
+    LTRParams = new VendorParameters(caps);
+    LTRMarkFrame = LTRParams.addInt(QMediaExtensions.KEY_LTR_MARK_FRAME);
+    LTRUseFrame = LTRParams.addInt(QMediaExtensions.KEY_LTR_USE_FRAME);
+    if (LTRMarkFrame == null || LTRUseFrame == null)
+      throw new Exception("KEY_LTR_MARK_FRAME Not supported ");
   }
 
   private void createFormat() throws IOException {
@@ -105,8 +126,11 @@ public class LtrEncode {
       Log.i(TAG, D_InputFrame + " D_InputFrame :: D_OutputFrame " + D_OutputFrame + " :: E_OutputFrame :: " + E_OutputFrame);
       if (!mDecodeinputDone) Decodeinput();
       if (!mDecodeoutputDone) Decodeoutput();
-      if (D_InputFrame > 0 && D_InputFrame < 10)
+      // once per input frame, the loop also runs without a new input frame
+      if (D_InputFrame > 0 && D_InputFrame < 10 && D_InputFrame != mParamsInputFrame) {
+        mParamsInputFrame = D_InputFrame;
         setLTR();
+      }
       if ((Encodecinfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
         Log.w(TAG, "Encodecinfo OutputBuffer BUFFER_FLAG_END_OF_STREAM");
         break;
@@ -119,6 +143,7 @@ public class LtrEncode {
   private void start() throws Exception {
     if (!supportedExtensions.contains(QMediaExtensions.KEY_LTR_MAX_FRAMES))
       throw new Exception("KEY_LTR_MAX_FRAMES Not supported ");
+    createLTRParams();
 
     mEncodec.configure(EncoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     Surface e_Surface = mEncodec.createInputSurface();
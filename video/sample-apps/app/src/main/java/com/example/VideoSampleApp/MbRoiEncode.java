@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 import qti.video.QMediaExtensions;
+import qti.video.QpBiasMap;
 
 public class MbRoiEncode {
   private final String TAG = "MBROI_ENCODER";
@@ -64,30 +65,20 @@ public class MbRoiEncode {
     startTrascode();
     release();
   }
-  int qpBiasMapSize = -1;
-  Bundle MBROIInfo;
-  byte[] qpBiasMap;
+  private QpBiasMap qpBiasMap;
+  private final Bundle MBROIInfo = new Bundle();
   private void setROI(int MBSideLength) {
-    if ( qpBiasMapSize == -1) {
-      // Make ROI macro-block for frame
-      qpBiasMapSize = align(videoWidth, videoHeight, MBSideLength);
-      qpBiasMap = new byte[qpBiasMapSize];
-      MBROIInfo = new Bundle();
+    if (qpBiasMap == null || qpBiasMap.getMbSideLength() != MBSideLength) {
+      // Make ROI macro-block map for frame
+      qpBiasMap = new QpBiasMap(videoWidth, videoHeight, MBSideLength);
     }
-    for(int i = 0; i < qpBiasMapSize; i++) {
-      qpBiasMap[i] = (byte) (0+128);
+    // Enable ROI for the center of the frame
+    qpBiasMap.addEllipse(videoHeight / 4, videoWidth / 4, videoHeight * 3 / 4,
+        videoWidth * 3 / 4, -6);
+    if (qpBiasMap.commit()) {
+      qpBiasMap.writeTo(MBROIInfo);
+      mEncodec.setParameters(MBROIInfo);
     }
-    // Enable ROI for particular macro-block
-    qpBiasMap[10] = (byte) (30+128);
-    MBROIInfo.putInt("vendor.qti-ext-enc-roi-mbmap-info.mb_side_length", MBSideLength);
-    MBROIInfo.putByteArray("vendor.qti-ext-enc-roi-mbmap-info.qp_bias_map", qpBiasMap);
-
-  }
-
-  private int align(Integer videoHeight, int videoWidth, int MBSideLength) {
-    videoHeight = videoHeight + videoHeight % MBSideLength;
-    videoWidth = videoWidth + videoWidth % MBSideLength;
-    return (videoWidth / MBSideLength) * (videoHeight / MBSideLength);
   }
 
   private void createFormat() throws IOException {
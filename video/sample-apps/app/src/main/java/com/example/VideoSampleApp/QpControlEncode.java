@@ -15,13 +15,14 @@ import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
-import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
+import qti.video.QMediaCodecCapabilities;
 import qti.video.QMediaExtensions;
+import qti.video.VendorParameters;
 
 public class QpControlEncode {
   private final String TAG = "QP_Control";
@@ -32,6 +33,8 @@ public class QpControlEncode {
   boolean CodecError = false, mDecodeoutputDone = false, mDecodeinputDone = false;
   private final int flag = 0;
   private int D_InputFrame = 0;
+  // last input frame the params were sent for
+  private int mParamsInputFrame = 0;
   private int D_OutputFrame = 0;
   private int E_OutputFrame = 0;
   private int mBitrate;
@@ -44,6 +47,8 @@ public class QpControlEncode {
   private MediaFormat format = null, EncoderFormat, DecoderFormat;
   private MediaMuxer mMuxer;
   private GFXSurface D_GFXSource;
+  private VendorParameters QPParams;
+  private VendorParameters.IntParam QPBitrateMode, FrameQP;
 
   QpControlEncode(MainActivity activity) {
     mainActivity = activity;
@@ -64,12 +69,23 @@ public class QpControlEncode {
   }
 
   private void setQPControl() {
-    Bundle QPInfo = new Bundle();
     // Disable HW Encoder's QP generation and allow application to provide QP value for next frame
-    QPInfo.putInt(QMediaExtensions.KEY_ADV_QP_BITRATE_MODE, 0);
+    // (only sent with the first frame, since it doesn't change)
+    QPBitrateMode.set(0);
     // Setting QP value to 20 for the entire frame for the next frame compression
-    QPInfo.putInt(QMediaExtensions.KEY_ADV_QP_FRAME_QP_VALUE, 20);
-    mEncodec.setParameters(QPInfo);
+    FrameQP.set(20);
+    FrameQP.resend();
+    QPParams.applyTo(mEncodec);
+  }
+
+  private void createQPParams() throws Exception {
+    QMediaCodecCapabilities caps = QMediaCodecCapabilities.createForCodec(mEncodec.getName(),
+        mEncodec.getCodecInfo().getSupportedTypes()[0], mainActivity);
+    QPParams = new VendorParameters(caps);
+    QPBitrateMode = QPParams.addInt(QMediaExtensions.KEY_ADV_QP_BITRATE_MODE);
+    FrameQP = QPParams.addInt(QMediaExtensions.KEY_ADV_QP_FRAME_QP_VALUE);
+    if (QPBitrateMode == null || FrameQP == null)
+      throw new Exception("KEY_ADV_QP_FRAME_QP_VALUE Not supported ");
   }
 
   private void createFormat() throws IOException {
@@ -106,7 +122,11 @@ public class QpControlEncode {
       Log.i(TAG, D_InputFrame + " D_InputFrame :: D_OutputFrame " + D_OutputFrame + " :: E_OutputFrame :: " + E_OutputFrame);
       if (!mDecodeinputDone) Decodeinput();
       if (!mDecodeoutputDone) Decodeoutput();
-      if (D_InputFrame > 10 && D_InputFrame < 20) setQPControl();
+      // once per input frame, the loop also runs without a new input frame
+      if (D_InputFrame > 10 && D_InputFrame < 20 && D_InputFrame != mParamsInputFrame) {
+        mParamsInputFrame = D_InputFrame;
+        setQPControl();
+      }
       if ((Encodecinfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
         Log.w(TAG, "Encodecinfo OutputBuffer BUFFER_FLAG_END_OF_STREAM");
         break;
@@ -119,6 +139,7 @@ public class QpControlEncode {
   private void start() throws Exception {
     if (!supportedExtensions.contains(QMediaExtensions.KEY_ADV_QP_BITRATE_MODE))
       throw new Exception("KEY_ADV_QP_BITRATE_MODE Not supported ");
+    createQPParams();
 
     mEncodec.configure(EncoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     Surface e_Surface = mEncodec.createInputSurface();
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 import qti.video.QMediaExtensions;
+import qti.video.RoiRectEncoder;
 
 public class RoiEncode {
   private final String TAG = "ROI_ENCODER";
@@ -44,6 +45,8 @@ public class RoiEncode {
   private MediaFormat format = null, EncoderFormat, DecoderFormat;
   private MediaMuxer mMuxer;
   private GFXSurface D_GFXSource;
+  private final RoiRectEncoder roiRects = new RoiRectEncoder(RoiRectEncoder.MAX_RECTS);
+  private final Bundle ROIInfo = new Bundle();
 
   RoiEncode(MainActivity activity) {
     mainActivity = activity;
@@ -65,11 +68,15 @@ public class RoiEncode {
 
   private void setROI(long microseconds) {
     Log.i(TAG, "setROI for time :: " + microseconds);
-    Bundle ROIInfo = new Bundle();
-    ROIInfo.putString(QMediaExtensions.KEY_ROI_RECT_INFO, "1,1-2,2=-3; 3,3-4,4=-3; 5,5-6,6=-6");
+    roiRects.clear();
+    roiRects.addRect(1, 1, 2, 2, -3);
+    roiRects.addRect(3, 3, 4, 4, -3);
+    roiRects.addRect(5, 5, 6, 6, -6);
     // Time stamps in microseconds. Must corresponds to the frame-timestamp of the frame
-    ROIInfo.putLong(QMediaExtensions.KEY_ROI_INFO_TIMESTAMP, microseconds);
-    mEncodec.setParameters(ROIInfo);
+    roiRects.encode(microseconds);
+    if (roiRects.writeTo(ROIInfo)) {
+      mEncodec.setParameters(ROIInfo);
+    }
   }
 
   private void createFormat() throws IOException {